@@ -5,13 +5,16 @@ import se.llbit.nbt.CompoundTag;
 import se.llbit.nbt.StringTag;
 import se.llbit.nbt.Tag;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 /**
@@ -34,6 +37,9 @@ public class BlockPalette {
   private final Map<BlockSpec, Integer> blockMap;
   private final List<Block> palette;
 
+  /** Palette IDs for raw NBT palette entries. */
+  private final Map<RawTag, Integer> rawMap = new ConcurrentHashMap<>();
+
   public BlockPalette(Map<BlockSpec, Integer> initialMap, List<Block> initialList) {
     this.blockMap = initialMap;
     this.palette = initialList;
@@ -65,7 +71,15 @@ public class BlockPalette {
     return put(new BlockSpec(tag));
   }
 
-  public int put(BlockSpec spec) {
+  /**
+   * Adds a new block to the palette and returns the palette index.
+   *
+   * <p>This is synchronized because chunks are decoded in parallel.
+   * The {@link #get} method is not synchronized since it is used during
+   * rendering, so while blocks may be added concurrently other threads
+   * must synchronize on the palette before calling get.
+   */
+  public synchronized int put(BlockSpec spec) {
     Integer id = blockMap.get(spec);
     if (id != null) {
       return id;
@@ -78,6 +92,33 @@ public class BlockPalette {
     return id;
   }
 
+  /**
+   * Adds a new block to the palette and returns the palette index.
+   *
+   * <p>The block is given as the raw NBT payload of a block palette compound
+   * tag. Palette entries are cached by their raw data, so the tag is only
+   * parsed the first time an entry is seen. Identical palette entries occur
+   * in many chunks, so this avoids building and hashing a tag for each of
+   * them.
+   *
+   * @param data raw NBT compound payload, including the end tag
+   * @param length number of bytes of data to use
+   * @return the palette index of the block in this palette.
+   */
+  public int put(byte[] data, int length) throws IOException {
+    Integer id = rawMap.get(new RawTag(data, length));
+    if (id != null) {
+      return id;
+    }
+    Tag tag = CompoundTag.read(new DataInputStream(new ByteArrayInputStream(data, 0, length)));
+    if (tag.isError()) {
+      throw new IOException("Error while reading block palette entry: " + tag.error());
+    }
+    id = put(tag);
+    rawMap.put(new RawTag(Arrays.copyOf(data, length), length), id);
+    return id;
+  }
+
   public Block get(int id) {
     return palette.get(id);
   }
@@ -337,4 +378,41 @@ public class BlockPalette {
     }
     return new BlockPalette(blockMap, blocks);
   }
+
+  /** A raw NBT palette entry, used as a cache key. */
+  private static final class RawTag {
+    private final byte[] data;
+    private final int length;
+    private final int hash;
+
+    RawTag(byte[] data, int length) {
+      this.data = data;
+      this.length = length;
+      int hash = 1;
+      for (int i = 0; i < length; ++i) {
+        hash = 31 * hash + data[i];
+      }
+      this.hash = hash;
+    }
+
+    @Override public int hashCode() {
+      return hash;
+    }
+
+    @Override public boolean equals(Object obj) {
+      if (!(obj instanceof RawTag)) {
+        return false;
+      }
+      RawTag other = (RawTag) obj;
+      if (other.hash != hash || other.length != length) {
+        return false;
+      }
+      for (int i = 0; i < length; ++i) {
+        if (data[i] != other.data[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
 }
@@ -158,6 +158,10 @@ public class Chunky {
       System.out.println(String
           .format("Total rendering time: %d hours, %d minutes, %d seconds", hours, minutes, seconds));
       System.out.println("Average samples per second (SPS): " + sps);
+      long[] idleTime = renderer.getRenderStatus().getWorkerIdleTime();
+      for (int i = 0; i < idleTime.length; ++i) {
+        System.out.format("Render worker %d idle time: %d ms%n", i, idleTime[i]);
+      }
     });
 
     try {
@@ -299,6 +303,8 @@ public class Chunky {
           String extension = ".png";
           if (outputMode == OutputMode.TIFF_32) {
             extension = ".tiff";
+          } else if (outputMode == OutputMode.EXR_16 || outputMode == OutputMode.EXR_32) {
+            extension = ".exr";
           }
           options.imageOutputFile = String.format("%s-%d%s", scene.name(), scene.spp, extension);
         }
@@ -309,6 +315,12 @@ public class Chunky {
           case TIFF_32:
             System.out.println("Image output mode: TIFF32");
             break;
+          case EXR_16:
+            System.out.println("Image output mode: OpenEXR16");
+            break;
+          case EXR_32:
+            System.out.println("Image output mode: OpenEXR32");
+            break;
         }
         scene.saveFrame(new File(options.imageOutputFile), taskTracker, getRenderContext().numRenderThreads());
         System.out.println("Saved snapshot to " + options.imageOutputFile);
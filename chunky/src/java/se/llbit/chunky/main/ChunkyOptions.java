@@ -41,6 +41,18 @@ public class ChunkyOptions {
 
   public int tileWidth = RenderConstants.TILE_WIDTH_DEFAULT;
 
+  /**
+   * Render tiles independently of each other, without waiting for all
+   * tiles between frames, until a frame needs to be saved.
+   */
+  public boolean progressive = false;
+
+  /**
+   * Store the sample buffer in a memory-mapped file in the scene directory
+   * instead of on the Java heap.
+   */
+  public boolean mappedSampleBuffer = false;
+
   /** Ignore scene loading errors when starting a headless render. */
   public boolean force = false;
 
@@ -69,6 +69,8 @@ public class CommandLineOptions {
           "  -scene-dir <DIR>       use the directory DIR for loading/saving scenes",
           "  -threads <NUM>         use the specified number of threads for rendering",
           "  -tile-width <NUM>      use the specified job tile width",
+          "  -progressive           render tiles independently between saved frames",
+          "  -mapped-samples        store render samples in a memory-mapped file",
           "  -target <NUM>          override target SPP to be NUM in headless mode",
           "  -set <NAME> <VALUE>    set a global configuration option and exit",
           "  -reset <NAME>          reset a global configuration option and exit",
@@ -212,6 +214,11 @@ public class CommandLineOptions {
     registerOption("-tile-width", new Range(1),
         arguments -> options.tileWidth = Math.max(1, Integer.parseInt(arguments.get(0))));
 
+    registerOption("-progressive", new Range(0), arguments -> options.progressive = true);
+
+    registerOption("-mapped-samples", new Range(0),
+        arguments -> options.mappedSampleBuffer = true);
+
     registerOption("-version", new Range(0), arguments -> {
       mode = Mode.NOTHING;
       System.out.println("Chunky " + Version.getVersion());
@@ -366,7 +373,7 @@ public class CommandLineOptions {
             });
         scene.loadDump(context, taskTracker); // Load the render dump.
         Log.info("Original scene SPP: " + scene.spp);
-        scene.mergeDump(dumpfile, taskTracker);
+        scene.mergeDump(dumpfile, taskTracker, context.numRenderThreads());
         Log.info("Current scene SPP: " + scene.spp);
         scene.saveDump(context, taskTracker);
         try (FileOutputStream out = new FileOutputStream(sceneFile)) {
@@ -25,6 +25,7 @@ import se.llbit.chunky.world.ChunkPosition;
 import se.llbit.chunky.world.ChunkSelectionTracker;
 import se.llbit.chunky.world.ChunkView;
 import se.llbit.png.PngFileWriter;
+import se.llbit.util.LongHashMap;
 import se.llbit.util.RingBuffer;
 import se.llbit.util.TaskTracker;
 
@@ -32,9 +33,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.IntBuffer;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Map;
 
 /**
  * Keeps a buffered image of rendered map tiles. We only re-render chunks when
@@ -58,7 +57,7 @@ public class MapBuffer {
   private ChunkView view = ChunkView.EMPTY;
 
   private RingBuffer<MapTile> tileCache = new RingBuffer<>(140);
-  private Map<ChunkPosition, MapTile> activeTiles = new HashMap<>();
+  private final LongHashMap<MapTile> activeTiles = new LongHashMap<>();
 
   public MapBuffer() {
     updateView(ChunkView.EMPTY, true);
@@ -95,7 +94,7 @@ public class MapBuffer {
     }
     for (MapTile tile : discarded) {
       tileCache.append(tile);
-      activeTiles.remove(tile.pos);
+      activeTiles.remove(tile.pos.getLong());
     }
     int x0, x1, z0, z1;
     if (newView.chunkScale >= 16) {
@@ -111,9 +110,9 @@ public class MapBuffer {
     }
     for (int x = x0; x <= x1; ++x) {
       for (int z = z0; z <= z1; ++z) {
-        ChunkPosition pos = ChunkPosition.get(x, z);
-        if (!activeTiles.containsKey(pos)) {
-          activeTiles.put(pos, newTile(pos, newView));
+        long key = ChunkPosition.asLong(x, z);
+        if (!activeTiles.containsKey(key)) {
+          activeTiles.put(key, newTile(ChunkPosition.get(x, z), newView));
         }
       }
     }
@@ -131,7 +130,7 @@ public class MapBuffer {
    */
   public synchronized void drawTile(WorldMapLoader mapLoader, ChunkPosition chunk,
       ChunkSelectionTracker selection) {
-    MapTile tile = activeTiles.get(chunk);
+    MapTile tile = activeTiles.get(chunk.getLong());
     if (tile != null) {
       tile.draw(this, mapLoader, view, selection);
       cached = false;
@@ -143,7 +142,7 @@ public class MapBuffer {
    */
   public synchronized void drawTileCached(WorldMapLoader mapLoader, ChunkPosition chunk,
       ChunkSelectionTracker selection) {
-    MapTile tile = activeTiles.get(chunk);
+    MapTile tile = activeTiles.get(chunk.getLong());
     if (tile != null) {
       tile.drawCached(this, mapLoader, view, selection);
       cached = false;
@@ -76,6 +76,25 @@ public abstract class AbstractRenderManager extends Thread {
    */
   public abstract void jobDone();
 
+  /**
+   * Get the next tile to be rendered by a specific worker.
+   * Render managers that balance work between workers override this.
+   *
+   * @param workerId the ID of the requesting worker
+   * @return description of tile to be rendered.
+   * @throws InterruptedException
+   */
+  public RenderTile getNextJob(int workerId) throws InterruptedException {
+    return getNextJob();
+  }
+
+  /**
+   * Report that a tile returned by {@link #getNextJob(int)} has been rendered.
+   */
+  public void jobDone(RenderTile tile) {
+    jobDone();
+  }
+
   public void setSceneProvider(SceneProvider sceneProvider) {
     this.sceneProvider = sceneProvider;
   }
@@ -0,0 +1,280 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+import se.llbit.util.TaskTracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves render dumps incrementally.
+ *
+ * <p>The first checkpoint writes a complete render dump. Later checkpoints
+ * append a record to a log file next to the dump, containing only the
+ * dump tiles whose sample count changed since the previous checkpoint.
+ * When the log has grown larger than the dump, or when every tile changed,
+ * the next checkpoint writes a complete dump again and removes the log.
+ *
+ * <p>Each log record starts with a header listing the tiles in the record,
+ * followed by the tile data. The record header is written after the tile
+ * data, so that a record that was interrupted while saving is ignored when
+ * the log is read.
+ */
+public class CheckpointLog {
+  private static final int MAGIC = 0x43444C47;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+
+  private static final int RECORD_MAGIC = 0x52454344;
+  private static final int RECORD_HEADER_SIZE = 20;
+  private static final int RECORD_ENTRY_SIZE = 16;
+
+  private int width;
+  private int height;
+  private int lastSpp;
+
+  /** Sample count of each tile at the last checkpoint, or {@code null} if there is none. */
+  private long[] tileSamples;
+
+  /** Render state stored in the render dump header. */
+  private int dumpSpp;
+  private long dumpRenderTime;
+
+  private long dumpSize;
+  private long logSize;
+
+  /**
+   * @return the checkpoint log file of a render dump
+   */
+  public static File logFile(File dumpFile) {
+    return new File(dumpFile.getPath() + ".log");
+  }
+
+  /**
+   * Forget the previous checkpoint, so that the next checkpoint writes a
+   * complete render dump. This must be called when the render is reset.
+   */
+  public synchronized void reset() {
+    tileSamples = null;
+  }
+
+  /**
+   * @param sampleCounts the number of samples in each pixel, or {@code null}
+   * if all pixels have {@code spp} samples
+   * @return {@code true} if the next checkpoint writes a complete render
+   * dump instead of appending to the log
+   */
+  public synchronized boolean needsCompaction(File dumpFile, int width, int height,
+      int[] sampleCounts, int spp) {
+    if (tileSamples == null
+        || width != this.width || height != this.height || spp < lastSpp
+        || logSize > dumpSize
+        || dumpFile.length() != dumpSize
+        || logFile(dumpFile).length() != logSize) {
+      return true;
+    }
+    // If every tile changed, a log record is as large as a complete dump.
+    long[] counts = tileSampleCounts(width, height, sampleCounts, spp);
+    for (int i = 0; i < counts.length; ++i) {
+      if (counts[i] == tileSamples[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Write a complete render dump and remove the checkpoint log.
+   *
+   * @param sampleCounts the number of samples in each pixel, or {@code null}
+   * if all pixels have {@code spp} samples
+   */
+  public synchronized void writeDump(File dumpFile, SampleBuffer samples, int[] sampleCounts,
+      int spp, long renderTime, int threadCount, TaskTracker.Task task) throws IOException {
+    tileSamples = null;
+    // The old log does not belong to the new dump.
+    File log = logFile(dumpFile);
+    if (log.exists() && !log.delete()) {
+      throw new IOException("Failed to delete checkpoint log " + log.getName());
+    }
+    long[] counts = tileSampleCounts(samples.width, samples.height, sampleCounts, spp);
+    dumpSize = RenderDump.write(dumpFile, samples, spp, renderTime, threadCount, task);
+    logSize = 0;
+    dumpSpp = spp;
+    dumpRenderTime = renderTime;
+    width = samples.width;
+    height = samples.height;
+    lastSpp = spp;
+    tileSamples = counts;
+  }
+
+  /**
+   * Append the tiles that changed since the last checkpoint to the
+   * checkpoint log.
+   *
+   * @param sampleCounts the number of samples in each pixel, or {@code null}
+   * if all pixels have {@code spp} samples
+   * @return the number of tiles written
+   */
+  public synchronized int append(File dumpFile, SampleBuffer samples, int[] sampleCounts,
+      int spp, long renderTime, int threadCount, TaskTracker.Task task) throws IOException {
+    // The sample counts are computed before the samples are read, so that
+    // tiles which are updated while saving are written again next time.
+    long[] counts = tileSampleCounts(width, height, sampleCounts, spp);
+    int numChanged = 0;
+    for (int i = 0; i < counts.length; ++i) {
+      if (counts[i] != tileSamples[i]) {
+        numChanged += 1;
+      }
+    }
+    int[] tiles = new int[numChanged];
+    numChanged = 0;
+    for (int i = 0; i < counts.length; ++i) {
+      if (counts[i] != tileSamples[i]) {
+        tiles[numChanged++] = i;
+      }
+    }
+
+    File log = logFile(dumpFile);
+    try (RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        FileChannel channel = raf.getChannel()) {
+      long start = logSize;
+      if (start == 0) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(RenderDump.TILE_SIZE);
+        header.putInt(dumpSpp);
+        header.putLong(dumpRenderTime);
+        header.flip();
+        RenderDump.writeFully(channel, header, 0);
+        start = HEADER_SIZE;
+      }
+      // Discard any incomplete record after the last checkpoint.
+      raf.setLength(start);
+
+      long[] tileOffset = new long[counts.length];
+      int[] tileLength = new int[counts.length];
+      long end = RenderDump.writeTiles(channel,
+          start + RECORD_HEADER_SIZE + (long) tiles.length * RECORD_ENTRY_SIZE,
+          samples, tiles, tileOffset, tileLength, threadCount, task);
+      channel.force(false);
+
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + tiles.length * RECORD_ENTRY_SIZE);
+      record.putInt(RECORD_MAGIC);
+      record.putInt(spp);
+      record.putLong(renderTime);
+      record.putInt(tiles.length);
+      for (int tile : tiles) {
+        record.putInt(tile);
+        record.putLong(tileOffset[tile]);
+        record.putInt(tileLength[tile]);
+      }
+      record.flip();
+      RenderDump.writeFully(channel, record, start);
+      channel.force(false);
+      logSize = end;
+    }
+    lastSpp = spp;
+    tileSamples = counts;
+    return tiles.length;
+  }
+
+  /**
+   * Read the index of a checkpoint log. The offset and length of each tile
+   * in the log replaces the tile index of the render dump.
+   *
+   * @param state the spp and render time of the dump, replaced by the
+   * state of the last checkpoint in the log
+   */
+  static void readIndex(File log, int width, int height, int tileSize, int dumpSpp,
+      long dumpRenderTime, long[] tileOffset, int[] tileLength, boolean[] inLog, long[] state)
+      throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+      long length = raf.length();
+      if (length < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION
+          || raf.readInt() != width || raf.readInt() != height || raf.readInt() != tileSize
+          || raf.readInt() != dumpSpp || raf.readLong() != dumpRenderTime) {
+        // This log does not belong to the render dump.
+        return;
+      }
+      long position = HEADER_SIZE;
+      while (position + RECORD_HEADER_SIZE <= length) {
+        raf.seek(position);
+        if (raf.readInt() != RECORD_MAGIC) {
+          break;
+        }
+        int spp = raf.readInt();
+        long renderTime = raf.readLong();
+        int numTiles = raf.readInt();
+        if (numTiles < 0 || numTiles > tileOffset.length
+            || position + RECORD_HEADER_SIZE + (long) numTiles * RECORD_ENTRY_SIZE > length) {
+          break;
+        }
+        int[] tiles = new int[numTiles];
+        long[] offsets = new long[numTiles];
+        int[] lengths = new int[numTiles];
+        long end = position + RECORD_HEADER_SIZE + (long) numTiles * RECORD_ENTRY_SIZE;
+        boolean valid = true;
+        for (int i = 0; i < numTiles; ++i) {
+          tiles[i] = raf.readInt();
+          offsets[i] = raf.readLong();
+          lengths[i] = raf.readInt();
+          if (tiles[i] < 0 || tiles[i] >= tileOffset.length || offsets[i] < position
+              || lengths[i] < 0 || offsets[i] + lengths[i] > length) {
+            valid = false;
+            break;
+          }
+          end = Math.max(end, offsets[i] + lengths[i]);
+        }
+        if (!valid) {
+          break;
+        }
+        for (int i = 0; i < numTiles; ++i) {
+          tileOffset[tiles[i]] = offsets[i];
+          tileLength[tiles[i]] = lengths[i];
+          inLog[tiles[i]] = true;
+        }
+        state[0] = spp;
+        state[1] = renderTime;
+        position = end;
+      }
+    }
+  }
+
+  /**
+   * Sum the sample counts of the pixels in each dump tile.
+   */
+  private static long[] tileSampleCounts(int width, int height, int[] sampleCounts, int spp) {
+    int tileSize = RenderDump.TILE_SIZE;
+    int tilesX = (width + tileSize - 1) / tileSize;
+    long[] counts = new long[RenderDump.numTiles(width, height)];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int tile = (y / tileSize) * tilesX + x / tileSize;
+        counts[tile] += sampleCounts != null ? sampleCounts[y * width + x] : spp;
+      }
+    }
+    return counts;
+  }
+}
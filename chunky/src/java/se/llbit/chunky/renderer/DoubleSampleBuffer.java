@@ -0,0 +1,62 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+/**
+ * Sample buffer storing samples with double precision.
+ */
+public final class DoubleSampleBuffer extends SampleBuffer {
+  private final double[] samples;
+
+  public DoubleSampleBuffer(int width, int height) {
+    super(width, height);
+    samples = new double[width * height * 3];
+  }
+
+  /**
+   * Create a sample buffer backed by an existing array.
+   *
+   * @param samples the sample values, {@code width * height * 3} values
+   */
+  public DoubleSampleBuffer(int width, int height, double[] samples) {
+    super(width, height);
+    if (samples.length != width * height * 3) {
+      throw new IllegalArgumentException("Sample array has the wrong size");
+    }
+    this.samples = samples;
+  }
+
+  @Override public double get(int index) {
+    return samples[index];
+  }
+
+  @Override public void get(int index, double[] dest, int destIndex, int length) {
+    System.arraycopy(samples, index, dest, destIndex, length);
+  }
+
+  @Override public void set(int index, double value) {
+    samples[index] = value;
+  }
+
+  @Override public SamplePrecision getPrecision() {
+    return SamplePrecision.DOUBLE;
+  }
+
+  @Override public double[] toDoubleArray() {
+    return samples;
+  }
+}
@@ -0,0 +1,72 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+import java.util.Arrays;
+
+/**
+ * Sample buffer storing samples with single precision.
+ *
+ * <p>Running averages are computed in double precision, so each update of
+ * a pixel is only rounded once. The rounding errors are scaled down by
+ * later updates, so the error stays small even after many samples.
+ */
+public final class FloatSampleBuffer extends SampleBuffer {
+  private final float[] samples;
+
+  public FloatSampleBuffer(int width, int height) {
+    super(width, height);
+    samples = new float[width * height * 3];
+  }
+
+  /**
+   * Create a sample buffer backed by an existing array.
+   *
+   * @param samples the sample values, {@code width * height * 3} values
+   */
+  public FloatSampleBuffer(int width, int height, float[] samples) {
+    super(width, height);
+    if (samples.length != width * height * 3) {
+      throw new IllegalArgumentException("Sample array has the wrong size");
+    }
+    this.samples = samples;
+  }
+
+  @Override public double get(int index) {
+    return samples[index];
+  }
+
+  @Override public void get(int index, double[] dest, int destIndex, int length) {
+    for (int i = 0; i < length; ++i) {
+      dest[destIndex + i] = samples[index + i];
+    }
+  }
+
+  @Override public void set(int index, double value) {
+    samples[index] = (float) value;
+  }
+
+  @Override public SamplePrecision getPrecision() {
+    return SamplePrecision.FLOAT;
+  }
+
+  @Override public double[] toDoubleArray() {
+    double[] result = new double[samples.length];
+    Arrays.setAll(result, i -> samples[i]);
+    return result;
+  }
+}
@@ -0,0 +1,294 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+import se.llbit.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sample buffer stored in a memory-mapped file. This allows rendering
+ * canvases that are larger than the Java heap, or even larger than the
+ * physical memory.
+ *
+ * <p>The file starts with a header storing the canvas size and the render
+ * state at the last checkpoint, followed by the samples in double precision.
+ * The file is used as the render dump: a checkpoint just updates the
+ * header and flushes the mapped memory to disk.
+ *
+ * <p>Samples are addressed by {@code int} index like in other sample
+ * buffers, which limits the canvas to {@link #MAX_PIXELS} pixels. Use
+ * {@link #get(int, double[], int, int)} to read consecutive samples without
+ * copying the whole buffer to the heap.
+ *
+ * <p>A file that does not fit the canvas is never truncated, because it may
+ * still be mapped by the sample buffer that is being replaced. Truncating a
+ * mapped file crashes the threads that access the mapping. The file is
+ * replaced by a new file instead, and the old mapping stays valid until it
+ * is closed.
+ */
+public final class MappedSampleBuffer extends SampleBuffer {
+  /** Size of the file header in bytes. */
+  public static final int HEADER_SIZE = 64;
+
+  /** The largest number of pixels in a canvas. */
+  public static final int MAX_PIXELS = Integer.MAX_VALUE / 3;
+
+  private static final int MAGIC = 0x43534D42;
+  private static final int VERSION = 1;
+
+  /** Each mapped segment holds 2^27 samples (1 GiB). */
+  private static final int SEGMENT_SHIFT = 27;
+  private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+  private final File file;
+  private final File mappedFile;
+  private final MappedByteBuffer header;
+  private final MappedByteBuffer[] mapped;
+  private final DoubleBuffer[] segments;
+  private final boolean hasRenderState;
+  private boolean closed = false;
+
+  private MappedSampleBuffer(File file, File mappedFile, int width, int height)
+      throws IOException {
+    super(width, height);
+    this.file = file;
+    this.mappedFile = mappedFile;
+    long numSamples = (long) width * height * 3;
+    long fileSize = HEADER_SIZE + numSamples * 8;
+    try (RandomAccessFile raf = new RandomAccessFile(mappedFile, "rw");
+        FileChannel channel = raf.getChannel()) {
+      boolean valid = raf.length() == fileSize;
+      if (!valid) {
+        // The file is new, so it is only extended here.
+        raf.setLength(fileSize);
+      }
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+      valid = valid && header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+          && header.getInt(8) == width && header.getInt(12) == height;
+      if (!valid) {
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, width);
+        header.putInt(12, height);
+        header.putInt(16, 0);
+        header.putLong(20, 0);
+      }
+      hasRenderState = valid && header.getInt(16) > 0;
+      int numSegments = (int) ((numSamples + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+      mapped = new MappedByteBuffer[numSegments];
+      segments = new DoubleBuffer[numSegments];
+      for (int i = 0; i < numSegments; ++i) {
+        long start = (long) i << SEGMENT_SHIFT;
+        long size = Math.min(numSamples - start, 1L << SEGMENT_SHIFT);
+        mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + start * 8, size * 8);
+        segments[i] = mapped[i].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+      }
+    }
+  }
+
+  /**
+   * Map a sample buffer file. If the file already contains samples for the
+   * same canvas size they are kept, otherwise the file is replaced by a new,
+   * empty file.
+   *
+   * <p>If the file can not be replaced because it is still mapped (Windows
+   * does not allow deleting a mapped file), the samples are stored in a new
+   * temporary file in the same directory instead. The temporary file is
+   * deleted when the buffer is closed.
+   *
+   * @throws IllegalArgumentException if the canvas has more than
+   * {@link #MAX_PIXELS} pixels
+   */
+  public static MappedSampleBuffer open(File file, int width, int height) throws IOException {
+    if ((long) width * height > MAX_PIXELS) {
+      throw new IllegalArgumentException(String.format(
+          "Canvas size %dx%d is too large for a sample buffer (at most %d pixels)",
+          width, height, MAX_PIXELS));
+    }
+    if (file.exists() && !hasCanvasSize(file, width, height)) {
+      if (!file.delete()) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File replacement = File.createTempFile(file.getName() + "-", ".tmp", directory);
+        Log.warnf("Sample buffer file %s is in use, storing the samples in %s instead.",
+            file.getAbsolutePath(), replacement.getAbsolutePath());
+        return new MappedSampleBuffer(file, replacement, width, height);
+      }
+    }
+    return new MappedSampleBuffer(file, file, width, height);
+  }
+
+  /**
+   * @return {@code true} if the file has the header and size of a sample
+   * buffer file for the given canvas size
+   */
+  private static boolean hasCanvasSize(File file, int width, int height) throws IOException {
+    long fileSize = HEADER_SIZE + (long) width * height * 3 * 8;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      if (raf.length() != fileSize) {
+        return false;
+      }
+      ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+      raf.getChannel().read(header, 0);
+      return header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+          && header.getInt(8) == width && header.getInt(12) == height;
+    }
+  }
+
+  @Override public double get(int index) {
+    return segments[index >>> SEGMENT_SHIFT].get(index & SEGMENT_MASK);
+  }
+
+  @Override public void set(int index, double value) {
+    segments[index >>> SEGMENT_SHIFT].put(index & SEGMENT_MASK, value);
+  }
+
+  @Override public SamplePrecision getPrecision() {
+    return SamplePrecision.DOUBLE;
+  }
+
+  @Override public void get(int index, double[] dest, int destIndex, int length) {
+    while (length > 0) {
+      DoubleBuffer segment = segments[index >>> SEGMENT_SHIFT].duplicate();
+      int start = index & SEGMENT_MASK;
+      int count = Math.min(length, segment.limit() - start);
+      segment.position(start);
+      segment.get(dest, destIndex, count);
+      index += count;
+      destIndex += count;
+      length -= count;
+    }
+  }
+
+  /**
+   * @return a copy of the samples. This needs enough heap memory for the
+   * whole canvas.
+   */
+  @Override public double[] toDoubleArray() {
+    double[] result = new double[width * height * 3];
+    get(0, result, 0, result.length);
+    return result;
+  }
+
+  /**
+   * @return the sample buffer file this buffer was opened with. The samples
+   * are stored in a temporary file instead if that file could not be
+   * replaced.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return {@code true} if the file contained a render checkpoint when it
+   * was opened
+   */
+  public boolean hasRenderState() {
+    return hasRenderState;
+  }
+
+  /**
+   * @return the sample count at the last checkpoint
+   */
+  public int getSpp() {
+    return header.getInt(16);
+  }
+
+  /**
+   * @return the render time at the last checkpoint
+   */
+  public long getRenderTime() {
+    return header.getLong(20);
+  }
+
+  /**
+   * Write a checkpoint. The render state is stored in the file header and
+   * all modified samples are written to disk.
+   */
+  public void checkpoint(int spp, long renderTime) {
+    for (MappedByteBuffer segment : mapped) {
+      segment.force();
+    }
+    // The header is written last so that it is only updated after the samples.
+    header.putInt(16, spp);
+    header.putLong(20, renderTime);
+    header.force();
+  }
+
+  /**
+   * Unmap the file. This releases the memory and the file handle without
+   * waiting for the buffer to be garbage collected. Samples that were not
+   * written by a checkpoint are discarded.
+   *
+   * <p>Accessing the buffer after it is closed crashes the JVM, so this must
+   * only be called when no other thread uses the buffer.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      for (MappedByteBuffer segment : mapped) {
+        unmap(segment);
+      }
+      unmap(header);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // The mapping is released when the buffer is garbage collected.
+      Log.info("Could not unmap the sample buffer file: " + e.getMessage());
+      return;
+    }
+    if (mappedFile != file && !mappedFile.delete()) {
+      Log.warn("Could not delete temporary sample buffer file " + mappedFile.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Release a mapped byte buffer through the JDK internal API, since there
+   * is no public API for unmapping.
+   */
+  private static void unmap(MappedByteBuffer buffer) throws ReflectiveOperationException {
+    Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+    Method invokeCleaner;
+    try {
+      // Java 9 and later.
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (NoSuchMethodException e) {
+      // Java 8.
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+      return;
+    }
+    Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+    theUnsafe.setAccessible(true);
+    invokeCleaner.invoke(theUnsafe.get(null), buffer);
+  }
+}
@@ -41,6 +41,32 @@ public enum OutputMode {
     @Override public String getExtension() {
       return ".tif";
     }
+  },
+
+  /**
+   * Tiled OpenEXR with 16-bit floating point color channels, ZIP compressed.
+   */
+  EXR_16 {
+    @Override public String toString() {
+      return "OpenEXR, 16-bit floating point";
+    }
+
+    @Override public String getExtension() {
+      return ".exr";
+    }
+  },
+
+  /**
+   * Tiled OpenEXR with 32-bit floating point color channels, ZIP compressed.
+   */
+  EXR_32 {
+    @Override public String toString() {
+      return "OpenEXR, 32-bit floating point";
+    }
+
+    @Override public String getExtension() {
+      return ".exr";
+    }
   };
 
   public static final OutputMode DEFAULT = PNG;
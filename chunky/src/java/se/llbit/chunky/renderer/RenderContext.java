@@ -119,6 +119,22 @@ public class RenderContext {
     return config.tileWidth;
   }
 
+  /**
+   * @return {@code true} if tiles should be rendered independently between
+   * saved frames.
+   */
+  public boolean progressiveRendering() {
+    return config.progressive;
+  }
+
+  /**
+   * @return {@code true} if the sample buffer should be stored in a
+   * memory-mapped file.
+   */
+  public boolean mappedSampleBuffer() {
+    return config.mappedSampleBuffer;
+  }
+
   /**
    * @param timestamp the last file modification timestamp to compare against
    * @return {@code true} if the file has not changed since timestamp
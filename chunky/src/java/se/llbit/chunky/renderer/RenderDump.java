@@ -0,0 +1,446 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+import se.llbit.log.Log;
+import se.llbit.util.TaskTracker;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes render dumps.
+ *
+ * <p>Version 1 render dumps are a single GZIP stream with the samples
+ * stored column by column. Version 2 render dumps split the canvas into
+ * square tiles that are compressed independently, so that they can be
+ * written and read in parallel. The file starts with a header followed by
+ * an index with the file offset and compressed size of each tile.
+ *
+ * <p>The samples of each tile are byte-shuffled before compression: the
+ * first bytes of all samples are stored first, then all second bytes, and
+ * so on. This groups the sign, exponent and high mantissa bytes together,
+ * which compresses much better than interleaved doubles even with the
+ * fastest Deflate level.
+ *
+ * <p>A version 2 dump can have a checkpoint log next to it, see
+ * {@link CheckpointLog}. The tiles in the log replace the tiles in the
+ * dump when the dump is read.
+ */
+public class RenderDump {
+  /** Consumes the samples of a pixel read from a render dump. */
+  public interface PixelConsumer {
+    /**
+     * Called once for each pixel in the dump. May be called concurrently
+     * from several threads, but never twice for the same pixel.
+     */
+    void accept(int x, int y, double r, double g, double b);
+  }
+
+  private static final int MAGIC = 0x43444D50;
+  private static final int VERSION = 2;
+
+  /** Width and height of the tiles in version 2 dumps. */
+  static final int TILE_SIZE = 64;
+
+  /** Size of the version 2 header, excluding the tile index. */
+  private static final int HEADER_SIZE = 36;
+
+  /** Size of each tile index entry: offset and compressed size. */
+  private static final int INDEX_ENTRY_SIZE = 12;
+
+  private final File file;
+  public final int version;
+  public final int width;
+  public final int height;
+  public final int spp;
+  public final long renderTime;
+  private final int tileSize;
+  private final long[] tileOffset;
+  private final int[] tileLength;
+
+  /** Tiles that are read from the checkpoint log, or {@code null} if there is no log. */
+  private final boolean[] inLog;
+
+  private RenderDump(File file, int version, int width, int height, int spp, long renderTime,
+      int tileSize, long[] tileOffset, int[] tileLength, boolean[] inLog) {
+    this.file = file;
+    this.version = version;
+    this.width = width;
+    this.height = height;
+    this.spp = spp;
+    this.renderTime = renderTime;
+    this.tileSize = tileSize;
+    this.tileOffset = tileOffset;
+    this.tileLength = tileLength;
+    this.inLog = inLog;
+  }
+
+  /**
+   * Read the header of a render dump, and the index of its checkpoint log
+   * if there is one. The samples are read separately with {@link #read}.
+   *
+   * @throws IOException if the file could not be read or is not a render dump
+   */
+  public static RenderDump open(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      if (raf.length() >= 2 && raf.readUnsignedShort() == 0x1F8B) {
+        // Version 1 dumps start with the GZIP magic number.
+        try (DataInputStream in = new DataInputStream(
+            new GZIPInputStream(new FileInputStream(file)))) {
+          int width = in.readInt();
+          int height = in.readInt();
+          int spp = in.readInt();
+          long renderTime = in.readLong();
+          return new RenderDump(file, 1, width, height, spp, renderTime, 0, null, null, null);
+        }
+      }
+      raf.seek(0);
+      if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+        throw new IOException("Not a render dump");
+      }
+      int version = raf.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported render dump version: " + version);
+      }
+      int width = raf.readInt();
+      int height = raf.readInt();
+      int spp = raf.readInt();
+      long renderTime = raf.readLong();
+      int tileSize = raf.readInt();
+      int numTiles = raf.readInt();
+      if (width <= 0 || height <= 0 || tileSize <= 0
+          || numTiles != ceilDiv(width, tileSize) * ceilDiv(height, tileSize)) {
+        throw new IOException("Corrupt render dump header");
+      }
+      long[] tileOffset = new long[numTiles];
+      int[] tileLength = new int[numTiles];
+      long dataStart = HEADER_SIZE + (long) numTiles * INDEX_ENTRY_SIZE;
+      for (int i = 0; i < numTiles; ++i) {
+        tileOffset[i] = raf.readLong();
+        tileLength[i] = raf.readInt();
+        if (tileOffset[i] < dataStart || tileLength[i] < 0
+            || tileOffset[i] + tileLength[i] > raf.length()) {
+          throw new IOException("Corrupt render dump tile index");
+        }
+      }
+
+      File log = CheckpointLog.logFile(file);
+      if (log.isFile()) {
+        boolean[] inLog = new boolean[numTiles];
+        long[] state = { spp, renderTime };
+        try {
+          CheckpointLog.readIndex(log, width, height, tileSize, spp, renderTime,
+              tileOffset, tileLength, inLog, state);
+        } catch (IOException e) {
+          Log.warn("Failed to read checkpoint log " + log.getName(), e);
+        }
+        return new RenderDump(file, version, width, height, (int) state[0], state[1], tileSize,
+            tileOffset, tileLength, inLog);
+      }
+      return new RenderDump(file, version, width, height, spp, renderTime, tileSize,
+          tileOffset, tileLength, null);
+    }
+  }
+
+  /**
+   * Read all samples in the render dump. Version 2 dumps are decoded in
+   * parallel using the given number of threads.
+   *
+   * @param consumer receives the samples of each pixel
+   */
+  public void read(int threadCount, TaskTracker.Task task, PixelConsumer consumer)
+      throws IOException {
+    if (version == 1) {
+      readVersion1(task, consumer);
+      return;
+    }
+    int tilesX = ceilDiv(width, tileSize);
+    int numTiles = tileOffset.length;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        RandomAccessFile logRaf = inLog != null
+            ? new RandomAccessFile(CheckpointLog.logFile(file), "r")
+            : null;
+        FileChannel logChannel = logRaf != null ? logRaf.getChannel() : null) {
+      AtomicInteger done = new AtomicInteger(0);
+      List<Future<?>> results = new ArrayList<>(numTiles);
+      for (int i = 0; i < numTiles; ++i) {
+        final int tile = i;
+        results.add(executor.submit(() -> {
+          int x0 = (tile % tilesX) * tileSize;
+          int y0 = (tile / tilesX) * tileSize;
+          int x1 = Math.min(width, x0 + tileSize);
+          int y1 = Math.min(height, y0 + tileSize);
+          ByteBuffer compressed = ByteBuffer.allocate(tileLength[tile]);
+          FileChannel source = inLog != null && inLog[tile] ? logChannel : channel;
+          long position = tileOffset[tile];
+          while (compressed.hasRemaining()) {
+            int n = source.read(compressed, position);
+            if (n < 0) {
+              throw new EOFException("Render dump tile truncated");
+            }
+            position += n;
+          }
+          decodeTile(compressed.array(), x0, y0, x1, y1, consumer);
+          task.update(numTiles, done.incrementAndGet());
+          return null;
+        }));
+      }
+      awaitAll(results);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void readVersion1(TaskTracker.Task task, PixelConsumer consumer) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new GZIPInputStream(new FileInputStream(file))))) {
+      // Skip the header.
+      in.readInt();
+      in.readInt();
+      in.readInt();
+      in.readLong();
+      for (int x = 0; x < width; ++x) {
+        task.update(width, x + 1);
+        for (int y = 0; y < height; ++y) {
+          double r = in.readDouble();
+          double g = in.readDouble();
+          double b = in.readDouble();
+          consumer.accept(x, y, r, g, b);
+        }
+      }
+    }
+  }
+
+  /**
+   * Write a version 2 render dump. The tiles are compressed and written in
+   * parallel using the given number of threads.
+   *
+   * @return the size of the written file
+   */
+  public static long write(File file, SampleBuffer samples, int spp, long renderTime,
+      int threadCount, TaskTracker.Task task) throws IOException {
+    int width = samples.width;
+    int height = samples.height;
+    int numTiles = ceilDiv(width, TILE_SIZE) * ceilDiv(height, TILE_SIZE);
+    int[] tiles = new int[numTiles];
+    for (int i = 0; i < numTiles; ++i) {
+      tiles[i] = i;
+    }
+    long[] tileOffset = new long[numTiles];
+    int[] tileLength = new int[numTiles];
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel()) {
+      raf.setLength(0);
+      long end = writeTiles(channel, HEADER_SIZE + (long) numTiles * INDEX_ENTRY_SIZE,
+          samples, tiles, tileOffset, tileLength, threadCount, task);
+
+      // Write the header and tile index last, so that an interrupted save
+      // does not leave a dump that looks valid.
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + numTiles * INDEX_ENTRY_SIZE);
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(width);
+      header.putInt(height);
+      header.putInt(spp);
+      header.putLong(renderTime);
+      header.putInt(TILE_SIZE);
+      header.putInt(numTiles);
+      for (int i = 0; i < numTiles; ++i) {
+        header.putLong(tileOffset[i]);
+        header.putInt(tileLength[i]);
+      }
+      header.flip();
+      writeFully(channel, header, 0);
+      return end;
+    }
+  }
+
+  /**
+   * Compress the given tiles in parallel and write them to the channel,
+   * starting at the given position. The tiles are written in the order
+   * they are completed.
+   *
+   * @param tileOffset receives the file offset of each written tile, indexed by tile
+   * @param tileLength receives the compressed size of each written tile, indexed by tile
+   * @return the end position of the written tiles
+   */
+  static long writeTiles(FileChannel channel, long start, SampleBuffer samples, int[] tiles,
+      long[] tileOffset, int[] tileLength, int threadCount, TaskTracker.Task task)
+      throws IOException {
+    int width = samples.width;
+    int height = samples.height;
+    int tilesX = ceilDiv(width, TILE_SIZE);
+    long[] end = { start };
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      AtomicInteger done = new AtomicInteger(0);
+      List<Future<?>> results = new ArrayList<>(tiles.length);
+      for (int tile : tiles) {
+        results.add(executor.submit(() -> {
+          int x0 = (tile % tilesX) * TILE_SIZE;
+          int y0 = (tile / tilesX) * TILE_SIZE;
+          int x1 = Math.min(width, x0 + TILE_SIZE);
+          int y1 = Math.min(height, y0 + TILE_SIZE);
+          byte[] compressed = encodeTile(samples, x0, y0, x1, y1);
+          long position;
+          synchronized (end) {
+            position = end[0];
+            end[0] += compressed.length;
+          }
+          tileOffset[tile] = position;
+          tileLength[tile] = compressed.length;
+          writeFully(channel, ByteBuffer.wrap(compressed), position);
+          task.update(tiles.length, done.incrementAndGet());
+          return null;
+        }));
+      }
+      awaitAll(results);
+      return end[0];
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the number of tiles in a version 2 dump of the given canvas size
+   */
+  static int numTiles(int width, int height) {
+    return ceilDiv(width, TILE_SIZE) * ceilDiv(height, TILE_SIZE);
+  }
+
+  private static int ceilDiv(int size, int tileSize) {
+    return (size + tileSize - 1) / tileSize;
+  }
+
+  private static byte[] encodeTile(SampleBuffer samples, int x0, int y0, int x1, int y1)
+      throws IOException {
+    int numSamples = (x1 - x0) * (y1 - y0) * 3;
+    byte[] shuffled = new byte[numSamples * 8];
+    int sample = 0;
+    for (int y = y0; y < y1; ++y) {
+      int offset = (y * samples.width + x0) * 3;
+      for (int x = x0; x < x1; ++x) {
+        shuffle(shuffled, numSamples, sample + 0, samples.get(offset + 0));
+        shuffle(shuffled, numSamples, sample + 1, samples.get(offset + 1));
+        shuffle(shuffled, numSamples, sample + 2, samples.get(offset + 2));
+        sample += 3;
+        offset += 3;
+      }
+    }
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    byte[] compressed = new byte[shuffled.length + shuffled.length / 1000 + 64];
+    try {
+      deflater.setInput(shuffled);
+      deflater.finish();
+      int size = deflater.deflate(compressed);
+      if (!deflater.finished()) {
+        throw new IOException("Failed to compress render dump tile");
+      }
+      return Arrays.copyOf(compressed, size);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static void decodeTile(byte[] compressed, int x0, int y0, int x1, int y1,
+      PixelConsumer consumer) throws IOException {
+    int numSamples = (x1 - x0) * (y1 - y0) * 3;
+    byte[] shuffled = new byte[numSamples * 8];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int size = inflater.inflate(shuffled);
+      if (size != shuffled.length || !inflater.finished()) {
+        throw new IOException("Corrupt render dump tile");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt render dump tile", e);
+    } finally {
+      inflater.end();
+    }
+    int sample = 0;
+    for (int y = y0; y < y1; ++y) {
+      for (int x = x0; x < x1; ++x) {
+        double r = unshuffle(shuffled, numSamples, sample + 0);
+        double g = unshuffle(shuffled, numSamples, sample + 1);
+        double b = unshuffle(shuffled, numSamples, sample + 2);
+        consumer.accept(x, y, r, g, b);
+        sample += 3;
+      }
+    }
+  }
+
+  /** Store byte k of sample i at index k * numSamples + i. */
+  private static void shuffle(byte[] data, int numSamples, int i, double value) {
+    long bits = Double.doubleToRawLongBits(value);
+    for (int k = 0; k < 8; ++k) {
+      data[k * numSamples + i] = (byte) (bits >>> (56 - 8 * k));
+    }
+  }
+
+  private static double unshuffle(byte[] data, int numSamples, int i) {
+    long bits = 0;
+    for (int k = 0; k < 8; ++k) {
+      bits = (bits << 8) | (data[k * numSamples + i] & 0xFF);
+    }
+    return Double.longBitsToDouble(bits);
+  }
+
+  static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static void awaitAll(List<Future<?>> results) throws IOException {
+    try {
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while processing render dump", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to process render dump", e.getCause());
+    }
+  }
+}
@@ -23,8 +23,6 @@ import se.llbit.util.TaskTracker;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
@@ -48,6 +46,9 @@ import java.util.function.Consumer;
 public class RenderManager extends AbstractRenderManager implements Renderer {
   public static final Repaintable EMPTY_CANVAS = () -> {};
 
+  /** Interval (in ms) between render progress updates in progressive mode. */
+  private static final long PROGRESS_INTERVAL = 1000;
+
   private boolean finalizeAllFrames = false;
 
   private Repaintable canvas = EMPTY_CANVAS;
@@ -61,14 +62,30 @@ public class RenderManager extends AbstractRenderManager implements Renderer {
    */
   private final Scene bufferedScene;
 
-  /** Gives the next tile index for a worker. */
-  private volatile RenderTile[] tileQueue = new RenderTile[0];
-  private final Object jobMonitor = new Object();
-  private int numJobs = 0, lastJob = 0;
-  private final AtomicInteger nextJob = new AtomicInteger(0);
+  /** Distributes tiles to the render workers. */
+  private final TileScheduler scheduler;
+
+  /** The pass currently being rendered. */
+  private TileScheduler.Pass currentPass = null;
+
+  /**
+   * True while the workers render outside of the frame lock, either a pass
+   * that was started before the previous pass finished or a progressive
+   * pass. Guarded by bufferedScene.
+   */
+  private boolean runAhead = false;
 
-  /** Latch for waiting on workers to finish the current frame. */
-  private CountDownLatch frameFinished = new CountDownLatch(Integer.MAX_VALUE);
+  /** Number of threads waiting to access the sample buffer. Guarded by bufferedScene. */
+  private int sampleBufferRequests = 0;
+
+  /**
+   * Decides if tiles are rendered independently of each other between
+   * frames that need to be finalized or saved.
+   */
+  private final boolean progressive;
+
+  /** The last tile given to each thread calling {@link #getNextJob()}. */
+  private final ThreadLocal<RenderTile> currentTile = new ThreadLocal<>();
 
   private Collection<RenderStatusListener> listeners = new ArrayList<>();
 
@@ -98,7 +115,9 @@ public class RenderManager extends AbstractRenderManager implements Renderer {
     super(context);
 
     this.headless = headless;
+    this.progressive = context.progressiveRendering();
     bufferedScene = context.getChunky().getSceneFactory().newScene();
+    scheduler = new TileScheduler(numThreads);
 
     long seed = System.currentTimeMillis();
     workers = new Thread[numThreads];
@@ -126,6 +145,7 @@ public class RenderManager extends AbstractRenderManager implements Renderer {
         ResetReason reason = sceneProvider.awaitSceneStateChange();
 
         synchronized (bufferedScene) {
+          SampleBuffer previousSamples = bufferedScene.getSamples();
           sceneProvider.withSceneProtected(scene -> {
             if (reason.overwriteState()) {
               bufferedScene.copyState(scene);
@@ -144,6 +164,11 @@ public class RenderManager extends AbstractRenderManager implements Renderer {
               sendSceneStatus(bufferedScene.sceneStatus());
             }
           });
+          if (previousSamples instanceof MappedSampleBuffer
+              && previousSamples != bufferedScene.getSamples()) {
+            // The workers are idle, and the scenes use the new sample buffer.
+            ((MappedSampleBuffer) previousSamples).close();
+          }
         }
         initializeJobQueue();
 
@@ -178,6 +203,11 @@ public class RenderManager extends AbstractRenderManager implements Renderer {
       Log.error("Unchecked exception in render manager", e);
     }
 
+    synchronized (bufferedScene) {
+      // Release threads waiting for the sample buffer.
+      runAhead = false;
+      bufferedScene.notifyAll();
+    }
     stopWorkers();
   }
 
@@ -193,38 +223,65 @@ public class RenderManager extends AbstractRenderManager implements Renderer {
   /**
    * Continually render frames until we reach the SPP target, or until
    * the render state is changed externally.
+   *
+   * <p>When the next frame does not need to be finalized or saved, the
+   * workers are allowed to start rendering it before the current frame is
+   * finished. A frame that was started early is always completed before
+   * scene changes are applied, and no further frame is started early while
+   * the render is paused or a scene change is pending.
+   *
+   * <p>In progressive mode the frames that need no finalization are not
+   * rendered separately. The tiles are rendered independently until the
+   * next frame that is saved, or until the render state is changed.
    * @throws InterruptedException
    */
   private void pathTraceLoop() throws InterruptedException {
     while (true) {
-      sceneProvider.withSceneProtected(scene -> {
-        synchronized (bufferedScene) {
-          bufferedScene.copyTransients(scene);
-          updateRenderState(scene);
-        }
-      });
+      if (!runAhead) {
+        sceneProvider.withSceneProtected(scene -> {
+          synchronized (bufferedScene) {
+            bufferedScene.copyTransients(scene);
+            updateRenderState(scene);
+          }
+        });
 
-      if (mode == RenderMode.PAUSED || sceneProvider.pollSceneStateChange()) {
-        return;
+        if (mode == RenderMode.PAUSED || sceneProvider.pollSceneStateChange()) {
+          return;
+        }
       }
 
-      synchronized (bufferedScene) {
-        long frameStart = System.currentTimeMillis();
-        startNextFrame();
-        waitOnWorkers();
-        bufferedScene.swapBuffers();
-        bufferedScene.renderTime += System.currentTimeMillis() - frameStart;
+      int frameSpp;
+      if (progressive && !finalizeAllFrames && !runAhead) {
+        frameSpp = progressivePass();
+      } else {
+        synchronized (bufferedScene) {
+          long frameStart = System.currentTimeMillis();
+          startNextFrame();
+          releaseNextFrame();
+          waitOnWorkers();
+          bufferedScene.swapBuffers();
+          bufferedScene.renderTime += System.currentTimeMillis() - frameStart;
+          frameSpp = bufferedScene.spp + RenderConstants.SPP_PER_PASS;
+          runAhead = scheduler.isReleased(frameSpp);
+          if (!runAhead) {
+            bufferedScene.notifyAll();
+          }
+        }
       }
 
       // Notify the canvas to repaint.
       canvas.repaint();
 
       synchronized (bufferedScene) {
-        bufferedScene.spp += RenderConstants.SPP_PER_PASS;
+        bufferedScene.spp = frameSpp;
+        bufferedScene.updateConvergence();
         int currentSpp = bufferedScene.spp;
         frameCompletionListener.accept(bufferedScene, currentSpp);
         updateRenderProgress();
-        if (currentSpp >= bufferedScene.getTargetSpp()) {
+        if (currentSpp >= bufferedScene.getTargetSpp() || bufferedScene.isConverged()) {
+          if (runAhead) {
+            finishReleasedFrame();
+          }
           renderCompletionListener.accept(bufferedScene.renderTime, samplesPerSecond());
           return;
         }
@@ -232,6 +289,90 @@ public class RenderManager extends AbstractRenderManager implements Renderer {
     }
   }
 
+  /**
+   * Finish the frame that was released before the render completed. The
+   * workers are already adding samples for that frame, so the render can
+   * not complete before the sample buffer is quiescent again.
+   */
+  private void finishReleasedFrame() throws InterruptedException {
+    long frameStart = System.currentTimeMillis();
+    currentPass = scheduler.startPass(bufferedScene.spp);
+    waitOnWorkers();
+    bufferedScene.swapBuffers();
+    bufferedScene.renderTime += System.currentTimeMillis() - frameStart;
+    bufferedScene.spp = currentPass.limit();
+    bufferedScene.updateConvergence();
+    runAhead = false;
+    bufferedScene.notifyAll();
+    updateRenderProgress();
+  }
+
+  /**
+   * Render all tiles up to the next frame that is saved. The tiles are
+   * rendered independently, and the render progress is updated with the
+   * sample count reached by all tiles.
+   *
+   * <p>The workers do not finalize pixels during the pass, so the frame
+   * buffers are not swapped: that would publish a buffer that was never
+   * finalized. The pass stops as soon as buffer finalization is enabled,
+   * and the next frame is then rendered, finalized and published as usual.
+   *
+   * @return the sample count of each pixel after the pass
+   */
+  private int progressivePass() throws InterruptedException {
+    TileScheduler.Pass pass;
+    long lastUpdate;
+    synchronized (bufferedScene) {
+      lastUpdate = System.currentTimeMillis();
+      bufferedScene.setBufferFinalization(false);
+      pass = scheduler.startPass(bufferedScene.spp, nextSavedFrame());
+      currentPass = pass;
+      runAhead = true;
+    }
+    while (!pass.await(PROGRESS_INTERVAL)) {
+      // Stop early if the render state has changed.
+      sceneProvider.withSceneProtected(scene -> {
+        if (scene.getMode() != RenderMode.RENDERING || scene.shouldFinalizeBuffer()) {
+          pass.stop();
+        }
+      });
+      if (sceneProvider.pollSceneStateChange()) {
+        pass.stop();
+      }
+      synchronized (bufferedScene) {
+        if (sampleBufferRequests > 0) {
+          pass.stop();
+        }
+        long time = System.currentTimeMillis();
+        bufferedScene.renderTime += time - lastUpdate;
+        bufferedScene.spp = pass.completedSpp();
+        lastUpdate = time;
+        updateRenderProgress();
+        sendSceneStatus(bufferedScene.sceneStatus());
+      }
+    }
+    synchronized (bufferedScene) {
+      bufferedScene.renderTime += System.currentTimeMillis() - lastUpdate;
+      runAhead = false;
+      bufferedScene.notifyAll();
+      sendSceneStatus(bufferedScene.sceneStatus());
+    }
+    return pass.limit();
+  }
+
+  /**
+   * @return the sample count of the next frame that is saved as a snapshot
+   * or render dump
+   */
+  private int nextSavedFrame() {
+    int spp = bufferedScene.spp + RenderConstants.SPP_PER_PASS;
+    while (!snapshotControl.saveSnapshot(bufferedScene, spp)
+        && !snapshotControl.saveRenderDump(bufferedScene, spp)) {
+      spp += RenderConstants.SPP_PER_PASS;
+    }
+    return spp;
+  }
+
   /**
    * @return the current rendering speed in samples per second (SPS)
    */
@@ -320,56 +461,71 @@ public class RenderManager extends AbstractRenderManager implements Renderer {
    * Assign render jobs to tiles of the canvas.
    */
   private void initializeJobQueue() {
-    int canvasWidth = bufferedScene.canvasWidth();
-    int canvasHeight = bufferedScene.canvasHeight();
-    numJobs = ((canvasWidth + (tileWidth - 1)) / tileWidth)
-        * ((canvasHeight + (tileWidth - 1)) / tileWidth);
-    if (tileQueue.length != numJobs) {
-      tileQueue = new RenderTile[numJobs];
-    }
-    int xjobs = (canvasWidth + (tileWidth - 1)) / tileWidth;
-    for (int job = 0; job < numJobs; ++job) {
-      // Calculate pixel bounds for this job.
-      int x0 = tileWidth * (job % xjobs);
-      int x1 = Math.min(x0 + tileWidth, canvasWidth);
-      int y0 = tileWidth * (job / xjobs);
-      int y1 = Math.min(y0 + tileWidth, canvasHeight);
-      tileQueue[job] = new RenderTile(x0, x1, y0, y1);
-    }
+    scheduler.setCanvasSize(bufferedScene.canvasWidth(), bufferedScene.canvasHeight(), tileWidth);
   }
 
   private void waitOnWorkers() throws InterruptedException {
-    frameFinished.await();
+    currentPass.await();
   }
 
   /**
    * Adds new jobs to the job queue and releases the workers.
    */
   private void startNextFrame() {
+    if (!scheduler.isReleased(bufferedScene.spp)) {
+      int nextSpp = bufferedScene.spp + RenderConstants.SPP_PER_PASS;
+      bufferedScene.setBufferFinalization(finalizeAllFrames
+          || snapshotControl.saveSnapshot(bufferedScene, nextSpp));
+    }
+    currentPass = scheduler.startPass(bufferedScene.spp);
+  }
+
+  /**
+   * Lets the workers start on the frame after the current frame as soon as
+   * they run out of tiles in the current frame. This is only done if neither
+   * frame needs to be finalized, and the current frame is not saved, because
+   * the sample buffer is then modified while the frame completion listener
+   * runs. The next frame is also not released if the render reaches the
+   * target sample count with the current frame. If the render instead
+   * converges with the current frame, the released frame is finished before
+   * the render completes.
+   *
+   * <p>The render mode and pending scene changes are checked before each
+   * frame is released, because the transient scene state is not copied
+   * while a released frame is rendered. A pause or reset is therefore
+   * applied at most one frame later.
+   */
+  private void releaseNextFrame() {
     int nextSpp = bufferedScene.spp + RenderConstants.SPP_PER_PASS;
-    bufferedScene.setBufferFinalization(finalizeAllFrames
-        || snapshotControl.saveSnapshot(bufferedScene, nextSpp));
-    frameFinished = new CountDownLatch(numJobs);
-    synchronized (jobMonitor) {
-      lastJob += numJobs;
-      jobMonitor.notifyAll();
+    int followingSpp = nextSpp + RenderConstants.SPP_PER_PASS;
+    if (mode == RenderMode.RENDERING
+        && !sceneProvider.pollSceneStateChange()
+        && !finalizeAllFrames
+        && nextSpp < bufferedScene.getTargetSpp()
+        && sampleBufferRequests == 0
+        && !snapshotControl.saveSnapshot(bufferedScene, nextSpp)
+        && !snapshotControl.saveRenderDump(bufferedScene, nextSpp)
+        && !snapshotControl.saveSnapshot(bufferedScene, followingSpp)) {
+      scheduler.releaseNextPass(nextSpp);
     }
   }
 
   @Override public RenderTile getNextJob() throws InterruptedException {
-    int job = nextJob.getAndIncrement();
-    if (job >= lastJob) {
-      synchronized (jobMonitor) {
-        while (job >= lastJob) {
-          jobMonitor.wait();
-        }
-      }
-    }
-    return tileQueue[lastJob - job - 1];
+    RenderTile tile = scheduler.nextTile(0);
+    currentTile.set(tile);
+    return tile;
   }
 
   @Override public void jobDone() {
-    frameFinished.countDown();
+    scheduler.tileDone(currentTile.get());
+  }
+
+  @Override public RenderTile getNextJob(int workerId) throws InterruptedException {
+    return scheduler.nextTile(workerId);
+  }
+
+  @Override public void jobDone(RenderTile tile) {
+    scheduler.tileDone(tile);
   }
 
   @Override public Scene getBufferedScene() {
@@ -429,15 +585,35 @@ public class RenderManager extends AbstractRenderManager implements Renderer {
   @Override public RenderStatus getRenderStatus() {
     RenderStatus status;
     synchronized (bufferedScene) {
-      status = new RenderStatus(bufferedScene.renderTime, bufferedScene.spp);
+      status = new RenderStatus(bufferedScene.renderTime, bufferedScene.spp,
+          scheduler.getIdleTime());
     }
     return status;
   }
 
   @Override public void withSampleBufferProtected(SampleBufferConsumer consumer) {
+    withSamplesProtected(
+        (samples, width, height) -> consumer.accept(samples.toDoubleArray(), width, height));
+  }
+
+  @Override public void withSamplesProtected(SamplesConsumer consumer) {
     // Synchronizing on bufferedScene ensures that we are outside the frame rendering loop.
     synchronized (bufferedScene) {
-      consumer.accept(bufferedScene.getSampleBuffer(), bufferedScene.width, bufferedScene.height);
+      // Wait for frames that were started early to finish.
+      boolean interrupted = false;
+      sampleBufferRequests += 1;
+      while (runAhead) {
+        try {
+          bufferedScene.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      sampleBufferRequests -= 1;
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      consumer.accept(bufferedScene.getSamples(), bufferedScene.width, bufferedScene.height);
     }
   }
 
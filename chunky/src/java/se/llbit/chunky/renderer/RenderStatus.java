@@ -21,10 +21,16 @@ public class RenderStatus {
 
   private final long renderTime;
   private final int spp;
+  private final long[] workerIdleTime;
 
   public RenderStatus(long time, int spp) {
+    this(time, spp, new long[0]);
+  }
+
+  public RenderStatus(long time, int spp, long[] workerIdleTime) {
     this.renderTime = time;
     this.spp = spp;
+    this.workerIdleTime = workerIdleTime;
   }
 
   /**
@@ -40,4 +46,12 @@ public class RenderStatus {
   public int getSpp() {
     return spp;
   }
+
+  /**
+   * @return the total time in milliseconds that each render worker has spent
+   * waiting for work.
+   */
+  public long[] getWorkerIdleTime() {
+    return workerIdleTime;
+  }
 }
@@ -22,11 +22,22 @@ package se.llbit.chunky.renderer;
 public class RenderTile {
   public final int x0, x1, y0, y1;
 
+  /**
+   * The sample count of the pixels in this tile before the tile is rendered,
+   * or -1 if the current sample count of the scene should be used.
+   */
+  public final int spp;
+
   public RenderTile(int x0, int x1, int y0, int y1) {
+    this(x0, x1, y0, y1, -1);
+  }
+
+  public RenderTile(int x0, int x1, int y0, int y1, int spp) {
     this.x0 = x0;
     this.x1 = x1;
     this.y0 = y0;
     this.y1 = y1;
+    this.spp = spp;
   }
 
   @Override public String toString() {
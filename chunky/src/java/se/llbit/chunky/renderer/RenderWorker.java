@@ -68,11 +68,11 @@ public class RenderWorker extends Thread {
     long jobTime = 0;
     try {
       while (!isInterrupted()) {
-        RenderTile job = manager.getNextJob();
+        RenderTile job = manager.getNextJob(id);
         long jobStart = System.nanoTime();
         work(job);
         jobTime += System.nanoTime() - jobStart;
-        manager.jobDone();
+        manager.jobDone(job);
 
         // Sleep to manage CPU utilization.
         if (jobTime > SLEEP_INTERVAL) {
@@ -108,35 +108,102 @@ public class RenderWorker extends Thread {
     double halfWidth = width / (2.0 * height);
     double invHeight = 1.0 / height;
 
-    double[] samples = scene.getSampleBuffer();
+    SampleBuffer samples = scene.getSamples();
     final Camera cam = scene.camera();
 
     if (scene.getMode() != RenderMode.PREVIEW) {
+      // The scene sample count may already have been updated if this tile
+      // was started before the previous pass finished.
+      int spp = tile.spp >= 0 ? tile.spp : scene.spp;
+
+      // With adaptive sampling each pixel has its own sample count, and
+      // pixels that have converged are skipped so that the remaining
+      // pixels get more samples per second.
+      int[] sampleCounts = scene.getSampleCounts();
+      double[] luminanceM2 = scene.getLuminanceM2();
+      boolean adaptive = sampleCounts != null;
+      boolean noiseEstimated = spp > scene.getAdaptiveStartSpp();
+
+      // With denoising the first-hit albedo and normal are averaged per pixel.
+      // The averages only include samples taken since the buffers were
+      // allocated, or since the render was resumed from a render dump.
+      float[] albedo = scene.getAlbedoBuffer();
+      float[] normals = scene.getNormalBuffer();
+      boolean recordFirstHit = albedo != null && normals != null;
+      int firstHitStartSpp = scene.getFirstHitStartSpp();
+
       for (int y = tile.y0; y < tile.y1; ++y) {
         int offset = y * width * 3 + tile.x0 * 3;
         for (int x = tile.x0; x < tile.x1; ++x) {
+          int pixel = y * width + x;
+          int count = spp;
+          double m2 = 0;
+          if (adaptive && noiseEstimated) {
+            count = sampleCounts[pixel];
+            m2 = luminanceM2[pixel];
+          }
 
-          double sr = 0;
-          double sg = 0;
-          double sb = 0;
-
-          for (int i = 0; i < RenderConstants.SPP_PER_PASS; ++i) {
-            double oy = random.nextDouble();
-            double ox = random.nextDouble();
-
-            cam.calcViewRay(ray, random, (-halfWidth + (x + ox) * invHeight),
-                (-.5 + (y + oy) * invHeight));
+          if (!adaptive || !scene.isPixelConverged(pixel, count, m2)) {
+            double sr = 0;
+            double sg = 0;
+            double sb = 0;
+            double ar = 0, ag = 0, ab = 0;
+            double nx = 0, ny = 0, nz = 0;
+
+            // Running mean luminance for the pixel noise estimate.
+            double mean = Scene.luminance(samples.get(offset + 0), samples.get(offset + 1),
+                samples.get(offset + 2));
+            int n = count;
+
+            for (int i = 0; i < RenderConstants.SPP_PER_PASS; ++i) {
+              double oy = random.nextDouble();
+              double ox = random.nextDouble();
+
+              cam.calcViewRay(ray, random, (-halfWidth + (x + ox) * invHeight),
+                  (-.5 + (y + oy) * invHeight));
+
+              if (recordFirstHit) {
+                state.firstHitRecorded = false;
+                state.albedo.set(0, 0, 0);
+                state.normal.set(0, 0, 0);
+              }
+
+              scene.rayTrace(rayTracer, state);
+
+              sr += ray.color.x;
+              sg += ray.color.y;
+              sb += ray.color.z;
+
+              if (recordFirstHit) {
+                ar += state.albedo.x;
+                ag += state.albedo.y;
+                ab += state.albedo.z;
+                nx += state.normal.x;
+                ny += state.normal.y;
+                nz += state.normal.z;
+              }
+
+              if (adaptive) {
+                n += 1;
+                double luminance = Scene.luminance(ray.color.x, ray.color.y, ray.color.z);
+                double delta = luminance - mean;
+                mean += delta / n;
+                m2 += delta * (luminance - mean);
+              }
+            }
+            samples.addSamples(offset, count, RenderConstants.SPP_PER_PASS, sr, sg, sb);
 
-            scene.rayTrace(rayTracer, state);
+            if (recordFirstHit) {
+              int firstHitCount = Math.max(0, count - firstHitStartSpp);
+              addFirstHitSamples(albedo, offset, firstHitCount, ar, ag, ab);
+              addFirstHitSamples(normals, offset, firstHitCount, nx, ny, nz);
+            }
 
-            sr += ray.color.x;
-            sg += ray.color.y;
-            sb += ray.color.z;
+            if (adaptive) {
+              sampleCounts[pixel] = count + RenderConstants.SPP_PER_PASS;
+              luminanceM2[pixel] = m2;
+            }
           }
-          double sinv = 1.0 / (scene.spp + RenderConstants.SPP_PER_PASS);
-          samples[offset + 0] = (samples[offset + 0] * scene.spp + sr) * sinv;
-          samples[offset + 1] = (samples[offset + 1] * scene.spp + sg) * sinv;
-          samples[offset + 2] = (samples[offset + 2] * scene.spp + sb) * sinv;
 
           if (scene.shouldFinalizeBuffer()) {
             scene.finalizePixel(x, y);
@@ -172,9 +239,9 @@ public class RenderWorker extends Thread {
           // Draw the crosshairs.
           if (x == width / 2 && (y >= height / 2 - 5 && y <= height / 2 + 5) || y == height / 2 && (
               x >= width / 2 - 5 && x <= width / 2 + 5)) {
-            samples[(y * width + x) * 3 + 0] = 0xFF;
-            samples[(y * width + x) * 3 + 1] = 0xFF;
-            samples[(y * width + x) * 3 + 2] = 0xFF;
+            samples.set((y * width + x) * 3 + 0, 0xFF);
+            samples.set((y * width + x) * 3 + 1, 0xFF);
+            samples.set((y * width + x) * 3 + 2, 0xFF);
             scene.finalizePixel(x, y);
             continue;
           }
@@ -195,9 +262,9 @@ public class RenderWorker extends Thread {
             ray.color.w = 1;
           }
 
-          samples[(y * width + x) * 3 + 0] = ray.color.x;
-          samples[(y * width + x) * 3 + 1] = ray.color.y;
-          samples[(y * width + x) * 3 + 2] = ray.color.z;
+          samples.set((y * width + x) * 3 + 0, ray.color.x);
+          samples.set((y * width + x) * 3 + 1, ray.color.y);
+          samples.set((y * width + x) * 3 + 2, ray.color.z);
 
           scene.finalizePixel(x, y);
 
@@ -213,4 +280,19 @@ public class RenderWorker extends Thread {
         }
     }
   }
+
+  /**
+   * Add new first-hit samples to the average value of a pixel in an
+   * albedo or normal buffer.
+   *
+   * @param offset the index of the first component of the pixel
+   * @param spp the number of samples in the current average
+   */
+  private static void addFirstHitSamples(float[] buffer, int offset, int spp,
+      double x, double y, double z) {
+    double sinv = 1.0 / (spp + RenderConstants.SPP_PER_PASS);
+    buffer[offset + 0] = (float) ((buffer[offset + 0] * spp + x) * sinv);
+    buffer[offset + 1] = (float) ((buffer[offset + 1] * spp + y) * sinv);
+    buffer[offset + 2] = (float) ((buffer[offset + 2] * spp + z) * sinv);
+  }
 }
@@ -65,10 +65,20 @@ public interface Renderer {
 
   void withBufferedImage(Consumer<BitmapImage> bitmap);
 
+  /**
+   * @deprecated use {@link SamplesConsumer}. The array is a copy of the
+   * samples unless the sample buffer uses double precision, so changes to
+   * the array may be lost.
+   */
+  @Deprecated
   interface SampleBufferConsumer {
     void accept(double[] samples, int width, int height);
   }
 
+  interface SamplesConsumer {
+    void accept(SampleBuffer samples, int width, int height);
+  }
+
   void addSceneStatusListener(SceneStatusListener listener);
 
   void removeSceneStatusListener(SceneStatusListener listener);
@@ -90,8 +100,22 @@ public interface Renderer {
    */
   void join() throws InterruptedException;
 
+  /**
+   * @deprecated use {@link #withSamplesProtected(SamplesConsumer)}
+   */
+  @Deprecated
   void withSampleBufferProtected(SampleBufferConsumer consumer);
 
+  /**
+   * Call the consumer with the sample buffer while the workers do not
+   * modify it. The default implementation wraps the array given by
+   * {@link #withSampleBufferProtected(SampleBufferConsumer)}.
+   */
+  default void withSamplesProtected(SamplesConsumer consumer) {
+    withSampleBufferProtected((samples, width, height) ->
+        consumer.accept(new DoubleSampleBuffer(width, height, samples), width, height));
+  }
+
   /**
    * Shut down the renderer.
    *
@@ -0,0 +1,85 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+/**
+ * Stores the average RGB sample value for each pixel of a render.
+ *
+ * <p>Samples are addressed by index, where the index of color component
+ * {@code c} of pixel {@code (x, y)} is {@code (y * width + x) * 3 + c}.
+ */
+public abstract class SampleBuffer {
+  public final int width;
+  public final int height;
+
+  protected SampleBuffer(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * @return the sample value at the given index
+   */
+  public abstract double get(int index);
+
+  /**
+   * Set the sample value at the given index.
+   */
+  public abstract void set(int index, double value);
+
+  /**
+   * @return the precision used to store samples in this buffer
+   */
+  public abstract SamplePrecision getPrecision();
+
+  /**
+   * @return the samples as a double array. For double precision buffers this
+   * is the backing array of the buffer, otherwise it is a copy of the samples.
+   */
+  public abstract double[] toDoubleArray();
+
+  /**
+   * Copy a range of consecutive sample values into an array.
+   *
+   * @param index the index of the first sample value to copy
+   * @param dest the destination array
+   * @param destIndex the destination index of the first sample value
+   * @param length the number of sample values to copy
+   */
+  public void get(int index, double[] dest, int destIndex, int length) {
+    for (int i = 0; i < length; ++i) {
+      dest[destIndex + i] = get(index + i);
+    }
+  }
+
+  /**
+   * Add new samples to the average sample value of a pixel.
+   *
+   * @param offset the index of the first color component of the pixel
+   * @param spp the number of samples in the current average
+   * @param newSpp the number of new samples
+   * @param r the sum of the red components of the new samples
+   * @param g the sum of the green components of the new samples
+   * @param b the sum of the blue components of the new samples
+   */
+  public void addSamples(int offset, int spp, int newSpp, double r, double g, double b) {
+    double sinv = 1.0 / (spp + newSpp);
+    set(offset + 0, (get(offset + 0) * spp + r) * sinv);
+    set(offset + 1, (get(offset + 1) * spp + g) * sinv);
+    set(offset + 2, (get(offset + 2) * spp + b) * sinv);
+  }
+}
@@ -0,0 +1,63 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+/**
+ * The floating point precision used to store the sample buffer.
+ */
+public enum SamplePrecision {
+  /**
+   * 64-bit floating point samples.
+   */
+  DOUBLE {
+    @Override public String toString() {
+      return "Double (64-bit)";
+    }
+
+    @Override public SampleBuffer newBuffer(int width, int height) {
+      return new DoubleSampleBuffer(width, height);
+    }
+  },
+
+  /**
+   * 32-bit floating point samples. Uses half the memory of double precision.
+   */
+  FLOAT {
+    @Override public String toString() {
+      return "Float (32-bit)";
+    }
+
+    @Override public SampleBuffer newBuffer(int width, int height) {
+      return new FloatSampleBuffer(width, height);
+    }
+  };
+
+  public static final SamplePrecision DEFAULT = DOUBLE;
+
+  public static SamplePrecision get(String name) {
+    try {
+      return SamplePrecision.valueOf(name);
+    } catch (IllegalArgumentException e) {
+      return DEFAULT;
+    }
+  }
+
+  /**
+   * Allocate a sample buffer with this precision.
+   */
+  public abstract SampleBuffer newBuffer(int width, int height);
+}
@@ -28,16 +28,18 @@ public interface SnapshotControl {
   /**
    * Determines if postprocessing should be applied to this frame.
    * Postprocessing is only needed when a snapshot should be saved.
+   * The final frame of a render is saved either when the target SPP is
+   * reached, or when all pixels have converged with adaptive sampling.
    */
   default boolean saveSnapshot(Scene scene, int nextSpp) {
-    return nextSpp >= scene.getTargetSpp()
+    return nextSpp >= scene.getTargetSpp() || scene.isConverged()
         || (scene.shouldSaveDumps()
         && scene.shouldSaveSnapshots()
         && (nextSpp % scene.getDumpFrequency() == 0));
   }
 
   default boolean saveRenderDump(Scene scene, int nextSpp) {
-    return nextSpp >= scene.getTargetSpp()
+    return nextSpp >= scene.getTargetSpp() || scene.isConverged()
         || (scene.shouldSaveDumps()
         && (nextSpp % scene.getDumpFrequency() == 0));
   }
@@ -0,0 +1,397 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Work-stealing tile scheduler for render workers.
+ *
+ * <p>Each worker has its own tile queue. A worker takes tiles from the front
+ * of its own queue, and when that is empty it steals tiles from the back of
+ * the other workers' queues. When there are fewer queued tiles than workers,
+ * tiles are split in half before rendering so that the last tiles of a pass
+ * are shared between all workers.
+ *
+ * <p>A pass renders every base tile of the canvas until it reaches the
+ * sample limit of the pass. The base tiles in a pass are rendered
+ * independently of each other, so a tile can be several samples ahead of
+ * other tiles in the same pass. The render manager
+ * can release the next pass before the current pass is finished. Each base
+ * tile of the next pass is then queued as soon as the same tile is finished
+ * in the current pass, so workers do not have to wait for the slowest tile
+ * of the current pass.
+ */
+class TileScheduler {
+  /** Tiles smaller than this (in both dimensions) are not split. */
+  private static final int MIN_SPLIT_SIZE = 8;
+
+  /** A job is a (part of a) base tile to be rendered in a specific pass. */
+  private static final class Job extends RenderTile {
+    final Pass pass;
+    final int base;
+
+    Job(int x0, int x1, int y0, int y1, Pass pass, int base, int spp) {
+      super(x0, x1, y0, y1, spp);
+      this.pass = pass;
+      this.base = base;
+    }
+  }
+
+  /** Tracks the unfinished tiles of one render pass. */
+  static final class Pass {
+    /** The sample count of each pixel before this pass. */
+    final int spp;
+
+    /**
+     * The sample count of each pixel after this pass.
+     * Guarded by this pass.
+     */
+    private int limit;
+
+    /**
+     * The largest sample count that a tile in this pass is being rendered to.
+     * Guarded by this pass.
+     */
+    private int highest;
+
+    /** The current sample count of each base tile. Guarded by this pass. */
+    private final int[] tileSpp;
+
+    /** Number of unfinished jobs for each base tile. */
+    private final AtomicIntegerArray pieces;
+
+    /** Set to 1 for each base tile that has been queued. */
+    private final AtomicIntegerArray queued;
+
+    /** Number of unfinished base tiles. */
+    private final AtomicInteger remaining;
+
+    /** The next pass, if it has been released before this pass finished. */
+    private volatile Pass successor = null;
+
+    private Pass(int spp, int limit, int numTiles) {
+      this.spp = spp;
+      this.limit = limit;
+      highest = Math.min(limit, spp + RenderConstants.SPP_PER_PASS);
+      tileSpp = new int[numTiles];
+      Arrays.fill(tileSpp, spp);
+      pieces = new AtomicIntegerArray(numTiles);
+      queued = new AtomicIntegerArray(numTiles);
+      remaining = new AtomicInteger(numTiles);
+      for (int i = 0; i < numTiles; ++i) {
+        pieces.set(i, 1);
+      }
+    }
+
+    /** Wait until all tiles in this pass are finished. */
+    synchronized void await() throws InterruptedException {
+      while (remaining.get() > 0) {
+        wait();
+      }
+    }
+
+    /** @return {@code true} if all tiles in this pass are finished */
+    boolean isDone() {
+      return remaining.get() == 0;
+    }
+
+    /**
+     * Wait until all tiles in this pass are finished, or until the timeout
+     * expires.
+     *
+     * @return {@code true} if all tiles are finished
+     */
+    synchronized boolean await(long timeoutMillis) throws InterruptedException {
+      if (remaining.get() > 0) {
+        wait(timeoutMillis);
+      }
+      return remaining.get() == 0;
+    }
+
+    /**
+     * Stop the pass as soon as possible. Tiles that are behind the
+     * furthest tile are still rendered to the same sample count, so that
+     * all pixels have the same sample count when the pass finishes.
+     */
+    synchronized void stop() {
+      limit = highest;
+    }
+
+    /** @return the sample count of each pixel after this pass */
+    synchronized int limit() {
+      return limit;
+    }
+
+    /** @return the sample count that all tiles in this pass have reached */
+    synchronized int completedSpp() {
+      int min = limit;
+      for (int spp : tileSpp) {
+        min = Math.min(min, spp);
+      }
+      return min;
+    }
+
+    /**
+     * Update the sample count of a base tile after one render pass over it.
+     *
+     * @return the new sample count of the tile if it should be rendered
+     * again, or -1 if the tile is finished
+     */
+    private synchronized int advance(int base) {
+      int spp = tileSpp[base] + RenderConstants.SPP_PER_PASS;
+      tileSpp[base] = spp;
+      if (spp < limit) {
+        highest = Math.max(highest, spp + RenderConstants.SPP_PER_PASS);
+        return spp;
+      }
+      return -1;
+    }
+
+    private synchronized void tileDone() {
+      if (remaining.decrementAndGet() == 0) {
+        notifyAll();
+      }
+    }
+  }
+
+  private final int numWorkers;
+  private final ConcurrentLinkedDeque<Job>[] queues;
+  private final AtomicInteger numQueued = new AtomicInteger(0);
+  private final Object queueMonitor = new Object();
+
+  /** Accumulated time, in nanoseconds, that each worker has spent waiting for tiles. */
+  private final AtomicLongArray idleTime;
+
+  private RenderTile[] tiles = new RenderTile[0];
+  private Pass current = null;
+
+  @SuppressWarnings("unchecked")
+  TileScheduler(int numWorkers) {
+    this.numWorkers = Math.max(1, numWorkers);
+    queues = new ConcurrentLinkedDeque[this.numWorkers];
+    for (int i = 0; i < this.numWorkers; ++i) {
+      queues[i] = new ConcurrentLinkedDeque<>();
+    }
+    idleTime = new AtomicLongArray(this.numWorkers);
+  }
+
+  /**
+   * Set up the base tiles for a canvas. Must not be called while a pass is
+   * in progress. Tiles that are still queued, for example from a released
+   * pass that was not started, are discarded.
+   */
+  synchronized void setCanvasSize(int canvasWidth, int canvasHeight, int tileWidth) {
+    for (ConcurrentLinkedDeque<Job> queue : queues) {
+      while (queue.pollFirst() != null) {
+        numQueued.decrementAndGet();
+      }
+    }
+    int xjobs = (canvasWidth + (tileWidth - 1)) / tileWidth;
+    int numJobs = xjobs * ((canvasHeight + (tileWidth - 1)) / tileWidth);
+    tiles = new RenderTile[numJobs];
+    for (int job = 0; job < numJobs; ++job) {
+      // Calculate pixel bounds for this job.
+      int x0 = tileWidth * (job % xjobs);
+      int x1 = Math.min(x0 + tileWidth, canvasWidth);
+      int y0 = tileWidth * (job / xjobs);
+      int y1 = Math.min(y0 + tileWidth, canvasHeight);
+      tiles[job] = new RenderTile(x0, x1, y0, y1);
+    }
+    current = null;
+  }
+
+  /**
+   * Start rendering a pass. If the pass was already released by
+   * {@link #releaseNextPass(int)} it just becomes the current pass,
+   * otherwise all tiles for the pass are queued.
+   *
+   * @param spp the sample count of each pixel before the pass
+   */
+  synchronized Pass startPass(int spp) {
+    if (current != null && current.successor != null && current.successor.spp == spp) {
+      current = current.successor;
+      return current;
+    }
+    return startPass(spp, spp + RenderConstants.SPP_PER_PASS);
+  }
+
+  /**
+   * Start rendering a pass in which each tile is rendered repeatedly until
+   * it reaches the given sample count.
+   *
+   * @param spp the sample count of each pixel before the pass
+   * @param limit the sample count of each pixel after the pass
+   */
+  synchronized Pass startPass(int spp, int limit) {
+    current = new Pass(spp, limit, tiles.length);
+    for (int i = 0; i < tiles.length; ++i) {
+      enqueue(current, i);
+    }
+    return current;
+  }
+
+  /**
+   * Release the pass following the current pass. Tiles in the next pass
+   * are queued as soon as the same tile is finished in the current pass.
+   *
+   * @param spp the sample count of each pixel before the next pass
+   */
+  synchronized void releaseNextPass(int spp) {
+    Pass pass = current;
+    if (pass == null || pass.successor != null) {
+      return;
+    }
+    Pass next = new Pass(spp, spp + RenderConstants.SPP_PER_PASS, tiles.length);
+    pass.successor = next;
+    for (int i = 0; i < tiles.length; ++i) {
+      if (pass.pieces.get(i) == 0) {
+        enqueue(next, i);
+      }
+    }
+  }
+
+  /**
+   * @return {@code true} if the pass with the given start sample count has
+   * already been released
+   */
+  synchronized boolean isReleased(int spp) {
+    return current != null && current.successor != null && current.successor.spp == spp;
+  }
+
+  /**
+   * Get the next tile to render. Blocks until a tile is available.
+   *
+   * @param worker the index of the worker requesting a tile
+   */
+  RenderTile nextTile(int worker) throws InterruptedException {
+    worker = Math.floorMod(worker, numWorkers);
+    long idleStart = System.nanoTime();
+    Job job;
+    while (true) {
+      job = queues[worker].pollFirst();
+      for (int i = 1; job == null && i < numWorkers; ++i) {
+        // Steal the oldest (and largest) tile from another worker.
+        job = queues[(worker + i) % numWorkers].pollLast();
+      }
+      if (job != null) {
+        numQueued.decrementAndGet();
+        break;
+      }
+      synchronized (queueMonitor) {
+        while (numQueued.get() <= 0) {
+          queueMonitor.wait();
+        }
+      }
+    }
+    idleTime.addAndGet(worker, System.nanoTime() - idleStart);
+
+    // Split the tile if other workers would otherwise run out of work.
+    while (numQueued.get() < numWorkers - 1) {
+      int width = job.x1 - job.x0;
+      int height = job.y1 - job.y0;
+      if (width < 2 * MIN_SPLIT_SIZE && height < 2 * MIN_SPLIT_SIZE) {
+        break;
+      }
+      job.pass.pieces.incrementAndGet(job.base);
+      Job other;
+      if (width >= height) {
+        int mid = job.x0 + width / 2;
+        other = new Job(mid, job.x1, job.y0, job.y1, job.pass, job.base, job.spp);
+        job = new Job(job.x0, mid, job.y0, job.y1, job.pass, job.base, job.spp);
+      } else {
+        int mid = job.y0 + height / 2;
+        other = new Job(job.x0, job.x1, mid, job.y1, job.pass, job.base, job.spp);
+        job = new Job(job.x0, job.x1, job.y0, mid, job.pass, job.base, job.spp);
+      }
+      push(worker, other);
+    }
+    return job;
+  }
+
+  /**
+   * Report that a tile has been rendered.
+   *
+   * @param tile a tile returned by {@link #nextTile(int)}
+   */
+  void tileDone(RenderTile tile) {
+    Job job = (Job) tile;
+    Pass pass = job.pass;
+    if (pass.pieces.decrementAndGet(job.base) == 0) {
+      int spp = pass.advance(job.base);
+      if (spp >= 0) {
+        // Render the tile again without waiting for the other tiles.
+        RenderTile base = tiles[job.base];
+        pass.pieces.set(job.base, 1);
+        push(owner(job.base), new Job(base.x0, base.x1, base.y0, base.y1, pass, job.base, spp));
+        return;
+      }
+      Pass next = pass.successor;
+      if (next != null) {
+        // Continue with the same tile in the next pass.
+        enqueue(next, job.base);
+      }
+      pass.tileDone();
+    }
+  }
+
+  /** @return the number of tiles waiting to be rendered */
+  int queuedTiles() {
+    return numQueued.get();
+  }
+
+  /**
+   * @return the accumulated time, in milliseconds, that each worker has
+   * spent waiting for tiles
+   */
+  long[] getIdleTime() {
+    long[] result = new long[numWorkers];
+    for (int i = 0; i < numWorkers; ++i) {
+      result[i] = idleTime.get(i) / 1000000;
+    }
+    return result;
+  }
+
+  /** Queue a base tile for rendering in the given pass, if it was not already queued. */
+  private void enqueue(Pass pass, int base) {
+    if (pass.queued.compareAndSet(base, 0, 1)) {
+      RenderTile tile = tiles[base];
+      push(owner(base), new Job(tile.x0, tile.x1, tile.y0, tile.y1, pass, base, pass.spp));
+    }
+  }
+
+  /**
+   * Consecutive tiles are queued for the same worker, for better memory locality.
+   *
+   * @return the index of the worker whose queue the base tile is added to
+   */
+  private int owner(int base) {
+    return (int) ((long) base * numWorkers / tiles.length);
+  }
+
+  private void push(int worker, Job job) {
+    queues[worker].addFirst(job);
+    numQueued.incrementAndGet();
+    synchronized (queueMonitor) {
+      queueMonitor.notifyAll();
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package se.llbit.chunky.renderer;
 
 import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
 import se.llbit.math.Vector4;
 
 import java.util.Random;
@@ -28,4 +29,52 @@ public class WorkerState {
   public Ray ray;
   public Vector4 attenuation = new Vector4();
   public Random random;
+
+  /**
+   * Surface color at the first hit of the current sample.
+   * Recorded by the path tracers for the denoiser.
+   */
+  public final Vector3 albedo = new Vector3();
+
+  /**
+   * Surface normal at the first hit of the current sample, or zero if the
+   * first hit was the sky. Recorded by the path tracers for the denoiser.
+   */
+  public final Vector3 normal = new Vector3();
+
+  /**
+   * {@code true} if the first hit of the current sample has been recorded.
+   */
+  public boolean firstHitRecorded;
+
+  /**
+   * Scratch rays used by the scene intersection code.
+   * These must not be used to hold state across calls to {@code Scene.intersect}.
+   */
+  public final Ray intersectStart = new Ray();
+  public final Ray intersectRay = new Ray();
+
+  /** Preallocated rays, indexed by ray depth. Grown on demand. */
+  private Ray[] rayStack = new Ray[0];
+
+  /**
+   * Get the preallocated ray for the given ray depth.
+   * The same ray object is returned each time for a given depth, so a ray
+   * must not be used after a new ray has been requested for the same depth.
+   *
+   * @param depth the depth of the ray to be traced
+   * @return the ray for the given depth
+   */
+  public Ray rayAt(int depth) {
+    if (depth >= rayStack.length) {
+      int size = Math.max(depth + 1, rayStack.length * 2);
+      Ray[] stack = new Ray[size];
+      System.arraycopy(rayStack, 0, stack, 0, rayStack.length);
+      for (int i = rayStack.length; i < size; ++i) {
+        stack[i] = new Ray();
+      }
+      rayStack = stack;
+    }
+    return rayStack[depth];
+  }
 }
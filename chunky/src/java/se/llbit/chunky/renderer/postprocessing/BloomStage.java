@@ -0,0 +1,106 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+import java.util.Arrays;
+
+/**
+ * Adds a glow around bright parts of the image.
+ *
+ * <p>The color components above a threshold are blurred with a box filter and
+ * added to the image. The box filter is separable: each row is blurred
+ * horizontally using prefix sums, then the rows are summed with a running sum
+ * down each column.
+ */
+public class BloomStage implements PostProcessingStage {
+  private final double threshold;
+  private final int radius;
+  private final double strength;
+
+  /** Scratch space for the horizontally blurred rows, reused by each thread. */
+  private final ThreadLocal<double[]> scratch = ThreadLocal.withInitial(() -> new double[0]);
+
+  /**
+   * @param threshold color components above this value contribute to the bloom
+   * @param radius the blur radius in pixels
+   * @param strength the scale of the blurred color that is added to the image
+   */
+  public BloomStage(double threshold, int radius, double strength) {
+    if (radius < 1) {
+      throw new IllegalArgumentException("Bloom radius must be at least 1");
+    }
+    this.threshold = threshold;
+    this.radius = radius;
+    this.strength = strength;
+  }
+
+  @Override public int getRadius() {
+    return radius;
+  }
+
+  @Override public boolean beforeToneMapping() {
+    return true;
+  }
+
+  @Override public void process(double[] in, double[] out, int width, int rowBegin, int rowEnd) {
+    int stride = width * 3;
+    int rows = rowEnd - rowBegin + 2 * radius;
+    double[] blurred = scratch.get();
+    if (blurred.length < (rows + 1) * stride + 3) {
+      blurred = new double[(rows + 1) * stride + 3];
+      scratch.set(blurred);
+    }
+    // The last row of the scratch array holds prefix sums.
+    int prefix = rows * stride;
+    for (int row = 0; row < rows; ++row) {
+      int src = (rowBegin - radius + row) * stride;
+      blurred[prefix] = 0;
+      blurred[prefix + 1] = 0;
+      blurred[prefix + 2] = 0;
+      for (int i = 0; i < stride; ++i) {
+        double bright = in[src + i] - threshold;
+        blurred[prefix + i + 3] = blurred[prefix + i] + (bright > 0 ? bright : 0);
+      }
+      int dest = row * stride;
+      for (int x = 0; x < width; ++x) {
+        int x0 = Math.max(x - radius, 0);
+        int x1 = Math.min(x + radius + 1, width);
+        double scale = strength / ((x1 - x0) * (2 * radius + 1));
+        for (int c = 0; c < 3; ++c) {
+          blurred[dest + x * 3 + c] = (blurred[prefix + x1 * 3 + c] - blurred[prefix + x0 * 3 + c]) * scale;
+        }
+      }
+    }
+    // Running sum over 2 * radius + 1 rows, stored in the prefix row.
+    Arrays.fill(blurred, prefix, prefix + stride, 0);
+    for (int row = 0; row < 2 * radius; ++row) {
+      for (int i = 0; i < stride; ++i) {
+        blurred[prefix + i] += blurred[row * stride + i];
+      }
+    }
+    for (int y = rowBegin; y < rowEnd; ++y) {
+      int added = (y - rowBegin + 2 * radius) * stride;
+      int removed = (y - rowBegin) * stride;
+      int offset = y * stride;
+      for (int i = 0; i < stride; ++i) {
+        double sum = blurred[prefix + i] + blurred[added + i];
+        out[offset + i] = in[offset + i] + sum;
+        blurred[prefix + i] = sum - blurred[removed + i];
+      }
+    }
+  }
+}
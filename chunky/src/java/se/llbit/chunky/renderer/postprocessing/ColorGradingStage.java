@@ -0,0 +1,133 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Applies a color grading lookup table to the tone mapped image.
+ *
+ * <p>The lookup table is a cube of colors indexed by red, green, and blue
+ * input values in the range [0,1], with red varying fastest. Colors between
+ * the table entries are interpolated trilinearly.
+ */
+public class ColorGradingStage implements PostProcessingStage {
+  private final int size;
+  private final double[] table;
+
+  /**
+   * @param size the number of table entries along each axis
+   * @param table the table colors, {@code size * size * size * 3} values
+   */
+  public ColorGradingStage(int size, double[] table) {
+    if (size < 2 || table.length != size * size * size * 3) {
+      throw new IllegalArgumentException("Invalid color grading table size");
+    }
+    this.size = size;
+    this.table = table;
+  }
+
+  /**
+   * Load a lookup table in the Adobe/Resolve .cube format.
+   *
+   * @throws IOException if the table could not be read or is not a 3D table
+   */
+  public static ColorGradingStage fromCube(Reader reader) throws IOException {
+    BufferedReader in = new BufferedReader(reader);
+    int size = 0;
+    double[] table = null;
+    int index = 0;
+    String line;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] parts = line.split("\\s+");
+      String keyword = parts[0].toUpperCase(Locale.ROOT);
+      if (keyword.equals("LUT_3D_SIZE")) {
+        size = Integer.parseInt(parts[1]);
+        table = new double[size * size * size * 3];
+      } else if (keyword.equals("LUT_1D_SIZE")) {
+        throw new IOException("1D lookup tables are not supported");
+      } else if (keyword.equals("DOMAIN_MIN") || keyword.equals("DOMAIN_MAX")) {
+        double expected = keyword.equals("DOMAIN_MIN") ? 0 : 1;
+        for (int i = 1; i < parts.length; ++i) {
+          if (Double.parseDouble(parts[i]) != expected) {
+            throw new IOException("Only the domain [0,1] is supported");
+          }
+        }
+      } else if (Character.isDigit(keyword.charAt(0)) || keyword.charAt(0) == '-'
+          || keyword.charAt(0) == '.') {
+        if (table == null || index + 3 > table.length || parts.length != 3) {
+          throw new IOException("Malformed lookup table entry: " + line);
+        }
+        try {
+          for (String part : parts) {
+            table[index++] = Double.parseDouble(part);
+          }
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed lookup table entry: " + line, e);
+        }
+      }
+      // Other keywords, such as TITLE, are ignored.
+    }
+    if (table == null || index != table.length) {
+      throw new IOException("Incomplete lookup table");
+    }
+    return new ColorGradingStage(size, table);
+  }
+
+  @Override public void process(double[] in, double[] out, int width, int rowBegin, int rowEnd) {
+    int end = rowEnd * width * 3;
+    int max = size - 1;
+    int stride1 = 3;
+    int stride2 = size * 3;
+    int stride3 = size * size * 3;
+    for (int i = rowBegin * width * 3; i < end; i += 3) {
+      double r = clamp(in[i]) * max;
+      double g = clamp(in[i + 1]) * max;
+      double b = clamp(in[i + 2]) * max;
+      int r0 = Math.min((int) r, max - 1);
+      int g0 = Math.min((int) g, max - 1);
+      int b0 = Math.min((int) b, max - 1);
+      double fr = r - r0;
+      double fg = g - g0;
+      double fb = b - b0;
+      int base = b0 * stride3 + g0 * stride2 + r0 * stride1;
+      for (int c = 0; c < 3; ++c) {
+        int j = base + c;
+        double c00 = lerp(table[j], table[j + stride1], fr);
+        double c10 = lerp(table[j + stride2], table[j + stride2 + stride1], fr);
+        double c01 = lerp(table[j + stride3], table[j + stride3 + stride1], fr);
+        double c11 = lerp(table[j + stride3 + stride2], table[j + stride3 + stride2 + stride1], fr);
+        out[i + c] = lerp(lerp(c00, c10, fg), lerp(c01, c11, fg), fb);
+      }
+    }
+  }
+
+  private static double clamp(double value) {
+    return value > 0 ? (value < 1 ? value : 1) : 0;
+  }
+
+  private static double lerp(double a, double b, double t) {
+    return a + (b - a) * t;
+  }
+}
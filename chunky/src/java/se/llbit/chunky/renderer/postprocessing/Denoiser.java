@@ -0,0 +1,238 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+import se.llbit.chunky.renderer.FloatSampleBuffer;
+import se.llbit.chunky.renderer.SampleBuffer;
+import se.llbit.util.TaskTracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removes noise from a render with an edge-avoiding à-trous wavelet filter,
+ * guided by the first-hit albedo and normal of each pixel.
+ *
+ * <p>Each iteration blurs the image with a 5x5 B3 spline kernel whose taps
+ * are spaced {@code 2^i} pixels apart in iteration {@code i}. Taps are
+ * weighted down by their difference in color, normal, and albedo from the
+ * center pixel, so that the blur stops at geometry and texture edges. The
+ * color tolerance is halved in each iteration. See Dammertz et al.,
+ * "Edge-Avoiding À-Trous Wavelet Transform for fast Global Illumination
+ * Filtering", HPG 2010.
+ *
+ * <p>Color differences are relative to the mean luminance of the two
+ * pixels, so that the filter behaves the same in dark and bright parts of
+ * the image. The noise of a pixel decreases with the square root of the
+ * sample count, and so does the color tolerance.
+ *
+ * <p>The weight of a tap is {@code h * f(d)}, where {@code h} is the
+ * kernel weight and {@code d} is the sum of the squared differences scaled
+ * by the tolerances. The falloff {@code f(d) = (1 + d/4)^-4} is a cheap
+ * approximation of {@code exp(-d)}.
+ *
+ * <p>The footprint of the filter is too large for the row block stages of
+ * {@link PostProcessingPipeline}, so the denoiser runs on the whole frame
+ * before the pipeline. Each iteration is processed in blocks of rows by a
+ * pool with the given number of threads.
+ */
+public class Denoiser {
+  public static final int DEFAULT_ITERATIONS = 5;
+  public static final double DEFAULT_COLOR_SIGMA = 7;
+  public static final double DEFAULT_NORMAL_SIGMA = 0.3;
+  public static final double DEFAULT_ALBEDO_SIGMA = 0.1;
+
+  /** The number of image rows in each block. */
+  private static final int BLOCK_HEIGHT = 16;
+
+  /** B3 spline kernel. */
+  private static final double[] KERNEL = { 1 / 16.0, 1 / 4.0, 3 / 8.0, 1 / 4.0, 1 / 16.0 };
+
+  private final int iterations;
+  private final double colorSigma;
+  private final double normalSigma;
+  private final double albedoSigma;
+
+  public Denoiser() {
+    this(DEFAULT_ITERATIONS, DEFAULT_COLOR_SIGMA, DEFAULT_NORMAL_SIGMA, DEFAULT_ALBEDO_SIGMA);
+  }
+
+  /**
+   * @param iterations the number of filter iterations
+   * @param colorSigma the relative color difference tolerated in the first
+   * iteration at one sample per pixel
+   * @param normalSigma the normal difference tolerated
+   * @param albedoSigma the albedo difference tolerated
+   */
+  public Denoiser(int iterations, double colorSigma, double normalSigma, double albedoSigma) {
+    if (iterations < 1) {
+      throw new IllegalArgumentException("The denoiser needs at least one iteration");
+    }
+    this.iterations = iterations;
+    this.colorSigma = colorSigma;
+    this.normalSigma = normalSigma;
+    this.albedoSigma = albedoSigma;
+  }
+
+  /**
+   * Denoise the samples of a frame.
+   *
+   * @param albedo the average first-hit albedo of each pixel, or {@code null}
+   * @param normal the average first-hit normal of each pixel, or {@code null}
+   * @param spp the number of samples per pixel
+   * @param threadCount the number of threads used to filter the image
+   * @return a new sample buffer with the denoised samples
+   */
+  public SampleBuffer denoise(SampleBuffer samples, float[] albedo, float[] normal, int spp,
+      int threadCount, TaskTracker.Task task) throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threadCount));
+    try {
+      return denoise(samples, albedo, normal, spp, executor, task);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private SampleBuffer denoise(SampleBuffer samples, float[] albedo, float[] normal, int spp,
+      ExecutorService executor, TaskTracker.Task task) throws InterruptedException {
+    int width = samples.width;
+    int height = samples.height;
+    float[] initial = new float[width * height * 3];
+    int blocks = (height + BLOCK_HEIGHT - 1) / BLOCK_HEIGHT;
+    AtomicInteger done = new AtomicInteger(0);
+    int total = blocks * (iterations + 1);
+
+    List<Callable<Void>> tasks = new ArrayList<>(blocks);
+    for (int y = 0; y < height; y += BLOCK_HEIGHT) {
+      int y0 = y;
+      int y1 = Math.min(y + BLOCK_HEIGHT, height);
+      tasks.add(() -> {
+        for (int i = y0 * width * 3; i < y1 * width * 3; ++i) {
+          initial[i] = (float) samples.get(i);
+        }
+        task.update(total, done.incrementAndGet());
+        return null;
+      });
+    }
+    run(executor, tasks);
+
+    float[] in = initial;
+    float[] out = new float[width * height * 3];
+    for (int iteration = 0; iteration < iterations; ++iteration) {
+      int step = 1 << iteration;
+      double sigma = colorSigma / (step * Math.sqrt(Math.max(spp, 1)));
+      float[] src = in;
+      float[] dest = out;
+      tasks.clear();
+      for (int y = 0; y < height; y += BLOCK_HEIGHT) {
+        int y0 = y;
+        int y1 = Math.min(y + BLOCK_HEIGHT, height);
+        tasks.add(() -> {
+          filter(src, dest, albedo, normal, width, height, y0, y1, step, sigma);
+          task.update(total, done.incrementAndGet());
+          return null;
+        });
+      }
+      run(executor, tasks);
+      in = dest;
+      out = src;
+    }
+    return new FloatSampleBuffer(width, height, in);
+  }
+
+  private static void run(ExecutorService executor, List<Callable<Void>> tasks)
+      throws InterruptedException {
+    for (Future<Void> result : executor.invokeAll(tasks)) {
+      try {
+        result.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException("Denoising failed", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Run one filter iteration for rows y0 (inclusive) to y1 (exclusive).
+   */
+  private void filter(float[] in, float[] out, float[] albedo, float[] normal, int width,
+      int height, int y0, int y1, int step, double sigma) {
+    double invColorSigma2 = 1 / (sigma * sigma);
+    double invNormalSigma2 = 1 / (normalSigma * normalSigma);
+    double invAlbedoSigma2 = 1 / (albedoSigma * albedoSigma);
+    for (int y = y0; y < y1; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int p = (y * width + x) * 3;
+        double cr = in[p];
+        double cg = in[p + 1];
+        double cb = in[p + 2];
+        double luminance = 0.2126 * cr + 0.7152 * cg + 0.0722 * cb;
+        double sum = 0, sr = 0, sg = 0, sb = 0;
+        for (int ky = -2; ky <= 2; ++ky) {
+          int qy = y + ky * step;
+          if (qy < 0 || qy >= height) {
+            continue;
+          }
+          double hy = KERNEL[ky + 2];
+          for (int kx = -2; kx <= 2; ++kx) {
+            int qx = x + kx * step;
+            if (qx < 0 || qx >= width) {
+              continue;
+            }
+            int q = (qy * width + qx) * 3;
+            double qr = in[q];
+            double qg = in[q + 1];
+            double qb = in[q + 2];
+            double dr = qr - cr;
+            double dg = qg - cg;
+            double db = qb - cb;
+            double mean = 0.5 * (luminance + 0.2126 * qr + 0.7152 * qg + 0.0722 * qb);
+            double d = (dr * dr + dg * dg + db * db) * invColorSigma2 / (mean * mean + 1e-4);
+            if (normal != null) {
+              double nx = normal[q] - normal[p];
+              double ny = normal[q + 1] - normal[p + 1];
+              double nz = normal[q + 2] - normal[p + 2];
+              d += (nx * nx + ny * ny + nz * nz) * invNormalSigma2;
+            }
+            if (albedo != null) {
+              double ar = albedo[q] - albedo[p];
+              double ag = albedo[q + 1] - albedo[p + 1];
+              double ab = albedo[q + 2] - albedo[p + 2];
+              d += (ar * ar + ag * ag + ab * ab) * invAlbedoSigma2;
+            }
+            double falloff = 1 / (1 + 0.25 * d);
+            falloff *= falloff;
+            double weight = hy * KERNEL[kx + 2] * falloff * falloff;
+            sum += weight;
+            sr += weight * qr;
+            sg += weight * qg;
+            sb += weight * qb;
+          }
+        }
+        // The center tap always has a positive weight.
+        out[p] = (float) (sr / sum);
+        out[p + 1] = (float) (sg / sum);
+        out[p + 2] = (float) (sb / sum);
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+/**
+ * Scales the color values by the exposure.
+ */
+public class ExposureStage implements PostProcessingStage {
+  private final double exposure;
+
+  public ExposureStage(double exposure) {
+    this.exposure = exposure;
+  }
+
+  @Override public boolean beforeToneMapping() {
+    return true;
+  }
+
+  @Override public void process(double[] in, double[] out, int width, int rowBegin, int rowEnd) {
+    double exposure = this.exposure;
+    int end = rowEnd * width * 3;
+    for (int i = rowBegin * width * 3; i < end; ++i) {
+      out[i] = in[i] * exposure;
+    }
+  }
+}
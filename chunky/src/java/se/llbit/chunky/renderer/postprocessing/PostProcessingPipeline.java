@@ -0,0 +1,200 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+import se.llbit.chunky.renderer.SampleBuffer;
+import se.llbit.math.ColorUtil;
+import se.llbit.math.QuickMath;
+import se.llbit.util.TaskTracker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sequence of post-processing stages that turns the samples of a render
+ * into the final image.
+ *
+ * <p>The image is processed in blocks of rows on a fixed number of threads.
+ * Each block is copied from the sample buffer into a double array, run
+ * through all stages, and clamped and converted to RGB. If some stages read
+ * neighbouring pixels, the block is extended by the total radius of the stages
+ * so that each block can be processed independently. The rows outside the
+ * block are processed by the stages before the neighbourhood stage, and
+ * discarded afterwards.
+ */
+public class PostProcessingPipeline {
+  /** The number of image rows in each block. */
+  private static final int BLOCK_HEIGHT = 16;
+
+  private final List<PostProcessingStage> stages;
+  private final int radius;
+
+  /**
+   * Block buffers, reused between blocks and between frames. A new buffer is
+   * allocated when all buffers are in use, so threads never wait for a buffer.
+   */
+  private final Queue<double[][]> buffers = new ConcurrentLinkedQueue<>();
+
+  public PostProcessingPipeline(Collection<PostProcessingStage> stages) {
+    this.stages = new ArrayList<>(stages);
+    int radius = 0;
+    for (PostProcessingStage stage : stages) {
+      radius += stage.getRadius();
+    }
+    this.radius = radius;
+  }
+
+  /**
+   * @return the stages of this pipeline
+   */
+  public List<PostProcessingStage> getStages() {
+    return stages;
+  }
+
+  /**
+   * Process the samples and write the resulting RGB colors to the pixel array.
+   *
+   * @param threadCount the number of threads used to process the image
+   */
+  public void apply(SampleBuffer samples, int[] pixels, int threadCount, TaskTracker.Task task)
+      throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threadCount));
+    try {
+      apply(samples, pixels, executor, task);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private void apply(SampleBuffer samples, int[] pixels, ExecutorService executor,
+      TaskTracker.Task task) throws InterruptedException {
+    int height = samples.height;
+    int blocks = (height + BLOCK_HEIGHT - 1) / BLOCK_HEIGHT;
+    AtomicInteger done = new AtomicInteger(0);
+    List<Callable<Void>> tasks = new ArrayList<>(blocks);
+    for (int y = 0; y < height; y += BLOCK_HEIGHT) {
+      int y0 = y;
+      int y1 = Math.min(y + BLOCK_HEIGHT, height);
+      tasks.add(() -> {
+        double[][] buffer = takeBuffer();
+        try {
+          double[] block = processBlock(samples, y0, y1, buffer);
+          toRgb(block, samples.width, y0, y1, pixels);
+        } finally {
+          buffers.add(buffer);
+        }
+        task.update(blocks, done.incrementAndGet());
+        return null;
+      });
+    }
+    for (Future<Void> result : executor.invokeAll(tasks)) {
+      try {
+        result.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException("Post-processing failed", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Process rows y0 until y1 of the samples, and write the resulting colors to
+   * the destination array, three values per pixel starting with pixel
+   * (0, y0). Unlike {@link #apply}, the colors are not clamped. The rows are
+   * processed in the calling thread, so several threads can process
+   * different rows at the same time.
+   */
+  public void process(SampleBuffer samples, int y0, int y1, double[] dest) {
+    int stride = samples.width * 3;
+    double[][] buffer = takeBuffer();
+    try {
+      for (int y = y0; y < y1; y += BLOCK_HEIGHT) {
+        int blockEnd = Math.min(y + BLOCK_HEIGHT, y1);
+        double[] block = processBlock(samples, y, blockEnd, buffer);
+        System.arraycopy(block, radius * stride, dest, (y - y0) * stride, (blockEnd - y) * stride);
+      }
+    } finally {
+      buffers.add(buffer);
+    }
+  }
+
+  /** Take an unused block buffer, or allocate a new one if all are in use. */
+  private double[][] takeBuffer() {
+    double[][] buffer = buffers.poll();
+    return buffer != null ? buffer : new double[2][0];
+  }
+
+  /** Clamp the processed rows y0 until y1 and convert them to RGB pixels. */
+  private void toRgb(double[] block, int width, int y0, int y1, int[] pixels) {
+    for (int y = y0; y < y1; ++y) {
+      int src = (y - y0 + radius) * width * 3;
+      int dest = y * width;
+      for (int x = 0; x < width; ++x) {
+        int i = src + x * 3;
+        pixels[dest + x] = ColorUtil.getRGB(QuickMath.min(1, block[i]),
+            QuickMath.min(1, block[i + 1]), QuickMath.min(1, block[i + 2]));
+      }
+    }
+  }
+
+  /**
+   * Run rows y0 until y1 through all stages.
+   *
+   * @return the block buffer holding the processed rows, starting at row
+   * {@code radius} of the buffer
+   */
+  private double[] processBlock(SampleBuffer samples, int y0, int y1, double[][] buffer) {
+    int width = samples.width;
+    int stride = width * 3;
+    int rows = y1 - y0 + 2 * radius;
+    if (buffer[0].length < rows * stride) {
+      buffer[0] = new double[rows * stride];
+      buffer[1] = radius > 0 ? new double[rows * stride] : buffer[0];
+    }
+    double[] in = buffer[0];
+    double[] out = buffer[1];
+    for (int row = 0; row < rows; ++row) {
+      int y = Math.max(0, Math.min(y0 - radius + row, samples.height - 1));
+      samples.get(y * stride, in, row * stride, stride);
+    }
+    // The range of valid rows shrinks by the radius of each stage.
+    int rowBegin = 0;
+    int rowEnd = rows;
+    for (PostProcessingStage stage : stages) {
+      int stageRadius = stage.getRadius();
+      rowBegin += stageRadius;
+      rowEnd -= stageRadius;
+      if (stageRadius == 0) {
+        stage.process(in, in, width, rowBegin, rowEnd);
+      } else {
+        stage.process(in, out, width, rowBegin, rowEnd);
+        double[] tmp = in;
+        in = out;
+        out = tmp;
+      }
+    }
+    return in;
+  }
+}
@@ -0,0 +1,65 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+/**
+ * A stage of the post-processing pipeline.
+ *
+ * <p>Stages process blocks of image rows. A block is stored in a double array
+ * with three color components per pixel, and {@code width * 3} values per
+ * row. Stages are run in parallel on separate blocks, so a stage must not
+ * modify shared state while processing.
+ *
+ * <p>Per-pixel stages have radius zero and process the block in place.
+ * Stages that read neighbouring pixels, such as blur filters, declare how many
+ * rows above and below each row they read. The pipeline then gives them
+ * separate input and output arrays, and the input rows within the radius of
+ * the processed rows are valid. Rows outside the image are copies of the edge
+ * rows. Stages handle the left and right image edges themselves.
+ *
+ * <p>Plugins can add stages to a scene with
+ * {@link se.llbit.chunky.renderer.scene.Scene#addPostprocessingStage}.
+ */
+public interface PostProcessingStage {
+  /**
+   * @return the number of rows above and below a pixel that the stage reads
+   * to compute the pixel
+   */
+  default int getRadius() {
+    return 0;
+  }
+
+  /**
+   * @return {@code true} if the stage processes linear color values, before
+   * tone mapping. Otherwise the stage is applied after tone mapping.
+   */
+  default boolean beforeToneMapping() {
+    return false;
+  }
+
+  /**
+   * Process rows of a block.
+   *
+   * @param in input rows
+   * @param out output rows. This is the same array as {@code in} if the
+   * stage has radius zero.
+   * @param width the width of the image in pixels
+   * @param rowBegin the first row to process
+   * @param rowEnd the row after the last row to process
+   */
+  void process(double[] in, double[] out, int width, int rowBegin, int rowEnd);
+}
@@ -0,0 +1,56 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+/**
+ * Sharpens the image with an unsharp mask.
+ *
+ * <p>Each color component is moved away from the average of its four
+ * neighbours by the sharpening amount.
+ */
+public class SharpenStage implements PostProcessingStage {
+  private final double amount;
+
+  /**
+   * @param amount the sharpening amount. Zero leaves the image unchanged.
+   */
+  public SharpenStage(double amount) {
+    this.amount = amount;
+  }
+
+  @Override public int getRadius() {
+    return 1;
+  }
+
+  @Override public void process(double[] in, double[] out, int width, int rowBegin, int rowEnd) {
+    int stride = width * 3;
+    double amount = this.amount;
+    for (int y = rowBegin; y < rowEnd; ++y) {
+      int row = y * stride;
+      for (int x = 0; x < width; ++x) {
+        int left = x > 0 ? -3 : 0;
+        int right = x < width - 1 ? 3 : 0;
+        for (int c = 0; c < 3; ++c) {
+          int i = row + x * 3 + c;
+          double center = in[i];
+          double neighbours = in[i + left] + in[i + right] + in[i - stride] + in[i + stride];
+          out[i] = center + amount * (center - neighbours * 0.25);
+        }
+      }
+    }
+  }
+}
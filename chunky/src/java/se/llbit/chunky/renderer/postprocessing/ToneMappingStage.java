@@ -0,0 +1,153 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.chunky.renderer.Postprocess;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.math.QuickMath;
+
+/**
+ * Applies a tone mapping operator or gamma correction.
+ *
+ * <p>Each operator has its own loop over the block, so the operator is only
+ * selected once per block rather than once per color component.
+ */
+public class ToneMappingStage implements PostProcessingStage {
+  private static final double INV_GAMMA = 1 / Scene.DEFAULT_GAMMA;
+
+  private final Postprocess operator;
+  private final boolean preview;
+
+  private ToneMappingStage(Postprocess operator, boolean preview) {
+    this.operator = operator;
+    this.preview = preview;
+  }
+
+  public ToneMappingStage(Postprocess operator) {
+    this(operator, false);
+  }
+
+  /**
+   * @return a stage that applies the fast gamma correction used for preview renders
+   */
+  public static ToneMappingStage preview() {
+    return new ToneMappingStage(Postprocess.NONE, true);
+  }
+
+  /**
+   * Apply a tone mapping operator to a single color component.
+   */
+  public static double map(Postprocess operator, double value) {
+    switch (operator) {
+      case NONE:
+        return value;
+      case TONEMAP1:
+        return tonemap1(value);
+      case TONEMAP2:
+        return aces(value);
+      case TONEMAP3:
+        return hable(value);
+      case GAMMA:
+      default:
+        return gamma(value);
+    }
+  }
+
+  /**
+   * Apply the preview gamma correction to a single color component.
+   */
+  public static double mapPreview(double value) {
+    return FastMath.sqrt(value);
+  }
+
+  @Override public void process(double[] in, double[] out, int width, int rowBegin, int rowEnd) {
+    int begin = rowBegin * width * 3;
+    int end = rowEnd * width * 3;
+    if (preview) {
+      for (int i = begin; i < end; ++i) {
+        out[i] = FastMath.sqrt(in[i]);
+      }
+      return;
+    }
+    switch (operator) {
+      case NONE:
+        if (in != out) {
+          System.arraycopy(in, begin, out, begin, end - begin);
+        }
+        break;
+      case TONEMAP1:
+        for (int i = begin; i < end; ++i) {
+          out[i] = tonemap1(in[i]);
+        }
+        break;
+      case TONEMAP2:
+        for (int i = begin; i < end; ++i) {
+          out[i] = aces(in[i]);
+        }
+        break;
+      case TONEMAP3:
+        for (int i = begin; i < end; ++i) {
+          out[i] = hable(in[i]);
+        }
+        break;
+      case GAMMA:
+      default:
+        for (int i = begin; i < end; ++i) {
+          out[i] = gamma(in[i]);
+        }
+        break;
+    }
+  }
+
+  private static double gamma(double value) {
+    return FastMath.pow(value, INV_GAMMA);
+  }
+
+  /** http://filmicgames.com/archives/75 */
+  private static double tonemap1(double value) {
+    value = QuickMath.max(0, value - 0.004);
+    return (value * (6.2 * value + .5)) / (value * (6.2 * value + 1.7) + 0.06);
+  }
+
+  /** https://knarkowicz.wordpress.com/2016/01/06/aces-filmic-tone-mapping-curve/ */
+  private static double aces(double value) {
+    float aces_a = 2.51f;
+    float aces_b = 0.03f;
+    float aces_c = 2.43f;
+    float aces_d = 0.59f;
+    float aces_e = 0.14f;
+    return QuickMath.max(QuickMath.min((value * (aces_a * value + aces_b)) / (value * (aces_c * value + aces_d) + aces_e), 1), 0);
+  }
+
+  /** http://filmicgames.com/archives/75 */
+  private static double hable(double value) {
+    float hA = 0.15f;
+    float hB = 0.50f;
+    float hC = 0.10f;
+    float hD = 0.20f;
+    float hE = 0.02f;
+    float hF = 0.30f;
+    // This adjusts the exposure by a factor of 16 so that the resulting exposure approximately matches the other
+    // post-processing methods. Without this, the image would be very dark.
+    value *= 16;
+    value = ((value * (hA * value + hC * hB) + hD * hE) / (value * (hA * value + hB) + hD * hF)) - hE / hF;
+    float hW = 11.2f;
+    float whiteScale = 1.0f / (((hW * (hA * hW + hC * hB) + hD * hE) / (hW * (hA * hW + hB) + hD * hF)) - hE / hF);
+    return value * whiteScale;
+  }
+}
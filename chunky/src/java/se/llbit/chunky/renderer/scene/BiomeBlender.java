@@ -0,0 +1,262 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.scene;
+
+import se.llbit.chunky.world.Biomes;
+import se.llbit.chunky.world.ChunkPosition;
+import se.llbit.chunky.world.Heightmap;
+import se.llbit.chunky.world.WorldTexture;
+import se.llbit.log.Log;
+import se.llbit.math.Vector3i;
+import se.llbit.util.LongHashMap;
+import se.llbit.util.TaskTracker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Blends the grass and foliage colors of the loaded chunks with a box blur.
+ *
+ * <p>Each block column gets the average color of the biomes in a square of
+ * (2 * radius + 1) blocks around it. Only blocks in loaded chunks are
+ * included in the average. The blur is separable: the biome colors are first
+ * summed along x, then the row sums are summed along z. Both passes use
+ * running sums, so the cost per column does not depend on the radius.
+ *
+ * <p>The chunks are blended in parallel, in segments of up to
+ * {@link #SEGMENT_CHUNKS} consecutive chunks along x. Each segment reads the
+ * biome IDs of the segment plus a border of {@code radius} blocks.
+ */
+class BiomeBlender {
+  /** Maximum blend radius. */
+  static final int MAX_RADIUS = 7;
+
+  /** Maximum number of chunks per segment. */
+  private static final int SEGMENT_CHUNKS = 16;
+
+  /** Number of segments per thread that are blended between progress updates. */
+  private static final int BATCH_SIZE = 8;
+
+  /** Blend channels: weight, grass RGB, foliage RGB. */
+  private static final int CHANNELS = 7;
+
+  private final LongHashMap<ChunkPosition> chunks;
+  private final Heightmap biomeIds;
+  private final int radius;
+  private final Vector3i origin;
+  private final WorldTexture grassTexture;
+  private final WorldTexture foliageTexture;
+
+  /** Biome colors of one row of the segment, per channel. */
+  private final float[][] row;
+
+  /** Row sums along x, per channel. */
+  private final float[][] rowSums;
+
+  private final float[] color = new float[3];
+
+  private BiomeBlender(LongHashMap<ChunkPosition> chunks, Heightmap biomeIds, int radius,
+      Vector3i origin, WorldTexture grassTexture, WorldTexture foliageTexture) {
+    this.chunks = chunks;
+    this.biomeIds = biomeIds;
+    this.radius = radius;
+    this.origin = origin;
+    this.grassTexture = grassTexture;
+    this.foliageTexture = foliageTexture;
+    int width = SEGMENT_CHUNKS * 16 + 2 * radius;
+    int height = 16 + 2 * radius;
+    row = new float[CHANNELS][width];
+    rowSums = new float[CHANNELS][SEGMENT_CHUNKS * 16 * height];
+  }
+
+  /**
+   * Blend the biome colors of the given chunks into the grass and foliage
+   * textures, using several threads.
+   *
+   * @param chunks the loaded chunks
+   * @param biomeIds biome IDs of the loaded chunks, in world coordinates
+   * @param radius blend radius, clamped to [0, {@link #MAX_RADIUS}]
+   * @param origin the octree origin. The textures use octree coordinates.
+   * @param task task to report progress to
+   */
+  static void blend(Collection<ChunkPosition> chunks, Heightmap biomeIds, int radius,
+      Vector3i origin, WorldTexture grassTexture, WorldTexture foliageTexture, int threadCount,
+      TaskTracker.Task task) throws InterruptedException {
+    radius = Math.max(0, Math.min(MAX_RADIUS, radius));
+    LongHashMap<ChunkPosition> chunkSet = new LongHashMap<>(chunks.size());
+    for (ChunkPosition cp : chunks) {
+      chunkSet.put(cp.getLong(), cp);
+    }
+
+    // Split the chunks into runs of consecutive chunks along x.
+    List<ChunkPosition> sorted = new ArrayList<>(chunks);
+    sorted.sort((a, b) -> a.z != b.z ? Integer.compare(a.z, b.z) : Integer.compare(a.x, b.x));
+    List<int[]> segments = new ArrayList<>();
+    int[] segment = null;
+    for (ChunkPosition cp : sorted) {
+      if (segment != null && segment[1] == cp.z && segment[0] + segment[2] == cp.x
+          && segment[2] < SEGMENT_CHUNKS) {
+        segment[2] += 1;
+      } else {
+        segment = new int[] { cp.x, cp.z, 1 };
+        segments.add(segment);
+      }
+    }
+
+    BlockingQueue<BiomeBlender> blenders = new ArrayBlockingQueue<>(threadCount);
+    for (int i = 0; i < threadCount; ++i) {
+      blenders.add(new BiomeBlender(chunkSet, biomeIds, radius, origin, grassTexture,
+          foliageTexture));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      int done = 0;
+      int target = chunks.size();
+      int batchSize = threadCount * BATCH_SIZE;
+      for (int start = 0; start < segments.size(); start += batchSize) {
+        List<Callable<Integer>> batch = new ArrayList<>();
+        for (int[] s : segments.subList(start, Math.min(segments.size(), start + batchSize))) {
+          batch.add(() -> {
+            BiomeBlender blender = blenders.take();
+            try {
+              blender.blendSegment(s[0], s[1], s[2]);
+            } finally {
+              blenders.add(blender);
+            }
+            return s[2];
+          });
+        }
+        for (Future<Integer> result : executor.invokeAll(batch)) {
+          try {
+            done += result.get();
+          } catch (ExecutionException e) {
+            Log.error("Failed to blend biome colors", e.getCause());
+          }
+        }
+        task.update(target, done);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Blend a segment of consecutive chunks along x.
+   *
+   * @param cx0 x coordinate of the first chunk
+   * @param cz z coordinate of the chunks
+   * @param count number of chunks
+   */
+  private void blendSegment(int cx0, int cz, int count) {
+    int size = 2 * radius + 1;
+    int outWidth = count * 16;
+    int inWidth = outWidth + 2 * radius;
+    int inHeight = 16 + 2 * radius;
+    int x0 = cx0 * 16 - radius;
+    int z0 = cz * 16 - radius;
+
+    // Sum the biome colors along x, for each row of the segment plus border.
+    for (int r = 0; r < inHeight; ++r) {
+      int wz = z0 + r;
+      readRow(x0, wz, inWidth);
+      int offset = r * outWidth;
+      for (int c = 0; c < CHANNELS; ++c) {
+        float[] in = row[c];
+        float[] out = rowSums[c];
+        double sum = 0;
+        for (int i = 0; i < size - 1; ++i) {
+          sum += in[i];
+        }
+        for (int i = 0; i < outWidth; ++i) {
+          sum += in[i + size - 1];
+          out[offset + i] = (float) sum;
+          sum -= in[i];
+        }
+      }
+    }
+
+    // Sum the row sums along z, and store the averages.
+    double[] sum = new double[CHANNELS];
+    for (int x = 0; x < outWidth; ++x) {
+      for (int c = 0; c < CHANNELS; ++c) {
+        sum[c] = 0;
+        for (int r = 0; r < size - 1; ++r) {
+          sum[c] += rowSums[c][r * outWidth + x];
+        }
+      }
+      for (int z = 0; z < 16; ++z) {
+        int last = (z + size - 1) * outWidth + x;
+        for (int c = 0; c < CHANNELS; ++c) {
+          sum[c] += rowSums[c][last];
+        }
+        // The weight is at least one, because the column itself is loaded.
+        double weight = sum[0];
+        int tx = cx0 * 16 + x - origin.x;
+        int tz = cz * 16 + z - origin.z;
+        color[0] = (float) (sum[1] / weight);
+        color[1] = (float) (sum[2] / weight);
+        color[2] = (float) (sum[3] / weight);
+        grassTexture.set(tx, tz, color);
+        color[0] = (float) (sum[4] / weight);
+        color[1] = (float) (sum[5] / weight);
+        color[2] = (float) (sum[6] / weight);
+        foliageTexture.set(tx, tz, color);
+        int first = z * outWidth + x;
+        for (int c = 0; c < CHANNELS; ++c) {
+          sum[c] -= rowSums[c][first];
+        }
+      }
+    }
+  }
+
+  /** Read the biome colors of one row. Blocks outside loaded chunks get zero weight. */
+  private void readRow(int x0, int wz, int width) {
+    int chunkX = Integer.MIN_VALUE;
+    boolean loaded = false;
+    for (int i = 0; i < width; ++i) {
+      int wx = x0 + i;
+      if (wx >> 4 != chunkX) {
+        chunkX = wx >> 4;
+        loaded = chunks.containsKey(ChunkPosition.asLong(chunkX, wz >> 4));
+      }
+      if (loaded) {
+        int biomeId = biomeIds.get(wx, wz);
+        float[] grass = Biomes.getGrassColorLinear(biomeId);
+        float[] foliage = Biomes.getFoliageColorLinear(biomeId);
+        row[0][i] = 1;
+        row[1][i] = grass[0];
+        row[2][i] = grass[1];
+        row[3][i] = grass[2];
+        row[4][i] = foliage[0];
+        row[5][i] = foliage[1];
+        row[6][i] = foliage[2];
+      } else {
+        for (int c = 0; c < CHANNELS; ++c) {
+          row[c][i] = 0;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.scene;
+
+import se.llbit.chunky.block.Block;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.chunky.world.Chunk;
+import se.llbit.chunky.world.ChunkDataSource;
+import se.llbit.chunky.world.ChunkDecoder;
+import se.llbit.chunky.world.ChunkPosition;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.chunky.world.World;
+import se.llbit.log.Log;
+import se.llbit.math.Octree;
+import se.llbit.math.OctreeSubtree;
+import se.llbit.math.Vector3i;
+import se.llbit.nbt.CompoundTag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Reads and decodes chunks in parallel for {@link Scene#loadChunks}.
+ *
+ * <p>Chunk loading is split into four stages. The first three stages run on
+ * a pool of worker threads: finding the chunk data in the region file,
+ * inflating and decoding the block palette and block states into a block
+ * array, and building merged octree subtrees for the chunk. The loaded
+ * chunks are then handed to a single consumer thread, which inserts the
+ * subtrees into the octrees.
+ *
+ * <p>The decoded block arrays are reused and there is a fixed number of them,
+ * so the workers wait if the consumer falls behind. The time spent in each
+ * stage is logged by {@link #logTimings()}.
+ */
+class ChunkLoader implements AutoCloseable {
+
+  /** The decoded data for one chunk. */
+  static class LoadedChunk {
+    private static final int CHUNK_BYTES = Chunk.X_MAX * Chunk.Y_MAX * Chunk.Z_MAX;
+
+    private final BlockPalette palette;
+
+    ChunkPosition position;
+    final int[] blocks = new int[CHUNK_BYTES];
+    final byte[] biomes = new byte[Chunk.X_MAX * Chunk.Z_MAX];
+    final Collection<CompoundTag> tileEntities = new ArrayList<>();
+    final Collection<CompoundTag> entities = new ArrayList<>();
+    private final ChunkDecoder decoder;
+
+    /** Entities created from blocks in the chunk. */
+    final List<Entity> blockEntities = new ArrayList<>();
+
+    // Voxel types and data for the world and water octrees, in chunk block order.
+    final int[] worldTypes = new int[CHUNK_BYTES];
+    final int[] worldData = new int[CHUNK_BYTES];
+    final int[] waterTypes = new int[CHUNK_BYTES];
+    final int[] waterData = new int[CHUNK_BYTES];
+
+    private int cubeLevel;
+    private OctreeSubtree[] worldSubtrees = new OctreeSubtree[0];
+    private OctreeSubtree[] waterSubtrees = new OctreeSubtree[0];
+
+    /** Cached palette lookups. */
+    private Block[] blockCache = new Block[0];
+
+    LoadedChunk(BlockPalette palette) {
+      this.palette = palette;
+      this.decoder = new ChunkDecoder(palette);
+    }
+
+    /**
+     * Look up a block in the palette. Blocks may be added to the palette by
+     * other worker threads, so the palette is locked for blocks that are not
+     * already cached.
+     */
+    Block getBlock(int id) {
+      if (id >= blockCache.length) {
+        blockCache = Arrays.copyOf(blockCache, Math.max(id + 1, blockCache.length * 2));
+      }
+      Block block = blockCache[id];
+      if (block == null) {
+        synchronized (palette) {
+          block = palette.get(id);
+        }
+        blockCache[id] = block;
+      }
+      return block;
+    }
+
+    /** Make this an empty chunk without blocks or entities. */
+    void clear() {
+      Arrays.fill(blocks, palette.airId);
+      Arrays.fill(biomes, (byte) 0);
+      tileEntities.clear();
+      entities.clear();
+      blockEntities.clear();
+      Arrays.fill(worldSubtrees, null);
+      Arrays.fill(waterSubtrees, null);
+    }
+
+    /**
+     * Build octree subtrees from the world and water voxel arrays. The chunk
+     * is split into cubes of {@code 2^cubeLevel} voxels, which should be
+     * aligned to the octree origin. Cubes that are entirely type zero
+     * without data are skipped, as that is the initial octree content.
+     */
+    void buildSubtrees(int cubeLevel) {
+      int size = 1 << cubeLevel;
+      int cubes = (Chunk.X_MAX / size) * (Chunk.Y_MAX / size) * (Chunk.Z_MAX / size);
+      if (worldSubtrees.length != cubes) {
+        worldSubtrees = new OctreeSubtree[cubes];
+        waterSubtrees = new OctreeSubtree[cubes];
+      }
+      this.cubeLevel = cubeLevel;
+      int cube = 0;
+      for (int y = 0; y < Chunk.Y_MAX; y += size) {
+        for (int z = 0; z < Chunk.Z_MAX; z += size) {
+          for (int x = 0; x < Chunk.X_MAX; x += size) {
+            int offset = Chunk.chunkIndex(x, y, z);
+            worldSubtrees[cube] = subtree(worldTypes, worldData, offset);
+            waterSubtrees[cube] = subtree(waterTypes, waterData, offset);
+            cube += 1;
+          }
+        }
+      }
+    }
+
+    private OctreeSubtree subtree(int[] types, int[] data, int offset) {
+      OctreeSubtree subtree = OctreeSubtree.build(cubeLevel, types, data, offset,
+          Chunk.X_MAX, Chunk.X_MAX * Chunk.Z_MAX);
+      if (subtree.isLeaf() && types[offset] == 0 && data[offset] == 0) {
+        return null;
+      }
+      return subtree;
+    }
+
+    /**
+     * Insert the subtrees built by {@link #buildSubtrees} into the octrees.
+     */
+    void insertSubtrees(Octree worldOctree, Octree waterOctree, Vector3i origin) {
+      int size = 1 << cubeLevel;
+      int cube = 0;
+      for (int y = 0; y < Chunk.Y_MAX && cube < worldSubtrees.length; y += size) {
+        for (int z = 0; z < Chunk.Z_MAX; z += size) {
+          for (int x = 0; x < Chunk.X_MAX; x += size) {
+            int ox = position.x * 16 + x - origin.x;
+            int oy = y - origin.y;
+            int oz = position.z * 16 + z - origin.z;
+            if (worldSubtrees[cube] != null) {
+              worldOctree.setSubtree(worldSubtrees[cube], ox, oy, oz);
+            }
+            if (waterSubtrees[cube] != null) {
+              waterOctree.setSubtree(waterSubtrees[cube], ox, oy, oz);
+            }
+            cube += 1;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The level of the largest octree subtrees that fit in a chunk and are
+   * aligned to the given octree origin.
+   */
+  static int cubeLevel(Vector3i origin) {
+    return Math.min(4, Integer.numberOfTrailingZeros(origin.x | origin.y | origin.z | 16));
+  }
+
+  private final Consumer<LoadedChunk> builder;
+  private final int threadCount;
+  private final ExecutorService executor;
+  private final BlockingQueue<LoadedChunk> free;
+  private final BlockingQueue<LoadedChunk> loaded;
+
+  private final AtomicLong readTime = new AtomicLong();
+  private final AtomicLong decodeTime = new AtomicLong();
+  private final AtomicLong buildTime = new AtomicLong();
+  private long waitTime = 0;
+  private long insertTime = 0;
+  private long takeTime = 0;
+
+  /**
+   * Start loading the given chunks in the background.
+   *
+   * @param chunks the chunks to load. Should not contain duplicates.
+   * @param builder called on the worker threads for each decoded chunk, to
+   * build the octree subtrees for the chunk
+   */
+  ChunkLoader(World world, Collection<ChunkPosition> chunks, BlockPalette palette,
+      int threadCount, Consumer<LoadedChunk> builder) {
+    this.builder = builder;
+    this.threadCount = threadCount;
+    int buffers = 2 * threadCount;
+    free = new ArrayBlockingQueue<>(buffers);
+    loaded = new ArrayBlockingQueue<>(buffers);
+    for (int i = 0; i < buffers; ++i) {
+      free.add(new LoadedChunk(palette));
+    }
+    executor = Executors.newFixedThreadPool(threadCount);
+    for (ChunkPosition cp : chunks) {
+      executor.submit(() -> load(world, cp));
+    }
+    executor.shutdown();
+  }
+
+  private void load(World world, ChunkPosition cp) {
+    LoadedChunk chunk;
+    try {
+      chunk = free.take();
+    } catch (InterruptedException e) {
+      // Loading was cancelled.
+      return;
+    }
+    chunk.position = cp;
+    chunk.tileEntities.clear();
+    chunk.entities.clear();
+    chunk.blockEntities.clear();
+    try {
+      long start = System.nanoTime();
+      Chunk source = world.getChunk(cp);
+      ChunkDataSource data = source.readBlockData();
+      long read = System.nanoTime();
+      source.getBlockData(data, chunk.blocks, chunk.biomes, chunk.tileEntities, chunk.entities,
+          chunk.decoder);
+      long decoded = System.nanoTime();
+      builder.accept(chunk);
+      readTime.addAndGet(read - start);
+      decodeTime.addAndGet(decoded - read);
+      buildTime.addAndGet(System.nanoTime() - decoded);
+    } catch (Throwable e) {
+      Log.error("Failed to load chunk " + cp, e);
+      chunk.clear();
+    }
+    // Never blocks: there are only as many chunks as fit in the queue.
+    loaded.add(chunk);
+  }
+
+  /**
+   * Wait for the next decoded chunk. The chunks are returned in the order
+   * they finish decoding. The chunk must be released after use.
+   */
+  LoadedChunk take() throws InterruptedException {
+    long start = System.nanoTime();
+    LoadedChunk chunk = loaded.take();
+    takeTime = System.nanoTime();
+    waitTime += takeTime - start;
+    return chunk;
+  }
+
+  /**
+   * Return a chunk buffer so that it can be used for the next chunk.
+   */
+  void release(LoadedChunk chunk) {
+    insertTime += System.nanoTime() - takeTime;
+    free.add(chunk);
+  }
+
+  /** Log the time spent in each loading stage. */
+  void logTimings() {
+    Log.infof("Chunk loading: reading %.1f s, decoding %.1f s, building subtrees %.1f s "
+            + "(sum over %d threads), octree insertion %.1f s, waiting for chunks %.1f s",
+        readTime.get() / 1e9, decodeTime.get() / 1e9, buildTime.get() / 1e9, threadCount,
+        insertTime / 1e9, waitTime / 1e9);
+  }
+
+  /** Stop loading chunks. */
+  @Override public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,363 @@
+/* Copyright (c) 2013-2015 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.scene;
+
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.chunky.block.Air;
+import se.llbit.chunky.block.Water;
+import se.llbit.chunky.model.WaterModel;
+import se.llbit.chunky.renderer.WorkerState;
+import se.llbit.chunky.world.Material;
+import se.llbit.math.QuickMath;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.math.Vector4;
+
+import java.util.Random;
+
+/**
+ * A non-recursive path tracer.
+ *
+ * <p>This tracer gives the same expected result as {@link PathTracer}, but
+ * instead of recursing for each bounce and combining colors on the way back,
+ * it walks the path in a loop. The path throughput (the product of all
+ * surface colors and attenuation factors so far) is carried forward and
+ * light is added to the radiance directly where it is found.
+ *
+ * <p>The current ray is updated in place for each bounce, so the path does
+ * not keep any rays alive. Shadow rays use a preallocated ray from the
+ * worker state.
+ *
+ * <p>Use {@code Chunky.setRayTracerFactory(IterativePathTracer::new)} to
+ * render with this tracer.
+ */
+public class IterativePathTracer implements RayTracer {
+
+  /** Extinction factor for fog rendering. */
+  private static final double EXTINCTION_FACTOR = 0.04;
+
+  /**
+   * Path trace the ray.
+   */
+  @Override public void trace(Scene scene, WorkerState state) {
+    Ray ray = state.ray;
+    if (scene.isInWater(ray)) {
+      ray.setCurrentMaterial(Water.INSTANCE, 0);
+    } else {
+      ray.setCurrentMaterial(Air.INSTANCE, 0);
+    }
+    pathTrace(scene, ray, state);
+  }
+
+  /**
+   * Path trace the ray in this scene. The resulting color is stored in the
+   * ray color. The ray is modified while tracing the path.
+   */
+  public static void pathTrace(Scene scene, Ray ray, WorkerState state) {
+    Random random = state.random;
+    Ray shadow = state.rayAt(1);
+
+    // Accumulated radiance.
+    double r = 0, g = 0, b = 0;
+
+    // Path throughput.
+    double tr = 1, tg = 1, tb = 1;
+
+    // True if emitters should add their own color (as opposed to their emittance).
+    boolean addEmitted = true;
+
+    while (true) {
+      // Trace one path segment. The segment ends at the first intersection
+      // which is not a transmission without refraction.
+      double ox = ray.o.x;
+      double oy = ray.o.y;
+      double oz = ray.o.z;
+      double dx = ray.d.x;
+      double dy = ray.d.y;
+      double dz = ray.d.z;
+      double airDistance = 0;
+      boolean hit;
+      while (true) {
+        hit = PreviewRayTracer.nextIntersection(scene, ray, state);
+        if (!hit) {
+          break;
+        }
+        Material currentMat = ray.getCurrentMaterial();
+        Material prevMat = ray.getPrevMaterial();
+        if (prevMat == Air.INSTANCE) {
+          airDistance = ray.distance;
+        }
+        if (ray.color.w + currentMat.specular >= Ray.EPSILON || prevMat.ior != currentMat.ior) {
+          break;
+        }
+      }
+
+      // Segment throughput, before fog attenuation.
+      double sr = tr, sg = tg, sb = tb;
+
+      // Fog in the air part of the segment.
+      // This is the same simplistic fog model as used in PathTracer.
+      if (airDistance > 0 && scene.fogEnabled()) {
+        Sun sun = scene.sun;
+        clearShadowRay(shadow);
+        double offset = QuickMath.clamp(airDistance * random.nextFloat(),
+            Ray.EPSILON, airDistance - Ray.EPSILON);
+        shadow.o.set(ox + offset * dx, oy + offset * dy, oz + offset * dz);
+        sun.getRandomSunDirection(shadow, random);
+        shadow.setCurrentMaterial(Air.INSTANCE, 0);
+
+        double fogDensity = scene.getFogDensity() * EXTINCTION_FACTOR;
+        double extinction = Math.exp(-airDistance * fogDensity);
+        tr *= extinction;
+        tg *= extinction;
+        tb *= extinction;
+
+        // Check sun visibility at random point to determine inscatter brightness.
+        PathTracer.getDirectLightAttenuation(scene, shadow, state);
+        Vector4 attenuation = state.attenuation;
+        if (attenuation.w > Ray.EPSILON) {
+          Vector3 fogColor = scene.getFogColor();
+          double inscatter;
+          if (scene.fastFog()) {
+            inscatter = (1 - extinction);
+          } else {
+            inscatter = airDistance * fogDensity * Math.exp(-offset * fogDensity);
+          }
+          r += sr * attenuation.x * attenuation.w * fogColor.x * inscatter;
+          g += sg * attenuation.y * attenuation.w * fogColor.y * inscatter;
+          b += sb * attenuation.z * attenuation.w * fogColor.z * inscatter;
+        }
+      }
+
+      if (!hit) {
+        if (ray.getPrevMaterial().isWater()) {
+          // Black.
+        } else if (ray.depth == 0) {
+          // Direct sky hit.
+          if (!scene.transparentSky()) {
+            scene.sky.getSkyColorInterpolated(ray);
+            scene.addSkyFog(ray);
+            PathTracer.recordFirstHit(state, ray.color, null);
+            r += tr * ray.color.x;
+            g += tg * ray.color.y;
+            b += tb * ray.color.z;
+          }
+        } else if (ray.specular) {
+          // Indirect sky hit - specular color.
+          scene.sky.getSkySpecularColor(ray);
+          scene.addSkyFog(ray);
+          r += tr * ray.color.x;
+          g += tg * ray.color.y;
+          b += tb * ray.color.z;
+        } else {
+          // Indirect sky hit - diffuse color.
+          scene.sky.getSkyColor(ray);
+          // Skip sky fog - likely not noticeable in diffuse reflection.
+          r += tr * ray.color.x;
+          g += tg * ray.color.y;
+          b += tb * ray.color.z;
+        }
+        break;
+      }
+
+      Material currentMat = ray.getCurrentMaterial();
+      Material prevMat = ray.getPrevMaterial();
+
+      if (prevMat.isWater()) {
+        // Render water fog effect.
+        double attenuation = 0;
+        if (scene.waterVisibility != 0) {
+          attenuation = Math.exp(-ray.distance / scene.waterVisibility);
+        }
+        tr *= attenuation;
+        tg *= attenuation;
+        tb *= attenuation;
+      }
+
+      if (!scene.stillWater && ray.n.y != 0 &&
+          ((currentMat.isWater() && prevMat == Air.INSTANCE)
+              || (currentMat == Air.INSTANCE && prevMat.isWater()))) {
+        WaterModel.doWaterDisplacement(ray);
+        if (currentMat == Air.INSTANCE) {
+          ray.n.y = -ray.n.y;
+        }
+      }
+
+      float pSpecular = currentMat.specular;
+
+      double cr = ray.color.x;
+      double cg = ray.color.y;
+      double cb = ray.color.z;
+      double pDiffuse = ray.color.w;
+
+      if (ray.depth == 0) {
+        PathTracer.recordFirstHit(state, ray.color, ray.n);
+      }
+
+      float n1 = prevMat.ior;
+      float n2 = currentMat.ior;
+
+      if (pSpecular > Ray.EPSILON && random.nextFloat() < pSpecular) {
+        // Specular reflection.
+        if (scene.kill(ray.depth + 1, random)) {
+          break;
+        }
+        StackPathTracer.clearBlockData(ray);
+        ray.specularReflection(ray);
+        addEmitted = true;
+
+      } else if (random.nextFloat() < pDiffuse) {
+        // Diffuse reflection.
+        if (scene.kill(ray.depth + 1, random)) {
+          break;
+        }
+
+        if (scene.emittersEnabled && currentMat.emittance > Ray.EPSILON) {
+          if (addEmitted) {
+            r += tr * cr;
+            g += tg * cg;
+            b += tb * cb;
+          } else {
+            // Emittance is not attenuated by fog.
+            double emittance = currentMat.emittance * scene.emitterIntensity;
+            r += sr * cr * cr * emittance;
+            g += sg * cg * cg * emittance;
+            b += sb * cb * cb * emittance;
+          }
+        }
+
+        if (scene.sunEnabled) {
+          clearShadowRay(shadow);
+          shadow.set(ray);
+          scene.sun.getRandomSunDirection(shadow, random);
+
+          boolean frontLight = shadow.d.dot(ray.n) > 0;
+
+          if (frontLight || (currentMat.subSurfaceScattering
+              && random.nextFloat() < Scene.fSubSurface)) {
+
+            if (!frontLight) {
+              shadow.o.scaleAdd(-Ray.OFFSET, ray.n);
+            }
+
+            shadow.setCurrentMaterial(shadow.getPrevMaterial(), shadow.getPrevData());
+
+            PathTracer.getDirectLightAttenuation(scene, shadow, state);
+
+            Vector4 attenuation = state.attenuation;
+            if (attenuation.w > 0) {
+              double mult = QuickMath.abs(shadow.d.dot(ray.n)) * attenuation.w;
+              Vector3 sunEmittance = scene.sun.emittance;
+              r += tr * cr * attenuation.x * mult * sunEmittance.x;
+              g += tg * cg * attenuation.y * mult * sunEmittance.y;
+              b += tb * cb * attenuation.z * mult * sunEmittance.z;
+            }
+          }
+        }
+
+        tr *= cr;
+        tg *= cg;
+        tb *= cb;
+        StackPathTracer.clearBlockData(ray);
+        ray.diffuseReflection(ray, random);
+        addEmitted = false;
+
+      } else if (n1 != n2) {
+        // Refraction.
+
+        // TODO: make this decision dependent on the material properties:
+        boolean doRefraction =
+            currentMat.refractive || prevMat.refractive;
+
+        float n1n2 = n1 / n2;
+        double cosTheta = -ray.n.dot(ray.d);
+        double radicand = 1 - n1n2 * n1n2 * (1 - cosTheta * cosTheta);
+        if (doRefraction && radicand < Ray.EPSILON) {
+          // Total internal reflection.
+          if (scene.kill(ray.depth + 1, random)) {
+            break;
+          }
+          StackPathTracer.clearBlockData(ray);
+          ray.specularReflection(ray);
+        } else {
+          if (scene.kill(ray.depth + 1, random)) {
+            break;
+          }
+
+          // Calculate angle-dependent reflectance using
+          // Fresnel equation approximation:
+          // R(cosineAngle) = R0 + (1 - R0) * (1 - cos(cosineAngle))^5
+          float fa = (n1n2 - 1);
+          float fb = (n1n2 + 1);
+          double R0 = fa * fa / (fb * fb);
+          double c = 1 - cosTheta;
+          double Rtheta = R0 + (1 - R0) * c * c * c * c * c;
+
+          StackPathTracer.clearBlockData(ray);
+          if (random.nextFloat() < Rtheta) {
+            ray.specularReflection(ray);
+          } else {
+            ray.set(ray);
+            if (doRefraction) {
+              double t2 = FastMath.sqrt(radicand);
+              if (cosTheta > 0) {
+                ray.d.x = n1n2 * ray.d.x + (n1n2 * cosTheta - t2) * ray.n.x;
+                ray.d.y = n1n2 * ray.d.y + (n1n2 * cosTheta - t2) * ray.n.y;
+                ray.d.z = n1n2 * ray.d.z + (n1n2 * cosTheta - t2) * ray.n.z;
+              } else {
+                ray.d.x = n1n2 * ray.d.x - (-n1n2 * cosTheta - t2) * ray.n.x;
+                ray.d.y = n1n2 * ray.d.y - (-n1n2 * cosTheta - t2) * ray.n.y;
+                ray.d.z = n1n2 * ray.d.z - (-n1n2 * cosTheta - t2) * ray.n.z;
+              }
+
+              ray.d.normalize();
+
+              ray.o.scaleAdd(Ray.OFFSET, ray.d);
+            }
+            tr *= cr * pDiffuse + (1 - pDiffuse);
+            tg *= cg * pDiffuse + (1 - pDiffuse);
+            tb *= cb * pDiffuse + (1 - pDiffuse);
+          }
+        }
+        addEmitted = true;
+
+      } else {
+        // Transmission.
+        StackPathTracer.clearBlockData(ray);
+        ray.set(ray);
+        ray.o.scaleAdd(Ray.OFFSET, ray.d);
+        tr *= cr * pDiffuse + (1 - pDiffuse);
+        tg *= cg * pDiffuse + (1 - pDiffuse);
+        tb *= cb * pDiffuse + (1 - pDiffuse);
+        addEmitted = true;
+      }
+
+      if (tr <= 0 && tg <= 0 && tb <= 0) {
+        // Nothing more can be added to the radiance.
+        break;
+      }
+    }
+
+    ray.color.set(r, g, b, 1);
+  }
+
+  /** Reset the shadow ray to the same state as a newly allocated ray. */
+  private static void clearShadowRay(Ray shadow) {
+    shadow.setDefault();
+    StackPathTracer.clearBlockData(shadow);
+  }
+}
@@ -1,4 +1,4 @@
-/* Copyright (c) 2013-2015 Jesper Öqvist <jesper@llbit.se>
+/* Copyright (c) 2013-2019 Jesper Öqvist <jesper@llbit.se>
  *
  * This file is part of Chunky.
  *
@@ -22,8 +22,23 @@ import se.llbit.chunky.chunk.BlockPalette;
 import se.llbit.chunky.world.Chunk;
 import se.llbit.chunky.world.ChunkPosition;
 import se.llbit.chunky.world.Material;
+import se.llbit.log.Log;
 import se.llbit.math.Octree;
+import se.llbit.math.OctreeSubtree;
 import se.llbit.math.Vector3i;
+import se.llbit.util.TaskTracker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Processes the Octree after it has been loaded and updates block states for
@@ -31,9 +46,17 @@ import se.llbit.math.Vector3i;
  * all chunks have been loaded because before then we can't reliably test for
  * neighbor blocks.
  *
+ * <p>Each chunk, plus a border of one block, is copied from the octrees into
+ * dense arrays, so that neighbor blocks can be looked up without walking the
+ * octrees. The updated blocks are written back as octree subtrees for the
+ * parts of the chunk that changed.
+ *
  * @author Jesper Öqvist <jesper@llbit.se>
  */
 public class OctreeFinalizer {
+  /** Number of chunks per thread that are finalized before the octrees are updated. */
+  private static final int BATCH_SIZE = 16;
+
   /**
    * Finalize a chunk in the octree.
    * @param worldTree Octree to finalize
@@ -42,168 +65,286 @@ public class OctreeFinalizer {
    */
   public static void finalizeChunk(Octree worldTree, Octree waterTree, BlockPalette palette,
       Vector3i origin, ChunkPosition cp) {
-    for (int cy = 0 - origin.y; cy < Chunk.Y_MAX - origin.y; ++cy) {
-      for (int cz = 0; cz < 16; ++cz) {
-        int z = cz + cp.z * 16 - origin.z;
-        for (int cx = 0; cx < 16; ++cx) {
-          int x = cx + cp.x * 16 - origin.x;
-          processBlock(worldTree, waterTree, palette, x, cy, z, origin);
+    ChunkFinalizer finalizer = new ChunkFinalizer(worldTree, waterTree, palette, origin);
+    finalizer.finalizeChunk(cp).forEach(Runnable::run);
+  }
+
+  /**
+   * Finalize chunks in the octree, using several threads.
+   *
+   * <p>The octrees can not be read while they are modified, so chunks are
+   * finalized in batches: first the blocks of all chunks in the batch are
+   * updated in parallel, then the octrees are updated. Neighbor chunks are
+   * never in the same batch. The chunks are split into four groups by the
+   * parity of the chunk coordinates, and each batch is taken from one
+   * group, so every chunk sees either the original or the finalized blocks
+   * of each neighbor chunk, independent of the batch size.
+   *
+   * @param worldTree Octree to finalize
+   * @param origin Origin of the octree
+   * @param chunks The chunks to finalize
+   * @param task Task to report progress to
+   */
+  public static void finalizeChunks(Octree worldTree, Octree waterTree, BlockPalette palette,
+      Vector3i origin, Collection<ChunkPosition> chunks, int threadCount,
+      TaskTracker.Task task) throws InterruptedException {
+    List<List<ChunkPosition>> groups = new ArrayList<>();
+    for (int i = 0; i < 4; ++i) {
+      groups.add(new ArrayList<>());
+    }
+    for (ChunkPosition cp : chunks) {
+      groups.get((cp.x & 1) | ((cp.z & 1) << 1)).add(cp);
+    }
+    BlockingQueue<ChunkFinalizer> finalizers = new ArrayBlockingQueue<>(threadCount);
+    for (int i = 0; i < threadCount; ++i) {
+      finalizers.add(new ChunkFinalizer(worldTree, waterTree, palette, origin));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      int done = 0;
+      int target = chunks.size();
+      int batchSize = threadCount * BATCH_SIZE;
+      for (List<ChunkPosition> group : groups) {
+        for (int start = 0; start < group.size(); start += batchSize) {
+          List<Callable<List<Runnable>>> batch = new ArrayList<>();
+          for (ChunkPosition cp : group.subList(start, Math.min(group.size(), start + batchSize))) {
+            batch.add(() -> {
+              ChunkFinalizer finalizer = finalizers.take();
+              try {
+                return finalizer.finalizeChunk(cp);
+              } catch (Throwable e) {
+                Log.error("Failed to finalize chunk " + cp, e);
+                return Collections.emptyList();
+              } finally {
+                finalizers.add(finalizer);
+              }
+            });
+          }
+          for (Future<List<Runnable>> result : executor.invokeAll(batch)) {
+            try {
+              result.get().forEach(Runnable::run);
+            } catch (ExecutionException e) {
+              Log.error("Failed to finalize chunk", e.getCause());
+            }
+          }
+          done += batch.size();
+          task.update(target, done);
         }
       }
+    } finally {
+      executor.shutdownNow();
     }
   }
 
-  private static void processBlock(Octree worldTree, Octree waterTree, BlockPalette palette, int x,
-      int cy, int z, Vector3i origin) {
-    Material mat = worldTree.getMaterial(x, cy, z, palette);
-    Material wmat = waterTree.getMaterial(x, cy, z, palette);
-
-    // Set non-visible blocks to be stone, in order to merge large patches.
-    if (cy > -origin.y && cy < Chunk.Y_MAX - origin.y - 1 && worldTree.get(x, cy, z).type != palette.stoneId) {
-      Material b1 = worldTree.getMaterial(x - 1, cy, z, palette),
-          b2 = worldTree.getMaterial(x + 1, cy, z, palette),
-          b3 = worldTree.getMaterial(x, cy, z - 1, palette),
-          b4 = worldTree.getMaterial(x, cy, z + 1, palette),
-          b5 = worldTree.getMaterial(x, cy - 1, z, palette),
-          b6 = worldTree.getMaterial(x, cy + 1, z, palette);
-
-      if (b1.opaque && b2.opaque && b3.opaque && b4.opaque && b5.opaque && b6.opaque) {
-        worldTree.set(palette.stoneId, x, cy, z);
+  /**
+   * Finalizes one chunk at a time using dense arrays for the chunk blocks.
+   */
+  private static class ChunkFinalizer {
+    /** Width of the arrays: a chunk with a border of one block on each side. */
+    private static final int SIZE = 18;
+    private static final int HEIGHT = Chunk.Y_MAX + 2;
+    private static final int LAYER = SIZE * SIZE;
+
+    private final Octree worldTree;
+    private final Octree waterTree;
+    private final BlockPalette palette;
+    private final Vector3i origin;
+    private final int cubeLevel;
+
+    // The blocks before and after finalization.
+    private final int[] worldTypes = new int[LAYER * HEIGHT];
+    private final int[] worldData = new int[LAYER * HEIGHT];
+    private final int[] waterTypes = new int[LAYER * HEIGHT];
+    private final int[] waterData = new int[LAYER * HEIGHT];
+    private final int[] newWorldTypes = new int[LAYER * HEIGHT];
+    private final int[] newWorldData = new int[LAYER * HEIGHT];
+    private final int[] newWaterData = new int[LAYER * HEIGHT];
+
+    ChunkFinalizer(Octree worldTree, Octree waterTree, BlockPalette palette, Vector3i origin) {
+      this.worldTree = worldTree;
+      this.waterTree = waterTree;
+      this.palette = palette;
+      this.origin = origin;
+      this.cubeLevel = ChunkLoader.cubeLevel(origin);
+    }
+
+    /**
+     * Compute the finalized blocks of a chunk. This only reads the octrees.
+     *
+     * @return the octree updates for the chunk
+     */
+    List<Runnable> finalizeChunk(ChunkPosition cp) {
+      // Octree coordinates of the first array element.
+      int x0 = cp.x * 16 - origin.x - 1;
+      int y0 = -origin.y - 1;
+      int z0 = cp.z * 16 - origin.z - 1;
+      worldTree.getVoxels(x0, y0, z0, SIZE, HEIGHT, SIZE, worldTypes, worldData);
+      waterTree.getVoxels(x0, y0, z0, SIZE, HEIGHT, SIZE, waterTypes, waterData);
+      System.arraycopy(worldTypes, 0, newWorldTypes, 0, worldTypes.length);
+      System.arraycopy(worldData, 0, newWorldData, 0, worldData.length);
+      System.arraycopy(waterData, 0, newWaterData, 0, waterData.length);
+
+      for (int y = 1; y <= Chunk.Y_MAX; ++y) {
+        for (int z = 1; z <= 16; ++z) {
+          for (int x = 1; x <= 16; ++x) {
+            processBlock(x + z * SIZE + y * LAYER, y);
+          }
+        }
       }
+
+      List<Runnable> updates = new ArrayList<>();
+      int size = 1 << cubeLevel;
+      for (int y = 1; y <= Chunk.Y_MAX; y += size) {
+        for (int z = 1; z <= 16; z += size) {
+          for (int x = 1; x <= 16; x += size) {
+            int offset = x + z * SIZE + y * LAYER;
+            int ox = x0 + x;
+            int oy = y0 + y;
+            int oz = z0 + z;
+            if (changed(worldTypes, worldData, newWorldTypes, newWorldData, offset, size)) {
+              OctreeSubtree subtree = OctreeSubtree.build(cubeLevel, newWorldTypes, newWorldData,
+                  offset, SIZE, LAYER);
+              updates.add(() -> worldTree.setSubtree(subtree, ox, oy, oz));
+            }
+            if (changed(waterTypes, waterData, waterTypes, newWaterData, offset, size)) {
+              OctreeSubtree subtree = OctreeSubtree.build(cubeLevel, waterTypes, newWaterData,
+                  offset, SIZE, LAYER);
+              updates.add(() -> waterTree.setSubtree(subtree, ox, oy, oz));
+            }
+          }
+        }
+      }
+      return updates;
     }
 
-    if (wmat instanceof Water) {
-      Material above = waterTree.getMaterial(x, cy + 1, z, palette);
-      Material aboveBlock = worldTree.getMaterial(x, cy + 1, z, palette);
-      int level0 = 8 - ((Water) wmat).level;
-      if (!above.isWater() && !aboveBlock.solid) {
-        int corner0 = level0;
-        int corner1 = level0;
-        int corner2 = level0;
-        int corner3 = level0;
-
-        int level = waterLevelAt(worldTree, waterTree, palette, x - 1, cy, z, level0);
-        corner3 += level;
-        corner0 += level;
-
-        level = waterLevelAt(worldTree, waterTree, palette, x - 1, cy, z + 1, level0);
-        corner0 += level;
-
-        level = waterLevelAt(worldTree, waterTree, palette, x, cy, z + 1, level0);
-        corner0 += level;
-        corner1 += level;
-
-        level = waterLevelAt(worldTree, waterTree, palette, x + 1, cy, z + 1, level0);
-        corner1 += level;
-
-        level = waterLevelAt(worldTree, waterTree, palette, x + 1, cy, z, level0);
-        corner1 += level;
-        corner2 += level;
-
-        level = waterLevelAt(worldTree, waterTree, palette, x + 1, cy, z - 1, level0);
-        corner2 += level;
-
-        level = waterLevelAt(worldTree, waterTree, palette, x, cy, z - 1, level0);
-        corner2 += level;
-        corner3 += level;
-
-        level = waterLevelAt(worldTree, waterTree, palette, x - 1, cy, z - 1, level0);
-        corner3 += level;
-
-        corner0 = Math.min(7, 8 - (corner0 / 4));
-        corner1 = Math.min(7, 8 - (corner1 / 4));
-        corner2 = Math.min(7, 8 - (corner2 / 4));
-        corner3 = Math.min(7, 8 - (corner3 / 4));
-        Octree.Node node = waterTree.get(x, cy, z);
-        node = new Octree.DataNode(
-            node.type,
-            (corner0 << Water.CORNER_0)
-                | (corner1 << Water.CORNER_1)
-                | (corner2 << Water.CORNER_2)
-                | (corner3 << Water.CORNER_3));
-        waterTree.set(node, x, cy, z);
+    private static boolean changed(int[] types, int[] data, int[] newTypes, int[] newData,
+        int offset, int size) {
+      for (int y = 0; y < size; ++y) {
+        for (int z = 0; z < size; ++z) {
+          int index = offset + z * SIZE + y * LAYER;
+          for (int x = 0; x < size; ++x) {
+            if (types[index + x] != newTypes[index + x] || data[index + x] != newData[index + x]) {
+              return true;
+            }
+          }
+        }
       }
-    } else if (mat instanceof Lava) {
-      Material above = worldTree.getMaterial(x, cy + 1, z, palette);
-      if (!(above instanceof Lava)) {
-        Lava lava = (Lava) mat;
-
-        int level0 = 8 - lava.level;
-        int corner0 = level0;
-        int corner1 = level0;
-        int corner2 = level0;
-        int corner3 = level0;
-
-        int level = lavaLevelAt(worldTree, palette, x - 1, cy, z, level0);
-        corner3 += level;
-        corner0 += level;
-
-        level = lavaLevelAt(worldTree, palette, x - 1, cy, z + 1, level0);
-        corner0 += level;
-
-        level = lavaLevelAt(worldTree, palette, x, cy, z + 1, level0);
-        corner0 += level;
-        corner1 += level;
-
-        level = lavaLevelAt(worldTree, palette, x + 1, cy, z + 1, level0);
-        corner1 += level;
-
-        level = lavaLevelAt(worldTree, palette, x + 1, cy, z, level0);
-        corner1 += level;
-        corner2 += level;
-
-        level = lavaLevelAt(worldTree, palette, x + 1, cy, z - 1, level0);
-        corner2 += level;
-
-        level = lavaLevelAt(worldTree, palette, x, cy, z - 1, level0);
-        corner2 += level;
-        corner3 += level;
-
-        level = lavaLevelAt(worldTree, palette, x - 1, cy, z - 1, level0);
-        corner3 += level;
-
-        corner0 = Math.min(7, 8 - (corner0 / 4));
-        corner1 = Math.min(7, 8 - (corner1 / 4));
-        corner2 = Math.min(7, 8 - (corner2 / 4));
-        corner3 = Math.min(7, 8 - (corner3 / 4));
-        Octree.Node node = worldTree.get(x, cy, z);
-        Octree.Node replaced = new Octree.DataNode(
-            node.type,
-            (corner0 << Water.CORNER_0)
-                | (corner1 << Water.CORNER_1)
-                | (corner2 << Water.CORNER_2)
-                | (corner3 << Water.CORNER_3));
-        worldTree.set(replaced, x, cy, z);
+      return false;
+    }
+
+    /**
+     * Update one block. Neighbor blocks are always read from the blocks
+     * before finalization.
+     *
+     * @param index the array index of the block
+     * @param y the array y coordinate of the block
+     */
+    private void processBlock(int index, int y) {
+      Material mat = palette.get(worldTypes[index]);
+      Material wmat = palette.get(waterTypes[index]);
+
+      // Set non-visible blocks to be stone, in order to merge large patches.
+      if (y > 1 && y < Chunk.Y_MAX && worldTypes[index] != palette.stoneId) {
+        if (isOpaque(index - 1) && isOpaque(index + 1)
+            && isOpaque(index - SIZE) && isOpaque(index + SIZE)
+            && isOpaque(index - LAYER) && isOpaque(index + LAYER)) {
+          newWorldTypes[index] = palette.stoneId;
+          newWorldData[index] = 0;
+        }
+      }
+
+      if (wmat instanceof Water) {
+        Material above = palette.get(waterTypes[index + LAYER]);
+        Material aboveBlock = palette.get(worldTypes[index + LAYER]);
+        if (!above.isWater() && !aboveBlock.solid) {
+          newWaterData[index] = cornerData(index, 8 - ((Water) wmat).level, false);
+        }
+      } else if (mat instanceof Lava) {
+        Material above = palette.get(worldTypes[index + LAYER]);
+        if (!(above instanceof Lava)) {
+          newWorldData[index] = cornerData(index, 8 - ((Lava) mat).level, true);
+        }
       }
     }
-  }
 
-  private static int waterLevelAt(Octree worldTree, Octree waterTree,
-      BlockPalette palette, int x, int cy, int z, int baseLevel) {
-    Octree.Node node = waterTree.get(x, cy, z);
-    Material corner = palette.get(node.type);
-    if (corner instanceof Water) {
-      int fullBlock = (node.getData() >> Water.FULL_BLOCK) & 1;
-      return 8 - (1 - fullBlock) * ((Water) corner).level;
-    } else if (corner.waterlogged) {
-      return 8;
-    } else if (!worldTree.getMaterial(x, cy, z, palette).solid) {
-      return 0;
+    private boolean isOpaque(int index) {
+      return palette.get(worldTypes[index]).opaque;
     }
-    return baseLevel;
-  }
 
-  private static int lavaLevelAt(Octree octree, BlockPalette palette,
-      int x, int cy, int z, int baseLevel) {
-    Octree.Node node = octree.get(x, cy, z);
-    Material corner = palette.get(node.type);
-    if (corner instanceof Lava) {
-      int fullBlock = (node.getData() >> Water.FULL_BLOCK) & 1;
-      return 8 - (1 - fullBlock) * ((Lava) corner).level;
-    } else if (!corner.solid) {
-      return 0;
+    /**
+     * Compute the corner levels of a water or lava block from the levels of
+     * the surrounding blocks.
+     */
+    private int cornerData(int index, int level0, boolean lava) {
+      int corner0 = level0;
+      int corner1 = level0;
+      int corner2 = level0;
+      int corner3 = level0;
+
+      int level = levelAt(index - 1, level0, lava);
+      corner3 += level;
+      corner0 += level;
+
+      level = levelAt(index - 1 + SIZE, level0, lava);
+      corner0 += level;
+
+      level = levelAt(index + SIZE, level0, lava);
+      corner0 += level;
+      corner1 += level;
+
+      level = levelAt(index + 1 + SIZE, level0, lava);
+      corner1 += level;
+
+      level = levelAt(index + 1, level0, lava);
+      corner1 += level;
+      corner2 += level;
+
+      level = levelAt(index + 1 - SIZE, level0, lava);
+      corner2 += level;
+
+      level = levelAt(index - SIZE, level0, lava);
+      corner2 += level;
+      corner3 += level;
+
+      level = levelAt(index - 1 - SIZE, level0, lava);
+      corner3 += level;
+
+      corner0 = Math.min(7, 8 - (corner0 / 4));
+      corner1 = Math.min(7, 8 - (corner1 / 4));
+      corner2 = Math.min(7, 8 - (corner2 / 4));
+      corner3 = Math.min(7, 8 - (corner3 / 4));
+      return (corner0 << Water.CORNER_0)
+          | (corner1 << Water.CORNER_1)
+          | (corner2 << Water.CORNER_2)
+          | (corner3 << Water.CORNER_3);
+    }
+
+    private int levelAt(int index, int baseLevel, boolean lava) {
+      return lava ? lavaLevelAt(index, baseLevel) : waterLevelAt(index, baseLevel);
+    }
+
+    private int waterLevelAt(int index, int baseLevel) {
+      Material corner = palette.get(waterTypes[index]);
+      if (corner instanceof Water) {
+        int fullBlock = (waterData[index] >> Water.FULL_BLOCK) & 1;
+        return 8 - (1 - fullBlock) * ((Water) corner).level;
+      } else if (corner.waterlogged) {
+        return 8;
+      } else if (!palette.get(worldTypes[index]).solid) {
+        return 0;
+      }
+      return baseLevel;
+    }
+
+    private int lavaLevelAt(int index, int baseLevel) {
+      Material corner = palette.get(worldTypes[index]);
+      if (corner instanceof Lava) {
+        int fullBlock = (worldData[index] >> Water.FULL_BLOCK) & 1;
+        return 8 - (1 - fullBlock) * ((Lava) corner).level;
+      } else if (!corner.solid) {
+        return 0;
+      }
+      return baseLevel;
     }
-    return baseLevel;
   }
 }
-
@@ -78,6 +78,7 @@ public class PathTracer implements RayTracer {
           if (!scene.transparentSky()) {
             scene.sky.getSkyColorInterpolated(ray);
             scene.addSkyFog(ray);
+            recordFirstHit(state, ray.color, null);
             hit = true;
           }
         } else if (ray.specular) {
@@ -127,6 +128,10 @@ public class PathTracer implements RayTracer {
         continue;
       }
 
+      if (ray.depth == 0) {
+        recordFirstHit(state, ray.color, ray.n);
+      }
+
       if (pSpecular > Ray.EPSILON && random.nextFloat() < pSpecular) {
         // Specular reflection.
 
@@ -401,7 +406,7 @@ public class PathTracer implements RayTracer {
     attenuation.w = 1;
     while (attenuation.w > 0) {
       ray.o.scaleAdd(Ray.OFFSET, ray.d);
-      if (!PreviewRayTracer.nextIntersection(scene, ray)) {
+      if (!PreviewRayTracer.nextIntersection(scene, ray, state)) {
         break;
       }
       double mult = 1 - ray.color.w;
@@ -420,4 +425,23 @@ public class PathTracer implements RayTracer {
     }
   }
 
+
+  /**
+   * Record the surface color and normal at the first hit of a sample, unless
+   * the first hit has already been recorded.
+   *
+   * @param normal the surface normal, or {@code null} for sky hits
+   */
+  static void recordFirstHit(WorkerState state, Vector4 color, Vector3 normal) {
+    if (!state.firstHitRecorded) {
+      state.firstHitRecorded = true;
+      state.albedo.set(color.x, color.y, color.z);
+      if (normal != null) {
+        state.normal.set(normal);
+      } else {
+        state.normal.set(0, 0, 0);
+      }
+    }
+  }
+
 }
@@ -83,6 +83,17 @@ public class PreviewRayTracer implements RayTracer {
    * @return Next intersection
    */
   public static boolean nextIntersection(Scene scene, Ray ray) {
+    return nextIntersection(scene, ray, null);
+  }
+
+  /**
+   * Find next ray intersection.
+   *
+   * @param state worker state providing scratch rays for the intersection
+   * test, if this is {@code null} temporary rays are allocated instead
+   * @return Next intersection
+   */
+  public static boolean nextIntersection(Scene scene, Ray ray, WorkerState state) {
     ray.setPrevMaterial(ray.getCurrentMaterial(), ray.getCurrentData());
     ray.t = Double.POSITIVE_INFINITY;
     boolean hit = false;
@@ -92,7 +103,7 @@ public class PreviewRayTracer implements RayTracer {
     if (scene.waterHeight > 0) {
       hit = waterIntersection(scene, ray) || hit;
     }
-    if (scene.intersect(ray)) {
+    if (state != null ? scene.intersect(ray, state) : scene.intersect(ray)) {
       // Octree tracer handles updating distance.
       return true;
     }
@@ -111,8 +122,6 @@ public class PreviewRayTracer implements RayTracer {
     if (ray.d.y < 0) {
       double t = (scene.waterHeight - .125 - ray.o.y - scene.origin.y) / ray.d.y;
       if (t > 0 && t < ray.t) {
-        Vector3 vec = new Vector3();
-        vec.scaleAdd(t + Ray.OFFSET, ray.d, ray.o);
         ray.t = t;
         Water.INSTANCE.getColor(ray);
         ray.n.set(0, 1, 0);
@@ -123,8 +132,6 @@ public class PreviewRayTracer implements RayTracer {
     if (ray.d.y > 0) {
       double t = (scene.waterHeight - .125 - ray.o.y - scene.origin.y) / ray.d.y;
       if (t > 0 && t < ray.t) {
-        Vector3 vec = new Vector3();
-        vec.scaleAdd(t + Ray.OFFSET, ray.d, ray.o);
         ray.t = t;
         Water.INSTANCE.getColor(ray);
         ray.n.set(0, -1, 0);
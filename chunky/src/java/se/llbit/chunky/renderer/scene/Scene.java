@@ -29,12 +29,22 @@ import se.llbit.chunky.entity.Entity;
 import se.llbit.chunky.entity.PaintingEntity;
 import se.llbit.chunky.entity.PlayerEntity;
 import se.llbit.chunky.renderer.OutputMode;
+import se.llbit.chunky.renderer.CheckpointLog;
+import se.llbit.chunky.renderer.MappedSampleBuffer;
 import se.llbit.chunky.renderer.Postprocess;
+import se.llbit.chunky.renderer.RenderDump;
 import se.llbit.chunky.renderer.Refreshable;
 import se.llbit.chunky.renderer.RenderContext;
 import se.llbit.chunky.renderer.RenderMode;
 import se.llbit.chunky.renderer.ResetReason;
+import se.llbit.chunky.renderer.SampleBuffer;
+import se.llbit.chunky.renderer.SamplePrecision;
 import se.llbit.chunky.renderer.WorkerState;
+import se.llbit.chunky.renderer.postprocessing.Denoiser;
+import se.llbit.chunky.renderer.postprocessing.ExposureStage;
+import se.llbit.chunky.renderer.postprocessing.PostProcessingPipeline;
+import se.llbit.chunky.renderer.postprocessing.PostProcessingStage;
+import se.llbit.chunky.renderer.postprocessing.ToneMappingStage;
 import se.llbit.chunky.renderer.projection.ProjectionMode;
 import se.llbit.chunky.resources.BitmapImage;
 import se.llbit.chunky.resources.OctreeFileFormat;
@@ -49,6 +59,7 @@ import se.llbit.chunky.world.Material;
 import se.llbit.chunky.world.MaterialStore;
 import se.llbit.chunky.world.World;
 import se.llbit.chunky.world.WorldTexture;
+import se.llbit.exr.ExrFileWriter;
 import se.llbit.json.Json;
 import se.llbit.json.JsonArray;
 import se.llbit.json.JsonObject;
@@ -71,7 +82,6 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -95,6 +105,17 @@ import java.util.zip.GZIPOutputStream;
 public class Scene implements JsonSerializable, Refreshable {
 
   public static final int DEFAULT_DUMP_FREQUENCY = 500;
+
+  /**
+   * Default noise threshold for adaptive sampling.
+   */
+  public static final double DEFAULT_NOISE_THRESHOLD = 0.01;
+
+  /**
+   * Minimum number of samples per pixel before adaptive sampling
+   * can decide that a pixel has converged.
+   */
+  public static final int ADAPTIVE_MIN_SPP = 16;
   public static final String EXTENSION = ".json";
 
   /** The current Scene Description Format (SDF) version. */
@@ -108,6 +129,9 @@ public class Scene implements JsonSerializable, Refreshable {
   /** Minimum canvas height. */
   public static final int MIN_CANVAS_HEIGHT = 20;
 
+  /** Maximum biome blend radius. */
+  public static final int MAX_BIOME_BLEND_RADIUS = BiomeBlender.MAX_RADIUS;
+
   /**
    * Minimum exposure.
    */
@@ -173,6 +197,26 @@ public class Scene implements JsonSerializable, Refreshable {
   public int height;
 
   public Postprocess postprocess = Postprocess.DEFAULT;
+
+  /**
+   * Additional post-processing stages. The list is replaced, not modified,
+   * when stages are added or removed.
+   */
+  private List<PostProcessingStage> postprocessingStages = Collections.emptyList();
+
+  /**
+   * The cached post-processing pipeline, with the settings it was built for.
+   * The pipeline is rebuilt when the settings or the canvas width change, so
+   * that its block buffers are reused between frames. Not copied between
+   * scenes.
+   */
+  private PostProcessingPipeline pipeline = null;
+  private List<PostProcessingStage> pipelineStages;
+  private double pipelineExposure;
+  private Postprocess pipelinePostprocess;
+  private boolean pipelinePreview;
+  private int pipelineWidth;
+
   public OutputMode outputMode = OutputMode.DEFAULT;
   public long renderTime;
   /**
@@ -209,6 +253,46 @@ public class Scene implements JsonSerializable, Refreshable {
    */
   protected boolean fastFog = true;
 
+  /**
+   * Stop sampling pixels when the estimated noise is below the noise threshold.
+   */
+  protected boolean adaptiveSampling = false;
+
+  /**
+   * Denoise the final image, guided by the first-hit albedo and normal of
+   * each pixel.
+   */
+  protected boolean denoise = false;
+
+  /**
+   * Precision of the sample buffer.
+   */
+  protected SamplePrecision samplePrecision = SamplePrecision.DEFAULT;
+
+  /**
+   * Relative standard error of the pixel luminance at which adaptive
+   * sampling stops sampling a pixel.
+   */
+  protected double noiseThreshold = DEFAULT_NOISE_THRESHOLD;
+
+  /**
+   * The sample count when noise estimation started for adaptive sampling.
+   * This is non-zero if the render was resumed from a render dump.
+   */
+  protected int adaptiveStartSpp = 0;
+
+  /**
+   * The sample count when the first-hit albedo and normal buffers started
+   * accumulating samples. This is non-zero if the render was resumed from a
+   * render dump, which does not store these buffers.
+   */
+  protected int firstHitStartSpp = 0;
+
+  /**
+   * Set by the renderer when all pixels have converged with adaptive sampling.
+   */
+  private boolean converged = false;
+
   /** Fog thickness. */
   protected double fogDensity = DEFAULT_FOG_DENSITY;
 
@@ -261,6 +345,12 @@ public class Scene implements JsonSerializable, Refreshable {
   /** Upper Y clip plane. */
   public int yClipMax = PersistentSettings.getYClipMax();
 
+  /**
+   * Radius, in blocks, of the box blur applied to grass and foliage colors.
+   * Takes effect when chunks are loaded.
+   */
+  protected int biomeBlendRadius = 1;
+
   private BVH bvh = new BVH(Collections.emptyList());
   private BVH actorBvh = new BVH(Collections.emptyList());
 
@@ -289,10 +379,52 @@ public class Scene implements JsonSerializable, Refreshable {
    * should really be moved somewhere else and not be so tightly
    * coupled to the scene settings.
    */
-  protected double[] samples;
+  protected SampleBuffer samples;
 
   private byte[] alphaChannel;
 
+  /**
+   * Number of samples in each pixel. Only used with adaptive sampling,
+   * otherwise each pixel has {@link #spp} samples.
+   */
+  private int[] sampleCount;
+
+  /**
+   * Tracks the tiles written by the last render dump checkpoint.
+   * Not copied between scenes.
+   */
+  private final CheckpointLog checkpointLog = new CheckpointLog();
+
+  /**
+   * Sum of squared differences from the mean pixel luminance, for each pixel.
+   * Only used with adaptive sampling.
+   */
+  private double[] luminanceM2;
+
+  /**
+   * Average first-hit albedo of each pixel, three values per pixel.
+   * Only used with denoising.
+   */
+  private float[] albedoBuffer;
+
+  /**
+   * Average first-hit normal of each pixel, three values per pixel.
+   * Only used with denoising.
+   */
+  private float[] normalBuffer;
+
+  /**
+   * The last denoised frame. Not copied between scenes.
+   */
+  private volatile DenoisedFrame denoisedFrame;
+
+  /**
+   * Incremented each time the render is reset, so that a frame denoised
+   * before the reset is not reused for a new render that reaches the same
+   * sample count.
+   */
+  private volatile int renderGeneration = 0;
+
   private boolean finalized = false;
 
   private boolean finalizeBuffer = false;
@@ -323,6 +455,7 @@ public class Scene implements JsonSerializable, Refreshable {
   public static void delete(String name, File sceneDir) {
     String[] extensions = {
         ".json", ".dump", ".octree2", ".foliage", ".grass", ".json.backup", ".dump.backup",
+        ".dump.log", ".samples",
     };
     for (String extension : extensions) {
       File file = new File(sceneDir, name + extension);
@@ -349,7 +482,57 @@ public class Scene implements JsonSerializable, Refreshable {
     frontBuffer = new BitmapImage(width, height);
     backBuffer = new BitmapImage(width, height);
     alphaChannel = new byte[width * height];
-    samples = new double[width * height * 3];
+    if (samples instanceof MappedSampleBuffer) {
+      // Keep using a mapped sample buffer, resized to the new canvas size.
+      File file = ((MappedSampleBuffer) samples).getFile();
+      try {
+        samples = MappedSampleBuffer.open(file, width, height);
+      } catch (IOException e) {
+        Log.error("Failed to map sample buffer file " + file.getAbsolutePath(), e);
+        samples = samplePrecision.newBuffer(width, height);
+      }
+    } else {
+      samples = samplePrecision.newBuffer(width, height);
+    }
+    initAdaptiveBuffers();
+    initDenoiserBuffers();
+  }
+
+  /**
+   * Use a memory-mapped file in the scene directory as the sample buffer.
+   * The mapped file replaces the render dump: samples in the file are kept
+   * if the file has the same canvas size as the scene.
+   */
+  public synchronized void mapSampleBuffer(RenderContext context) throws IOException {
+    samples = MappedSampleBuffer.open(context.getSceneFile(name + ".samples"), width, height);
+  }
+
+  /**
+   * Allocate the per-pixel buffers for adaptive sampling if it is enabled.
+   */
+  private void initAdaptiveBuffers() {
+    if (adaptiveSampling) {
+      sampleCount = new int[width * height];
+      luminanceM2 = new double[width * height];
+    } else {
+      sampleCount = null;
+      luminanceM2 = null;
+    }
+  }
+
+  /**
+   * Allocate the first-hit albedo and normal buffers if denoising is enabled.
+   */
+  private void initDenoiserBuffers() {
+    if (denoise) {
+      albedoBuffer = new float[width * height * 3];
+      normalBuffer = new float[width * height * 3];
+    } else {
+      albedoBuffer = null;
+      normalBuffer = null;
+    }
+    firstHitStartSpp = spp;
+    denoisedFrame = null;
   }
 
   /**
@@ -400,6 +583,7 @@ public class Scene implements JsonSerializable, Refreshable {
     waterColor.set(other.waterColor);
     fogColor.set(other.fogColor);
     biomeColors = other.biomeColors;
+    biomeBlendRadius = other.biomeBlendRadius;
     sunEnabled = other.sunEnabled;
     emittersEnabled = other.emittersEnabled;
     emitterIntensity = other.emitterIntensity;
@@ -407,6 +591,9 @@ public class Scene implements JsonSerializable, Refreshable {
     fogDensity = other.fogDensity;
     skyFogDensity = other.skyFogDensity;
     fastFog = other.fastFog;
+    adaptiveSampling = other.adaptiveSampling;
+    denoise = other.denoise;
+    samplePrecision = other.samplePrecision;
 
     camera.set(other.camera);
     sky.set(other.sky);
@@ -416,6 +603,10 @@ public class Scene implements JsonSerializable, Refreshable {
 
     spp = other.spp;
     renderTime = other.renderTime;
+    adaptiveStartSpp = other.adaptiveStartSpp;
+    firstHitStartSpp = other.firstHitStartSpp;
+    converged = false;
+    renderGeneration += 1;
 
     resetReason = other.resetReason;
 
@@ -429,6 +620,13 @@ public class Scene implements JsonSerializable, Refreshable {
       alphaChannel = other.alphaChannel;
       samples = other.samples;
     }
+    sampleCount = other.sampleCount;
+    luminanceM2 = other.luminanceM2;
+    albedoBuffer = other.albedoBuffer;
+    normalBuffer = other.normalBuffer;
+
+    // The render may have been reset, so the next render dump is written in full.
+    checkpointLog.reset();
   }
 
   /**
@@ -489,6 +687,14 @@ public class Scene implements JsonSerializable, Refreshable {
       }
     }
 
+    if (context.mappedSampleBuffer()) {
+      try {
+        mapSampleBuffer(context);
+      } catch (IOException e) {
+        Log.error("Failed to map sample buffer, using heap memory instead.", e);
+      }
+    }
+
     if (loadDump(context, taskTracker)) {
       postProcessFrame(taskTracker);
     }
@@ -598,6 +804,25 @@ public class Scene implements JsonSerializable, Refreshable {
    * @return <code>true</code> if an intersection was found
    */
   public boolean intersect(Ray ray) {
+    return intersect(ray, new Ray(), new Ray());
+  }
+
+  /**
+   * Find closest intersection between ray and scene.
+   * This advances the ray by updating the ray origin if an intersection is found.
+   *
+   * <p>This version does not allocate any temporary rays, instead it uses the
+   * scratch rays of the worker state.
+   *
+   * @param ray ray to test against scene
+   * @param state the state of the render worker tracing the ray
+   * @return <code>true</code> if an intersection was found
+   */
+  public boolean intersect(Ray ray, WorkerState state) {
+    return intersect(ray, state.intersectStart, state.intersectRay);
+  }
+
+  private boolean intersect(Ray ray, Ray start, Ray r) {
     boolean hit = false;
     if (bvh.closestIntersection(ray)) {
       hit = true;
@@ -607,7 +832,7 @@ public class Scene implements JsonSerializable, Refreshable {
         hit = true;
       }
     }
-    if (worldIntersection(ray)) {
+    if (worldIntersection(ray, start, r)) {
       hit = true;
     }
     if (hit) {
@@ -623,14 +848,16 @@ public class Scene implements JsonSerializable, Refreshable {
    * Test whether the ray intersects any voxel before exiting the Octree.
    *
    * @param ray   the ray
+   * @param start scratch ray used to store the initial ray state
+   * @param r     scratch ray used for the octree intersection tests
    * @return {@code true} if the ray intersects a voxel
    */
-  private boolean worldIntersection(Ray ray) {
-    Ray start = new Ray(ray);
+  private boolean worldIntersection(Ray ray, Ray start, Ray r) {
+    start.set(ray);
+    start.setPrevMaterial(ray.getPrevMaterial(), 0);
     start.setCurrentMaterial(ray.getPrevMaterial(), ray.getPrevData());
     boolean hit = false;
-    Ray r = new Ray(start);
-    r.setCurrentMaterial(start.getPrevMaterial(), start.getPrevData());
+    initIntersectionRay(r, start);
     if (worldOctree.enterBlock(this, r, palette) && r.distance < ray.t) {
       ray.t = r.distance;
       ray.n.set(r.n);
@@ -640,8 +867,7 @@ public class Scene implements JsonSerializable, Refreshable {
       hit = true;
     }
     if (start.getCurrentMaterial().isWater() && start.getCurrentMaterial() != Water.OCEAN_WATER) {
-      r = new Ray(start);
-      r.setCurrentMaterial(start.getPrevMaterial(), start.getPrevData());
+      initIntersectionRay(r, start);
       if (waterOctree.exitWater(this, r, palette) && r.distance < ray.t - Ray.EPSILON) {
         ray.t = r.distance;
         ray.n.set(r.n);
@@ -651,8 +877,7 @@ public class Scene implements JsonSerializable, Refreshable {
         hit = true;
       }
     } else {
-      r = new Ray(start);
-      r.setCurrentMaterial(start.getPrevMaterial(), start.getPrevData());
+      initIntersectionRay(r, start);
       if (waterOctree.enterBlock(this, r, palette) && r.distance < ray.t) {
         ray.t = r.distance;
         ray.n.set(r.n);
@@ -665,6 +890,16 @@ public class Scene implements JsonSerializable, Refreshable {
     return hit;
   }
 
+  /**
+   * Reset an octree intersection ray to start where the given ray starts,
+   * in the material the ray was previously in.
+   */
+  private static void initIntersectionRay(Ray r, Ray start) {
+    r.set(start);
+    r.setPrevMaterial(start.getPrevMaterial(), 0);
+    r.setCurrentMaterial(start.getPrevMaterial(), start.getPrevData());
+  }
+
   public void updateOpacity(Ray ray) {
     if (ray.getCurrentMaterial().isWater() || (ray.getCurrentMaterial() == Air.INSTANCE
         && ray.getPrevMaterial().isWater())) {
@@ -706,6 +941,10 @@ public class Scene implements JsonSerializable, Refreshable {
    * <p>This is the main method loading all voxels into the octree.
    * The octree finalizer is then run to compute block properties like fence
    * connectedness.
+   *
+   * <p>If the current thread is interrupted, loading is aborted and the
+   * interrupt flag is kept set. The scene may then contain only some of the
+   * chunks.
    */
   public synchronized void loadChunks(TaskTracker progress, World world,
       Collection<ChunkPosition> chunksToLoad) {
@@ -773,33 +1012,34 @@ public class Scene implements JsonSerializable, Refreshable {
       }
     }
 
-    Heightmap biomeIdMap = new Heightmap();
+    Heightmap biomeIdMap = Heightmap.forChunks(chunksToLoad);
 
     int yMin = Math.max(0, yClipMin);
     int yMax = Math.min(256, yClipMax);
 
-    int[] blocks = new int[Chunk.X_MAX * Chunk.Y_MAX * Chunk.Z_MAX];
-    byte[] biomes = new byte[Chunk.X_MAX * Chunk.Z_MAX];
-
-    Block stone = palette.stone;
-
-    try (TaskTracker.Task task = progress.task("Loading chunks")) {
+    // Chunks are read, decoded and converted to octree subtrees in parallel
+    // by the chunk loader. The subtrees are inserted into the octrees here as
+    // the chunks become ready. The subtrees are cubes of up to 16 blocks that
+    // are aligned to the octree origin.
+    loadedChunks.addAll(chunksToLoad);
+    int cubeLevel = ChunkLoader.cubeLevel(origin);
+
+    try (TaskTracker.Task task = progress.task("Loading chunks");
+        ChunkLoader loader = new ChunkLoader(world, loadedChunks, palette,
+            PersistentSettings.getNumThreads(),
+            chunk -> buildChunkSubtrees(chunk, cubeLevel, yMin, yMax))) {
       int done = 1;
-      int target = chunksToLoad.size();
-      for (ChunkPosition cp : chunksToLoad) {
+      int target = loadedChunks.size();
+      for (int i = 0; i < target; ++i) {
+        ChunkLoader.LoadedChunk chunk = loader.take();
         task.update(target, done);
         done += 1;
 
-        if (loadedChunks.contains(cp)) {
-          continue;
-        }
-
-        loadedChunks.add(cp);
-
-        Collection<CompoundTag> tileEntities = new LinkedList<>();
-        Collection<CompoundTag> chunkEntities = new LinkedList<>();
-        world.getChunk(cp).getBlockData(blocks, biomes, tileEntities, chunkEntities,
-            palette);
+        ChunkPosition cp = chunk.position;
+        int[] blocks = chunk.blocks;
+        byte[] biomes = chunk.biomes;
+        Collection<CompoundTag> tileEntities = chunk.tileEntities;
+        Collection<CompoundTag> chunkEntities = chunk.entities;
         numChunks += 1;
 
         int wx0 = cp.x * 16; // Start of this chunk in world coordinates.
@@ -837,52 +1077,8 @@ public class Scene implements JsonSerializable, Refreshable {
           }
         }
 
-        for (int cy = yMin; cy < yMax; ++cy) {
-          for (int cz = 0; cz < 16; ++cz) {
-            int z = cz + cp.z * 16 - origin.z;
-            for (int cx = 0; cx < 16; ++cx) {
-              int x = cx + cp.x * 16 - origin.x;
-              int index = Chunk.chunkIndex(cx, cy, cz);
-              Octree.Node octNode = new Octree.Node(blocks[index]);
-              Block block = palette.get(blocks[index]);
-
-              if (block.isEntity()) {
-                Vector3 position = new Vector3(cx + cp.x * 16, cy, cz + cp.z * 16);
-                entities.add(block.toEntity(position));
-                if (block.waterlogged) {
-                  block = palette.water;
-                  octNode = new Octree.Node(palette.waterId);
-                } else {
-                  block = Air.INSTANCE;
-                  octNode = new Octree.Node(palette.airId);
-                }
-              }
-
-              if (block.isWaterFilled()) {
-                Octree.Node waterNode = new Octree.Node(palette.waterId);
-                if (cy + 1 < yMax) {
-                  int above = Chunk.chunkIndex(cx, cy + 1, cz);
-                  Block aboveBlock = palette.get(blocks[above]);
-                  if (aboveBlock.isWaterFilled() || aboveBlock.solid) {
-                    waterNode = new Octree.DataNode(palette.waterId, 1 << Water.FULL_BLOCK);
-                  }
-                }
-                waterOctree.set(waterNode, x, cy - origin.y, z);
-                if (block.isWater()) {
-                  // Move plain water blocks to the water octree.
-                  octNode = new Octree.Node(palette.airId);
-                }
-              } else if (cy + 1 < yMax && block instanceof Lava) {
-                int above = Chunk.chunkIndex(cx, cy + 1, cz);
-                Block aboveBlock = palette.get(blocks[above]);
-                if (aboveBlock instanceof Lava) {
-                  octNode = new Octree.DataNode(blocks[index], 1 << Water.FULL_BLOCK);
-                }
-              }
-              worldOctree.set(octNode, x, cy - origin.y, z);
-            }
-          }
-        }
+        entities.addAll(chunk.blockEntities);
+        chunk.insertSubtrees(worldOctree, waterOctree, origin);
 
         // Block entities are also called "tile entities". These are extra bits of metadata
         // about certain blocks or entities.
@@ -893,7 +1089,7 @@ public class Scene implements JsonSerializable, Refreshable {
             int x = entityTag.get("x").intValue(0) - wx0; // Chunk-local coordinates.
             int z = entityTag.get("z").intValue(0) - wz0;
             int index = Chunk.chunkIndex(x, y, z);
-            Block block = palette.get(blocks[index]);
+            Block block = chunk.getBlock(blocks[index]);
             // Metadata is the old block data (to be replaced in future Minecraft versions?).
             Vector3 position = new Vector3(x + wx0, y, z + wz0);
             if (block.isBlockEntity()) {
@@ -912,62 +1108,34 @@ public class Scene implements JsonSerializable, Refreshable {
             */
           }
         }
+        loader.release(chunk);
       }
+      loader.logTimings();
+    } catch (InterruptedException e) {
+      Log.warn("Chunk loading was interrupted.");
+      Thread.currentThread().interrupt();
+      return;
     }
 
-    grassTexture = new WorldTexture();
-    foliageTexture = new WorldTexture();
+    grassTexture = WorldTexture.forChunks(chunksToLoad, origin.x, origin.z);
+    foliageTexture = WorldTexture.forChunks(chunksToLoad, origin.x, origin.z);
 
-    Set<ChunkPosition> chunkSet = new HashSet<>(chunksToLoad);
+    try (TaskTracker.Task task = progress.task("Blending biome colors")) {
+      BiomeBlender.blend(chunksToLoad, biomeIdMap, biomeBlendRadius, origin, grassTexture,
+          foliageTexture, PersistentSettings.getNumThreads(), task);
+    } catch (InterruptedException e) {
+      Log.warn("Biome blending was interrupted.");
+      Thread.currentThread().interrupt();
+      return;
+    }
 
     try (TaskTracker.Task task = progress.task("Finalizing octree")) {
-      int done = 0;
-      int target = chunksToLoad.size();
-      for (ChunkPosition cp : chunksToLoad) {
-
-        // Finalize grass and foliage textures.
-        // 3x3 box blur.
-        for (int x = 0; x < 16; ++x) {
-          for (int z = 0; z < 16; ++z) {
-
-            int nsum = 0;
-            float[] grassMix = {0, 0, 0};
-            float[] foliageMix = {0, 0, 0};
-            for (int sx = x - 1; sx <= x + 1; ++sx) {
-              int wx = cp.x * 16 + sx;
-              for (int sz = z - 1; sz <= z + 1; ++sz) {
-                int wz = cp.z * 16 + sz;
-
-                ChunkPosition ccp = ChunkPosition.get(wx >> 4, wz >> 4);
-                if (chunkSet.contains(ccp)) {
-                  nsum += 1;
-                  int biomeId = biomeIdMap.get(wx, wz);
-                  float[] grassColor = Biomes.getGrassColorLinear(biomeId);
-                  grassMix[0] += grassColor[0];
-                  grassMix[1] += grassColor[1];
-                  grassMix[2] += grassColor[2];
-                  float[] foliageColor = Biomes.getFoliageColorLinear(biomeId);
-                  foliageMix[0] += foliageColor[0];
-                  foliageMix[1] += foliageColor[1];
-                  foliageMix[2] += foliageColor[2];
-                }
-              }
-            }
-            grassMix[0] /= nsum;
-            grassMix[1] /= nsum;
-            grassMix[2] /= nsum;
-            grassTexture.set(cp.x * 16 + x - origin.x, cp.z * 16 + z - origin.z, grassMix);
-
-            foliageMix[0] /= nsum;
-            foliageMix[1] /= nsum;
-            foliageMix[2] /= nsum;
-            foliageTexture.set(cp.x * 16 + x - origin.x, cp.z * 16 + z - origin.z, foliageMix);
-          }
-        }
-        task.update(target, done);
-        done += 1;
-        OctreeFinalizer.finalizeChunk(worldOctree, waterOctree, palette, origin, cp);
-      }
+      OctreeFinalizer.finalizeChunks(worldOctree, waterOctree, palette, origin, chunksToLoad,
+          PersistentSettings.getNumThreads(), task);
+    } catch (InterruptedException e) {
+      Log.warn("Octree finalization was interrupted.");
+      Thread.currentThread().interrupt();
+      return;
     }
 
     chunks = loadedChunks;
@@ -977,6 +1145,76 @@ public class Scene implements JsonSerializable, Refreshable {
     Log.info(String.format("Loaded %d chunks", numChunks));
   }
 
+  /**
+   * Convert the blocks of a decoded chunk to world and water octree
+   * subtrees, and create entities for blocks that are rendered as entities.
+   *
+   * <p>This is called on the chunk loader worker threads, so it must only
+   * modify the chunk.
+   */
+  private void buildChunkSubtrees(ChunkLoader.LoadedChunk chunk, int cubeLevel, int yMin,
+      int yMax) {
+    ChunkPosition cp = chunk.position;
+    int[] blocks = chunk.blocks;
+    int[] worldTypes = chunk.worldTypes;
+    int[] worldData = chunk.worldData;
+    int[] waterTypes = chunk.waterTypes;
+    int[] waterData = chunk.waterData;
+
+    // Voxels outside the Y clip range keep the initial octree content: type zero without data.
+    Arrays.fill(worldTypes, 0);
+    Arrays.fill(worldData, 0);
+    Arrays.fill(waterTypes, 0);
+    Arrays.fill(waterData, 0);
+
+    for (int cy = yMin; cy < yMax; ++cy) {
+      for (int cz = 0; cz < 16; ++cz) {
+        for (int cx = 0; cx < 16; ++cx) {
+          int index = Chunk.chunkIndex(cx, cy, cz);
+          int type = blocks[index];
+          int data = 0;
+          Block block = chunk.getBlock(blocks[index]);
+
+          if (block.isEntity()) {
+            Vector3 position = new Vector3(cx + cp.x * 16, cy, cz + cp.z * 16);
+            chunk.blockEntities.add(block.toEntity(position));
+            if (block.waterlogged) {
+              block = palette.water;
+              type = palette.waterId;
+            } else {
+              block = Air.INSTANCE;
+              type = palette.airId;
+            }
+          }
+
+          if (block.isWaterFilled()) {
+            waterTypes[index] = palette.waterId;
+            if (cy + 1 < yMax) {
+              int above = Chunk.chunkIndex(cx, cy + 1, cz);
+              Block aboveBlock = chunk.getBlock(blocks[above]);
+              if (aboveBlock.isWaterFilled() || aboveBlock.solid) {
+                waterData[index] = 1 << Water.FULL_BLOCK;
+              }
+            }
+            if (block.isWater()) {
+              // Move plain water blocks to the water octree.
+              type = palette.airId;
+            }
+          } else if (cy + 1 < yMax && block instanceof Lava) {
+            int above = Chunk.chunkIndex(cx, cy + 1, cz);
+            Block aboveBlock = chunk.getBlock(blocks[above]);
+            if (aboveBlock instanceof Lava) {
+              data = 1 << Water.FULL_BLOCK;
+            }
+          }
+          worldTypes[index] = type;
+          worldData[index] = data;
+        }
+      }
+    }
+    chunk.buildSubtrees(cubeLevel);
+  }
+
   private void buildBvh() {
     final List<Primitive> primitives = new LinkedList<>();
 
@@ -1317,6 +1555,81 @@ public class Scene implements JsonSerializable, Refreshable {
     }
   }
 
+  /**
+   * @return the additional post-processing stages of this scene
+   */
+  public List<PostProcessingStage> getPostprocessingStages() {
+    return postprocessingStages;
+  }
+
+  /**
+   * Add a post-processing stage. The stage is applied after the exposure,
+   * and before or after tone mapping depending on
+   * {@link PostProcessingStage#beforeToneMapping()}. Stages are applied in
+   * the order they were added.
+   *
+   * <p>The additional stages are applied when the frame is finalized by
+   * {@link #postProcessFrame}, and when images are saved. The preview shown
+   * while rendering only applies exposure and tone mapping.
+   */
+  public synchronized void addPostprocessingStage(PostProcessingStage stage) {
+    List<PostProcessingStage> stages = new ArrayList<>(postprocessingStages);
+    stages.add(stage);
+    postprocessingStages = Collections.unmodifiableList(stages);
+  }
+
+  /**
+   * Remove a post-processing stage.
+   */
+  public synchronized void removePostprocessingStage(PostProcessingStage stage) {
+    List<PostProcessingStage> stages = new ArrayList<>(postprocessingStages);
+    stages.remove(stage);
+    postprocessingStages = Collections.unmodifiableList(stages);
+  }
+
+  /**
+   * @return the post-processing pipeline for the current exposure,
+   * postprocessing mode, and additional stages
+   */
+  public synchronized PostProcessingPipeline getPostprocessingPipeline() {
+    boolean preview = mode == RenderMode.PREVIEW;
+    if (pipeline == null
+        || pipelineStages != postprocessingStages
+        || pipelineExposure != exposure
+        || pipelinePostprocess != postprocess
+        || pipelinePreview != preview
+        || pipelineWidth != width) {
+      pipeline = buildPostprocessingPipeline();
+      pipelineStages = postprocessingStages;
+      pipelineExposure = exposure;
+      pipelinePostprocess = postprocess;
+      pipelinePreview = preview;
+      pipelineWidth = width;
+    }
+    return pipeline;
+  }
+
+  private PostProcessingPipeline buildPostprocessingPipeline() {
+    List<PostProcessingStage> stages = new ArrayList<>();
+    stages.add(new ExposureStage(exposure));
+    for (PostProcessingStage stage : postprocessingStages) {
+      if (stage.beforeToneMapping()) {
+        stages.add(stage);
+      }
+    }
+    if (mode == RenderMode.PREVIEW) {
+      stages.add(ToneMappingStage.preview());
+    } else {
+      stages.add(new ToneMappingStage(postprocess));
+    }
+    for (PostProcessingStage stage : postprocessingStages) {
+      if (!stage.beforeToneMapping()) {
+        stages.add(stage);
+      }
+    }
+    return new PostProcessingPipeline(stages);
+  }
+
   /**
    * @return The current emitter intensity
    */
@@ -1405,6 +1718,7 @@ public class Scene implements JsonSerializable, Refreshable {
   public synchronized void copyTransients(Scene other) {
     name = other.name;
     postprocess = other.postprocess;
+    postprocessingStages = other.postprocessingStages;
     exposure = other.exposure;
     dumpFrequency = other.dumpFrequency;
     saveSnapshots = other.saveSnapshots;
@@ -1415,6 +1729,7 @@ public class Scene implements JsonSerializable, Refreshable {
     cameraPresets = other.cameraPresets;
     camera.copyTransients(other.camera);
     finalizeBuffer = other.finalizeBuffer;
+    noiseThreshold = other.noiseThreshold;
   }
 
   /**
@@ -1472,30 +1787,30 @@ public class Scene implements JsonSerializable, Refreshable {
     String fileName = String.format("%s-%d%s", name, spp, outputMode.getExtension());
     File targetFile = new File(directory, fileName);
     computeAlpha(progress, threadCount);
-    if (!finalized) {
+    if (needsFinalPass()) {
       postProcessFrame(progress);
     }
     writeImage(targetFile, outputMode, progress);
   }
 
   /**
-   * Save the current frame as a PNG or TIFF image.
+   * Save the current frame as a PNG, TIFF, or OpenEXR image.
    */
   public synchronized void saveFrame(File targetFile, TaskTracker progress, int threadCount) {
     computeAlpha(progress, threadCount);
-    if (!finalized) {
+    if (needsFinalPass()) {
       postProcessFrame(progress);
     }
     writeImage(targetFile, outputMode, progress);
   }
 
   /**
-   * Save the current frame as a PNG or TIFF image into the given output stream.
+   * Save the current frame as a PNG, TIFF, or OpenEXR image into the given output stream.
    */
   public synchronized void writeFrame(OutputStream out, OutputMode mode, TaskTracker progress, int threadCount)
       throws IOException {
     computeAlpha(progress, threadCount);
-    if (!finalized) {
+    if (needsFinalPass()) {
       postProcessFrame(progress);
     }
     writeImage(out, mode, progress);
@@ -1540,31 +1855,31 @@ public class Scene implements JsonSerializable, Refreshable {
    *
    * <p>This is normally done by the render workers during rendering,
    * but in some cases an separate post processing pass is needed.
+   * The pass also applies the denoiser and the additional post-processing
+   * stages, which the render workers skip.
    */
   public void postProcessFrame(TaskTracker progress) {
-    try (TaskTracker.Task task = progress.task("Finalizing frame")) {
-      int threadCount = PersistentSettings.getNumThreads();
-      ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-      AtomicInteger done = new AtomicInteger(0);
-      int colWidth = width / threadCount;
-      for (int x = 0; x < width; x += colWidth) {
-        final int currentX = x;
-        executor.submit(() -> {
-          for(int xc = currentX; xc < currentX + colWidth && xc < width; xc++) {
-            for (int y = 0; y < height; ++y) {
-              finalizePixel(xc, y);
-            }
-            task.update(width, done.incrementAndGet());
-          }
-        });
+    PostProcessingPipeline pipeline = getPostprocessingPipeline();
+    try {
+      SampleBuffer input = denoise ? getDenoisedSamples(progress) : samples;
+      try (TaskTracker.Task task = progress.task("Finalizing frame")) {
+        pipeline.apply(input, backBuffer.data, PersistentSettings.getNumThreads(), task);
+        finalized = true;
       }
-      executor.shutdown();
-      executor.awaitTermination(1, TimeUnit.DAYS);
     } catch (InterruptedException e) {
       Log.error("Finalizing frame failed", e);
     }
   }
 
+  /**
+   * @return {@code true} if the frame must be post-processed before it is
+   * saved. The render workers only apply the exposure and tone mapping.
+   */
+  private boolean needsFinalPass() {
+    return !finalized || denoise || !postprocessingStages.isEmpty();
+  }
+
+
   /**
    * Write buffer data to image.
    *
@@ -1575,6 +1890,10 @@ public class Scene implements JsonSerializable, Refreshable {
       writePng(out, progress);
     } else if (mode == OutputMode.TIFF_32) {
       writeTiff(out, progress);
+    } else if (mode == OutputMode.EXR_16) {
+      writeExr(out, ExrFileWriter.PixelType.HALF, progress);
+    } else if (mode == OutputMode.EXR_32) {
+      writeExr(out, ExrFileWriter.PixelType.FLOAT, progress);
     }
   }
 
@@ -1642,6 +1961,22 @@ public class Scene implements JsonSerializable, Refreshable {
     }
   }
 
+  /**
+   * Write OpenEXR image. The image has linear color values, with the
+   * exposure applied but without postprocessing. The samples are denoised
+   * if denoising is enabled.
+   *
+   * @param out output stream to write to.
+   */
+  private void writeExr(OutputStream out, ExrFileWriter.PixelType type, TaskTracker progress)
+      throws IOException {
+    try (TaskTracker.Task task = progress.task("Writing OpenEXR");
+        ExrFileWriter writer = new ExrFileWriter(out)) {
+      writer.write(outputSamples(), exposure, transparentSky ? alphaChannel : null, type,
+          ExrFileWriter.Compression.ZIP, task);
+    }
+  }
+
   private synchronized void saveOctree(RenderContext context, TaskTracker progress) {
     String fileName = name + ".octree2";
     if (context.fileUnchangedSince(fileName, worldOctree.getTimestamp())) {
@@ -1707,25 +2042,31 @@ public class Scene implements JsonSerializable, Refreshable {
   }
 
   public synchronized void saveDump(RenderContext context, TaskTracker progress) {
+    if (samples instanceof MappedSampleBuffer) {
+      // The mapped sample buffer is the render dump, so only a checkpoint is needed.
+      try (TaskTracker.Task task = progress.task("Saving render dump", 1)) {
+        ((MappedSampleBuffer) samples).checkpoint(spp, renderTime);
+        task.update(1);
+      }
+      return;
+    }
     String fileName = name + ".dump";
+    File dumpFile = context.getSceneFile(fileName);
+    int[] counts = adaptiveSampling && spp > adaptiveStartSpp ? sampleCount : null;
     try (TaskTracker.Task task = progress.task("Saving render dump", 2)) {
       task.update(1);
-      Log.info("Saving render dump " + fileName);
-      try (DataOutputStream out = new DataOutputStream(
-          new GZIPOutputStream(context.getSceneFileOutputStream(fileName)))) {
-        out.writeInt(width);
-        out.writeInt(height);
-        out.writeInt(spp);
-        out.writeLong(renderTime);
-        for (int x = 0; x < width; ++x) {
-          task.update(width, x + 1);
-          for (int y = 0; y < height; ++y) {
-            out.writeDouble(samples[(y * width + x) * 3 + 0]);
-            out.writeDouble(samples[(y * width + x) * 3 + 1]);
-            out.writeDouble(samples[(y * width + x) * 3 + 2]);
-          }
+      try {
+        if (checkpointLog.needsCompaction(dumpFile, width, height, counts, spp)) {
+          Log.info("Saving render dump " + fileName);
+          backupFile(context, dumpFile);
+          checkpointLog.writeDump(dumpFile, samples, counts, spp, renderTime,
+              context.numRenderThreads(), task);
+          Log.info("Render dump saved");
+        } else {
+          int tiles = checkpointLog.append(dumpFile, samples, counts, spp, renderTime,
+              context.numRenderThreads(), task);
+          Log.info("Render dump checkpoint saved (" + tiles + " changed tiles)");
         }
-        Log.info("Render dump saved");
       } catch (IOException e) {
         Log.warn("IO exception while saving render dump!", e);
       }
@@ -1770,10 +2111,21 @@ public class Scene implements JsonSerializable, Refreshable {
   }
 
   public synchronized boolean loadDump(RenderContext context, TaskTracker taskTracker) {
+    if (samples instanceof MappedSampleBuffer && ((MappedSampleBuffer) samples).hasRenderState()) {
+      // The samples were already loaded by mapping the sample buffer file.
+      MappedSampleBuffer mapped = (MappedSampleBuffer) samples;
+      spp = mapped.getSpp();
+      renderTime = mapped.getRenderTime();
+      adaptiveStartSpp = spp;
+      firstHitStartSpp = spp;
+      Log.info("Render state loaded from " + mapped.getFile().getName());
+      return true;
+    }
     if (!tryLoadDump(context, name + ".dump", taskTracker)) {
       // Failed to load the default render dump - try the backup file.
       if (!tryLoadDump(context, name + ".dump.backup", taskTracker)) {
         spp = 0;  // Set spp = 0 because we don't have the old render state.
+        firstHitStartSpp = 0;
         return false;
       }
     }
@@ -1793,28 +2145,26 @@ public class Scene implements JsonSerializable, Refreshable {
       }
       return false;
     }
-    try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(dumpFile)));
-        TaskTracker.Task task = taskTracker.task("Loading render dump", 2)) {
+    try (TaskTracker.Task task = taskTracker.task("Loading render dump", 2)) {
       task.update(1);
       Log.info("Reading render dump " + fileName);
-      int dumpWidth = in.readInt();
-      int dumpHeight = in.readInt();
-      if (dumpWidth != width || dumpHeight != height) {
+      RenderDump dump = RenderDump.open(dumpFile);
+      if (dump.width != width || dump.height != height) {
         Log.warn("Render dump discarded: incorrect width or height!");
         return false;
       }
-      spp = in.readInt();
-      renderTime = in.readLong();
-
-      for (int x = 0; x < width; ++x) {
-        task.update(width, x + 1);
-        for (int y = 0; y < height; ++y) {
-          samples[(y * width + x) * 3 + 0] = in.readDouble();
-          samples[(y * width + x) * 3 + 1] = in.readDouble();
-          samples[(y * width + x) * 3 + 2] = in.readDouble();
-          finalizePixel(x, y);
-        }
-      }
+      dump.read(context.numRenderThreads(), task, (x, y, r, g, b) -> {
+        int offset = (y * width + x) * 3;
+        samples.set(offset + 0, r);
+        samples.set(offset + 1, g);
+        samples.set(offset + 2, b);
+        finalizePixel(x, y);
+      });
+      spp = dump.spp;
+      renderTime = dump.renderTime;
+      // The render dump has no noise estimates or first-hit buffers, so they are restarted.
+      adaptiveStartSpp = spp;
+      firstHitStartSpp = spp;
       Log.info("Render dump loaded: " + fileName);
       return true;
     } catch (IOException e) {
@@ -1830,90 +2180,55 @@ public class Scene implements JsonSerializable, Refreshable {
    */
   public void finalizePixel(int x, int y) {
     finalized = true;
-    double[] result = new double[3];
-    postProcessPixel(x, y, result);
+    int offset = (y * width + x) * 3;
+    double r = postProcessValue(samples.get(offset + 0));
+    double g = postProcessValue(samples.get(offset + 1));
+    double b = postProcessValue(samples.get(offset + 2));
     backBuffer.data[y * width + x] = ColorUtil
-        .getRGB(QuickMath.min(1, result[0]), QuickMath.min(1, result[1]),
-            QuickMath.min(1, result[2]));
+        .getRGB(QuickMath.min(1, r), QuickMath.min(1, g), QuickMath.min(1, b));
   }
 
   /**
-   * Postprocess a pixel. This applies gamma correction and clamps the color value to [0,1].
+   * Post-process rows y0 until y1 of the current frame with the
+   * post-processing pipeline, including the denoised samples and the
+   * additional stages. The resulting colors are not clamped.
+   *
+   * @param dest receives three color values per pixel, starting with pixel
+   * (0, y0)
+   */
+  public void postProcessRows(int y0, int y1, double[] dest) {
+    getPostprocessingPipeline().process(outputSamples(), y0, y1, dest);
+  }
+
+  /**
+   * Postprocess a pixel. This applies only the exposure and the tone mapping
+   * or gamma correction, see {@link #postProcessRows} for the complete
+   * post-processing pipeline.
    *
    * @param result the resulting color values are written to this array
    */
   public void postProcessPixel(int x, int y, double[] result) {
-    double r = samples[(y * width + x) * 3 + 0];
-    double g = samples[(y * width + x) * 3 + 1];
-    double b = samples[(y * width + x) * 3 + 2];
-
-    r *= exposure;
-    g *= exposure;
-    b *= exposure;
+    SampleBuffer samples = outputSamples();
+    int offset = (y * width + x) * 3;
+    result[0] = postProcessValue(samples.get(offset + 0));
+    result[1] = postProcessValue(samples.get(offset + 1));
+    result[2] = postProcessValue(samples.get(offset + 2));
+  }
 
+  /**
+   * Postprocess one color component of a pixel: applies the exposure and the
+   * tone mapping or gamma correction of the current postprocessing mode.
+   */
+  private double postProcessValue(double value) {
+    value *= exposure;
     if (mode != RenderMode.PREVIEW) {
-      switch (postprocess) {
-        case NONE:
-          break;
-        case TONEMAP1:
-          // http://filmicgames.com/archives/75
-          r = QuickMath.max(0, r - 0.004);
-          r = (r * (6.2 * r + .5)) / (r * (6.2 * r + 1.7) + 0.06);
-          g = QuickMath.max(0, g - 0.004);
-          g = (g * (6.2 * g + .5)) / (g * (6.2 * g + 1.7) + 0.06);
-          b = QuickMath.max(0, b - 0.004);
-          b = (b * (6.2 * b + .5)) / (b * (6.2 * b + 1.7) + 0.06);
-          break;
-        case TONEMAP2:
-          // https://knarkowicz.wordpress.com/2016/01/06/aces-filmic-tone-mapping-curve/
-          float aces_a = 2.51f;
-          float aces_b = 0.03f;
-          float aces_c = 2.43f;
-          float aces_d = 0.59f;
-          float aces_e = 0.14f;
-          r = QuickMath.max(QuickMath.min((r * (aces_a * r + aces_b)) / (r * (aces_c * r + aces_d) + aces_e), 1), 0);
-          g = QuickMath.max(QuickMath.min((g * (aces_a * g + aces_b)) / (g * (aces_c * g + aces_d) + aces_e), 1), 0);
-          b = QuickMath.max(QuickMath.min((b * (aces_a * b + aces_b)) / (b * (aces_c * b + aces_d) + aces_e), 1), 0);
-          break;
-        case TONEMAP3:
-          // http://filmicgames.com/archives/75
-          float hA = 0.15f;
-          float hB = 0.50f;
-          float hC = 0.10f;
-          float hD = 0.20f;
-          float hE = 0.02f;
-          float hF = 0.30f;
-          // This adjusts the exposure by a factor of 16 so that the resulting exposure approximately matches the other
-          // post-processing methods. Without this, the image would be very dark.
-          r *= 16;
-          g *= 16;
-          b *= 16;
-          r = ((r * (hA * r + hC * hB) + hD * hE) / (r * (hA * r + hB) + hD * hF)) - hE / hF;
-          g = ((g * (hA * g + hC * hB) + hD * hE) / (g * (hA * g + hB) + hD * hF)) - hE / hF;
-          b = ((b * (hA * b + hC * hB) + hD * hE) / (b * (hA * b + hB) + hD * hF)) - hE / hF;
-          float hW = 11.2f;
-          float whiteScale = 1.0f / (((hW * (hA * hW + hC * hB) + hD * hE) / (hW * (hA * hW + hB) + hD * hF)) - hE / hF);
-          r *= whiteScale;
-          g *= whiteScale;
-          b *= whiteScale;
-          break;
-        case GAMMA:
-          r = FastMath.pow(r, 1 / DEFAULT_GAMMA);
-          g = FastMath.pow(g, 1 / DEFAULT_GAMMA);
-          b = FastMath.pow(b, 1 / DEFAULT_GAMMA);
-          break;
-      }
+      return ToneMappingStage.map(postprocess, value);
     } else {
-      r = FastMath.sqrt(r);
-      g = FastMath.sqrt(g);
-      b = FastMath.sqrt(b);
+      return ToneMappingStage.mapPreview(value);
     }
-
-    result[0] = r;
-    result[1] = g;
-    result[2] = b;
   }
 
+
   /**
    * Compute the alpha channel based on sky visibility.
    */
@@ -2017,14 +2332,45 @@ public class Scene implements JsonSerializable, Refreshable {
   }
 
   /**
-   * Get direct access to the sample buffer.
+   * Get the sample buffer as a double array. This gives direct access to
+   * the sample buffer only if it uses double precision, otherwise the
+   * array is a copy of the sample buffer. A copy of a memory-mapped sample
+   * buffer needs heap memory for the whole canvas, use {@link #getSamples()}
+   * to avoid the copy.
    *
    * @return The sample buffer for this scene
    */
   public double[] getSampleBuffer() {
+    return samples.toDoubleArray();
+  }
+
+  /**
+   * Get direct access to the sample buffer.
+   *
+   * @return The sample buffer for this scene
+   */
+  public SampleBuffer getSamples() {
     return samples;
   }
 
+  /**
+   * @return the precision of the sample buffer
+   */
+  public SamplePrecision getSamplePrecision() {
+    return samplePrecision;
+  }
+
+  /**
+   * Change the precision of the sample buffer. This restarts the render.
+   */
+  public synchronized void setSamplePrecision(SamplePrecision value) {
+    if (samplePrecision != value) {
+      samplePrecision = value;
+      initBuffers();
+      refresh();
+    }
+  }
+
   /**
    * @return <code>true</code> if the rendered buffer should be finalized
    */
@@ -2053,6 +2399,21 @@ public class Scene implements JsonSerializable, Refreshable {
     }
   }
 
+  /**
+   * Get the foliage color without allocating a new color array.
+   *
+   * @param x X coordinate in octree space
+   * @param z Z coordinate in octree space
+   * @param frgb receives the foliage color for the given coordinates
+   */
+  public void getFoliageColor(int x, int z, float[] frgb) {
+    if (biomeColors) {
+      foliageTexture.get(x, z, frgb);
+    } else {
+      System.arraycopy(Biomes.getFoliageColorLinear(0), 0, frgb, 0, 3);
+    }
+  }
+
   /**
    * @param x X coordinate in octree space
    * @param z Z coordinate in octree space
@@ -2066,46 +2427,52 @@ public class Scene implements JsonSerializable, Refreshable {
     }
   }
 
+  /**
+   * Get the grass color without allocating a new color array.
+   *
+   * @param x X coordinate in octree space
+   * @param z Z coordinate in octree space
+   * @param frgb receives the grass color for the given coordinates
+   */
+  public void getGrassColor(int x, int z, float[] frgb) {
+    if (biomeColors) {
+      grassTexture.get(x, z, frgb);
+    } else {
+      System.arraycopy(Biomes.getGrassColorLinear(0), 0, frgb, 0, 3);
+    }
+  }
+
   /**
    * Merge a render dump into this scene.
    */
-  public void mergeDump(File dumpFile, TaskTracker taskTracker) {
-    int dumpSpp;
-    long dumpTime;
-    try (TaskTracker.Task task = taskTracker.task("Merging render dump", 2);
-        DataInputStream in = new DataInputStream(
-            new GZIPInputStream(new FileInputStream(dumpFile)))) {
+  public void mergeDump(File dumpFile, TaskTracker taskTracker, int threadCount) {
+    try (TaskTracker.Task task = taskTracker.task("Merging render dump", 2)) {
       task.update(1);
       Log.info("Loading render dump " + dumpFile.getAbsolutePath());
-      int dumpWidth = in.readInt();
-      int dumpHeight = in.readInt();
-      if (dumpWidth != width || dumpHeight != height) {
+      RenderDump dump = RenderDump.open(dumpFile);
+      if (dump.width != width || dump.height != height) {
         Log.warn("Render dump discarded: incorrect width or height!");
         return;
       }
-      dumpSpp = in.readInt();
-      dumpTime = in.readLong();
 
-      double sa = spp / (double) (spp + dumpSpp);
+      double sa = spp / (double) (spp + dump.spp);
       double sb = 1 - sa;
 
-      for (int x = 0; x < width; ++x) {
-        task.update(width, x + 1);
-        for (int y = 0; y < height; ++y) {
-          samples[(y * width + x) * 3 + 0] =
-              samples[(y * width + x) * 3 + 0] * sa + in.readDouble() * sb;
-          samples[(y * width + x) * 3 + 1] =
-              samples[(y * width + x) * 3 + 1] * sa + in.readDouble() * sb;
-          samples[(y * width + x) * 3 + 2] =
-              samples[(y * width + x) * 3 + 2] * sa + in.readDouble() * sb;
-          finalizePixel(x, y);
-        }
-      }
+      dump.read(threadCount, task, (x, y, r, g, b) -> {
+        int offset = (y * width + x) * 3;
+        samples.set(offset + 0, samples.get(offset + 0) * sa + r * sb);
+        samples.set(offset + 1, samples.get(offset + 1) * sa + g * sb);
+        samples.set(offset + 2, samples.get(offset + 2) * sa + b * sb);
+        finalizePixel(x, y);
+      });
       Log.info("Render dump loaded");
 
       // Update render status.
-      spp += dumpSpp;
-      renderTime += dumpTime;
+      spp += dump.spp;
+      renderTime += dump.renderTime;
+      adaptiveStartSpp = spp;
+      // The first-hit buffers only have the samples of the current render.
+      firstHitStartSpp += dump.spp;
     } catch (IOException e) {
       Log.info("Render dump not loaded");
     }
@@ -2198,6 +2565,7 @@ public class Scene implements JsonSerializable, Refreshable {
     json.add("height", height);
     json.add("yClipMin", yClipMin);
     json.add("yClipMax", yClipMax);
+    json.add("biomeBlendRadius", biomeBlendRadius);
     json.add("exposure", exposure);
     json.add("postprocess", postprocess.name());
     json.add("outputMode", outputMode.name());
@@ -2228,6 +2596,10 @@ public class Scene implements JsonSerializable, Refreshable {
     fogColorObj.add("blue", fogColor.z);
     json.add("fogColor", fogColorObj);
     json.add("fastFog", fastFog);
+    json.add("adaptiveSampling", adaptiveSampling);
+    json.add("denoise", denoise);
+    json.add("samplePrecision", samplePrecision.name());
+    json.add("noiseThreshold", noiseThreshold);
     json.add("biomeColorsEnabled", biomeColors);
     json.add("transparentSky", transparentSky);
     json.add("fogDensity", fogDensity);
@@ -2447,7 +2819,11 @@ public class Scene implements JsonSerializable, Refreshable {
 
     int newWidth = json.get("width").intValue(width);
     int newHeight = json.get("height").intValue(height);
-    if (width != newWidth || height != newHeight || samples == null) {
+    SamplePrecision newPrecision = SamplePrecision.get(
+        json.get("samplePrecision").stringValue(samplePrecision.name()));
+    if (width != newWidth || height != newHeight || samples == null
+        || newPrecision != samplePrecision) {
+      samplePrecision = newPrecision;
       width = newWidth;
       height = newHeight;
       initBuffers();
@@ -2455,6 +2831,7 @@ public class Scene implements JsonSerializable, Refreshable {
 
     yClipMin = json.get("yClipMin").asInt(0);
     yClipMax = json.get("yClipMax").asInt(256);
+    biomeBlendRadius = json.get("biomeBlendRadius").asInt(1);
 
     exposure = json.get("exposure").doubleValue(exposure);
     postprocess = Postprocess.get(json.get("postprocess").stringValue(postprocess.name()));
@@ -2489,6 +2866,17 @@ public class Scene implements JsonSerializable, Refreshable {
     fogColor.y = fogColorObj.get("green").doubleValue(fogColor.y);
     fogColor.z = fogColorObj.get("blue").doubleValue(fogColor.z);
     fastFog = json.get("fastFog").boolValue(fastFog);
+    noiseThreshold = json.get("noiseThreshold").doubleValue(noiseThreshold);
+    boolean adaptive = json.get("adaptiveSampling").boolValue(adaptiveSampling);
+    if (adaptive != adaptiveSampling) {
+      adaptiveSampling = adaptive;
+      initAdaptiveBuffers();
+    }
+    boolean denoiseEnabled = json.get("denoise").boolValue(denoise);
+    if (denoiseEnabled != denoise) {
+      denoise = denoiseEnabled;
+      initDenoiserBuffers();
+    }
     biomeColors = json.get("biomeColorsEnabled").boolValue(biomeColors);
     transparentSky = json.get("transparentSky").boolValue(transparentSky);
     fogDensity = json.get("fogDensity").doubleValue(fogDensity);
@@ -2575,6 +2963,9 @@ public class Scene implements JsonSerializable, Refreshable {
     }
     spp = 0;
     renderTime = 0;
+    adaptiveStartSpp = 0;
+    firstHitStartSpp = 0;
+    renderGeneration += 1;
     setResetReason(reason);
     notifyAll();
   }
@@ -2662,6 +3053,210 @@ public class Scene implements JsonSerializable, Refreshable {
     return fastFog;
   }
 
+  /**
+   * Enable or disable adaptive sampling. This restarts the render.
+   */
+  public synchronized void setAdaptiveSampling(boolean value) {
+    if (adaptiveSampling != value) {
+      adaptiveSampling = value;
+      initAdaptiveBuffers();
+      refresh();
+    }
+  }
+
+  /**
+   * @return {@code true} if adaptive sampling is enabled
+   */
+  public boolean adaptiveSampling() {
+    return adaptiveSampling;
+  }
+
+  /**
+   * Enable or disable denoising. This restarts the render, because the
+   * render workers record the first-hit albedo and normal of each pixel
+   * only when denoising is enabled.
+   */
+  public synchronized void setDenoise(boolean value) {
+    if (denoise != value) {
+      denoise = value;
+      initDenoiserBuffers();
+      refresh();
+    }
+  }
+
+  /**
+   * @return {@code true} if denoising is enabled
+   */
+  public boolean denoise() {
+    return denoise;
+  }
+
+  /**
+   * @return the sample count where the first-hit albedo and normal buffers
+   * started accumulating samples
+   */
+  public int getFirstHitStartSpp() {
+    return firstHitStartSpp;
+  }
+
+  /**
+   * @return the average first-hit albedo of each pixel, or {@code null} if
+   * denoising is disabled
+   */
+  public float[] getAlbedoBuffer() {
+    return albedoBuffer;
+  }
+
+  /**
+   * @return the average first-hit normal of each pixel, or {@code null} if
+   * denoising is disabled
+   */
+  public float[] getNormalBuffer() {
+    return normalBuffer;
+  }
+
+  /**
+   * Get the denoised samples of the current frame. The denoised samples are
+   * reused until the sample count changes or the render is reset, so that
+   * changing the exposure or tone mapping of a finished render does not
+   * denoise it again. Preview frames are not reused, because they all have
+   * zero samples.
+   */
+  public SampleBuffer getDenoisedSamples(TaskTracker progress) throws InterruptedException {
+    SampleBuffer source = samples;
+    int sourceSpp = spp;
+    int generation = renderGeneration;
+    DenoisedFrame frame = denoisedFrame;
+    if (sourceSpp == 0 || !isCurrent(frame, source, sourceSpp, generation)) {
+      try (TaskTracker.Task task = progress.task("Denoising")) {
+        frame = new DenoisedFrame(source, sourceSpp, generation,
+            new Denoiser().denoise(source, albedoBuffer, normalBuffer, sourceSpp,
+                PersistentSettings.getNumThreads(), task));
+      }
+      denoisedFrame = frame;
+    }
+    return frame.samples;
+  }
+
+  /**
+   * @return the samples used for the final image: the denoised samples if
+   * denoising is enabled and they are up to date, otherwise the samples
+   */
+  private SampleBuffer outputSamples() {
+    DenoisedFrame frame = denoisedFrame;
+    if (denoise && isCurrent(frame, samples, spp, renderGeneration)) {
+      return frame.samples;
+    }
+    return samples;
+  }
+
+  private static boolean isCurrent(DenoisedFrame frame, SampleBuffer source, int spp,
+      int generation) {
+    return frame != null && frame.source == source && frame.spp == spp
+        && frame.generation == generation;
+  }
+
+  /**
+   * A denoised frame, and the sample buffer, sample count and render
+   * generation it was computed from.
+   */
+  private static class DenoisedFrame {
+    final SampleBuffer source;
+    final int spp;
+    final int generation;
+    final SampleBuffer samples;
+
+    DenoisedFrame(SampleBuffer source, int spp, int generation, SampleBuffer samples) {
+      this.source = source;
+      this.spp = spp;
+      this.generation = generation;
+      this.samples = samples;
+    }
+  }
+
+  public void setNoiseThreshold(double value) {
+    noiseThreshold = Math.max(0, value);
+  }
+
+  public double getNoiseThreshold() {
+    return noiseThreshold;
+  }
+
+  /**
+   * @return the sample count where adaptive sampling started estimating noise
+   */
+  public int getAdaptiveStartSpp() {
+    return adaptiveStartSpp;
+  }
+
+  /**
+   * @return the number of samples in each pixel, or {@code null} if
+   * adaptive sampling is disabled
+   */
+  public int[] getSampleCounts() {
+    return sampleCount;
+  }
+
+  /**
+   * @return the sum of squared differences from the mean luminance for
+   * each pixel, or {@code null} if adaptive sampling is disabled
+   */
+  public double[] getLuminanceM2() {
+    return luminanceM2;
+  }
+
+  /**
+   * Relative luminance of a linear RGB color.
+   */
+  public static double luminance(double r, double g, double b) {
+    return 0.2126 * r + 0.7152 * g + 0.0722 * b;
+  }
+
+  /**
+   * Decides if adaptive sampling can stop sampling a pixel. A pixel has
+   * converged when the standard error of its mean luminance is below
+   * the noise threshold, relative to the mean luminance.
+   *
+   * @param pixel the pixel index (y * width + x)
+   * @param count the number of samples in the pixel
+   * @param m2 the sum of squared differences from the mean luminance
+   */
+  public boolean isPixelConverged(int pixel, int count, double m2) {
+    int n = count - adaptiveStartSpp;
+    if (n < ADAPTIVE_MIN_SPP) {
+      return false;
+    }
+    double mean = luminance(samples.get(pixel * 3), samples.get(pixel * 3 + 1),
+        samples.get(pixel * 3 + 2));
+    double variance = m2 / (n - 1);
+    double threshold = noiseThreshold * Math.max(mean, 0.01);
+    return variance / n <= threshold * threshold;
+  }
+
+  /**
+   * Check if all pixels have converged with adaptive sampling.
+   * Called by the renderer after each frame.
+   */
+  public void updateConvergence() {
+    converged = false;
+    if (adaptiveSampling && sampleCount != null && spp > adaptiveStartSpp) {
+      for (int i = 0; i < sampleCount.length; ++i) {
+        if (!isPixelConverged(i, sampleCount[i], luminanceM2[i])) {
+          return;
+        }
+      }
+      converged = true;
+    }
+  }
+
+  /**
+   * @return {@code true} if adaptive sampling is enabled and all pixels
+   * had converged after the last rendered frame
+   */
+  public boolean isConverged() {
+    return converged;
+  }
+
   /**
    * @return {@code true} if volumetric fog is enabled
    */
@@ -2799,4 +3394,15 @@ public class Scene implements JsonSerializable, Refreshable {
   public void setYClipMax(int yClipMax) {
     this.yClipMax = yClipMax;
   }
+
+  public int getBiomeBlendRadius() {
+    return biomeBlendRadius;
+  }
+
+  /**
+   * Set the biome blend radius. Takes effect the next time chunks are loaded.
+   */
+  public void setBiomeBlendRadius(int radius) {
+    this.biomeBlendRadius = Math.max(0, Math.min(MAX_BIOME_BLEND_RADIUS, radius));
+  }
 }
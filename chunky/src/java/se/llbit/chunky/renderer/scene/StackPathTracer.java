@@ -0,0 +1,396 @@
+/* Copyright (c) 2013-2015 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.scene;
+
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.chunky.block.Air;
+import se.llbit.chunky.block.Water;
+import se.llbit.chunky.model.WaterModel;
+import se.llbit.chunky.renderer.WorkerState;
+import se.llbit.chunky.world.Material;
+import se.llbit.math.QuickMath;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.math.Vector4;
+
+import java.util.Random;
+
+/**
+ * A path tracer that does not allocate any objects while tracing.
+ *
+ * <p>This traces paths exactly like {@link PathTracer}, but the rays for
+ * each bounce are taken from a preallocated stack in the worker state,
+ * indexed by ray depth. A ray at depth N only spawns new rays at depth N+1,
+ * and it is finished with those rays before it returns, so each depth needs
+ * only a single ray. Intersection tests also use the scratch rays in the
+ * worker state.
+ *
+ * <p>Use {@code Chunky.setRayTracerFactory(StackPathTracer::new)} to
+ * render with this tracer.
+ */
+public class StackPathTracer implements RayTracer {
+
+  /** Extinction factor for fog rendering. */
+  private static final double EXTINCTION_FACTOR = 0.04;
+
+  /**
+   * Path trace the ray.
+   */
+  @Override public void trace(Scene scene, WorkerState state) {
+    Ray ray = state.ray;
+    if (scene.isInWater(ray)) {
+      ray.setCurrentMaterial(Water.INSTANCE, 0);
+    } else {
+      ray.setCurrentMaterial(Air.INSTANCE, 0);
+    }
+    pathTrace(scene, ray, state, 1, true);
+  }
+
+  /**
+   * Path trace the ray in this scene.
+   *
+   * @param firstReflection {@code true} if the ray has not yet hit the first
+   * diffuse or specular reflection
+   */
+  public static boolean pathTrace(Scene scene, Ray ray, WorkerState state, int addEmitted,
+      boolean firstReflection) {
+
+    boolean hit = false;
+    Random random = state.random;
+    double ox = ray.o.x;
+    double oy = ray.o.y;
+    double oz = ray.o.z;
+    double dx = ray.d.x;
+    double dy = ray.d.y;
+    double dz = ray.d.z;
+    double airDistance = 0;
+
+    while (true) {
+
+      if (!PreviewRayTracer.nextIntersection(scene, ray, state)) {
+        if (ray.getPrevMaterial().isWater()) {
+          ray.color.set(0, 0, 0, 1);
+          hit = true;
+        } else if (ray.depth == 0) {
+          // Direct sky hit.
+          if (!scene.transparentSky()) {
+            scene.sky.getSkyColorInterpolated(ray);
+            scene.addSkyFog(ray);
+            PathTracer.recordFirstHit(state, ray.color, null);
+            hit = true;
+          }
+        } else if (ray.specular) {
+          // Indirect sky hit - specular color.
+          scene.sky.getSkySpecularColor(ray);
+          scene.addSkyFog(ray);
+          hit = true;
+        } else {
+          // Indirect sky hit - diffuse color.
+          scene.sky.getSkyColor(ray);
+          // Skip sky fog - likely not noticeable in diffuse reflection.
+          hit = true;
+        }
+        break;
+      }
+
+      Material currentMat = ray.getCurrentMaterial();
+      Material prevMat = ray.getPrevMaterial();
+
+      if (!scene.stillWater && ray.n.y != 0 &&
+          ((currentMat.isWater() && prevMat == Air.INSTANCE)
+              || (currentMat == Air.INSTANCE && prevMat.isWater()))) {
+        WaterModel.doWaterDisplacement(ray);
+        if (currentMat == Air.INSTANCE) {
+          ray.n.y = -ray.n.y;
+        }
+      }
+
+      float pSpecular = currentMat.specular;
+
+      double pDiffuse = ray.color.w;
+
+      float n1 = prevMat.ior;
+      float n2 = currentMat.ior;
+
+      if (prevMat == Air.INSTANCE) {
+        airDistance = ray.distance;
+      }
+
+      if (pDiffuse + pSpecular < Ray.EPSILON && n1 == n2) {
+        // Transmission without refraction.
+        continue;
+      }
+
+      if (ray.depth == 0) {
+        PathTracer.recordFirstHit(state, ray.color, ray.n);
+      }
+
+      // All rays spawned from this ray share one preallocated ray.
+      Ray next = state.rayAt(ray.depth + 1);
+      clearBlockData(next);
+
+      if (pSpecular > Ray.EPSILON && random.nextFloat() < pSpecular) {
+        // Specular reflection.
+
+        firstReflection = false;
+
+        if (!scene.kill(ray.depth + 1, random)) {
+          next.specularReflection(ray);
+
+          if (pathTrace(scene, next, state, 1, false)) {
+            ray.color.x = next.color.x;
+            ray.color.y = next.color.y;
+            ray.color.z = next.color.z;
+            hit = true;
+          }
+        }
+
+      } else {
+
+        if (random.nextFloat() < pDiffuse) {
+          // Diffuse reflection.
+
+          firstReflection = false;
+
+          if (!scene.kill(ray.depth + 1, random)) {
+            float emittance = 0;
+
+            if (scene.emittersEnabled && currentMat.emittance > Ray.EPSILON) {
+
+              emittance = addEmitted;
+              ray.emittance.x = ray.color.x * ray.color.x *
+                  currentMat.emittance * scene.emitterIntensity;
+              ray.emittance.y = ray.color.y * ray.color.y *
+                  currentMat.emittance * scene.emitterIntensity;
+              ray.emittance.z = ray.color.z * ray.color.z *
+                  currentMat.emittance * scene.emitterIntensity;
+              hit = true;
+            }
+
+            if (scene.sunEnabled) {
+              next.set(ray);
+              scene.sun.getRandomSunDirection(next, random);
+
+              double directLightR = 0;
+              double directLightG = 0;
+              double directLightB = 0;
+
+              boolean frontLight = next.d.dot(ray.n) > 0;
+
+              if (frontLight || (currentMat.subSurfaceScattering
+                  && random.nextFloat() < Scene.fSubSurface)) {
+
+                if (!frontLight) {
+                  next.o.scaleAdd(-Ray.OFFSET, ray.n);
+                }
+
+                next.setCurrentMaterial(next.getPrevMaterial(), next.getPrevData());
+
+                PathTracer.getDirectLightAttenuation(scene, next, state);
+
+                Vector4 attenuation = state.attenuation;
+                if (attenuation.w > 0) {
+                  double mult = QuickMath.abs(next.d.dot(ray.n));
+                  directLightR = attenuation.x * attenuation.w * mult;
+                  directLightG = attenuation.y * attenuation.w * mult;
+                  directLightB = attenuation.z * attenuation.w * mult;
+                  hit = true;
+                }
+              }
+
+              next.diffuseReflection(ray, random);
+              hit = pathTrace(scene, next, state, 0, false) || hit;
+              if (hit) {
+                ray.color.x = ray.color.x * (emittance + directLightR * scene.sun.emittance.x + (
+                    next.color.x + next.emittance.x));
+                ray.color.y = ray.color.y * (emittance + directLightG * scene.sun.emittance.y + (
+                    next.color.y + next.emittance.y));
+                ray.color.z = ray.color.z * (emittance + directLightB * scene.sun.emittance.z + (
+                    next.color.z + next.emittance.z));
+              }
+
+            } else {
+              next.diffuseReflection(ray, random);
+
+              hit = pathTrace(scene, next, state, 0, false) || hit;
+              if (hit) {
+                ray.color.x = ray.color.x * (emittance + (next.color.x + next.emittance.x));
+                ray.color.y = ray.color.y * (emittance + (next.color.y + next.emittance.y));
+                ray.color.z = ray.color.z * (emittance + (next.color.z + next.emittance.z));
+              }
+            }
+          }
+        } else if (n1 != n2) {
+          // Refraction.
+
+          // TODO: make this decision dependent on the material properties:
+          boolean doRefraction =
+              currentMat.refractive || prevMat.refractive;
+
+          // Refraction.
+          float n1n2 = n1 / n2;
+          double cosTheta = -ray.n.dot(ray.d);
+          double radicand = 1 - n1n2 * n1n2 * (1 - cosTheta * cosTheta);
+          if (doRefraction && radicand < Ray.EPSILON) {
+            // Total internal reflection.
+            if (!scene.kill(ray.depth + 1, random)) {
+              next.specularReflection(ray);
+              if (pathTrace(scene, next, state, 1, false)) {
+
+                ray.color.x = next.color.x;
+                ray.color.y = next.color.y;
+                ray.color.z = next.color.z;
+                hit = true;
+              }
+            }
+          } else {
+            if (!scene.kill(ray.depth + 1, random)) {
+              // Calculate angle-dependent reflectance using
+              // Fresnel equation approximation:
+              // R(cosineAngle) = R0 + (1 - R0) * (1 - cos(cosineAngle))^5
+              float a = (n1n2 - 1);
+              float b = (n1n2 + 1);
+              double R0 = a * a / (b * b);
+              double c = 1 - cosTheta;
+              double Rtheta = R0 + (1 - R0) * c * c * c * c * c;
+
+              if (random.nextFloat() < Rtheta) {
+                next.specularReflection(ray);
+                if (pathTrace(scene, next, state, 1, false)) {
+                  ray.color.x = next.color.x;
+                  ray.color.y = next.color.y;
+                  ray.color.z = next.color.z;
+                  hit = true;
+                }
+              } else {
+                next.set(ray);
+                if (doRefraction) {
+
+                  double t2 = FastMath.sqrt(radicand);
+                  if (cosTheta > 0) {
+                    next.d.x = n1n2 * ray.d.x + (n1n2 * cosTheta - t2) * ray.n.x;
+                    next.d.y = n1n2 * ray.d.y + (n1n2 * cosTheta - t2) * ray.n.y;
+                    next.d.z = n1n2 * ray.d.z + (n1n2 * cosTheta - t2) * ray.n.z;
+                  } else {
+                    next.d.x = n1n2 * ray.d.x - (-n1n2 * cosTheta - t2) * ray.n.x;
+                    next.d.y = n1n2 * ray.d.y - (-n1n2 * cosTheta - t2) * ray.n.y;
+                    next.d.z = n1n2 * ray.d.z - (-n1n2 * cosTheta - t2) * ray.n.z;
+                  }
+
+                  next.d.normalize();
+
+                  next.o.scaleAdd(Ray.OFFSET, next.d);
+                }
+
+                if (pathTrace(scene, next, state, 1, false)) {
+                  ray.color.x = ray.color.x * pDiffuse + (1 - pDiffuse);
+                  ray.color.y = ray.color.y * pDiffuse + (1 - pDiffuse);
+                  ray.color.z = ray.color.z * pDiffuse + (1 - pDiffuse);
+                  ray.color.x *= next.color.x;
+                  ray.color.y *= next.color.y;
+                  ray.color.z *= next.color.z;
+                  hit = true;
+                }
+              }
+            }
+          }
+
+        } else {
+
+          next.set(ray);
+          next.o.scaleAdd(Ray.OFFSET, next.d);
+
+          if (pathTrace(scene, next, state, 1, false)) {
+            ray.color.x = ray.color.x * pDiffuse + (1 - pDiffuse);
+            ray.color.y = ray.color.y * pDiffuse + (1 - pDiffuse);
+            ray.color.z = ray.color.z * pDiffuse + (1 - pDiffuse);
+            ray.color.x *= next.color.x;
+            ray.color.y *= next.color.y;
+            ray.color.z *= next.color.z;
+            hit = true;
+          }
+        }
+      }
+
+      if (hit && prevMat.isWater()) {
+        // Render water fog effect.
+        if(scene.waterVisibility == 0) {
+          ray.color.scale(0.);
+        } else {
+          double a = ray.distance / scene.waterVisibility;
+          double attenuation = Math.exp(-a);
+          ray.color.scale(attenuation);
+        }
+      }
+
+      break;
+    }
+    if (!hit) {
+      ray.color.set(0, 0, 0, 1);
+      if (firstReflection) {
+        airDistance = ray.distance;
+      }
+    }
+
+    // Simplistic fog model, see PathTracer for details.
+    if (airDistance > 0 && scene.fogEnabled()) {
+      Sun sun = scene.sun;
+
+      // The rays spawned from this ray are done, so their slot can be
+      // reused for the atmosphere ray.
+      Ray atmos = state.rayAt(ray.depth + 1);
+      atmos.setDefault();
+      clearBlockData(atmos);
+      double offset = QuickMath.clamp(airDistance * random.nextFloat(),
+          Ray.EPSILON, airDistance - Ray.EPSILON);
+      atmos.o.set(ox + offset * dx, oy + offset * dy, oz + offset * dz);
+      sun.getRandomSunDirection(atmos, random);
+      atmos.setCurrentMaterial(Air.INSTANCE, 0);
+
+      double fogDensity = scene.getFogDensity() * EXTINCTION_FACTOR;
+      double extinction = Math.exp(-airDistance * fogDensity);
+      ray.color.scale(extinction);
+
+      // Check sun visibility at random point to determine inscatter brightness.
+      PathTracer.getDirectLightAttenuation(scene, atmos, state);
+      Vector4 attenuation = state.attenuation;
+      if (attenuation.w > Ray.EPSILON) {
+        Vector3 fogColor = scene.getFogColor();
+        double inscatter;
+        if (scene.fastFog()) {
+          inscatter = (1 - extinction);
+        } else {
+          inscatter = airDistance * fogDensity * Math.exp(-offset * fogDensity);
+        }
+        ray.color.x += attenuation.x * attenuation.w * fogColor.x * inscatter;
+        ray.color.y += attenuation.y * attenuation.w * fogColor.y * inscatter;
+        ray.color.z += attenuation.z * attenuation.w * fogColor.z * inscatter;
+      }
+    }
+
+    return hit;
+  }
+
+  /**
+   * Clear the block data left from the previous use of a preallocated ray,
+   * so that it starts out in the same state as a newly allocated ray.
+   */
+  static void clearBlockData(Ray ray) {
+    ray.setPrevMaterial(ray.getPrevMaterial(), 0);
+    ray.setCurrentMaterial(ray.getCurrentMaterial(), 0);
+  }
+}
@@ -120,9 +120,9 @@ public class SynchronousSceneManager implements SceneProvider, SceneManager {
           }
         }
 
-        // Create backup of scene description and current render dump.
+        // Create backup of scene description. The render dump is backed up
+        // by the scene when it is rewritten.
         storedScene.backupFile(context, context.getSceneDescriptionFile(sceneName));
-        storedScene.backupFile(context, sceneName + ".dump");
 
         // Copy render status over from the renderer.
         RenderStatus status = renderer.getRenderStatus();
@@ -248,11 +248,11 @@ public class SynchronousSceneManager implements SceneProvider, SceneManager {
    */
   protected void mergeDump(File dumpFile) {
     synchronized (scene) {
-      renderer.withSampleBufferProtected((samples, width, height) ->{
+      renderer.withSamplesProtected((samples, width, height) ->{
         if (width != scene.width || height != scene.height) {
           throw new Error("Failed to merge render dump - wrong canvas size.");
         }
-        scene.mergeDump(dumpFile, taskTracker);
+        scene.mergeDump(dumpFile, taskTracker, context.numRenderThreads());
       });
       scene.setResetReason(ResetReason.SCENE_LOADED);
     }
@@ -330,7 +330,7 @@ public class ChunkMap implements ChunkUpdateListener, ChunkViewListener, CameraV
     lastY = (int) event.getY();
 
     ChunkPosition chunk = getChunk(event);
-    if (chunk != end) {
+    if (!chunk.equals(end)) {
       end = chunk;
       repaintDirect();
     }
@@ -426,7 +426,7 @@ public class ChunkMap implements ChunkUpdateListener, ChunkViewListener, CameraV
 
   public void onMouseMoved(MouseEvent event) {
     ChunkPosition chunk = getChunk(event);
-    if (chunk != start) {
+    if (!chunk.equals(start)) {
       start = chunk;
       end = chunk;
       repaintDirect();
@@ -743,6 +743,12 @@ public class ChunkyFxController
         fileChooser.getExtensionFilters().add(
             new FileChooser.ExtensionFilter("TIFF files", "*.tiff"));
         break;
+      case EXR_16:
+      case EXR_32:
+        extension = ".exr";
+        fileChooser.getExtensionFilters().add(
+            new FileChooser.ExtensionFilter("OpenEXR files", "*.exr"));
+        break;
     }
     fileChooser.setInitialFileName(String.format("%s-%d%s",
         scene.name(), renderer.getRenderStatus().getSpp(), extension));
@@ -30,8 +30,10 @@ import javafx.stage.FileChooser;
 import se.llbit.chunky.PersistentSettings;
 import se.llbit.chunky.renderer.OutputMode;
 import se.llbit.chunky.renderer.RenderController;
+import se.llbit.chunky.renderer.SamplePrecision;
 import se.llbit.chunky.renderer.scene.AsynchronousSceneManager;
 import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.ui.DoubleAdjuster;
 import se.llbit.chunky.ui.IntegerAdjuster;
 import se.llbit.chunky.ui.RenderControlsFxController;
 import se.llbit.chunky.ui.ShutdownAlert;
@@ -49,10 +51,14 @@ public class AdvancedTab extends ScrollPane implements RenderControlsTab, Initia
   @FXML private IntegerAdjuster renderThreads;
   @FXML private IntegerAdjuster cpuLoad;
   @FXML private IntegerAdjuster rayDepth;
+  @FXML private CheckBox adaptiveSampling;
+  @FXML private DoubleAdjuster noiseThreshold;
+  @FXML private CheckBox denoise;
   @FXML private Button mergeRenderDump;
   @FXML private CheckBox shutdown;
   @FXML private CheckBox fastFog;
   @FXML private ChoiceBox<OutputMode> outputMode;
+  @FXML private ChoiceBox<SamplePrecision> samplePrecision;
 
   public AdvancedTab() throws IOException {
     FXMLLoader loader = new FXMLLoader(getClass().getResource("AdvancedTab.fxml"));
@@ -76,6 +82,20 @@ public class AdvancedTab extends ScrollPane implements RenderControlsTab, Initia
     rayDepth.setRange(1, 25);
     rayDepth.clampMin();
     rayDepth.onValueChange(value -> scene.setRayDepth(value));
+    adaptiveSampling.setTooltip(new Tooltip(
+        "Stop sampling pixels when their noise is below the noise threshold."));
+    adaptiveSampling.selectedProperty().addListener(
+        (observable, oldValue, newValue) -> scene.setAdaptiveSampling(newValue));
+    noiseThreshold.setName("Noise threshold");
+    noiseThreshold.setTooltip("Relative pixel noise at which adaptive sampling stops.");
+    noiseThreshold.setRange(0.001, 0.1);
+    noiseThreshold.clampMin();
+    noiseThreshold.makeLogarithmic();
+    noiseThreshold.onValueChange(value -> scene.setNoiseThreshold(value));
+    denoise.setTooltip(new Tooltip(
+        "Remove noise from the final image, guided by the surface color and normals."));
+    denoise.selectedProperty().addListener(
+        (observable, oldValue, newValue) -> scene.setDenoise(newValue));
     mergeRenderDump
         .setTooltip(new Tooltip("Merge an existing render dump with the current render."));
     mergeRenderDump.setOnAction(e -> {
@@ -91,6 +111,11 @@ public class AdvancedTab extends ScrollPane implements RenderControlsTab, Initia
     });
     outputMode.getSelectionModel().selectedItemProperty()
         .addListener((observable, oldValue, newValue) -> scene.setOutputMode(newValue));
+    samplePrecision.getItems().addAll(SamplePrecision.values());
+    samplePrecision.setTooltip(new Tooltip(
+        "Precision of the sample buffer. Float precision uses half the memory."));
+    samplePrecision.getSelectionModel().selectedItemProperty()
+        .addListener((observable, oldValue, newValue) -> scene.setSamplePrecision(newValue));
     if (!ShutdownAlert.canShutdown()) {
       shutdown.setDisable(true);
     }
@@ -113,10 +138,14 @@ public class AdvancedTab extends ScrollPane implements RenderControlsTab, Initia
 
   @Override public void update(Scene scene) {
     outputMode.getSelectionModel().select(scene.getOutputMode());
+    samplePrecision.getSelectionModel().select(scene.getSamplePrecision());
     fastFog.setSelected(scene.fastFog());
     renderThreads.set(PersistentSettings.getNumThreads());
     cpuLoad.set(PersistentSettings.getCPULoad());
     rayDepth.set(scene.getRayDepth());
+    adaptiveSampling.setSelected(scene.adaptiveSampling());
+    noiseThreshold.set(scene.getNoiseThreshold());
+    denoise.setSelected(scene.denoise());
   }
 
   @Override public String getTabTitle() {
@@ -79,6 +79,7 @@ public class GeneralTab extends ScrollPane implements RenderControlsTab, Initial
   @FXML private ComboBox<Number> dumpFrequency;
   @FXML private IntegerAdjuster yMin;
   @FXML private IntegerAdjuster yMax;
+  @FXML private IntegerAdjuster biomeBlendRadius;
 
   private ChangeListener<String> canvasSizeListener =
       (observable, oldValue, newValue) -> updateCanvasSize();
@@ -98,6 +99,7 @@ public class GeneralTab extends ScrollPane implements RenderControlsTab, Initial
   @Override public void update(Scene scene) {
     yMin.set(scene.getYClipMin());
     yMax.set(scene.getYClipMax());
+    biomeBlendRadius.set(scene.getBiomeBlendRadius());
     canvasSize.valueProperty().removeListener(canvasSizeListener);
     canvasSize.setValue(String.format("%dx%d", scene.width, scene.height));
     canvasSize.valueProperty().addListener(canvasSizeListener);
@@ -216,6 +218,13 @@ public class GeneralTab extends ScrollPane implements RenderControlsTab, Initial
       scene.setYClipMin(value);
       renderControls.showPopup("Reload the chunks for this to take effect.", yMax);
     });
+    biomeBlendRadius.setRange(0, Scene.MAX_BIOME_BLEND_RADIUS);
+    biomeBlendRadius.setTooltip(
+        "Radius in blocks for blending biome colors. Requires reloading chunks to take effect.");
+    biomeBlendRadius.onValueChange(value -> {
+      scene.setBiomeBlendRadius(value);
+      renderControls.showPopup("Reload the chunks for this to take effect.", biomeBlendRadius);
+    });
     openSceneDirBtn.setTooltip(
         new Tooltip("Open the directory where Chunky stores scene descriptions and renders."));
     openSceneDirBtn.setOnAction(e -> chunkyFxController.openSceneDirectory());
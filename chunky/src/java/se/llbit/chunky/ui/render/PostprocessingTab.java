@@ -33,6 +33,9 @@ import se.llbit.util.TaskTracker;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PostprocessingTab extends ScrollPane implements RenderControlsTab, Initializable {
   private Scene scene;
@@ -41,6 +44,20 @@ public class PostprocessingTab extends ScrollPane implements RenderControlsTab,
   @FXML private DoubleAdjuster exposure;
   @FXML private ChoiceBox<Postprocess> postprocessingMode;
 
+  /**
+   * Post-processes the frame outside the JavaFX application thread, because
+   * it can take a long time, for example when the frame is denoised.
+   */
+  private final ExecutorService postprocessExecutor = Executors.newSingleThreadExecutor(
+      runnable -> {
+        Thread thread = new Thread(runnable, "Frame post-processing");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /** Set while a post-processing update is queued but has not started. */
+  private final AtomicBoolean postprocessQueued = new AtomicBoolean(false);
+
   public PostprocessingTab() throws IOException {
     FXMLLoader loader = new FXMLLoader(getClass().getResource("PostprocessingTab.fxml"));
     loader.setRoot(this);
@@ -72,8 +89,7 @@ public class PostprocessingTab extends ScrollPane implements RenderControlsTab,
     postprocessingMode.getSelectionModel().selectedItemProperty().addListener(
         (observable, oldValue, newValue) -> {
           scene.setPostprocess(newValue);
-          scene.postProcessFrame(new TaskTracker(ProgressListener.NONE));
-          controller.getCanvas().forceRepaint();
+          postProcessFrame();
         });
     exposure.setName("Exposure");
     exposure.setRange(Scene.MIN_EXPOSURE, Scene.MAX_EXPOSURE);
@@ -81,8 +97,21 @@ public class PostprocessingTab extends ScrollPane implements RenderControlsTab,
     exposure.clampMin();
     exposure.onValueChange(value -> {
       scene.setExposure(value);
-      scene.postProcessFrame(new TaskTracker(ProgressListener.NONE));
-      controller.getCanvas().forceRepaint();
+      postProcessFrame();
     });
   }
+
+  /**
+   * Post-process the frame with the current settings and repaint the canvas.
+   * Updates requested while one is queued are merged into that update.
+   */
+  private void postProcessFrame() {
+    if (postprocessQueued.compareAndSet(false, true)) {
+      postprocessExecutor.submit(() -> {
+        postprocessQueued.set(false);
+        scene.postProcessFrame(new TaskTracker(ProgressListener.NONE));
+        controller.getCanvas().forceRepaint();
+      });
+    }
+  }
 }
@@ -24,6 +24,7 @@ import se.llbit.chunky.map.BiomeLayer;
 import se.llbit.chunky.map.IconLayer;
 import se.llbit.chunky.map.MapTile;
 import se.llbit.chunky.map.SurfaceLayer;
+import se.llbit.log.Log;
 import se.llbit.math.QuickMath;
 import se.llbit.nbt.CompoundTag;
 import se.llbit.nbt.ErrorTag;
@@ -250,7 +251,7 @@ public class Chunk {
     return version;
   }
 
-  private static void loadBlockData(@NotNull Map<String, Tag> data, @NotNull int[] blocks,
+  static void loadBlockData(@NotNull Map<String, Tag> data, @NotNull int[] blocks,
       BlockPalette blockPalette) {
     Tag sections = data.get(LEVEL_SECTIONS);
     if (sections.isList()) {
@@ -374,45 +375,47 @@ public class Chunk {
   public synchronized void getBlockData(int[] blocks, byte[] biomes,
       Collection<CompoundTag> tileEntities, Collection<CompoundTag> entities,
       BlockPalette blockPalette) {
+    getBlockData(readBlockData(), blocks, biomes, tileEntities, entities,
+        new ChunkDecoder(blockPalette));
+  }
 
-    for (int i = 0; i < CHUNK_BYTES; ++i) {
-      blocks[i] = blockPalette.airId;
-    }
-
-    for (int i = 0; i < X_MAX * Z_MAX; ++i) {
-      biomes[i] = 0;
-    }
+  /**
+   * Find the chunk data needed by {@link #getBlockData}. The chunk is
+   * inflated and decoded when the returned data source is read.
+   *
+   * @return chunk data source, with a {@code null} input stream if the chunk
+   * could not be loaded
+   */
+  public synchronized ChunkDataSource readBlockData() {
+    Region region = world.getRegion(position.getRegionPosition());
+    ChunkDataSource data = region.getChunkData(position);
+    dataTimestamp = data.timestamp;
+    return data;
+  }
 
-    Set<String> request = new HashSet<>();
-    request.add(LEVEL_SECTIONS);
-    request.add(LEVEL_BIOMES);
-    request.add(LEVEL_ENTITIES);
-    request.add(LEVEL_TILEENTITIES);
-    Map<String, Tag> data = getChunkData(request);
-    // TODO: improve error handling here.
-    if (data == null) {
+  /**
+   * Decode the block data read by {@link #readBlockData()}. The data source
+   * is closed after decoding. If the data can not be decoded, a warning is
+   * logged and the chunk is left empty.
+   *
+   * <p>This does not access the chunk state, so several chunks can be
+   * decoded in parallel, using one decoder per thread.
+   *
+   * @param data chunk data source
+   * @param blocks block order: y, z, x.
+   */
+  public void getBlockData(ChunkDataSource data, int[] blocks, byte[] biomes,
+      Collection<CompoundTag> tileEntities, Collection<CompoundTag> entities,
+      ChunkDecoder decoder) {
+    if (data.inputStream == null) {
+      decoder.reset(blocks, biomes);
       return;
     }
-    Tag sections = data.get(LEVEL_SECTIONS);
-    Tag biomesTag = data.get(LEVEL_BIOMES);
-    Tag entitiesTag = data.get(LEVEL_ENTITIES);
-    Tag tileEntitiesTag = data.get(LEVEL_TILEENTITIES);
-    if (biomesTag.isByteArray(X_MAX * Z_MAX) || biomesTag.isIntArray(X_MAX * Z_MAX)) {
-      extractBiomeData(biomesTag, biomes);
-    }
-    if (sections.isList() && tileEntitiesTag.isList()
-        && entitiesTag.isList()) {
-      loadBlockData(data, blocks, blockPalette);
-      ListTag list = (ListTag) entitiesTag;
-      for (SpecificTag tag : list) {
-        if (tag.isCompoundTag())
-          entities.add((CompoundTag) tag);
-      }
-      list = (ListTag) tileEntitiesTag;
-      for (SpecificTag tag : list) {
-        if (tag.isCompoundTag())
-          tileEntities.add((CompoundTag) tag);
-      }
+    try (DataInputStream in = data.inputStream) {
+      decoder.decode(in, blocks, biomes, tileEntities, entities);
+    } catch (IOException e) {
+      // The decoder leaves the chunk empty.
+      Log.warn("Failed to decode chunk " + position, e);
     }
   }
 
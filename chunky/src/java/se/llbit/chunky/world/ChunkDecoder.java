@@ -0,0 +1,490 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.world;
+
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.math.QuickMath;
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.Tag;
+import se.llbit.util.BitBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decodes the block data of a chunk directly from the NBT stream.
+ *
+ * <p>Only the tags needed for rendering are read: the sections, biomes,
+ * entities and tile entities of the chunk. All other tags are skipped
+ * without building NBT tag objects. Block palette entries are copied as raw
+ * NBT bytes and looked up with {@link BlockPalette#put(byte[], int)}, so
+ * each distinct palette entry is only parsed once. The block states are
+ * read into a reused long array.
+ *
+ * <p>Entities and tile entities are still parsed into compound tags, since
+ * they are used as tags by the entity loading code.
+ *
+ * <p>A decoder reuses its buffers between chunks and must only be used by
+ * one thread at a time.
+ */
+public class ChunkDecoder {
+  private static final int TAG_END = 0;
+  private static final int TAG_BYTE = 1;
+  private static final int TAG_SHORT = 2;
+  private static final int TAG_INT = 3;
+  private static final int TAG_LONG = 4;
+  private static final int TAG_FLOAT = 5;
+  private static final int TAG_DOUBLE = 6;
+  private static final int TAG_BYTE_ARRAY = 7;
+  private static final int TAG_STRING = 8;
+  private static final int TAG_LIST = 9;
+  private static final int TAG_COMPOUND = 10;
+  private static final int TAG_INT_ARRAY = 11;
+  private static final int TAG_LONG_ARRAY = 12;
+
+  private static final int SECTION_BLOCKS = Chunk.X_MAX * 16 * Chunk.Z_MAX;
+  private static final int SECTIONS = Chunk.Y_MAX / 16;
+  private static final int CHUNK_BLOCKS = Chunk.X_MAX * Chunk.Y_MAX * Chunk.Z_MAX;
+  private static final int BIOMES = Chunk.X_MAX * Chunk.Z_MAX;
+
+  private final BlockPalette palette;
+
+  private DataInputStream in;
+
+  /** Raw NBT data of the current palette entry. */
+  private byte[] raw = new byte[256];
+  private int rawLength;
+
+  /** Block IDs for the palette of the current section. */
+  private int[] subpalette = new int[16];
+
+  private byte[] blockStateBytes = new byte[8 * 256];
+  private long[] blockStates = new long[256];
+
+  private final List<CompoundTag> entities = new ArrayList<>();
+  private final List<CompoundTag> tileEntities = new ArrayList<>();
+
+  public ChunkDecoder(BlockPalette palette) {
+    this.palette = palette;
+  }
+
+  /**
+   * Decode the chunk NBT data from an inflated chunk stream.
+   *
+   * <p>The blocks and biomes are reset before decoding. Blocks are only
+   * loaded if the chunk has section, entity and tile entity lists. If the
+   * chunk data is corrupt the blocks are left as air.
+   *
+   * @param blocks block order: y, z, x.
+   * @throws IOException if the chunk data could not be read
+   */
+  public void decode(InputStream input, int[] blocks, byte[] biomes,
+      Collection<CompoundTag> tileEntities, Collection<CompoundTag> entities)
+      throws IOException {
+    reset(blocks, biomes);
+    this.entities.clear();
+    this.tileEntities.clear();
+    in = new DataInputStream(new BufferedInputStream(input));
+    try {
+      if (in.readByte() != TAG_COMPOUND) {
+        return;
+      }
+      skipString();
+      boolean complete = false;
+      while (true) {
+        int type = in.readByte();
+        if (type == TAG_END) {
+          break;
+        }
+        String name = in.readUTF();
+        if (type == TAG_COMPOUND && name.equals("Level")) {
+          complete = decodeLevel(blocks, biomes);
+        } else {
+          skip(type);
+        }
+      }
+      if (complete) {
+        entities.addAll(this.entities);
+        tileEntities.addAll(this.tileEntities);
+      } else {
+        Arrays.fill(blocks, 0, CHUNK_BLOCKS, palette.airId);
+      }
+    } catch (IOException e) {
+      reset(blocks, biomes);
+      throw e;
+    } finally {
+      in = null;
+    }
+  }
+
+  /** Fill the blocks with air and reset the biomes. */
+  public void reset(int[] blocks, byte[] biomes) {
+    Arrays.fill(blocks, 0, CHUNK_BLOCKS, palette.airId);
+    Arrays.fill(biomes, 0, BIOMES, (byte) 0);
+  }
+
+  /**
+   * Decode the Level compound.
+   *
+   * @return {@code true} if the section, entity and tile entity lists were
+   * found
+   */
+  private boolean decodeLevel(int[] blocks, byte[] biomes) throws IOException {
+    boolean hasSections = false;
+    boolean hasEntities = false;
+    boolean hasTileEntities = false;
+    while (true) {
+      int type = in.readByte();
+      if (type == TAG_END) {
+        break;
+      }
+      String name = in.readUTF();
+      if (type == TAG_LIST && name.equals("Sections")) {
+        hasSections = true;
+        int elementType = in.readByte();
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+          if (elementType == TAG_COMPOUND) {
+            decodeSection(blocks);
+          } else {
+            skip(elementType);
+          }
+        }
+      } else if (type == TAG_LIST && name.equals("Entities")) {
+        hasEntities = true;
+        readCompoundList(entities);
+      } else if (type == TAG_LIST && name.equals("TileEntities")) {
+        hasTileEntities = true;
+        readCompoundList(tileEntities);
+      } else if (name.equals("Biomes")) {
+        readBiomes(type, biomes);
+      } else {
+        skip(type);
+      }
+    }
+    return hasSections && hasEntities && hasTileEntities;
+  }
+
+  private void decodeSection(int[] blocks) throws IOException {
+    int y = 0;
+    int paletteSize = -1;
+    int blockStatesLength = -1;
+    while (true) {
+      int type = in.readByte();
+      if (type == TAG_END) {
+        break;
+      }
+      String name = in.readUTF();
+      if (type == TAG_BYTE && name.equals("Y")) {
+        y = in.readByte() & 0xFF;
+      } else if (type == TAG_LIST && name.equals("Palette")) {
+        paletteSize = readPalette();
+      } else if (type == TAG_LONG_ARRAY && name.equals("BlockStates")) {
+        blockStatesLength = readBlockStates();
+      } else {
+        skip(type);
+      }
+    }
+    if (paletteSize < 0 || y >= SECTIONS) {
+      // Pre-1.13 sections are not supported.
+      return;
+    }
+    // Bits per block:
+    int bpb = 4;
+    if (paletteSize > 16) {
+      bpb = QuickMath.log2(QuickMath.nextPow2(paletteSize));
+    }
+    int dataSize = (SECTION_BLOCKS * bpb) / 64;
+    if (blockStatesLength < dataSize) {
+      return;
+    }
+    // Since 20w17a, block states are aligned to 64-bit boundaries, so there are 64 % bpb
+    // unused bits per block state; if so, the array is longer than the expected data size.
+    boolean isAligned = blockStatesLength > dataSize;
+    BitBuffer buffer = new BitBuffer(blockStates, bpb, isAligned);
+    int offset = SECTION_BLOCKS * y;
+    for (int i = 0; i < SECTION_BLOCKS; ++i) {
+      int b0 = buffer.read();
+      if (b0 < paletteSize) {
+        blocks[offset] = subpalette[b0];
+      }
+      offset += 1;
+    }
+  }
+
+  /**
+   * Read the palette of a section into the subpalette.
+   *
+   * @return the palette size, or -1 if the list did not contain compounds
+   */
+  private int readPalette() throws IOException {
+    int elementType = in.readByte();
+    int count = in.readInt();
+    if (elementType != TAG_COMPOUND) {
+      for (int i = 0; i < count; ++i) {
+        skip(elementType);
+      }
+      return count > 0 ? -1 : 0;
+    }
+    if (count > subpalette.length) {
+      subpalette = new int[QuickMath.nextPow2(count)];
+    }
+    for (int i = 0; i < count; ++i) {
+      rawLength = 0;
+      copy(TAG_COMPOUND);
+      subpalette[i] = palette.put(raw, rawLength);
+    }
+    return count;
+  }
+
+  /**
+   * Read a long array payload into the block states buffer.
+   *
+   * @return the array length
+   */
+  private int readBlockStates() throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Negative array length in chunk data.");
+    }
+    if (length > blockStates.length) {
+      blockStates = new long[length];
+      blockStateBytes = new byte[length * 8];
+    }
+    in.readFully(blockStateBytes, 0, length * 8);
+    ByteBuffer.wrap(blockStateBytes, 0, length * 8).asLongBuffer().get(blockStates, 0, length);
+    return length;
+  }
+
+  private void readBiomes(int type, byte[] biomes) throws IOException {
+    if (type == TAG_BYTE_ARRAY) {
+      int length = in.readInt();
+      if (length == BIOMES) {
+        in.readFully(biomes, 0, BIOMES);
+      } else {
+        skipBytes(length);
+      }
+    } else if (type == TAG_INT_ARRAY) {
+      int length = in.readInt();
+      if (length == BIOMES) {
+        // Since Minecraft 1.13, biome IDs are stored in an int vector.
+        for (int i = 0; i < BIOMES; ++i) {
+          biomes[i] = (byte) in.readInt();
+        }
+      } else {
+        skipBytes(4L * length);
+      }
+    } else {
+      skip(type);
+    }
+  }
+
+  /** Read the payload of a list and keep the compound elements. */
+  private void readCompoundList(Collection<CompoundTag> result) throws IOException {
+    int elementType = in.readByte();
+    int count = in.readInt();
+    for (int i = 0; i < count; ++i) {
+      if (elementType == TAG_COMPOUND) {
+        Tag tag = CompoundTag.read(in);
+        if (tag.isError()) {
+          throw new IOException("Error while reading chunk entities: " + tag.error());
+        }
+        if (tag.isCompoundTag()) {
+          result.add((CompoundTag) tag);
+        }
+      } else {
+        skip(elementType);
+      }
+    }
+  }
+
+  private void skipString() throws IOException {
+    skipBytes(in.readUnsignedShort());
+  }
+
+  /** Skip the payload of a tag. */
+  private void skip(int type) throws IOException {
+    switch (type) {
+      case TAG_END:
+        break;
+      case TAG_BYTE:
+        skipBytes(1);
+        break;
+      case TAG_SHORT:
+        skipBytes(2);
+        break;
+      case TAG_INT:
+      case TAG_FLOAT:
+        skipBytes(4);
+        break;
+      case TAG_LONG:
+      case TAG_DOUBLE:
+        skipBytes(8);
+        break;
+      case TAG_BYTE_ARRAY:
+        skipBytes(in.readInt());
+        break;
+      case TAG_STRING:
+        skipString();
+        break;
+      case TAG_LIST: {
+        int elementType = in.readByte();
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+          skip(elementType);
+        }
+        break;
+      }
+      case TAG_COMPOUND:
+        while (true) {
+          int elementType = in.readByte();
+          if (elementType == TAG_END) {
+            break;
+          }
+          skipString();
+          skip(elementType);
+        }
+        break;
+      case TAG_INT_ARRAY:
+        skipBytes(4L * in.readInt());
+        break;
+      case TAG_LONG_ARRAY:
+        skipBytes(8L * in.readInt());
+        break;
+      default:
+        throw new IOException("Unknown NBT tag type: " + type);
+    }
+  }
+
+  private void skipBytes(long count) throws IOException {
+    if (count < 0) {
+      throw new IOException("Negative array length in chunk data.");
+    }
+    while (count > 0) {
+      int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+      if (skipped <= 0) {
+        throw new EOFException();
+      }
+      count -= skipped;
+    }
+  }
+
+  /** Copy the payload of a tag to the raw data buffer. */
+  private void copy(int type) throws IOException {
+    switch (type) {
+      case TAG_END:
+        break;
+      case TAG_BYTE:
+        copyBytes(1);
+        break;
+      case TAG_SHORT:
+        copyBytes(2);
+        break;
+      case TAG_INT:
+      case TAG_FLOAT:
+        copyBytes(4);
+        break;
+      case TAG_LONG:
+      case TAG_DOUBLE:
+        copyBytes(8);
+        break;
+      case TAG_BYTE_ARRAY:
+        copyBytes(copyInt());
+        break;
+      case TAG_STRING:
+        copyString();
+        break;
+      case TAG_LIST: {
+        int elementType = copyByte();
+        int count = copyInt();
+        for (int i = 0; i < count; ++i) {
+          copy(elementType);
+        }
+        break;
+      }
+      case TAG_COMPOUND:
+        while (true) {
+          int elementType = copyByte();
+          if (elementType == TAG_END) {
+            break;
+          }
+          copyString();
+          copy(elementType);
+        }
+        break;
+      case TAG_INT_ARRAY:
+        copyBytes(4L * copyInt());
+        break;
+      case TAG_LONG_ARRAY:
+        copyBytes(8L * copyInt());
+        break;
+      default:
+        throw new IOException("Unknown NBT tag type: " + type);
+    }
+  }
+
+  private int copyByte() throws IOException {
+    ensureRaw(1);
+    int value = in.readByte();
+    raw[rawLength++] = (byte) value;
+    return value;
+  }
+
+  private int copyInt() throws IOException {
+    ensureRaw(4);
+    int value = in.readInt();
+    raw[rawLength++] = (byte) (value >>> 24);
+    raw[rawLength++] = (byte) (value >>> 16);
+    raw[rawLength++] = (byte) (value >>> 8);
+    raw[rawLength++] = (byte) value;
+    return value;
+  }
+
+  private void copyString() throws IOException {
+    ensureRaw(2);
+    int length = in.readUnsignedShort();
+    raw[rawLength++] = (byte) (length >>> 8);
+    raw[rawLength++] = (byte) length;
+    copyBytes(length);
+  }
+
+  private void copyBytes(long count) throws IOException {
+    if (count < 0 || count > Integer.MAX_VALUE / 2) {
+      throw new IOException("Invalid array length in chunk data: " + count);
+    }
+    ensureRaw((int) count);
+    in.readFully(raw, rawLength, (int) count);
+    rawLength += (int) count;
+  }
+
+  private void ensureRaw(int count) throws IOException {
+    if (rawLength + count > raw.length) {
+      if (rawLength + count > Integer.MAX_VALUE / 2) {
+        throw new IOException("Block palette entry is too large.");
+      }
+      raw = Arrays.copyOf(raw, Math.max(rawLength + count, raw.length * 2));
+    }
+  }
+}
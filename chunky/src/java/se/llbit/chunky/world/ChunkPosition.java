@@ -16,9 +16,6 @@
  */
 package se.llbit.chunky.world;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * A chunk position consists of two integer coordinates x and z.
  * <p>
@@ -27,7 +24,7 @@ import java.util.Map;
  * @author Jesper Öqvist (jesper@llbit.se)
  */
 public class ChunkPosition {
-  public int x, z;
+  public final int x, z;
 
   private ChunkPosition(int x, int z) {
     this.x = x;
@@ -42,22 +39,25 @@ public class ChunkPosition {
     return get(x >> 5, z >> 5);
   }
 
-  private final static Map<Integer, Map<Integer, ChunkPosition>> map = new HashMap<>();
-
-  public synchronized static ChunkPosition get(int x, int z) {
-    Map<Integer, ChunkPosition> submap = map.get(x);
-    if (submap == null) {
-      submap = new HashMap<>();
-      map.put(x, submap);
-    }
+  /**
+   * Chunk positions are not interned, so they must be compared with
+   * {@link #equals}. Maps that are accessed often should be keyed by
+   * {@link #asLong} instead.
+   */
+  public static ChunkPosition get(int x, int z) {
+    return new ChunkPosition(x, z);
+  }
 
-    ChunkPosition chunkPosition = submap.get(z);
-    if (chunkPosition == null) {
-      chunkPosition = new ChunkPosition(x, z);
-      submap.put(z, chunkPosition);
+  @Override public boolean equals(Object obj) {
+    if (!(obj instanceof ChunkPosition)) {
+      return false;
     }
+    ChunkPosition other = (ChunkPosition) obj;
+    return x == other.x && z == other.z;
+  }
 
-    return chunkPosition;
+  @Override public int hashCode() {
+    return x * 31 + z;
   }
 
   /**
@@ -71,6 +71,13 @@ public class ChunkPosition {
    * @return The long representation of the chunk position
    */
   public long getLong() {
+    return asLong(x, z);
+  }
+
+  /**
+   * @return The long representation of the chunk position (x, z)
+   */
+  public static long asLong(int x, int z) {
     return (((long) x) << 32) | (0xFFFFFFFFL & z);
   }
 
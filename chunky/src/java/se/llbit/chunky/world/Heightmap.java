@@ -16,41 +16,114 @@
  */
 package se.llbit.chunky.world;
 
-import java.util.HashMap;
-import java.util.Map;
+import se.llbit.util.LongHashMap;
+
+import java.util.Arrays;
+import java.util.Collection;
 
 /**
  * Chunk heightmap.
  *
+ * <p>A heightmap can have a dense area, where heights are stored in a
+ * single array. Heights outside the dense area are stored in a sparse map.
+ *
  * @author Jesper Öqvist <jesper@llbit.se>
  */
 public class Heightmap {
 
-  private Map<ChunkPosition, ChunkHeightmap> map = new HashMap<>();
+  /**
+   * The dense area is used if it has at most this many chunks per loaded
+   * chunk, to limit the memory used for chunks that are not loaded.
+   */
+  private static final int DENSE_AREA_FACTOR = 4;
+
+  private final LongHashMap<ChunkHeightmap> map = new LongHashMap<>();
+
+  // Dense area, in blocks.
+  private final int x0;
+  private final int z0;
+  private final int width;
+  private final int depth;
+  private final short[] dense;
+
+  /**
+   * Create a sparse heightmap.
+   */
+  public Heightmap() {
+    this(0, 0, 0, 0);
+  }
+
+  /**
+   * Create a heightmap with a dense area covering the given blocks.
+   */
+  public Heightmap(int x0, int z0, int width, int depth) {
+    this.x0 = x0;
+    this.z0 = z0;
+    this.width = width;
+    this.depth = depth;
+    dense = new short[width * depth];
+    Arrays.fill(dense, (short) World.SEA_LEVEL);
+  }
+
+  /**
+   * Create a heightmap for the given chunks. The heightmap is dense if the
+   * chunks cover most of their bounding rectangle, otherwise it is sparse.
+   */
+  public static Heightmap forChunks(Collection<ChunkPosition> chunks) {
+    if (chunks.isEmpty()) {
+      return new Heightmap();
+    }
+    int xMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE;
+    int zMin = Integer.MAX_VALUE, zMax = Integer.MIN_VALUE;
+    for (ChunkPosition cp : chunks) {
+      xMin = Math.min(xMin, cp.x);
+      xMax = Math.max(xMax, cp.x);
+      zMin = Math.min(zMin, cp.z);
+      zMax = Math.max(zMax, cp.z);
+    }
+    long area = (long) (xMax - xMin + 1) * (zMax - zMin + 1);
+    if (area <= (long) DENSE_AREA_FACTOR * chunks.size()) {
+      return new Heightmap(xMin * 16, zMin * 16, (xMax - xMin + 1) * 16, (zMax - zMin + 1) * 16);
+    } else {
+      return new Heightmap();
+    }
+  }
+
+  private boolean inDenseArea(int x, int z) {
+    return x >= x0 && x < x0 + width && z >= z0 && z < z0 + depth;
+  }
 
   /**
    * Set height y at (x, z).
    */
-  public synchronized void set(int y, int x, int z) {
-    ChunkPosition cp = ChunkPosition.get(x >> 5, z >> 5);
-    ChunkHeightmap hm = map.get(cp);
-    if (hm == null) {
-      hm = new ChunkHeightmap();
-      map.put(cp, hm);
+  public void set(int y, int x, int z) {
+    if (inDenseArea(x, z)) {
+      dense[(z - z0) * width + x - x0] = (short) y;
+    } else {
+      setSparse(y, x, z);
     }
+  }
+
+  private synchronized void setSparse(int y, int x, int z) {
+    ChunkHeightmap hm = map.computeIfAbsent(ChunkPosition.asLong(x >> 5, z >> 5),
+        key -> new ChunkHeightmap());
     hm.set(y, x & 0x1F, z & 0x1F);
   }
 
   /**
    * @return Height at (x, z)
    */
-  public synchronized int get(int x, int z) {
-    ChunkPosition cp = ChunkPosition.get(x >> 5, z >> 5);
-    ChunkHeightmap hm = map.get(cp);
-    if (hm == null) {
-      hm = new ChunkHeightmap();
-      map.put(cp, hm);
+  public int get(int x, int z) {
+    if (inDenseArea(x, z)) {
+      return dense[(z - z0) * width + x - x0];
+    } else {
+      return getSparse(x, z);
     }
+  }
+
+  private synchronized int getSparse(int x, int z) {
+    ChunkHeightmap hm = map.computeIfAbsent(ChunkPosition.asLong(x >> 5, z >> 5),
+        key -> new ChunkHeightmap());
     return hm.get(x & 0x1F, z & 0x1F);
   }
 
@@ -20,7 +20,9 @@ import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
@@ -123,6 +125,8 @@ public class Region implements Iterable<Chunk> {
       return;
     }
     regionFileTime = modtime;
+    // The header is read without the cached mapping, so that it is up to date
+    // even if the file was rewritten without changing its length.
     try (RandomAccessFile file = new RandomAccessFile(regionFile, "r")) {
       long length = file.length();
       if (length < 2 * SECTOR_SIZE) {
@@ -187,7 +191,7 @@ public class Region implements Iterable<Chunk> {
   /**
    * Sector size in bytes.
    */
-  private final static int SECTOR_SIZE = 4096;
+  private final static int SECTOR_SIZE = RegionFile.SECTOR_SIZE;
 
   /**
    * Opens an input stream for the given chunk.
@@ -213,12 +217,51 @@ public class Region implements Iterable<Chunk> {
   /**
    * Read chunk data from region file.
    *
+   * <p>The chunk is read from the mapped region file. If the file is
+   * truncated while it is mapped, for example by Minecraft while the world
+   * is open, accessing the mapping raises an {@code InternalError}. If that
+   * happens while the chunk is located, the chunk is read from the file
+   * without the mapping instead. Later faults while the compressed data is
+   * read are reported as an {@code IOException} by the returned stream.
+   *
    * @return {@code null} if the chunk could not be loaded
    */
   public static ChunkDataSource getChunkData(File regionFile, ChunkPosition chunkPos) {
     int x = chunkPos.x & 31;
     int z = chunkPos.z & 31;
     int index = x + z * 32;
+    try {
+      RegionFile file = RegionFile.open(regionFile);
+      if (file == null) {
+        Log.warn("Missing header in region file!");
+        return null;
+      }
+      int timestamp;
+      ByteBuffer data;
+      try {
+        timestamp = file.getTimestamp(index);
+        data = file.getChunkData(index);
+        if (data == null) {
+          return null;
+        }
+      } catch (InternalError e) {
+        RegionFile.invalidate(regionFile);
+        return readChunkData(regionFile, index);
+      }
+      // The compressed data is read directly from the mapped file.
+      return chunkDataSource(timestamp, RegionFile.inputStream(data));
+    } catch (IOException e) {
+      System.err.println("Failed to read chunk: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Read chunk data from region file without memory-mapping the file.
+   *
+   * @return {@code null} if the chunk could not be loaded
+   */
+  private static ChunkDataSource readChunkData(File regionFile, int index) throws IOException {
     try (RandomAccessFile file = new RandomAccessFile(regionFile, "r")) {
       long length = file.length();
       if (length < 2 * SECTOR_SIZE) {
@@ -231,36 +274,42 @@ public class Region implements Iterable<Chunk> {
       int sectorOffset = loc >> 8;
       file.seek(SECTOR_SIZE + 4 * index);
       int timestamp = file.readInt();
-      if (length < (sectorOffset + numSectors) * SECTOR_SIZE) {
+      if (length < (long) (sectorOffset + numSectors) * SECTOR_SIZE) {
         System.err.println("Chunk is outside region file!");
         return null;
       }
-      file.seek(sectorOffset * SECTOR_SIZE);
+      file.seek((long) sectorOffset * SECTOR_SIZE);
 
       int chunkSize = file.readInt();
 
-      if (chunkSize > numSectors * SECTOR_SIZE) {
+      if (chunkSize < 1 || chunkSize > numSectors * SECTOR_SIZE) {
         System.err.println("Error: chunk length does not fit in allocated sectors!");
         return null;
       }
 
-      byte type = file.readByte();
-      if (type != 1 && type != 2) {
-        System.err.println("Error: unknown chunk data compression method: " + type + "!");
-        return null;
-      }
-      byte[] buf = new byte[chunkSize - 1];
-      file.read(buf);
-      ByteArrayInputStream in = new ByteArrayInputStream(buf);
-      if (type == 1) {
-        return new ChunkDataSource(timestamp, new GZIPInputStream(in));
-      } else {
-        return new ChunkDataSource(timestamp, new InflaterInputStream(in));
-      }
-    } catch (IOException e) {
-      System.err.println("Failed to read chunk: " + e.getMessage());
+      byte[] buf = new byte[chunkSize];
+      file.readFully(buf);
+      return chunkDataSource(timestamp, new ByteArrayInputStream(buf));
+    }
+  }
+
+  /**
+   * @param in the stored chunk data: the compression type followed by the
+   * compressed data
+   * @return {@code null} if the compression type is not supported
+   */
+  private static ChunkDataSource chunkDataSource(int timestamp, InputStream in)
+      throws IOException {
+    int type = in.read();
+    if (type != 1 && type != 2) {
+      System.err.println("Error: unknown chunk data compression method: " + type + "!");
       return null;
     }
+    if (type == 1) {
+      return new ChunkDataSource(timestamp, new GZIPInputStream(in));
+    } else {
+      return new ChunkDataSource(timestamp, new InflaterInputStream(in));
+    }
   }
 
   /**
@@ -284,6 +333,7 @@ public class Region implements Iterable<Chunk> {
     } catch (IOException e) {
       Log.warnf("Failed to delete chunk: %s", e.getMessage());
     }
+    RegionFile.invalidate(regionFile);
   }
 
   /**
@@ -0,0 +1,191 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.world;
+
+import se.llbit.util.ByteBufferInputStream;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memory-mapped region file.
+ *
+ * <p>The whole file is mapped when it is opened. Chunk data is returned as
+ * slices of the mapped file, without copying. The chunk location and
+ * timestamp tables are read from the mapping on each access, so they stay up
+ * to date when the file is rewritten without changing its modification time
+ * or length.
+ *
+ * <p>Accessing the mapping after the file was truncated raises an
+ * {@code InternalError}. Callers should catch it and read the file without
+ * the mapping, and chunk data should be read through
+ * {@link #inputStream(ByteBuffer)}.
+ *
+ * <p>Mapped files are kept in a cache shared by the map view and the scene
+ * loader, so a region file is only mapped once while its chunks are read.
+ * The least recently used file is dropped from the cache when the cache is
+ * full, and a file is mapped again when it has been modified.
+ *
+ * <p>Dropping a file from the cache does not unmap it. Slices of the mapped
+ * file may still be used by other threads, so the mapping is released by the
+ * garbage collector when no slices remain. Until then the file stays mapped,
+ * which on Windows also keeps it locked.
+ */
+final class RegionFile {
+  /** Sector size in bytes. */
+  static final int SECTOR_SIZE = 4096;
+
+  /** Maximum number of mapped region files. */
+  private static final int CACHE_SIZE = 64;
+
+  private static final Map<File, RegionFile> cache =
+      new LinkedHashMap<File, RegionFile>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<File, RegionFile> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      };
+
+  private final long lastModified;
+  private final long length;
+  private final ByteBuffer data;
+
+  private RegionFile(File file, long lastModified, long length) throws IOException {
+    this.lastModified = lastModified;
+    this.length = length;
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Region file is too large: " + file);
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // The mapping stays valid after the channel is closed.
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length).asReadOnlyBuffer();
+    }
+  }
+
+  /**
+   * Get the mapped region file, from the cache if it has not been modified
+   * since it was mapped.
+   *
+   * @return {@code null} if the file is missing or does not have a complete
+   * header
+   */
+  static RegionFile open(File file) throws IOException {
+    long lastModified = file.lastModified();
+    long length = file.length();
+    synchronized (cache) {
+      RegionFile region = cache.get(file);
+      if (region != null && region.lastModified == lastModified && region.length == length) {
+        return region;
+      }
+      cache.remove(file);
+      if (length < 2 * SECTOR_SIZE) {
+        return null;
+      }
+      region = new RegionFile(file, lastModified, length);
+      cache.put(file, region);
+      return region;
+    }
+  }
+
+  /**
+   * Remove a file from the cache. This should be called after writing to
+   * the file, because the modification time may not change.
+   */
+  static void invalidate(File file) {
+    synchronized (cache) {
+      cache.remove(file);
+    }
+  }
+
+  /**
+   * @param index chunk index, {@code x + z * 32}
+   * @return {@code true} if the chunk exists in the region
+   */
+  boolean hasChunk(int index) {
+    return data.getInt(4 * index) != 0;
+  }
+
+  /**
+   * @param index chunk index, {@code x + z * 32}
+   * @return the chunk timestamp
+   */
+  int getTimestamp(int index) {
+    return data.getInt(SECTOR_SIZE + 4 * index);
+  }
+
+  /**
+   * Get the stored data for a chunk: the compression type byte followed by
+   * the compressed chunk data. The returned buffer is a slice of the mapped
+   * file and can be used from any thread.
+   *
+   * @param index chunk index, {@code x + z * 32}
+   * @return {@code null} if the chunk could not be read
+   */
+  ByteBuffer getChunkData(int index) {
+    int loc = data.getInt(4 * index);
+    if (loc == 0) {
+      return null;
+    }
+    int numSectors = loc & 0xFF;
+    long offset = (long) (loc >>> 8) * SECTOR_SIZE;
+    if (length < offset + (long) numSectors * SECTOR_SIZE) {
+      System.err.println("Chunk is outside region file!");
+      return null;
+    }
+    int chunkSize = data.getInt((int) offset);
+    if (chunkSize < 1 || chunkSize > numSectors * SECTOR_SIZE
+        || offset + 4 + chunkSize > length) {
+      System.err.println("Error: chunk length does not fit in allocated sectors!");
+      return null;
+    }
+    ByteBuffer chunk = data.duplicate();
+    chunk.position((int) offset + 4);
+    chunk.limit((int) offset + 4 + chunkSize);
+    return chunk.slice();
+  }
+
+  /**
+   * Open an input stream for chunk data returned by
+   * {@link #getChunkData(int)}. If the file is truncated while the stream
+   * reads from the mapping, the fault is reported as an {@code IOException}.
+   */
+  static InputStream inputStream(ByteBuffer chunkData) {
+    return new FilterInputStream(new ByteBufferInputStream(chunkData)) {
+      @Override public int read() throws IOException {
+        try {
+          return super.read();
+        } catch (InternalError e) {
+          throw new IOException("Region file was truncated while reading a chunk", e);
+        }
+      }
+
+      @Override public int read(byte[] b, int off, int len) throws IOException {
+        try {
+          return super.read(b, off, len);
+        } catch (InternalError e) {
+          throw new IOException("Region file was truncated while reading a chunk", e);
+        }
+      }
+    };
+  }
+}
@@ -26,6 +26,7 @@ import se.llbit.log.Log;
 import se.llbit.math.Vector3;
 import se.llbit.nbt.NamedTag;
 import se.llbit.nbt.Tag;
+import se.llbit.util.LongHashMap;
 import se.llbit.util.Pair;
 
 import java.io.DataInputStream;
@@ -72,7 +73,7 @@ public class World implements Comparable<World> {
   /** Default sea water level. */
   public static final int SEA_LEVEL = 63;
 
-  private final Map<ChunkPosition, Region> regionMap = new HashMap<>();
+  private final LongHashMap<Region> regionMap = new LongHashMap<>();
 
   private final File worldDirectory;
   private Set<PlayerEntityData> playerEntities;
@@ -265,8 +266,9 @@ public class World implements Comparable<World> {
    * @return The region at the given position
    */
   public synchronized Region getRegion(ChunkPosition pos) {
-    if (regionMap.containsKey(pos)) {
-      return regionMap.get(pos);
+    Region existing = regionMap.get(pos.getLong());
+    if (existing != null) {
+      return existing;
     } else {
       // check if the region is present in the world directory
       Region region = EmptyRegion.instance;
@@ -280,7 +282,7 @@ public class World implements Comparable<World> {
 
   /** Set the region for the given position. */
   public synchronized void setRegion(ChunkPosition pos, Region region) {
-    regionMap.put(pos, region);
+    regionMap.put(pos.getLong(), region);
   }
 
   /**
@@ -373,10 +375,10 @@ public class World implements Comparable<World> {
   /** Called when a new region has been discovered by the region parser. */
   public void regionDiscovered(ChunkPosition pos) {
     synchronized (this) {
-      Region region = regionMap.get(pos);
+      Region region = regionMap.get(pos.getLong());
       if (region == null) {
         region = new Region(pos, this);
-        regionMap.put(pos, region);
+        regionMap.put(pos.getLong(), region);
       }
     }
   }
@@ -16,52 +16,177 @@
  */
 package se.llbit.chunky.world;
 
+import se.llbit.util.LongHashMap;
+
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * World texture.
  *
+ * <p>The texture stores colors for a rectangular area in a dense array, so
+ * that lookups during rendering only need an array index. Colors outside
+ * the dense area are stored in a sparse map of 16x16 tiles.
+ *
  * @author Jesper Öqvist <jesper@llbit.se>
  */
 public class WorldTexture {
 
-  private final Map<ChunkPosition, ChunkTexture> map = new HashMap<>();
+  /**
+   * The dense area is used if it has at most this many tiles per stored
+   * tile. Dense tiles use a third of the memory of sparse tiles, so the
+   * dense texture is then not larger than the sparse texture.
+   */
+  private static final int DENSE_AREA_FACTOR = 3;
+
+  private final LongHashMap<ChunkTexture> map = new LongHashMap<>();
+
+  // Dense area, in tiles.
+  private final int tileX0;
+  private final int tileZ0;
+  private final int tilesX;
+  private final int tilesZ;
+
+  // Dense area, in blocks.
+  private final int x0;
+  private final int z0;
+  private final int width;
+  private final int depth;
+
+  /** RGB colors of the dense area, in x-major order. */
+  private final float[] colors;
+
+  /** Tiles of the dense area that have been set. */
+  private final boolean[] tileSet;
 
   /**
    * Timestamp of last serialization.
    */
   private long timestamp = 0;
 
+  /**
+   * Create a sparse texture.
+   */
+  public WorldTexture() {
+    this(0, 0, 0, 0);
+  }
+
+  /**
+   * Create a texture with a dense area covering the given tiles. A tile is
+   * 16x16 blocks.
+   */
+  public WorldTexture(int tileX0, int tileZ0, int tilesX, int tilesZ) {
+    this.tileX0 = tileX0;
+    this.tileZ0 = tileZ0;
+    this.tilesX = tilesX;
+    this.tilesZ = tilesZ;
+    x0 = tileX0 * 16;
+    z0 = tileZ0 * 16;
+    width = tilesX * 16;
+    depth = tilesZ * 16;
+    colors = new float[width * depth * 3];
+    tileSet = new boolean[tilesX * tilesZ];
+  }
+
+  /**
+   * Create a texture for the loaded chunks of a scene. The texture
+   * coordinates are block coordinates minus the given offset.
+   *
+   * <p>The texture is dense if the chunks cover most of their bounding
+   * rectangle, otherwise it is sparse.
+   */
+  public static WorldTexture forChunks(Collection<ChunkPosition> chunks, int xOffset,
+      int zOffset) {
+    if (chunks.isEmpty()) {
+      return new WorldTexture();
+    }
+    int xMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE;
+    int zMin = Integer.MAX_VALUE, zMax = Integer.MIN_VALUE;
+    for (ChunkPosition cp : chunks) {
+      xMin = Math.min(xMin, (cp.x * 16 - xOffset) >> 4);
+      xMax = Math.max(xMax, (cp.x * 16 + 15 - xOffset) >> 4);
+      zMin = Math.min(zMin, (cp.z * 16 - zOffset) >> 4);
+      zMax = Math.max(zMax, (cp.z * 16 + 15 - zOffset) >> 4);
+    }
+    return forTiles(xMin, zMin, xMax, zMax, chunks.size());
+  }
+
+  private static WorldTexture forTiles(int xMin, int zMin, int xMax, int zMax, int numTiles) {
+    long area = (long) (xMax - xMin + 1) * (zMax - zMin + 1);
+    if (area <= (long) DENSE_AREA_FACTOR * numTiles) {
+      return new WorldTexture(xMin, zMin, xMax - xMin + 1, zMax - zMin + 1);
+    } else {
+      return new WorldTexture();
+    }
+  }
+
+  private boolean inDenseArea(int x, int z) {
+    return x >= x0 && x < x0 + width && z >= z0 && z < z0 + depth;
+  }
+
   /**
    * Set color at (x, z)
    *
+   * <p>Different threads may set colors concurrently, as long as they do not
+   * write to the same chunk.
+   *
    * @param frgb RGB color components
    */
   public void set(int x, int z, float[] frgb) {
-    ChunkPosition cp = ChunkPosition.get(x >> 4, z >> 4);
-    ChunkTexture ct = map.get(cp);
-    if (ct == null) {
-      ct = new ChunkTexture();
-      map.put(cp, ct);
+    if (inDenseArea(x, z)) {
+      int index = ((z - z0) * width + x - x0) * 3;
+      colors[index] = frgb[0];
+      colors[index + 1] = frgb[1];
+      colors[index + 2] = frgb[2];
+      tileSet[((z >> 4) - tileZ0) * tilesX + (x >> 4) - tileX0] = true;
+    } else {
+      setSparse(x, z, frgb);
     }
+  }
+
+  private synchronized void setSparse(int x, int z, float[] frgb) {
+    ChunkTexture ct = map.computeIfAbsent(ChunkPosition.asLong(x >> 4, z >> 4),
+        key -> new ChunkTexture());
     ct.set(x & 0xF, z & 0xF, frgb);
   }
 
+  /**
+   * Get the color at (x, z). Colors that have not been set are black.
+   *
+   * @param frgb receives the RGB color components
+   */
+  public void get(int x, int z, float[] frgb) {
+    if (inDenseArea(x, z)) {
+      int index = ((z - z0) * width + x - x0) * 3;
+      frgb[0] = colors[index];
+      frgb[1] = colors[index + 1];
+      frgb[2] = colors[index + 2];
+    } else {
+      ChunkTexture ct = map.get(ChunkPosition.asLong(x >> 4, z >> 4));
+      if (ct != null) {
+        float[] color = ct.get(x & 0xF, z & 0xF);
+        frgb[0] = color[0];
+        frgb[1] = color[1];
+        frgb[2] = color[2];
+      } else {
+        frgb[0] = 0;
+        frgb[1] = 0;
+        frgb[2] = 0;
+      }
+    }
+  }
+
   /**
    * @return RGB color components at (x, z)
    */
   public float[] get(int x, int z) {
-    ChunkPosition cp = ChunkPosition.get(x >> 4, z >> 4);
-    ChunkTexture ct = map.get(cp);
-    if (ct == null) {
-      ct = new ChunkTexture();
-      map.put(cp, ct);
-    }
-    return ct.get(x & 0xF, z & 0xF);
+    float[] frgb = new float[3];
+    get(x, z, frgb);
+    return frgb;
   }
 
   /**
@@ -70,13 +195,37 @@ public class WorldTexture {
    * @throws IOException
    */
   public void store(DataOutputStream out) throws IOException {
-    out.writeInt(map.size());
-    for (Map.Entry<ChunkPosition, ChunkTexture> entry : map.entrySet()) {
-      ChunkPosition pos = entry.getKey();
-      ChunkTexture texture = entry.getValue();
+    int numTiles = map.size();
+    for (boolean set : tileSet) {
+      if (set) {
+        numTiles += 1;
+      }
+    }
+    out.writeInt(numTiles);
+    float[] frgb = new float[3];
+    for (int tz = 0; tz < tilesZ; ++tz) {
+      for (int tx = 0; tx < tilesX; ++tx) {
+        if (tileSet[tz * tilesX + tx]) {
+          int x = (tileX0 + tx) * 16;
+          int z = (tileZ0 + tz) * 16;
+          ChunkTexture tile = new ChunkTexture();
+          for (int i = 0; i < 16; ++i) {
+            for (int j = 0; j < 16; ++j) {
+              get(x + j, z + i, frgb);
+              tile.set(j, i, frgb);
+            }
+          }
+          out.writeInt(tileX0 + tx);
+          out.writeInt(tileZ0 + tz);
+          tile.store(out);
+        }
+      }
+    }
+    for (long key : map.keys()) {
+      ChunkPosition pos = ChunkPosition.get(key);
       out.writeInt(pos.x);
       out.writeInt(pos.z);
-      texture.store(out);
+      map.get(key).store(out);
     }
   }
 
@@ -87,13 +236,37 @@ public class WorldTexture {
    * @throws IOException
    */
   public static WorldTexture load(DataInputStream in) throws IOException {
-    WorldTexture texture = new WorldTexture();
     int numTiles = in.readInt();
+    List<ChunkPosition> positions = new ArrayList<>(numTiles);
+    List<ChunkTexture> tiles = new ArrayList<>(numTiles);
+    int xMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE;
+    int zMin = Integer.MAX_VALUE, zMax = Integer.MIN_VALUE;
     for (int i = 0; i < numTiles; ++i) {
       int x = in.readInt();
       int z = in.readInt();
-      ChunkTexture tile = ChunkTexture.load(in);
-      texture.map.put(ChunkPosition.get(x, z), tile);
+      positions.add(ChunkPosition.get(x, z));
+      tiles.add(ChunkTexture.load(in));
+      xMin = Math.min(xMin, x);
+      xMax = Math.max(xMax, x);
+      zMin = Math.min(zMin, z);
+      zMax = Math.max(zMax, z);
+    }
+    if (numTiles == 0) {
+      return new WorldTexture();
+    }
+    WorldTexture texture = forTiles(xMin, zMin, xMax, zMax, numTiles);
+    for (int i = 0; i < numTiles; ++i) {
+      ChunkPosition pos = positions.get(i);
+      ChunkTexture tile = tiles.get(i);
+      if (texture.inDenseArea(pos.x * 16, pos.z * 16)) {
+        for (int z = 0; z < 16; ++z) {
+          for (int x = 0; x < 16; ++x) {
+            texture.set(pos.x * 16 + x, pos.z * 16 + z, tile.get(x, z));
+          }
+        }
+      } else {
+        texture.map.put(pos.getLong(), tile);
+      }
     }
     return texture;
   }
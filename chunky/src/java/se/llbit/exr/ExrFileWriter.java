@@ -0,0 +1,468 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.exr;
+
+import se.llbit.chunky.renderer.SampleBuffer;
+import se.llbit.util.TaskTracker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * OpenEXR image output. Writes single-part tiled images with RGB or RGBA
+ * channels, in half or full float precision, with ZIP compression or
+ * uncompressed.
+ *
+ * <p>The pixel values are the linear sample values scaled by the exposure,
+ * without tone mapping or gamma correction.
+ *
+ * <p>Tiles are encoded in parallel. The tile offset table precedes the tile
+ * data in the file, so when writing to a file the table is filled in after
+ * all tiles have been written. For other output streams the compressed
+ * tiles are kept in memory until the table can be written.
+ */
+public class ExrFileWriter implements AutoCloseable {
+  /** Channel pixel types. */
+  public enum PixelType {
+    /** 16-bit floating point. */
+    HALF(1, 2),
+
+    /** 32-bit floating point. */
+    FLOAT(2, 4);
+
+    final int id;
+    final int size;
+
+    PixelType(int id, int size) {
+      this.id = id;
+      this.size = size;
+    }
+  }
+
+  /** Tile compression methods. */
+  public enum Compression {
+    NONE(0),
+
+    /** Zlib compression, after a byte reordering and delta predictor. */
+    ZIP(3);
+
+    final int id;
+
+    Compression(int id) {
+      this.id = id;
+    }
+  }
+
+  private static final int MAGIC = 20000630;
+
+  /** File format version 2, with the single-part tiled flag. */
+  private static final int VERSION = 2 | 0x200;
+
+  /** Tile width and height. */
+  private static final int TILE_SIZE = 64;
+
+  /** Number of tiles per thread that are encoded before they are written. */
+  private static final int BATCH_SIZE = 8;
+
+  private final OutputStream stream;
+  private final WritableByteChannel out;
+  private final int threadCount;
+
+  /** Number of bytes written. */
+  private long position = 0;
+
+  public ExrFileWriter(OutputStream out) {
+    this(out, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param threadCount number of threads used to encode tiles
+   */
+  public ExrFileWriter(OutputStream out, int threadCount) {
+    this.stream = out;
+    if (out instanceof FileOutputStream) {
+      this.out = ((FileOutputStream) out).getChannel();
+    } else {
+      this.out = Channels.newChannel(out);
+    }
+    this.threadCount = Math.max(1, threadCount);
+  }
+
+  public ExrFileWriter(File file) throws IOException {
+    this(new FileOutputStream(file));
+  }
+
+  @Override public void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Write an image.
+   *
+   * @param samples linear RGB sample values
+   * @param exposure scale factor for the sample values
+   * @param alpha alpha channel, or {@code null} for RGB images
+   * @param task task to report progress to
+   */
+  public void write(SampleBuffer samples, double exposure, byte[] alpha, PixelType type,
+      Compression compression, TaskTracker.Task task) throws IOException {
+    int width = samples.width;
+    int height = samples.height;
+    int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+    int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+    int numTiles = tilesX * tilesY;
+    writeHeader(width, height, alpha != null, type, compression);
+
+    // The offset table is written before the tiles. It is filled in later
+    // if the output is a file, otherwise the tiles are kept until the end.
+    ByteBuffer table = littleEndian(8 * numTiles);
+    boolean seekable = out instanceof FileChannel;
+    long tableStart = 0;
+    if (seekable) {
+      tableStart = ((FileChannel) out).position();
+      write(ByteBuffer.allocate(table.capacity()));
+    }
+    long tilePosition = position + (seekable ? 0 : table.capacity());
+    List<byte[]> tiles = new ArrayList<>();
+
+    BlockingQueue<TileEncoder> encoders = new ArrayBlockingQueue<>(threadCount);
+    for (int i = 0; i < threadCount; ++i) {
+      encoders.add(new TileEncoder(samples, exposure, alpha, type, compression));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      int batchSize = threadCount * BATCH_SIZE;
+      task.update(numTiles, 0);
+      for (int start = 0; start < numTiles; start += batchSize) {
+        List<Callable<byte[]>> batch = new ArrayList<>();
+        for (int i = start; i < Math.min(numTiles, start + batchSize); ++i) {
+          int tileX = i % tilesX;
+          int tileY = i / tilesX;
+          batch.add(() -> {
+            TileEncoder encoder = encoders.take();
+            try {
+              return encoder.encode(tileX, tileY);
+            } finally {
+              encoders.add(encoder);
+            }
+          });
+        }
+        for (Future<byte[]> result : executor.invokeAll(batch)) {
+          byte[] tile;
+          try {
+            tile = result.get();
+          } catch (ExecutionException e) {
+            throw new IOException("Failed to encode OpenEXR tile", e.getCause());
+          }
+          table.putLong(tilePosition);
+          tilePosition += tile.length;
+          if (seekable) {
+            write(ByteBuffer.wrap(tile));
+          } else {
+            tiles.add(tile);
+          }
+        }
+        task.update(numTiles, start + batch.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("OpenEXR writing was interrupted");
+    } finally {
+      executor.shutdownNow();
+      for (TileEncoder encoder : encoders) {
+        encoder.deflater.end();
+      }
+    }
+
+    table.flip();
+    if (seekable) {
+      FileChannel file = (FileChannel) out;
+      while (table.hasRemaining()) {
+        file.write(table, tableStart + table.position());
+      }
+    } else {
+      write(table);
+      for (byte[] tile : tiles) {
+        write(ByteBuffer.wrap(tile));
+      }
+    }
+    stream.flush();
+  }
+
+  private void writeHeader(int width, int height, boolean hasAlpha, PixelType type,
+      Compression compression) throws IOException {
+    ByteBuffer header = littleEndian(1024);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+
+    // Channels, in alphabetical order.
+    String[] channels =
+        hasAlpha ? new String[] { "A", "B", "G", "R" } : new String[] { "B", "G", "R" };
+    attribute(header, "channels", "chlist", channels.length * 18 + 1);
+    for (String channel : channels) {
+      putString(header, channel);
+      header.putInt(type.id);
+      header.put((byte) 0); // Not perceptually linear.
+      header.put(new byte[3]); // Reserved.
+      header.putInt(1); // X sampling.
+      header.putInt(1); // Y sampling.
+    }
+    header.put((byte) 0);
+
+    attribute(header, "compression", "compression", 1);
+    header.put((byte) compression.id);
+
+    attribute(header, "dataWindow", "box2i", 16);
+    header.putInt(0).putInt(0).putInt(width - 1).putInt(height - 1);
+
+    attribute(header, "displayWindow", "box2i", 16);
+    header.putInt(0).putInt(0).putInt(width - 1).putInt(height - 1);
+
+    attribute(header, "lineOrder", "lineOrder", 1);
+    header.put((byte) 0); // Increasing Y.
+
+    attribute(header, "pixelAspectRatio", "float", 4);
+    header.putFloat(1);
+
+    attribute(header, "screenWindowCenter", "v2f", 8);
+    header.putFloat(0).putFloat(0);
+
+    attribute(header, "screenWindowWidth", "float", 4);
+    header.putFloat(1);
+
+    attribute(header, "tiles", "tiledesc", 9);
+    header.putInt(TILE_SIZE).putInt(TILE_SIZE);
+    header.put((byte) 0); // One level, round down.
+
+    header.put((byte) 0); // End of header.
+    header.flip();
+    write(header);
+  }
+
+  private static void attribute(ByteBuffer header, String name, String type, int size) {
+    putString(header, name);
+    putString(header, type);
+    header.putInt(size);
+  }
+
+  private static void putString(ByteBuffer buffer, String value) {
+    buffer.put(value.getBytes(StandardCharsets.US_ASCII));
+    buffer.put((byte) 0);
+  }
+
+  private static ByteBuffer littleEndian(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void write(ByteBuffer buffer) throws IOException {
+    position += buffer.remaining();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  /**
+   * Convert a float to a half precision float, rounding to nearest even.
+   */
+  static short toHalf(float value) {
+    int bits = Float.floatToRawIntBits(value);
+    int sign = (bits >>> 16) & 0x8000;
+    int abs = bits & 0x7FFFFFFF;
+    if (abs >= 0x7F800000) {
+      // Infinity or NaN. NaN keeps the high mantissa bits, and stays a NaN.
+      return (short) (sign | 0x7C00 | (abs > 0x7F800000 ? 0x200 | (abs >>> 13) & 0x3FF : 0));
+    }
+    if (abs >= 0x477FF000) {
+      // Rounds to infinity.
+      return (short) (sign | 0x7C00);
+    }
+    if (abs < 0x38800000) {
+      // Subnormal half, or zero.
+      if (abs < 0x33000000) {
+        return (short) sign;
+      }
+      int exponent = abs >>> 23;
+      int mantissa = (abs & 0x7FFFFF) | 0x800000;
+      int shift = 126 - exponent;
+      int half = mantissa >>> shift;
+      int rest = mantissa & ((1 << shift) - 1);
+      int midpoint = 1 << (shift - 1);
+      if (rest > midpoint || (rest == midpoint && (half & 1) != 0)) {
+        half += 1;
+      }
+      return (short) (sign | half);
+    }
+    int half = (abs - 0x38000000) >>> 13;
+    int rest = abs & 0x1FFF;
+    if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+      half += 1;
+    }
+    return (short) (sign | half);
+  }
+
+  /**
+   * Encodes one tile at a time. Each thread uses its own encoder.
+   */
+  private static class TileEncoder {
+    private final SampleBuffer samples;
+    private final double exposure;
+    private final byte[] alpha;
+    private final PixelType type;
+    private final Compression compression;
+    private final int width;
+    private final int height;
+
+    final Deflater deflater = new Deflater();
+
+    /** Uncompressed tile data. */
+    private final ByteBuffer raw;
+
+    /** Reordered and predicted tile data. */
+    private final byte[] predicted;
+
+    private byte[] compressed;
+
+    TileEncoder(SampleBuffer samples, double exposure, byte[] alpha, PixelType type,
+        Compression compression) {
+      this.samples = samples;
+      this.exposure = exposure;
+      this.alpha = alpha;
+      this.type = type;
+      this.compression = compression;
+      this.width = samples.width;
+      this.height = samples.height;
+      int channels = alpha != null ? 4 : 3;
+      int size = TILE_SIZE * TILE_SIZE * channels * type.size;
+      raw = littleEndian(size);
+      predicted = new byte[size];
+      compressed = new byte[size];
+    }
+
+    /**
+     * @return the tile header and data
+     */
+    byte[] encode(int tileX, int tileY) {
+      int x0 = tileX * TILE_SIZE;
+      int y0 = tileY * TILE_SIZE;
+      int tileWidth = Math.min(TILE_SIZE, width - x0);
+      int tileHeight = Math.min(TILE_SIZE, height - y0);
+
+      // Each scanline holds all pixels of the first channel, then the next
+      // channel, with channels in alphabetical order: A, B, G, R.
+      raw.clear();
+      for (int y = y0; y < y0 + tileHeight; ++y) {
+        if (alpha != null) {
+          for (int x = x0; x < x0 + tileWidth; ++x) {
+            put((alpha[y * width + x] & 0xFF) / 255f);
+          }
+        }
+        for (int channel = 2; channel >= 0; --channel) {
+          int offset = (y * width + x0) * 3 + channel;
+          for (int x = 0; x < tileWidth; ++x) {
+            put((float) (samples.get(offset) * exposure));
+            offset += 3;
+          }
+        }
+      }
+      int rawSize = raw.position();
+
+      byte[] data = raw.array();
+      int dataSize = rawSize;
+      if (compression == Compression.ZIP) {
+        int size = zip(rawSize);
+        // Uncompressed data is stored if compression does not make it smaller.
+        if (size < rawSize) {
+          data = compressed;
+          dataSize = size;
+        }
+      }
+
+      ByteBuffer tile = littleEndian(20 + dataSize);
+      tile.putInt(tileX);
+      tile.putInt(tileY);
+      tile.putInt(0); // Level X.
+      tile.putInt(0); // Level Y.
+      tile.putInt(dataSize);
+      tile.put(data, 0, dataSize);
+      return tile.array();
+    }
+
+    private void put(float value) {
+      if (type == PixelType.HALF) {
+        raw.putShort(toHalf(value));
+      } else {
+        raw.putFloat(value);
+      }
+    }
+
+    /**
+     * Compress the raw data. The even and odd bytes are separated, and each
+     * byte is replaced by the difference to the previous byte, before zlib
+     * compression.
+     *
+     * @return the compressed size
+     */
+    private int zip(int rawSize) {
+      byte[] data = raw.array();
+      int half = (rawSize + 1) / 2;
+      for (int i = 0; i < rawSize; i += 2) {
+        predicted[i / 2] = data[i];
+      }
+      for (int i = 1; i < rawSize; i += 2) {
+        predicted[half + i / 2] = data[i];
+      }
+      int previous = predicted[0];
+      for (int i = 1; i < rawSize; ++i) {
+        int value = predicted[i];
+        predicted[i] = (byte) (value - previous + 128);
+        previous = value;
+      }
+
+      deflater.reset();
+      deflater.setInput(predicted, 0, rawSize);
+      deflater.finish();
+      int size = 0;
+      while (!deflater.finished()) {
+        if (size == compressed.length) {
+          compressed = Arrays.copyOf(compressed, compressed.length * 2);
+        }
+        size += deflater.deflate(compressed, size, compressed.length - size);
+      }
+      return size;
+    }
+  }
+}
@@ -32,15 +32,21 @@ import java.util.Stack;
 public class BVH {
 
   /**
-   * Indicates whether to use SAH for construction.
+   * The default construction method.
    */
-  private static final Method METHOD = Method.MIDPOINT;
+  private static final Method METHOD = Method.BINNED_SAH;
 
 
-  private enum Method {
+  public enum Method {
     MIDPOINT,
     SAH,
     SAH_MA,
+
+    /**
+     * Binned SAH, built in parallel and stored in flat arrays.
+     * See {@link FlatBVH}.
+     */
+    BINNED_SAH,
   }
 
 
@@ -203,7 +209,15 @@ public class BVH {
    * Construct a new BVH containing the given primitives.
    */
   public BVH(List<Primitive> primitives) {
-    switch (METHOD) {
+    this(primitives, METHOD);
+  }
+
+  /**
+   * Construct a new BVH containing the given primitives, using the given
+   * construction method.
+   */
+  public BVH(List<Primitive> primitives, Method method) {
+    switch (method) {
       case MIDPOINT:
         root = constructMidpointSplit(primitives.toArray(new Primitive[primitives.size()]));
         break;
@@ -213,6 +227,9 @@ public class BVH {
       case SAH_MA:
         root = constructSAH_MA(primitives.toArray(new Primitive[primitives.size()]));
         break;
+      case BINNED_SAH:
+        root = FlatBVH.build(primitives.toArray(new Primitive[primitives.size()]));
+        break;
     }
   }
 
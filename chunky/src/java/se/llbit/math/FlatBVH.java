@@ -0,0 +1,526 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.math;
+
+import se.llbit.math.primitive.PackedTriangles;
+import se.llbit.math.primitive.Primitive;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A BVH stored in flat arrays, built with a binned Surface Area Heuristic.
+ *
+ * <p>The nodes are stored in depth-first order, so the first child of a
+ * node is always the next node. Each node has six bounds in the
+ * {@code bounds} array (xmin, xmax, ymin, ymax, zmin, zmax) and two
+ * integers in the {@code nodes} array. For inner nodes these are the index
+ * of the second child and the split axis. For leaf nodes they are the
+ * index of the first primitive and the negated primitive count.
+ *
+ * <p>The tree is built top-down. Primitives are sorted into bins by their
+ * centroid along each axis and the split between bins with the lowest
+ * SAH cost is selected. Large subtrees are built in parallel on the
+ * common ForkJoin pool.
+ *
+ * <p>The primitives are stored in leaf order in {@link PackedTriangles},
+ * and each leaf is intersected as one batch.
+ */
+final class FlatBVH extends BVH.Node {
+  /** Number of centroid bins per axis. */
+  private static final int BINS = 16;
+
+  /** Nodes with fewer primitives than this become leaves. */
+  private static final int SPLIT_LIMIT = 4;
+
+  /**
+   * Nodes with at most this many primitives become leaves if the SAH cost
+   * of splitting is not lower than intersecting all primitives.
+   */
+  private static final int MAX_LEAF_SIZE = PackedTriangles.BATCH_SIZE;
+
+  /** Cost of traversing a node relative to intersecting a primitive. */
+  private static final double TRAVERSAL_COST = 1;
+
+  /** Subtrees with more primitives than this are built in a separate task. */
+  private static final int PARALLEL_THRESHOLD = 2048;
+
+  /** Initial traversal stack size. The stack grows if the tree is deeper. */
+  private static final int STACK_SIZE = 64;
+
+  /** Traversal stacks of the current thread, reused between queries. */
+  private static final ThreadLocal<TraversalStack> traversalStack =
+      ThreadLocal.withInitial(TraversalStack::new);
+
+  private final double[] bounds;
+  private final int[] nodes;
+  private final PackedTriangles packed;
+
+  /**
+   * Nodes left to visit, their entry distances for closest hit queries, and
+   * the scratch buffer for intersecting leaves.
+   */
+  private static final class TraversalStack {
+    int[] nodes = new int[STACK_SIZE];
+    double[] distance = new double[STACK_SIZE];
+    final double[] scratch = PackedTriangles.scratch();
+  }
+
+  private FlatBVH(AABB bb, PackedTriangles packed, double[] bounds, int[] nodes) {
+    super(bb, new Primitive[0]);
+    this.bounds = bounds;
+    this.nodes = nodes;
+    this.packed = packed;
+  }
+
+  /**
+   * Build a flat BVH containing the given primitives.
+   */
+  static FlatBVH build(Primitive[] primitives) {
+    int n = primitives.length;
+    if (n == 0) {
+      return new FlatBVH(new AABB(0, 0, 0, 0, 0, 0), new PackedTriangles(primitives),
+          new double[0], new int[0]);
+    }
+    double[] primBounds = new double[n * 6];
+    double[] centroids = new double[n * 3];
+    for (int i = 0; i < n; ++i) {
+      AABB bb = primitives[i].bounds();
+      primBounds[i * 6 + 0] = bb.xmin;
+      primBounds[i * 6 + 1] = bb.xmax;
+      primBounds[i * 6 + 2] = bb.ymin;
+      primBounds[i * 6 + 3] = bb.ymax;
+      primBounds[i * 6 + 4] = bb.zmin;
+      primBounds[i * 6 + 5] = bb.zmax;
+      centroids[i * 3 + 0] = (bb.xmin + bb.xmax) / 2;
+      centroids[i * 3 + 1] = (bb.ymin + bb.ymax) / 2;
+      centroids[i * 3 + 2] = (bb.zmin + bb.zmax) / 2;
+    }
+    int[] index = new int[n];
+    for (int i = 0; i < n; ++i) {
+      index[i] = i;
+    }
+    BuildNode root = ForkJoinPool.commonPool()
+        .invoke(new BuildTask(primBounds, centroids, index, 0, n));
+
+    double[] bounds = new double[root.size * 6];
+    int[] nodes = new int[root.size * 2];
+    Primitive[] ordered = new Primitive[n];
+    for (int i = 0; i < n; ++i) {
+      ordered[i] = primitives[index[i]];
+    }
+    flatten(root, 0, bounds, nodes);
+    AABB bb = new AABB(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+    return new FlatBVH(bb, new PackedTriangles(ordered), bounds, nodes);
+  }
+
+  /** Temporary tree node used while building the BVH. */
+  private static final class BuildNode {
+    final double[] bounds;
+    final int start;
+    final int end;
+    final int axis;
+    final BuildNode child1;
+    final BuildNode child2;
+
+    /** Number of nodes in this subtree. */
+    final int size;
+
+    BuildNode(double[] bounds, int start, int end) {
+      this.bounds = bounds;
+      this.start = start;
+      this.end = end;
+      this.axis = -1;
+      this.child1 = null;
+      this.child2 = null;
+      this.size = 1;
+    }
+
+    BuildNode(double[] bounds, int axis, BuildNode child1, BuildNode child2) {
+      this.bounds = bounds;
+      this.start = child1.start;
+      this.end = child2.end;
+      this.axis = axis;
+      this.child1 = child1;
+      this.child2 = child2;
+      this.size = 1 + child1.size + child2.size;
+    }
+  }
+
+  /**
+   * Builds the subtree for the primitives in {@code index[start..end)}.
+   * The index range is reordered so that each child gets a contiguous range.
+   */
+  private static final class BuildTask extends RecursiveTask<BuildNode> {
+    private final double[] primBounds;
+    private final double[] centroids;
+    private final int[] index;
+    private final int start;
+    private final int end;
+
+    BuildTask(double[] primBounds, double[] centroids, int[] index, int start, int end) {
+      this.primBounds = primBounds;
+      this.centroids = centroids;
+      this.index = index;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override protected BuildNode compute() {
+      double[] bb = emptyBounds();
+      double[] cb = emptyBounds();
+      for (int i = start; i < end; ++i) {
+        int p = index[i];
+        for (int k = 0; k < 3; ++k) {
+          bb[2 * k] = Math.min(bb[2 * k], primBounds[p * 6 + 2 * k]);
+          bb[2 * k + 1] = Math.max(bb[2 * k + 1], primBounds[p * 6 + 2 * k + 1]);
+          cb[2 * k] = Math.min(cb[2 * k], centroids[p * 3 + k]);
+          cb[2 * k + 1] = Math.max(cb[2 * k + 1], centroids[p * 3 + k]);
+        }
+      }
+      int count = end - start;
+      if (count < SPLIT_LIMIT) {
+        return new BuildNode(bb, start, end);
+      }
+
+      // Find the bin split with the lowest SAH cost over all axes.
+      double bestCost = Double.POSITIVE_INFINITY;
+      int bestAxis = -1;
+      int bestBin = 0;
+      int[] binCount = new int[BINS];
+      double[] binBounds = new double[BINS * 6];
+      double[] rightArea = new double[BINS];
+      for (int axis = 0; axis < 3; ++axis) {
+        double min = cb[2 * axis];
+        double extent = cb[2 * axis + 1] - min;
+        if (extent <= 0) {
+          continue;
+        }
+        double scale = BINS / extent;
+        Arrays.fill(binCount, 0);
+        for (int b = 0; b < BINS; ++b) {
+          setEmpty(binBounds, b);
+        }
+        for (int i = start; i < end; ++i) {
+          int p = index[i];
+          int b = bin(centroids[p * 3 + axis], min, scale);
+          binCount[b] += 1;
+          expand(binBounds, b, primBounds, p);
+        }
+        // Sweep from the right to compute the area of each right side.
+        double[] acc = emptyBounds();
+        for (int b = BINS - 1; b > 0; --b) {
+          union(acc, binBounds, b);
+          rightArea[b] = area(acc);
+        }
+        acc = emptyBounds();
+        int leftCount = 0;
+        for (int b = 0; b < BINS - 1; ++b) {
+          union(acc, binBounds, b);
+          leftCount += binCount[b];
+          int rightCount = count - leftCount;
+          if (leftCount == 0 || rightCount == 0) {
+            continue;
+          }
+          double cost = area(acc) * leftCount + rightArea[b + 1] * rightCount;
+          if (cost < bestCost) {
+            bestCost = cost;
+            bestAxis = axis;
+            bestBin = b;
+          }
+        }
+      }
+
+      if (count <= MAX_LEAF_SIZE
+          && area(bb) * count <= area(bb) * TRAVERSAL_COST + bestCost) {
+        return new BuildNode(bb, start, end);
+      }
+
+      int mid;
+      if (bestAxis < 0) {
+        // All centroids are in the same point: split the range in half.
+        mid = start + count / 2;
+        bestAxis = 0;
+      } else {
+        double min = cb[2 * bestAxis];
+        double scale = BINS / (cb[2 * bestAxis + 1] - min);
+        int i = start;
+        int j = end - 1;
+        while (i <= j) {
+          if (bin(centroids[index[i] * 3 + bestAxis], min, scale) <= bestBin) {
+            i += 1;
+          } else {
+            int tmp = index[i];
+            index[i] = index[j];
+            index[j] = tmp;
+            j -= 1;
+          }
+        }
+        mid = i;
+      }
+
+      BuildTask task1 = new BuildTask(primBounds, centroids, index, start, mid);
+      BuildTask task2 = new BuildTask(primBounds, centroids, index, mid, end);
+      BuildNode child1;
+      BuildNode child2;
+      if (count > PARALLEL_THRESHOLD) {
+        task2.fork();
+        child1 = task1.compute();
+        child2 = task2.join();
+      } else {
+        child1 = task1.compute();
+        child2 = task2.compute();
+      }
+      return new BuildNode(bb, bestAxis, child1, child2);
+    }
+  }
+
+  private static int bin(double centroid, double min, double scale) {
+    return Math.min(BINS - 1, (int) ((centroid - min) * scale));
+  }
+
+  private static double[] emptyBounds() {
+    double[] bb = new double[6];
+    setEmpty(bb, 0);
+    return bb;
+  }
+
+  private static void setEmpty(double[] bb, int i) {
+    for (int k = 0; k < 3; ++k) {
+      bb[i * 6 + 2 * k] = Double.POSITIVE_INFINITY;
+      bb[i * 6 + 2 * k + 1] = Double.NEGATIVE_INFINITY;
+    }
+  }
+
+  private static void expand(double[] bb, int i, double[] other, int j) {
+    for (int k = 0; k < 3; ++k) {
+      bb[i * 6 + 2 * k] = Math.min(bb[i * 6 + 2 * k], other[j * 6 + 2 * k]);
+      bb[i * 6 + 2 * k + 1] = Math.max(bb[i * 6 + 2 * k + 1], other[j * 6 + 2 * k + 1]);
+    }
+  }
+
+  private static void union(double[] bb, double[] other, int j) {
+    expand(bb, 0, other, j);
+  }
+
+  /** Half the surface area of a bounding box, or zero if it is empty. */
+  private static double area(double[] bb) {
+    double x = bb[1] - bb[0];
+    double y = bb[3] - bb[2];
+    double z = bb[5] - bb[4];
+    if (x < 0 || y < 0 || z < 0) {
+      return 0;
+    }
+    return x * y + y * z + z * x;
+  }
+
+  /** Store a subtree in depth-first order, starting at the given node index. */
+  private static void flatten(BuildNode node, int i, double[] bounds, int[] nodes) {
+    System.arraycopy(node.bounds, 0, bounds, i * 6, 6);
+    if (node.child1 == null) {
+      nodes[i * 2] = node.start;
+      nodes[i * 2 + 1] = -(node.end - node.start);
+    } else {
+      int second = i + 1 + node.child1.size;
+      nodes[i * 2] = second;
+      nodes[i * 2 + 1] = node.axis;
+      flatten(node.child1, i + 1, bounds, nodes);
+      flatten(node.child2, second, bounds, nodes);
+    }
+  }
+
+  /**
+   * Distance along the ray to a node's bounding box. Zero if the ray
+   * origin is inside the box, and infinity if the box is not hit before
+   * the current closest intersection.
+   *
+   * <p>This is the same test as {@link AABB#quickIntersect}, but using the
+   * precomputed inverse ray direction and without branching on the
+   * direction components.
+   */
+  private double entryDistance(int node, double ox, double oy, double oz,
+      double rx, double ry, double rz, double tMax) {
+    int b = node * 6;
+    double t1 = (bounds[b] - ox) * rx;
+    double t2 = (bounds[b + 1] - ox) * rx;
+    double tNear = t1 < t2 ? t1 : t2;
+    double tFar = t1 < t2 ? t2 : t1;
+    t1 = (bounds[b + 2] - oy) * ry;
+    t2 = (bounds[b + 3] - oy) * ry;
+    if (t1 > t2) {
+      double t = t1;
+      t1 = t2;
+      t2 = t;
+    }
+    tNear = t1 > tNear ? t1 : tNear;
+    tFar = t2 < tFar ? t2 : tFar;
+    t1 = (bounds[b + 4] - oz) * rz;
+    t2 = (bounds[b + 5] - oz) * rz;
+    if (t1 > t2) {
+      double t = t1;
+      t1 = t2;
+      t2 = t;
+    }
+    tNear = t1 > tNear ? t1 : tNear;
+    tFar = t2 < tFar ? t2 : tFar;
+    if (tNear < 0) {
+      // The ray origin is inside the slabs, or the box is behind the ray.
+      tNear = 0;
+    }
+    if (tNear < tFar + Ray.EPSILON && tNear < tMax) {
+      return tNear;
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /** The same test as {@link AABB#hitTest}. */
+  private boolean hitTest(int node, double ox, double oy, double oz,
+      double rx, double ry, double rz) {
+    int b = node * 6;
+    double t1 = (bounds[b] - ox) * rx;
+    double t2 = (bounds[b + 1] - ox) * rx;
+    double tNear = t1 < t2 ? t1 : t2;
+    double tFar = t1 < t2 ? t2 : t1;
+    t1 = (bounds[b + 2] - oy) * ry;
+    t2 = (bounds[b + 3] - oy) * ry;
+    if (t1 > t2) {
+      double t = t1;
+      t1 = t2;
+      t2 = t;
+    }
+    tNear = t1 > tNear ? t1 : tNear;
+    tFar = t2 < tFar ? t2 : tFar;
+    t1 = (bounds[b + 4] - oz) * rz;
+    t2 = (bounds[b + 5] - oz) * rz;
+    if (t1 > t2) {
+      double t = t1;
+      t1 = t2;
+      t2 = t;
+    }
+    tNear = t1 > tNear ? t1 : tNear;
+    tFar = t2 < tFar ? t2 : tFar;
+    return tNear < tFar + Ray.EPSILON && tFar > 0;
+  }
+
+  @Override public boolean closestIntersection(Ray ray) {
+    if (nodes.length == 0) {
+      return false;
+    }
+    double ox = ray.o.x;
+    double oy = ray.o.y;
+    double oz = ray.o.z;
+    double rx = 1 / ray.d.x;
+    double ry = 1 / ray.d.y;
+    double rz = 1 / ray.d.z;
+    TraversalStack traversal = traversalStack.get();
+    int[] stack = traversal.nodes;
+    double[] stackDistance = traversal.distance;
+    double[] scratch = traversal.scratch;
+    int top = 0;
+    int node = 0;
+    boolean hit = false;
+    while (true) {
+      int axis = nodes[node * 2 + 1];
+      if (axis < 0) {
+        int first = nodes[node * 2];
+        hit = packed.closestIntersection(ray, first, first - axis, scratch) || hit;
+      } else {
+        // Visit the closest child first, and the other child later if it
+        // is closer than the closest intersection found by then.
+        int child1 = node + 1;
+        int child2 = nodes[node * 2];
+        double t1 = entryDistance(child1, ox, oy, oz, rx, ry, rz, ray.t);
+        double t2 = entryDistance(child2, ox, oy, oz, rx, ry, rz, ray.t);
+        if (t2 < t1) {
+          int tmp = child1;
+          child1 = child2;
+          child2 = tmp;
+          double t = t1;
+          t1 = t2;
+          t2 = t;
+        }
+        if (t1 != Double.POSITIVE_INFINITY) {
+          if (t2 != Double.POSITIVE_INFINITY) {
+            if (top == stack.length) {
+              stack = Arrays.copyOf(stack, top * 2);
+              stackDistance = Arrays.copyOf(stackDistance, top * 2);
+              traversal.nodes = stack;
+              traversal.distance = stackDistance;
+            }
+            stack[top] = child2;
+            stackDistance[top] = t2;
+            top += 1;
+          }
+          node = child1;
+          continue;
+        }
+      }
+      // Pop the next node that may still have a closer intersection.
+      do {
+        if (top == 0) {
+          return hit;
+        }
+        top -= 1;
+        node = stack[top];
+      } while (stackDistance[top] >= ray.t);
+    }
+  }
+
+  @Override public boolean anyIntersection(Ray ray) {
+    if (nodes.length == 0) {
+      return false;
+    }
+    double ox = ray.o.x;
+    double oy = ray.o.y;
+    double oz = ray.o.z;
+    double rx = 1 / ray.d.x;
+    double ry = 1 / ray.d.y;
+    double rz = 1 / ray.d.z;
+    TraversalStack traversal = traversalStack.get();
+    int[] stack = traversal.nodes;
+    double[] scratch = traversal.scratch;
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      if (!hitTest(node, ox, oy, oz, rx, ry, rz)) {
+        continue;
+      }
+      int axis = nodes[node * 2 + 1];
+      if (axis < 0) {
+        int first = nodes[node * 2];
+        if (packed.anyIntersection(ray, first, first - axis, scratch)) {
+          return true;
+        }
+      } else {
+        if (top + 2 > stack.length) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+          traversal.nodes = stack;
+          traversal.distance = Arrays.copyOf(traversal.distance, stack.length);
+        }
+        stack[top++] = nodes[node * 2];
+        stack[top++] = node + 1;
+      }
+    }
+    return false;
+  }
+
+  @Override public int size() {
+    return packed.size();
+  }
+}
@@ -145,6 +145,31 @@ public class NodeBasedOctree implements Octree.OctreeImplementation {
     return palette.get(node.type);
   }
 
+  @Override
+  public void getVoxels(int x, int y, int z, int xSize, int ySize, int zSize, int[] types,
+      int[] data) {
+    // The lookup cache used by get() is not thread safe, so the nodes are walked from the root.
+    Octree.VoxelBox box = new Octree.VoxelBox(x, y, z, xSize, ySize, zSize, types, data);
+    getVoxels(box, root, depth, 0, 0, 0);
+  }
+
+  private static void getVoxels(Octree.VoxelBox box, Octree.Node node, int level,
+      int x, int y, int z) {
+    if (node.type != BRANCH_NODE) {
+      box.fill(node.type, node.getData(), x, y, z, 1 << level);
+    } else {
+      int half = 1 << (level - 1);
+      for (int i = 0; i < 8; ++i) {
+        int cx = x + ((i >> 2) & 1) * half;
+        int cy = y + ((i >> 1) & 1) * half;
+        int cz = z + (i & 1) * half;
+        if (box.intersects(cx, cy, cz, half)) {
+          getVoxels(box, node.children[i], level - 1, cx, cy, cz);
+        }
+      }
+    }
+  }
+
   @Override
   public void store(DataOutputStream out) throws IOException {
     out.writeInt(depth);
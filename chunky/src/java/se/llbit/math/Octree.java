@@ -19,6 +19,7 @@ package se.llbit.math;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.commons.math3.util.FastMath;
 
@@ -43,8 +44,36 @@ public class Octree {
   public interface OctreeImplementation {
     void set(int type, int x, int y, int z);
     void set(Node data, int x, int y, int z);
+
+    /**
+     * Insert a subtree with its minimum corner at the given position.
+     * The default implementation sets each voxel of the subtree.
+     */
+    default void setSubtree(OctreeSubtree subtree, int x, int y, int z) {
+      subtree.visitLeaves((type, data, level, lx, ly, lz) -> {
+        int size = 1 << level;
+        for (int dy = 0; dy < size; ++dy) {
+          for (int dz = 0; dz < size; ++dz) {
+            for (int dx = 0; dx < size; ++dx) {
+              // Each voxel needs its own node: leaf nodes are modified when subdivided.
+              Node node = data == 0 ? new Node(type) : new DataNode(type, data);
+              set(node, x + lx + dx, y + ly + dy, z + lz + dz);
+            }
+          }
+        }
+      });
+    }
+
     Node get(int x, int y, int z);
     Material getMaterial(int x, int y, int z, BlockPalette palette);
+
+    /**
+     * Copy the types and data of the voxels in a box to dense arrays.
+     * Must be safe to call from several threads while the octree is not
+     * modified.
+     */
+    void getVoxels(int x, int y, int z, int xSize, int ySize, int zSize, int[] types, int[] data);
+
     void store(DataOutputStream output) throws IOException;
     boolean isInside(Vector3 pos);
 
@@ -219,6 +248,53 @@ public class Octree {
     }
   }
 
+  /** The destination of {@link #getVoxels}, used by the implementations. */
+  static final class VoxelBox {
+    private final int x0, y0, z0;
+    private final int x1, y1, z1;
+    private final int xSize, zSize;
+    private final int[] types;
+    private final int[] data;
+
+    VoxelBox(int x, int y, int z, int xSize, int ySize, int zSize, int[] types, int[] data) {
+      this.x0 = x;
+      this.y0 = y;
+      this.z0 = z;
+      this.x1 = x + xSize;
+      this.y1 = y + ySize;
+      this.z1 = z + zSize;
+      this.xSize = xSize;
+      this.zSize = zSize;
+      this.types = types;
+      this.data = data;
+      // Voxels outside the octree are not visited.
+      Arrays.fill(types, 0, xSize * ySize * zSize, 0);
+      Arrays.fill(data, 0, xSize * ySize * zSize, 0);
+    }
+
+    /** @return {@code true} if the box intersects the given cube */
+    boolean intersects(int x, int y, int z, int size) {
+      return x < x1 && x + size > x0 && y < y1 && y + size > y0 && z < z1 && z + size > z0;
+    }
+
+    /** Set the voxels in the intersection of the box and a leaf node. */
+    void fill(int type, int value, int x, int y, int z, int size) {
+      int xMin = Math.max(x, x0) - x0;
+      int xMax = Math.min(x + size, x1) - x0;
+      int yMin = Math.max(y, y0) - y0;
+      int yMax = Math.min(y + size, y1) - y0;
+      int zMin = Math.max(z, z0) - z0;
+      int zMax = Math.min(z + size, z1) - z0;
+      for (int dy = yMin; dy < yMax; ++dy) {
+        for (int dz = zMin; dz < zMax; ++dz) {
+          int row = (dy * zSize + dz) * xSize;
+          Arrays.fill(types, row + xMin, row + xMax, type);
+          Arrays.fill(data, row + xMin, row + xMax, value);
+        }
+      }
+    }
+  }
+
   /**
    * Timestamp of last serialization.
    */
@@ -281,6 +357,24 @@ public class Octree {
     }
   }
 
+  /**
+   * Insert a subtree built by {@link OctreeSubtree#build}. The subtree
+   * replaces the cube of voxels with its minimum corner at the given
+   * position, which must be aligned to the subtree size.
+   *
+   * <p>This is much faster than setting each voxel.
+   */
+  public synchronized void setSubtree(OctreeSubtree subtree, int x, int y, int z) {
+    try {
+      implementation.setSubtree(subtree, x, y, z);
+    } catch(PackedOctree.OctreeTooBigException e) {
+      // Octree is too big, switch implementation and retry
+      Log.warn("Octree is too big, falling back to old (slower and bigger) implementation.");
+      switchToNodeBased();
+      implementation.setSubtree(subtree, x, y, z);
+    }
+  }
+
   /**
    * @return The voxel type at the given coordinates
    */
@@ -292,6 +386,21 @@ public class Octree {
     return implementation.getMaterial(x, y, z, palette);
   }
 
+  /**
+   * Copy the types and data of the voxels in a box to dense arrays. The
+   * voxel at (x + dx, y + dy, z + dz) is stored at index
+   * {@code dx + dz * xSize + dy * xSize * zSize}. Voxels outside the octree
+   * get type and data zero.
+   *
+   * <p>The octree is walked once for the whole box, which is much faster
+   * than getting each voxel. This is not synchronized: it can be called
+   * from several threads as long as the octree is not modified.
+   */
+  public void getVoxels(int x, int y, int z, int xSize, int ySize, int zSize, int[] types,
+      int[] data) {
+    implementation.getVoxels(x, y, z, xSize, ySize, zSize, types, data);
+  }
+
   /**
    * Serialize this octree to a data output stream.
    *
@@ -0,0 +1,166 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.math;
+
+import java.util.Arrays;
+
+/**
+ * A fully merged octree for a cube of voxels, built bottom-up from dense
+ * voxel arrays.
+ *
+ * <p>Subtrees are built independently of any octree, so that several can be
+ * built in parallel. They are then inserted into an octree with
+ * {@link Octree#setSubtree}, which is much faster than setting each voxel.
+ *
+ * <p>The nodes are stored in the same format as in {@link PackedOctree}:
+ * two integers per node, where the first is the index of the first child
+ * for branch nodes, or the negated type for leaf nodes, and the second is
+ * the node data. The root node is at index zero, and the children of a
+ * branch node are stored in a block of eight nodes.
+ */
+public final class OctreeSubtree {
+  /** The subtree covers a cube of {@code 2^level} voxels per side. */
+  public final int level;
+
+  final int[] nodes;
+
+  private OctreeSubtree(int level, int[] nodes) {
+    this.level = level;
+    this.nodes = nodes;
+  }
+
+  /**
+   * Build a subtree from dense voxel arrays. The voxel at local coordinates
+   * (x, y, z) is read from index {@code offset + x + z * zStride + y * yStride}.
+   *
+   * @param level the subtree covers a cube of {@code 2^level} voxels per side
+   * @param types voxel types
+   * @param data voxel data, zero for voxels without data
+   */
+  public static OctreeSubtree build(int level, int[] types, int[] data, int offset,
+      int zStride, int yStride) {
+    Builder builder = new Builder(level, types, data, offset, zStride, yStride);
+    long root = builder.build(level, 0, 0, 0);
+    builder.nodes[0] = (int) (root >> 32);
+    builder.nodes[1] = (int) root;
+    return new OctreeSubtree(level, Arrays.copyOf(builder.nodes, builder.size));
+  }
+
+  private static final class Builder {
+    private final int[] types;
+    private final int[] data;
+    private final int offset;
+    private final int zStride;
+    private final int yStride;
+
+    /** Child nodes for each level of the current path. */
+    private final long[] children;
+
+    int[] nodes = new int[64];
+    int size = 2;
+
+    Builder(int level, int[] types, int[] data, int offset, int zStride, int yStride) {
+      this.types = types;
+      this.data = data;
+      this.offset = offset;
+      this.zStride = zStride;
+      this.yStride = yStride;
+      this.children = new long[8 * (level + 1)];
+    }
+
+    /**
+     * Build the node at the given local position. Children are built first
+     * and are merged if they are all equal leaves.
+     *
+     * @return the node as two packed integers: the first in the high bits
+     * and the data in the low bits
+     */
+    long build(int level, int x, int y, int z) {
+      if (level == 0) {
+        int index = offset + x + z * zStride + y * yStride;
+        return pack(-types[index], data[index]);
+      }
+      int half = 1 << (level - 1);
+      int c = level * 8;
+      boolean merge = true;
+      for (int i = 0; i < 8; ++i) {
+        // Same child order as the octree: x, y, z bits from high to low.
+        long child = build(level - 1,
+            x + ((i >> 2) & 1) * half, y + ((i >> 1) & 1) * half, z + (i & 1) * half);
+        children[c + i] = child;
+        merge = merge && (int) (child >> 32) <= 0 && child == children[c];
+      }
+      if (merge) {
+        return children[c];
+      }
+      if (size + 16 > nodes.length) {
+        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+      }
+      int block = size;
+      size += 16;
+      for (int i = 0; i < 8; ++i) {
+        nodes[block + 2 * i] = (int) (children[c + i] >> 32);
+        nodes[block + 2 * i + 1] = (int) children[c + i];
+      }
+      return pack(block, 0);
+    }
+  }
+
+  private static long pack(int first, int data) {
+    return ((long) first << 32) | (data & 0xFFFFFFFFL);
+  }
+
+  /** @return {@code true} if all voxels in the subtree are the same */
+  public boolean isLeaf() {
+    return nodes[0] <= 0;
+  }
+
+  /** The type of the root node, if it is a leaf. */
+  int rootType() {
+    return -nodes[0];
+  }
+
+  /** The data of the root node, if it is a leaf. */
+  int rootData() {
+    return nodes[1];
+  }
+
+  /**
+   * Call the visitor for each leaf in the subtree, with the leaf position
+   * relative to the subtree origin.
+   */
+  void visitLeaves(LeafVisitor visitor) {
+    visitLeaves(visitor, 0, level, 0, 0, 0);
+  }
+
+  private void visitLeaves(LeafVisitor visitor, int index, int level, int x, int y, int z) {
+    if (nodes[index] <= 0) {
+      visitor.leaf(-nodes[index], nodes[index + 1], level, x, y, z);
+    } else {
+      int half = 1 << (level - 1);
+      for (int i = 0; i < 8; ++i) {
+        visitLeaves(visitor, nodes[index] + 2 * i, level - 1,
+            x + ((i >> 2) & 1) * half, y + ((i >> 1) & 1) * half, z + (i & 1) * half);
+      }
+    }
+  }
+
+  interface LeafVisitor {
+    /** Visit a leaf covering a cube of {@code 2^level} voxels. */
+    void leaf(int type, int data, int level, int x, int y, int z);
+  }
+}
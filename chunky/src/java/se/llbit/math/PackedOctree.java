@@ -76,6 +76,12 @@ public class PackedOctree implements Octree.OctreeImplementation {
 
   private int depth;
 
+  /**
+   * Per-thread stack of the nodes on the path from the root to the current leaf, used by
+   * {@link #enterBlock} and {@link #exitWater}. The stack is reallocated only for a deeper octree.
+   */
+  private static final ThreadLocal<int[]> traversalPath = ThreadLocal.withInitial(() -> new int[0]);
+
   /**
    * A custom exception that signals the octree is too big for this implementation
    */
@@ -316,6 +322,109 @@ public class PackedOctree implements Octree.OctreeImplementation {
     }
   }
 
+  /**
+   * Insert a subtree by copying its nodes into the tree array. The nodes
+   * that the subtree replaces are freed after the copy, so that their space
+   * can be reused. If the array cannot grow to fit the copy, an
+   * {@link OctreeTooBigException} is thrown and the nodes that the subtree
+   * would replace are left unchanged.
+   */
+  @Override
+  public void setSubtree(OctreeSubtree subtree, int x, int y, int z) {
+    int level = subtree.level;
+    int[] parents = new int[depth];
+    int nodeIndex = 0;
+    int parentLevel = depth - 1;
+    for (int i = depth - 1; i >= level; --i) {
+      parents[i] = nodeIndex;
+
+      if (subtree.isLeaf() && treeData[nodeIndex] <= 0
+          && -treeData[nodeIndex] == subtree.rootType()
+          && treeData[nodeIndex + 1] == subtree.rootData()) {
+        return;
+      } else if (treeData[nodeIndex] <= 0) { // It's a leaf node
+        subdivideNode(nodeIndex);
+        parentLevel = i;
+      }
+
+      int xbit = 1 & (x >> i);
+      int ybit = 1 & (y >> i);
+      int zbit = 1 & (z >> i);
+      nodeIndex = treeData[nodeIndex] + ((xbit << 2) | (ybit << 1) | zbit) * 2;
+    }
+
+    int[] nodes = subtree.nodes;
+    if (!subtree.isLeaf()) {
+      // Copy before freeing, so the tree is unchanged if the copy does not fit.
+      int children = copyChildren(nodes, nodes[0]);
+      if (treeData[nodeIndex] > 0) {
+        freeChildren(nodeIndex);
+      }
+      treeData[nodeIndex] = children;
+      treeData[nodeIndex + 1] = 0;
+      return;
+    }
+    if (treeData[nodeIndex] > 0) {
+      freeChildren(nodeIndex);
+    }
+    treeData[nodeIndex] = nodes[0];
+    treeData[nodeIndex + 1] = nodes[1];
+
+    // Merge nodes where all children have been set to the same type.
+    for (int i = level; i <= parentLevel; ++i) {
+      int parentIndex = parents[i];
+
+      boolean allSame = true;
+      for(int j = 0; j < 8; ++j) {
+        int childIndex = treeData[parentIndex] + 2*j;
+        if(!nodeEquals(childIndex, nodeIndex)) {
+          allSame = false;
+          break;
+        }
+      }
+
+      if (allSame) {
+        mergeNode(parentIndex, treeData[nodeIndex], treeData[nodeIndex+1]);
+        nodeIndex = parentIndex;
+      } else {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Free the children of a branch node, and their children.
+   * @param nodeIndex The index of the branch node
+   */
+  private void freeChildren(int nodeIndex) {
+    int childrenIndex = treeData[nodeIndex];
+    for (int i = 0; i < 8; ++i) {
+      if (treeData[childrenIndex + 2*i] > 0) {
+        freeChildren(childrenIndex + 2*i);
+      }
+    }
+    freeSpace(childrenIndex);
+  }
+
+  /**
+   * Copy a block of child nodes from a subtree, and their children.
+   * @param nodes The subtree nodes
+   * @param block The index of the block in the subtree
+   * @return the index of the copied block in the tree array
+   */
+  private int copyChildren(int[] nodes, int block) {
+    int childrenIndex = findSpace();
+    System.arraycopy(nodes, block, treeData, childrenIndex, 16);
+    for (int i = 0; i < 8; ++i) {
+      if (nodes[block + 2*i] > 0) {
+        // findSpace may replace the tree array, so it must be called before indexing.
+        int grandchildren = copyChildren(nodes, nodes[block + 2*i]);
+        treeData[childrenIndex + 2*i] = grandchildren;
+      }
+    }
+    return childrenIndex;
+  }
+
   private int getNodeIndex(int x, int y, int z) {
     int nodeIndex = 0;
     int level = depth;
@@ -349,6 +458,29 @@ public class PackedOctree implements Octree.OctreeImplementation {
     return palette.get(-treeData[nodeIndex]);
   }
 
+  @Override
+  public void getVoxels(int x, int y, int z, int xSize, int ySize, int zSize, int[] types,
+      int[] data) {
+    Octree.VoxelBox box = new Octree.VoxelBox(x, y, z, xSize, ySize, zSize, types, data);
+    getVoxels(box, 0, depth, 0, 0, 0);
+  }
+
+  private void getVoxels(Octree.VoxelBox box, int nodeIndex, int level, int x, int y, int z) {
+    if (treeData[nodeIndex] <= 0) {
+      box.fill(-treeData[nodeIndex], treeData[nodeIndex+1], x, y, z, 1 << level);
+    } else {
+      int half = 1 << (level - 1);
+      for (int i = 0; i < 8; ++i) {
+        int cx = x + ((i >> 2) & 1) * half;
+        int cy = y + ((i >> 1) & 1) * half;
+        int cz = z + (i & 1) * half;
+        if (box.intersects(cx, cy, cz, half)) {
+          getVoxels(box, treeData[nodeIndex] + 2*i, level - 1, cx, cy, cz);
+        }
+      }
+    }
+  }
+
   @Override
   public void store(DataOutputStream output) throws IOException {
     output.writeInt(depth);
@@ -446,6 +578,18 @@ public class PackedOctree implements Octree.OctreeImplementation {
     return true;
   }
 
+  /**
+   * @return the traversal path stack of the current thread, with room for the depth of this octree
+   */
+  private int[] traversalPath() {
+    int[] path = traversalPath.get();
+    if (path.length <= depth) {
+      path = new int[depth + 1];
+      traversalPath.set(path);
+    }
+    return path;
+  }
+
   /**
    *  {@inheritDoc}
    */
@@ -454,9 +598,18 @@ public class PackedOctree implements Octree.OctreeImplementation {
     if (!isInside(ray.o) && !enterOctree(ray))
       return false;
 
-    // Marching is done in a top-down fashion: at each step, the octree is descended from the root to find the leaf
-    // node the ray is in. Terminating the march is then decided based on the block type in that leaf node. Finally the
-    // ray is advanced to the boundary of the current leaf node and the next, ready for the next iteration.
+    // Marching is done in a top-down fashion: at each step, the octree is descended to find the leaf node the ray is
+    // in. Terminating the march is then decided based on the block type in that leaf node. Finally the ray is advanced
+    // to the boundary of the current leaf node and the next, ready for the next iteration.
+    //
+    // The nodes on the path from the root to the current leaf are kept in a stack indexed by node level, so that each
+    // step only needs to go back up to the closest common ancestor of the previous and the next voxel instead of
+    // descending from the root.
+    int[] path = traversalPath();
+    path[depth] = 0; // The root node is at index 0.
+    int px = 0, py = 0, pz = 0;
+    int level = depth;
+    int nodeIndex = 0;
     while (true) {
       // Add small offset past the intersection to avoid
       // recursion to the same octree node!
@@ -471,16 +624,25 @@ public class PackedOctree implements Octree.OctreeImplementation {
       if (lx != 0 || ly != 0 || lz != 0)
           return false; // outside of octree!
 
-      // Descend the tree to find the current leaf node
-      int level = depth;
-      int nodeIndex = 0;
+      // Go up to the closest common ancestor of the previous and the current voxel,
+      // then descend the tree to find the current leaf node.
+      int ancestor = 32 - Integer.numberOfLeadingZeros((x ^ px) | (y ^ py) | (z ^ pz));
+      if (ancestor > level) {
+        level = ancestor;
+        nodeIndex = path[level];
+      }
       while(treeData[nodeIndex] > 0) {
         level -= 1;
-        lx = x >>> level;
-        ly = y >>> level;
-        lz = z >>> level;
-        nodeIndex = treeData[nodeIndex] + (((lx & 1) << 2) | ((ly & 1) << 1) | (lz & 1)) * 2;
+        nodeIndex = treeData[nodeIndex]
+            + ((((x >>> level) & 1) << 2) | (((y >>> level) & 1) << 1) | ((z >>> level) & 1)) * 2;
+        path[level] = nodeIndex;
       }
+      px = x;
+      py = y;
+      pz = z;
+      lx = x >>> level;
+      ly = y >>> level;
+      lz = z >>> level;
 
       // Test intersection
       Block currentBlock = palette.get(-treeData[nodeIndex]);
@@ -568,9 +730,18 @@ public class PackedOctree implements Octree.OctreeImplementation {
     if (!isInside(ray.o) && !enterOctree(ray))
       return false;
 
-    // Marching is done in a top-down fashion: at each step, the octree is descended from the root to find the leaf
-    // node the ray is in. Terminating the march is then decided based on the block type in that leaf node. Finally the
-    // ray is advanced to the boundary of the current leaf node and the next, ready for the next iteration.
+    // Marching is done in a top-down fashion: at each step, the octree is descended to find the leaf node the ray is
+    // in. Terminating the march is then decided based on the block type in that leaf node. Finally the ray is advanced
+    // to the boundary of the current leaf node and the next, ready for the next iteration.
+    //
+    // The nodes on the path from the root to the current leaf are kept in a stack indexed by node level, so that each
+    // step only needs to go back up to the closest common ancestor of the previous and the next voxel instead of
+    // descending from the root.
+    int[] path = traversalPath();
+    path[depth] = 0; // The root node is at index 0.
+    int px = 0, py = 0, pz = 0;
+    int level = depth;
+    int nodeIndex = 0;
     while (true) {
       // Add small offset past the intersection to avoid
       // recursion to the same octree node!
@@ -585,16 +756,25 @@ public class PackedOctree implements Octree.OctreeImplementation {
       if (lx != 0 || ly != 0 || lz != 0)
         return false; // outside of octree!
 
-      // Descend the tree to find the current leaf node
-      int nodeIndex = 0;
-      int level = depth;
+      // Go up to the closest common ancestor of the previous and the current voxel,
+      // then descend the tree to find the current leaf node.
+      int ancestor = 32 - Integer.numberOfLeadingZeros((x ^ px) | (y ^ py) | (z ^ pz));
+      if (ancestor > level) {
+        level = ancestor;
+        nodeIndex = path[level];
+      }
       while(treeData[nodeIndex] > 0) {
         level -= 1;
-        lx = x >>> level;
-        ly = y >>> level;
-        lz = z >>> level;
-        nodeIndex = treeData[nodeIndex] + (((lx & 1) << 2) | ((ly & 1) << 1) | (lz & 1)) * 2;
+        nodeIndex = treeData[nodeIndex]
+            + ((((x >>> level) & 1) << 2) | (((y >>> level) & 1) << 1) | ((z >>> level) & 1)) * 2;
+        path[level] = nodeIndex;
       }
+      px = x;
+      py = y;
+      pz = z;
+      lx = x >>> level;
+      ly = y >>> level;
+      lz = z >>> level;
 
       // Test intersection
       Block currentBlock = palette.get(-treeData[nodeIndex]);
@@ -118,6 +118,13 @@ public class Ray {
    */
   public boolean specular;
 
+  /**
+   * Biome color returned by {@link #getBiomeGrassColor} and
+   * {@link #getBiomeFoliageColor}. Allocated on the first lookup, because
+   * most rays never hit a biome-colored block.
+   */
+  private float[] biomeColor = null;
+
   /**
    * Builds an uninitialized ray.
    */
@@ -245,17 +252,27 @@ public class Ray {
   }
 
   /**
-   * @return foliage color for the current block
+   * @return foliage color for the current block. The returned array is
+   * reused by the next biome color lookup for this ray.
    */
   public float[] getBiomeFoliageColor(Scene scene) {
-    return scene.getFoliageColor((int) (o.x + d.x * OFFSET), (int) (o.z + d.z * OFFSET));
+    if (biomeColor == null) {
+      biomeColor = new float[3];
+    }
+    scene.getFoliageColor((int) (o.x + d.x * OFFSET), (int) (o.z + d.z * OFFSET), biomeColor);
+    return biomeColor;
   }
 
   /**
-   * @return grass color for the current block
+   * @return grass color for the current block. The returned array is
+   * reused by the next biome color lookup for this ray.
    */
   public float[] getBiomeGrassColor(Scene scene) {
-    return scene.getGrassColor((int) (o.x + d.x * OFFSET), (int) (o.z + d.z * OFFSET));
+    if (biomeColor == null) {
+      biomeColor = new float[3];
+    }
+    scene.getGrassColor((int) (o.x + d.x * OFFSET), (int) (o.z + d.z * OFFSET), biomeColor);
+    return biomeColor;
   }
 
   /**
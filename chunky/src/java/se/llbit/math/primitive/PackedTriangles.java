@@ -0,0 +1,298 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.math.primitive;
+
+import se.llbit.chunky.world.Material;
+import se.llbit.math.Ray;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of primitives where the triangles are stored as a structure of
+ * arrays instead of as separate objects.
+ *
+ * <p>Each {@link TexturedTriangle} in the input is replaced by an entry in
+ * the coordinate, edge, normal and texture coordinate arrays, plus an index
+ * into a shared material table. Other primitives are kept as objects.
+ *
+ * <p>Ranges of primitives are intersected in batches: first the
+ * Möller-Trumbore test is computed for every triangle in the batch in one
+ * tight loop without early exits, then the closest opaque hit is selected.
+ * The intersection results are the same as for the triangle objects.
+ */
+public final class PackedTriangles {
+  /** Number of triangles tested together. */
+  public static final int BATCH_SIZE = 8;
+
+  private static final double EPSILON = TexturedTriangle.EPSILON;
+
+  private static final ThreadLocal<double[]> scratch =
+      ThreadLocal.withInitial(() -> new double[BATCH_SIZE * 3]);
+
+  private final int size;
+
+  /** Non-triangle primitives. Null for packed triangles. */
+  private final Primitive[] others;
+
+  /** Whether any primitive is not a packed triangle. */
+  private final boolean hasOthers;
+
+  /** Material index, or -1 for primitives that are not packed triangles. */
+  private final int[] material;
+  private final Material[] materials;
+
+  // First corner.
+  private final double[] ox;
+  private final double[] oy;
+  private final double[] oz;
+
+  // Edges from the first corner.
+  private final double[] e1x;
+  private final double[] e1y;
+  private final double[] e1z;
+  private final double[] e2x;
+  private final double[] e2y;
+  private final double[] e2z;
+
+  // Normal.
+  private final double[] nx;
+  private final double[] ny;
+  private final double[] nz;
+
+  // Texture coordinates.
+  private final double[] u1;
+  private final double[] v1;
+  private final double[] u2;
+  private final double[] v2;
+  private final double[] u3;
+  private final double[] v3;
+
+  /**
+   * Pack the triangles in the given primitive array. The packed primitives
+   * have the same indices as in the input array.
+   */
+  public PackedTriangles(Primitive[] primitives) {
+    size = primitives.length;
+    others = new Primitive[size];
+    material = new int[size];
+    ox = new double[size];
+    oy = new double[size];
+    oz = new double[size];
+    e1x = new double[size];
+    e1y = new double[size];
+    e1z = new double[size];
+    e2x = new double[size];
+    e2y = new double[size];
+    e2z = new double[size];
+    nx = new double[size];
+    ny = new double[size];
+    nz = new double[size];
+    u1 = new double[size];
+    v1 = new double[size];
+    u2 = new double[size];
+    v2 = new double[size];
+    u3 = new double[size];
+    v3 = new double[size];
+    Map<Material, Integer> materialIndex = new IdentityHashMap<>();
+    List<Material> materialList = new ArrayList<>();
+    boolean hasOthers = false;
+    for (int i = 0; i < size; ++i) {
+      if (!(primitives[i] instanceof TexturedTriangle)) {
+        // Zero edges give a zero determinant, so the batch test never hits.
+        others[i] = primitives[i];
+        material[i] = -1;
+        hasOthers = true;
+        continue;
+      }
+      TexturedTriangle triangle = (TexturedTriangle) primitives[i];
+      Integer index = materialIndex.get(triangle.material);
+      if (index == null) {
+        index = materialList.size();
+        materialIndex.put(triangle.material, index);
+        materialList.add(triangle.material);
+      }
+      material[i] = index;
+      ox[i] = triangle.o.x;
+      oy[i] = triangle.o.y;
+      oz[i] = triangle.o.z;
+      e1x[i] = triangle.e1.x;
+      e1y[i] = triangle.e1.y;
+      e1z[i] = triangle.e1.z;
+      e2x[i] = triangle.e2.x;
+      e2y[i] = triangle.e2.y;
+      e2z[i] = triangle.e2.z;
+      nx[i] = triangle.n.x;
+      ny[i] = triangle.n.y;
+      nz[i] = triangle.n.z;
+      u1[i] = triangle.t1.x;
+      v1[i] = triangle.t1.y;
+      u2[i] = triangle.t2.x;
+      v2[i] = triangle.t2.y;
+      u3[i] = triangle.t3.x;
+      v3[i] = triangle.t3.y;
+    }
+    this.hasOthers = hasOthers;
+    materials = materialList.toArray(new Material[materialList.size()]);
+  }
+
+  /** The number of primitives. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the scratch buffer of the current thread for the batched
+   * intersection tests. The buffer is allocated once per thread.
+   */
+  public static double[] scratch() {
+    return scratch.get();
+  }
+
+  /**
+   * Find the closest intersection with the primitives in the range
+   * {@code [first, end)}.
+   *
+   * @param scratch buffer allocated by {@link #scratch()}
+   * @return {@code true} if the ray intersected any of the primitives
+   */
+  public boolean closestIntersection(Ray ray, int first, int end, double[] scratch) {
+    boolean hit = false;
+    if (hasOthers) {
+      for (int i = first; i < end; ++i) {
+        if (others[i] != null) {
+          hit = others[i].intersect(ray) || hit;
+        }
+      }
+    }
+    for (int batch = first; batch < end; batch += BATCH_SIZE) {
+      int count = Math.min(BATCH_SIZE, end - batch);
+      intersectBatch(ray, batch, count, scratch);
+      // Select the closest opaque hit. Transparent hits are discarded and
+      // the next closest is tried.
+      while (true) {
+        int best = -1;
+        double bestT = ray.t;
+        for (int i = 0; i < count; ++i) {
+          if (scratch[i] < bestT) {
+            bestT = scratch[i];
+            best = i;
+          }
+        }
+        if (best < 0) {
+          break;
+        }
+        if (hit(ray, batch + best, bestT, scratch[BATCH_SIZE + best],
+            scratch[BATCH_SIZE * 2 + best])) {
+          hit = true;
+          break;
+        }
+        scratch[best] = Double.POSITIVE_INFINITY;
+      }
+    }
+    return hit;
+  }
+
+  /**
+   * Test if the ray intersects any of the primitives in the range
+   * {@code [first, end)}.
+   *
+   * @param scratch buffer allocated by {@link #scratch()}
+   */
+  public boolean anyIntersection(Ray ray, int first, int end, double[] scratch) {
+    if (hasOthers) {
+      for (int i = first; i < end; ++i) {
+        if (others[i] != null && others[i].intersect(ray)) {
+          return true;
+        }
+      }
+    }
+    for (int batch = first; batch < end; batch += BATCH_SIZE) {
+      int count = Math.min(BATCH_SIZE, end - batch);
+      intersectBatch(ray, batch, count, scratch);
+      for (int i = 0; i < count; ++i) {
+        if (scratch[i] < ray.t && hit(ray, batch + i, scratch[i], scratch[BATCH_SIZE + i],
+            scratch[BATCH_SIZE * 2 + i])) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Möller-Trumbore intersection for a batch of triangles. Stores the
+   * intersection distance for each triangle in {@code result[0..count)},
+   * or infinity if the triangle is not hit. The barycentric coordinates are
+   * stored at offset {@link #BATCH_SIZE} and {@code 2 * BATCH_SIZE}.
+   *
+   * <p>The loop body has no early exits, so that the JIT compiler can
+   * unroll and vectorize it.
+   */
+  private void intersectBatch(Ray ray, int first, int count, double[] result) {
+    double dx = ray.d.x;
+    double dy = ray.d.y;
+    double dz = ray.d.z;
+    double rox = ray.o.x;
+    double roy = ray.o.y;
+    double roz = ray.o.z;
+    for (int i = 0; i < count; ++i) {
+      int j = first + i;
+      double px = dy * e2z[j] - dz * e2y[j];
+      double py = dz * e2x[j] - dx * e2z[j];
+      double pz = dx * e2y[j] - dy * e2x[j];
+      double det = e1x[j] * px + e1y[j] * py + e1z[j] * pz;
+      double recip = 1 / det;
+      double tx = rox - ox[j];
+      double ty = roy - oy[j];
+      double tz = roz - oz[j];
+      double u = (tx * px + ty * py + tz * pz) * recip;
+      double qx = ty * e1z[j] - tz * e1y[j];
+      double qy = tz * e1x[j] - tx * e1z[j];
+      double qz = tx * e1y[j] - ty * e1x[j];
+      double v = (dx * qx + dy * qy + dz * qz) * recip;
+      double t = (e2x[j] * qx + e2y[j] * qy + e2z[j] * qz) * recip;
+      boolean inside = (det <= -EPSILON || det >= EPSILON)
+          & u >= 0 & u <= 1 & v >= 0 & u + v <= 1 & t > EPSILON;
+      result[i] = inside ? t : Double.POSITIVE_INFINITY;
+      result[BATCH_SIZE + i] = u;
+      result[BATCH_SIZE * 2 + i] = v;
+    }
+  }
+
+  /**
+   * Update the ray for a hit on a packed triangle, unless the triangle is
+   * transparent at the hit point.
+   */
+  private boolean hit(Ray ray, int i, double t, double u, double v) {
+    double w = 1 - u - v;
+    ray.u = u1[i] * u + u2[i] * v + u3[i] * w;
+    ray.v = v1[i] * u + v2[i] * v + v3[i] * w;
+    Material material = materials[this.material[i]];
+    float[] color = material.getColor(ray.u, ray.v);
+    if (color[3] > 0) {
+      ray.color.set(color);
+      ray.setCurrentMaterial(material, 0);
+      ray.t = t;
+      ray.n.set(nx[i], ny[i], nz[i]);
+      return true;
+    }
+    return false;
+  }
+}
@@ -29,16 +29,19 @@ import se.llbit.math.Vector3;
  */
 public class TexturedTriangle implements Primitive {
 
-  private static final double EPSILON = 0.000001;
-  private final Vector3 e1 = new Vector3(0, 0, 0);
-  private final Vector3 e2 = new Vector3(0, 0, 0);
-  private final Vector3 o = new Vector3(0, 0, 0);
-  private final Vector3 n = new Vector3(0, 0, 0);
+  static final double EPSILON = 0.000001;
+
+  // The triangle fields are package-private so that they can be copied
+  // into PackedTriangles.
+  final Vector3 e1 = new Vector3(0, 0, 0);
+  final Vector3 e2 = new Vector3(0, 0, 0);
+  final Vector3 o = new Vector3(0, 0, 0);
+  final Vector3 n = new Vector3(0, 0, 0);
   private final AABB bounds;
-  private final Vector2 t1;
-  private final Vector2 t2;
-  private final Vector2 t3;
-  private final Material material;
+  final Vector2 t1;
+  final Vector2 t2;
+  final Vector2 t3;
+  final Material material;
 
   /**
    * @param c1 first corner
@@ -23,7 +23,6 @@ import se.llbit.util.TaskTracker;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.zip.Deflater;
 
 /**
  * @author Jesper Öqvist <jesper@llbit.se>
@@ -39,11 +38,23 @@ public class PngFileWriter implements AutoCloseable {
 
   private final DataOutputStream out;
 
+  /** Number of threads used to encode the image data. */
+  private final int threadCount;
+
   /**
    * @throws IOException
    */
   public PngFileWriter(OutputStream out) throws IOException {
+    this(out, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param threadCount number of threads used to encode the image data
+   * @throws IOException
+   */
+  public PngFileWriter(OutputStream out, int threadCount) throws IOException {
     this.out = new DataOutputStream(out);
+    this.threadCount = threadCount;
     this.out.writeLong(PNG_SIGNATURE);
   }
 
@@ -75,20 +86,7 @@ public class PngFileWriter implements AutoCloseable {
   public void write(int[] data, int width, int height, TaskTracker.Task task)
       throws IOException {
     writeChunk(new IHDR(width, height));
-    IDATWriter idat = new IDATWriter();
-    int i = 0;
-    for (int y = 0; y < height; ++y) {
-      task.update(height, y);
-      idat.write(IDAT.FILTER_TYPE_NONE); // Scanline header.
-      for (int x = 0; x < width; ++x) {
-        int rgb = data[i++];
-        idat.write((rgb >> 16) & 0xFF);
-        idat.write((rgb >> 8) & 0xFF);
-        idat.write(rgb & 0xFF);
-      }
-      task.update(height, y + 1);
-    }
-    idat.close();
+    new IDATEncoder(out, threadCount).write(data, null, width, height, task);
   }
 
   /**
@@ -97,85 +95,6 @@ public class PngFileWriter implements AutoCloseable {
   public void write(int[] data, byte[] alpha, int width, int height,
       TaskTracker.Task task) throws IOException {
     writeChunk(new IHDR(width, height, IHDR.COLOR_TYPE_RGBA));
-    IDATWriter idat = new IDATWriter();
-    int i = 0;
-    for (int y = 0; y < height; ++y) {
-      task.update(height, y);
-      idat.write(IDAT.FILTER_TYPE_NONE); // Scanline header.
-      for (int x = 0; x < width; ++x) {
-        int rgb = data[i];
-        idat.write((rgb >> 16) & 0xFF);
-        idat.write((rgb >> 8) & 0xFF);
-        idat.write(rgb & 0xFF);
-        idat.write(alpha[i]);
-        i += 1;
-      }
-      task.update(height, y + 1);
-    }
-    idat.close();
-  }
-
-  class IDATWriter {
-    Deflater deflater = new Deflater();
-    int inputSize = 0;
-    byte[] inputBuf = new byte[MAX_CHUNK_BYTES];
-    int outputSize = 0;
-    byte[] outputBuf = new byte[MAX_CHUNK_BYTES];
-
-    void write(int b) throws IOException {
-      if (inputSize == MAX_CHUNK_BYTES) {
-        deflater.setInput(inputBuf, 0, inputSize);
-        inputSize = 0;
-        deflate();
-      }
-      inputBuf[inputSize++] = (byte) b;
-    }
-
-    void write16(int bb) throws IOException {
-      write(bb >> 8);
-      write(bb & 0xFF);
-    }
-
-    private void deflate() throws IOException {
-      int deflated;
-      do {
-        if (outputSize == MAX_CHUNK_BYTES) {
-          writeChunk();
-        }
-        deflated = deflater.deflate(outputBuf, outputSize, MAX_CHUNK_BYTES - outputSize);
-        outputSize += deflated;
-      } while (deflated != 0);
-    }
-
-    private void writeChunk() throws IOException {
-      out.writeInt(outputSize);
-
-      CrcOutputStream crcOut = new CrcOutputStream();
-      DataOutputStream crc = new DataOutputStream(crcOut);
-
-      crc.writeInt(IDAT.CHUNK_TYPE);
-      out.writeInt(IDAT.CHUNK_TYPE);
-
-      crc.write(outputBuf, 0, outputSize);
-      out.write(outputBuf, 0, outputSize);
-
-      out.writeInt(crcOut.getCRC());
-      crc.close();
-
-      outputSize = 0;
-    }
-
-    void close() throws IOException {
-      if (inputSize > 0) {
-        deflater.setInput(inputBuf, 0, inputSize);
-        deflater.finish();
-        inputSize = 0;
-        deflate();
-      }
-      if (outputSize > 0) {
-        writeChunk();
-      }
-      deflater.end();
-    }
+    new IDATEncoder(out, threadCount).write(data, alpha, width, height, task);
   }
 }
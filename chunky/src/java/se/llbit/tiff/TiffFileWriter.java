@@ -16,20 +16,35 @@
  */
 package se.llbit.tiff;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.InterruptedIOException;
 import se.llbit.chunky.renderer.scene.Scene;
 import se.llbit.util.TaskTracker;
 
 import java.io.DataOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * TIFF image output. This supports 32-bit floating point channel output.
  *
  * <p>Non-32bit output has been removed sine it was unused.
  *
+ * <p>The image data is converted in batches of scanlines, using several
+ * threads, into a reusable buffer that is written to a channel. The next
+ * batch is converted while the current batch is written.
+ *
  * @author Jesper Öqvist <jesper@llbit.se>
  */
 public class TiffFileWriter implements AutoCloseable {
@@ -39,14 +54,41 @@ public class TiffFileWriter implements AutoCloseable {
   private static final int LONG = 4;
   private static final int RATIONAL = 5;
 
-  private final DataOutputStream out;
+  /** Target size of the image data converted in one batch. */
+  private static final int BATCH_BYTES = 1 << 22;
+
+  /**
+   * Source of the post-processed image rows.
+   */
+  public interface RowSource {
+    /**
+     * Write the colors of rows y0 until y1 to the destination array, three
+     * values per pixel starting with pixel (0, y0). This is called from
+     * several threads at the same time, for different rows.
+     */
+    void getRows(int y0, int y1, double[] dest);
+  }
+
+  private final WritableByteChannel out;
+
+  /** Number of threads used to convert the image data. */
+  private final int threadCount;
 
   public TiffFileWriter(OutputStream out) throws IOException {
-    this.out = new DataOutputStream(out);
-    out.write(0x4D);
-    out.write(0x4D);
-    out.write(0x00);
-    out.write(0x2A);
+    this(out, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param threadCount number of threads used to convert the image data
+   */
+  public TiffFileWriter(OutputStream out, int threadCount) throws IOException {
+    if (out instanceof FileOutputStream) {
+      this.out = ((FileOutputStream) out).getChannel();
+    } else {
+      this.out = Channels.newChannel(out);
+    }
+    this.threadCount = Math.max(1, threadCount);
+    write(ByteBuffer.wrap(new byte[] { 0x4D, 0x4D, 0x00, 0x2A }));
   }
 
   /**
@@ -63,11 +105,28 @@ public class TiffFileWriter implements AutoCloseable {
     out.close();
   }
 
+  private void write(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
   private void writeHeader(int width, int height, int bytesPerSample) throws IOException {
-    out.writeInt(ifdOffset(width, height, bytesPerSample));
+    ByteBuffer header = ByteBuffer.allocate(4);
+    header.putInt(0, ifdOffset(width, height, bytesPerSample));
+    write(header);
   }
 
   private void writeFooter(int width, int height, int bytesPerSample) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      writeFooter(out, width, height, bytesPerSample);
+    }
+    write(ByteBuffer.wrap(bytes.toByteArray()));
+  }
+
+  private void writeFooter(DataOutputStream out, int width, int height, int bytesPerSample)
+      throws IOException {
     int ifdOffset = ifdOffset(width, height, bytesPerSample);
     int numEntries = 15;
 
@@ -217,23 +276,81 @@ public class TiffFileWriter implements AutoCloseable {
    * Write an image as a 32-bit per channel TIFF file.
    */
   public void write32(Scene scene, TaskTracker.Task task) throws IOException {
-    int width = scene.canvasWidth();
-    int height = scene.canvasHeight();
+    write32(scene.canvasWidth(), scene.canvasHeight(), scene::postProcessRows, task);
+  }
+
+  /**
+   * Write an image as a 32-bit per channel TIFF file.
+   *
+   * @param rows provides the colors of the image rows
+   */
+  public void write32(int width, int height, RowSource rows, TaskTracker.Task task)
+      throws IOException {
+    int rowBytes = width * 3 * 4;
+    int batchRows = Math.max(1, BATCH_BYTES / rowBytes);
     writeHeader(width, height, 4);
-    for (int y = 0; y < height; ++y) {
-      task.update(height, y);
-      for (int x = 0; x < width; ++x) {
-        double[] pixel = new double[3];
-        scene.postProcessPixel(x, y, pixel);
-        out.writeFloat((float) pixel[0]);
-        out.writeFloat((float) pixel[1]);
-        out.writeFloat((float) pixel[2]);
+    ByteBuffer[] buffers = {
+        ByteBuffer.allocateDirect(batchRows * rowBytes),
+        ByteBuffer.allocateDirect(batchRows * rowBytes)
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      task.update(height, 0);
+      List<Future<?>> pending = convertRows(executor, rows, width, buffers[0], 0,
+          Math.min(height, batchRows));
+      for (int y0 = 0; y0 < height; y0 += batchRows) {
+        int y1 = Math.min(height, y0 + batchRows);
+        for (Future<?> future : pending) {
+          future.get();
+        }
+        // Convert the next batch while this batch is written.
+        ByteBuffer buffer = buffers[(y0 / batchRows) & 1];
+        if (y1 < height) {
+          pending = convertRows(executor, rows, width, buffers[(y1 / batchRows) & 1], y1,
+              Math.min(height, y1 + batchRows));
+        }
+        buffer.clear();
+        buffer.limit((y1 - y0) * rowBytes);
+        write(buffer);
+        task.update(height, y1);
       }
-      task.update(height, y + 1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("TIFF writing was interrupted");
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to convert TIFF image data", e.getCause());
+    } finally {
+      executor.shutdownNow();
     }
     writeFooter(width, height, 4);
   }
 
+  /**
+   * Convert rows y0 until y1 of the post-processed image to big-endian
+   * floats. The rows are split between the threads, and each thread reads
+   * its rows from the row source.
+   */
+  private List<Future<?>> convertRows(ExecutorService executor, RowSource rows, int width,
+      ByteBuffer buffer, int y0, int y1) {
+    int rowsPerTask = (y1 - y0 + threadCount - 1) / threadCount;
+    List<Future<?>> futures = new ArrayList<>();
+    for (int start = y0; start < y1; start += rowsPerTask) {
+      int end = Math.min(y1, start + rowsPerTask);
+      int firstRow = start;
+      futures.add(executor.submit(() -> {
+        double[] pixels = new double[(end - firstRow) * width * 3];
+        rows.getRows(firstRow, end, pixels);
+        int offset = (firstRow - y0) * width * 12;
+        for (double value : pixels) {
+          buffer.putFloat(offset, (float) value);
+          offset += 4;
+        }
+        return null;
+      }));
+    }
+    return futures;
+  }
+
   private int ifdOffset(int width, int height, int bytesPerSample) {
     return 8 + width * height * 3 * bytesPerSample; // Offset to first IFD from file start.
   }
@@ -0,0 +1,211 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.LongFunction;
+
+/**
+ * A hash map with primitive long keys, using open addressing with linear
+ * probing. Keys are not boxed, so lookups do not allocate.
+ *
+ * <p>This is used for maps keyed by chunk and region positions, see
+ * {@link se.llbit.chunky.world.ChunkPosition#asLong(int, int)}.
+ *
+ * <p>Null values are not allowed. The map is not thread safe.
+ */
+public class LongHashMap<V> {
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values;
+  private int mask;
+  private int size = 0;
+
+  public LongHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * @param expectedSize the number of entries that fit without resizing
+   */
+  public LongHashMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * 3 / 4 < expectedSize) {
+      capacity *= 2;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  /** Mix the key bits (the MurmurHash3 64-bit finalizer). */
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  /** @return the slot of the key, or the empty slot where it would be inserted */
+  private int slot(long key) {
+    int i = hash(key) & mask;
+    while (values[i] != null && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /** @return the value for the key, or {@code null} if the key is not in the map */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    return (V) values[slot(key)];
+  }
+
+  public boolean containsKey(long key) {
+    return values[slot(key)] != null;
+  }
+
+  /**
+   * Associate a value with the key.
+   *
+   * @return the previous value for the key, or {@code null}
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("Null values are not supported.");
+    }
+    int i = slot(key);
+    V previous = (V) values[i];
+    keys[i] = key;
+    values[i] = value;
+    if (previous == null) {
+      size += 1;
+      if (size > (mask + 1) * 3 / 4) {
+        rehash((mask + 1) * 2);
+      }
+    }
+    return previous;
+  }
+
+  /**
+   * Get the value for the key. If the key is not in the map, a value is
+   * created by the given function and added to the map.
+   */
+  @SuppressWarnings("unchecked")
+  public V computeIfAbsent(long key, LongFunction<V> function) {
+    V value = (V) values[slot(key)];
+    if (value == null) {
+      value = function.apply(key);
+      put(key, value);
+    }
+    return value;
+  }
+
+  /**
+   * Remove the key from the map.
+   *
+   * @return the removed value, or {@code null} if the key was not in the map
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int i = slot(key);
+    V previous = (V) values[i];
+    if (previous == null) {
+      return null;
+    }
+    values[i] = null;
+    size -= 1;
+    // Move back the following entries in the probe sequence, so that every
+    // entry can still be reached from its home slot.
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (values[j] == null) {
+        break;
+      }
+      int home = hash(keys[j]) & mask;
+      // Move the entry if its home slot is not cyclically in (i, j].
+      if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        values[j] = null;
+        i = j;
+      }
+    }
+    return previous;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldValues.length; ++i) {
+      if (oldValues[i] != null) {
+        int j = slot(oldKeys[i]);
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  /** @return a copy of the keys in the map */
+  public long[] keys() {
+    long[] result = new long[size];
+    int n = 0;
+    for (int i = 0; i < values.length; ++i) {
+      if (values[i] != null) {
+        result[n++] = keys[i];
+      }
+    }
+    return result;
+  }
+
+  /** @return a copy of the values in the map */
+  @SuppressWarnings("unchecked")
+  public Collection<V> values() {
+    Collection<V> result = new ArrayList<>(size);
+    for (Object value : values) {
+      if (value != null) {
+        result.add((V) value);
+      }
+    }
+    return result;
+  }
+}
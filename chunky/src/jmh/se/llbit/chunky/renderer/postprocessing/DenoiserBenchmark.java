@@ -0,0 +1,235 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.llbit.chunky.renderer.Postprocess;
+import se.llbit.chunky.renderer.RenderMode;
+import se.llbit.chunky.renderer.SampleBuffer;
+import se.llbit.chunky.renderer.SamplePrecision;
+import se.llbit.chunky.renderer.WorkerState;
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.PathTracer;
+import se.llbit.chunky.renderer.scene.RayTracer;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.renderer.scene.Sky;
+import se.llbit.math.QuickMath;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.util.TaskTracker;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the image quality of path tracing with and without the denoiser
+ * at equal wall time and equal thread count.
+ *
+ * <p>Each benchmark invocation renders the test scene of
+ * {@code PathTracerBenchmark} for a fixed time budget. The {@code denoised}
+ * benchmark stops tracing early enough to also denoise the image within the
+ * budget. The {@code psnr} counter gives the peak signal-to-noise ratio in
+ * decibels of the gamma corrected image, compared with a reference image
+ * rendered with {@link #REFERENCE_SPP} samples per pixel. The {@code spp}
+ * counter gives the number of samples per pixel traced within the budget.
+ *
+ * <p>Path tracing and denoising both run on a single thread, so that both
+ * variants get the same CPU time. The time reserved for denoising is
+ * measured once, after the denoiser has been warmed up. The denoiser does
+ * the same work for any sample count, so the time does not depend on the
+ * budget. All rendering uses fixed random seeds. The sample counts depend on
+ * the speed of the machine, as the budget is fixed.
+ *
+ * <p>The test scene is an outdoor scene with only sky and ocean. It does
+ * not cover indoor scenes lit by emitters, where the path traced image is
+ * much noisier at the same sample count.
+ *
+ * <p>Run with {@code gradlew :chunky:jmh -PjmhArgs="DenoiserBenchmark"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DenoiserBenchmark {
+  private static final int WIDTH = 96;
+  private static final int HEIGHT = 54;
+  private static final int REFERENCE_SPP = 1024;
+
+  /** Number of denoiser runs before the denoiser time is measured. */
+  private static final int DENOISER_WARMUP = 20;
+
+  /** Number of timed denoiser runs. The median time is used. */
+  private static final int DENOISER_RUNS = 5;
+
+  /** Render time budget in milliseconds. */
+  @Param({"250", "1000", "4000"})
+  public int budget;
+
+  private final RayTracer tracer = new PathTracer();
+  private Scene scene;
+  private double[] reference;
+
+  /** Time reserved for denoising in the denoised benchmark. */
+  private long denoiseNanos;
+
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public double psnr;
+    public double spp;
+
+    @Setup(Level.Iteration) public void reset() {
+      psnr = 0;
+      spp = 0;
+    }
+  }
+
+  /** A render in progress. */
+  private class Render {
+    final SampleBuffer samples = SamplePrecision.DOUBLE.newBuffer(WIDTH, HEIGHT);
+    final float[] albedo = new float[WIDTH * HEIGHT * 3];
+    final float[] normal = new float[WIDTH * HEIGHT * 3];
+    final WorkerState state = new WorkerState();
+    int spp = 0;
+
+    Render(long seed) {
+      state.ray = new Ray();
+      state.random = new Random(seed);
+    }
+
+    /** Trace one sample per pixel, and average the samples and first hits. */
+    void pass() {
+      Camera camera = scene.camera();
+      Ray ray = state.ray;
+      Random random = state.random;
+      double halfWidth = WIDTH / (2.0 * HEIGHT);
+      double invHeight = 1.0 / HEIGHT;
+      double sinv = 1.0 / (spp + 1);
+      for (int y = 0; y < HEIGHT; ++y) {
+        for (int x = 0; x < WIDTH; ++x) {
+          camera.calcViewRay(ray, random, -halfWidth + (x + random.nextDouble()) * invHeight,
+              -.5 + (y + random.nextDouble()) * invHeight);
+          state.firstHitRecorded = false;
+          state.albedo.set(0, 0, 0);
+          state.normal.set(0, 0, 0);
+          scene.rayTrace(tracer, state);
+          int offset = (y * WIDTH + x) * 3;
+          samples.addSamples(offset, spp, 1, ray.color.x, ray.color.y, ray.color.z);
+          average(albedo, offset, state.albedo, sinv);
+          average(normal, offset, state.normal, sinv);
+        }
+      }
+      spp += 1;
+    }
+
+    private void average(float[] buffer, int offset, Vector3 value, double sinv) {
+      buffer[offset] = (float) ((buffer[offset] * spp + value.x) * sinv);
+      buffer[offset + 1] = (float) ((buffer[offset + 1] * spp + value.y) * sinv);
+      buffer[offset + 2] = (float) ((buffer[offset + 2] * spp + value.z) * sinv);
+    }
+  }
+
+  @Setup public void setup() throws InterruptedException {
+    scene = new Scene();
+    scene.setCanvasSize(WIDTH, HEIGHT);
+    scene.setRenderMode(RenderMode.RENDERING);
+    scene.setWaterHeight(63);
+    scene.setFogDensity(0.1);
+    scene.setRayDepth(5);
+    scene.sky().setSkyMode(Sky.SkyMode.SIMULATED);
+    scene.camera().setPosition(new Vector3(0, 80, 0));
+    scene.camera().setView(-QuickMath.HALF_PI / 2, 0, 0);
+
+    Render render = new Render(0);
+    for (int i = 0; i < REFERENCE_SPP; ++i) {
+      render.pass();
+    }
+    reference = toneMap(render.samples);
+
+    for (int i = 0; i < DENOISER_WARMUP; ++i) {
+      denoise(render);
+    }
+    long[] times = new long[DENOISER_RUNS];
+    for (int i = 0; i < DENOISER_RUNS; ++i) {
+      long start = System.nanoTime();
+      denoise(render);
+      times[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(times);
+    denoiseNanos = times[DENOISER_RUNS / 2];
+  }
+
+  /** Denoise a render on one thread, like the path tracing. */
+  private SampleBuffer denoise(Render render) throws InterruptedException {
+    return new Denoiser().denoise(render.samples, render.albedo, render.normal, render.spp, 1,
+        TaskTracker.Task.NONE);
+  }
+
+  @Benchmark public void pathTraced(Counters counters) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+    Render render = new Render(1);
+    do {
+      render.pass();
+    } while (System.nanoTime() < deadline);
+    counters.psnr = psnr(render.samples);
+    counters.spp = render.spp;
+  }
+
+  @Benchmark public void denoised(Counters counters) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget) - denoiseNanos;
+    Render render = new Render(1);
+    do {
+      render.pass();
+    } while (System.nanoTime() < deadline);
+    SampleBuffer denoised = denoise(render);
+    counters.psnr = psnr(denoised);
+    counters.spp = render.spp;
+  }
+
+  private static double[] toneMap(SampleBuffer samples) {
+    double[] result = new double[WIDTH * HEIGHT * 3];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = Math.min(1, ToneMappingStage.map(Postprocess.GAMMA, samples.get(i)));
+    }
+    return result;
+  }
+
+  private double psnr(SampleBuffer samples) {
+    double[] image = toneMap(samples);
+    double sum = 0;
+    for (int i = 0; i < image.length; ++i) {
+      double error = image[i] - reference[i];
+      sum += error * error;
+    }
+    return 10 * Math.log10(image.length / sum);
+  }
+}
@@ -0,0 +1,123 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.scene;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import se.llbit.chunky.renderer.RenderMode;
+import se.llbit.chunky.renderer.WorkerState;
+import se.llbit.math.QuickMath;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the samples per second of the path tracers on a fixed test scene.
+ *
+ * <p>The test scene has no chunks loaded. It has an ocean plane, fog, sun
+ * and emitters, and the camera looks down over the ocean so that each
+ * sample has several specular, refracted, and diffuse bounces.
+ *
+ * <p>Run with {@code gradlew :chunky:jmh -PjmhArgs="PathTracerBenchmark -prof gc"}
+ * to also measure the allocation rate of each tracer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PathTracerBenchmark {
+  /** Samples traced per benchmark invocation. */
+  private static final int SAMPLES = 1024;
+
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 16;
+
+  @Param({"5", "20"})
+  public int rayDepth;
+
+  private Scene scene;
+  private WorkerState state;
+  private int sample;
+
+  private final RayTracer pathTracer = new PathTracer();
+  private final RayTracer stackPathTracer = new StackPathTracer();
+  private final RayTracer iterativePathTracer = new IterativePathTracer();
+
+  @Setup public void setup() {
+    scene = new Scene();
+    scene.setCanvasSize(WIDTH, HEIGHT);
+    scene.setRenderMode(RenderMode.RENDERING);
+    scene.setWaterHeight(63);
+    scene.setFogDensity(0.1);
+    scene.setRayDepth(rayDepth);
+    scene.sky().setSkyMode(Sky.SkyMode.SIMULATED);
+    scene.camera().setPosition(new Vector3(0, 80, 0));
+    scene.camera().setView(-QuickMath.HALF_PI / 2, 0, 0);
+
+    state = new WorkerState();
+    state.ray = new Ray();
+    state.random = new Random(0);
+  }
+
+  @Benchmark @OperationsPerInvocation(SAMPLES)
+  public void pathTracer(Blackhole blackhole) {
+    traceSamples(pathTracer, blackhole);
+  }
+
+  @Benchmark @OperationsPerInvocation(SAMPLES)
+  public void stackPathTracer(Blackhole blackhole) {
+    traceSamples(stackPathTracer, blackhole);
+  }
+
+  @Benchmark @OperationsPerInvocation(SAMPLES)
+  public void iterativePathTracer(Blackhole blackhole) {
+    traceSamples(iterativePathTracer, blackhole);
+  }
+
+  /** Trace one sample for each of the next {@link #SAMPLES} pixels. */
+  private void traceSamples(RayTracer tracer, Blackhole blackhole) {
+    Camera camera = scene.camera();
+    Ray ray = state.ray;
+    Random random = state.random;
+    double halfWidth = WIDTH / (2.0 * HEIGHT);
+    double invHeight = 1.0 / HEIGHT;
+    for (int i = 0; i < SAMPLES; ++i) {
+      int x = sample % WIDTH;
+      int y = (sample / WIDTH) % HEIGHT;
+      sample += 1;
+      camera.calcViewRay(ray, random, -halfWidth + (x + random.nextDouble()) * invHeight,
+          -.5 + (y + random.nextDouble()) * invHeight);
+      scene.rayTrace(tracer, state);
+      blackhole.consume(ray.color.x + ray.color.y + ray.color.z);
+    }
+  }
+}
@@ -0,0 +1,252 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.world;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.NamedTag;
+import se.llbit.nbt.Tag;
+import se.llbit.util.ByteBufferInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compares decoding chunk block data via NBT tag objects with the streaming
+ * chunk decoder.
+ *
+ * <p>The chunks are inflated before the benchmark, so only the NBT decoding
+ * is measured. Each invocation decodes the whole chunk corpus into a block
+ * palette that is shared between all chunks, as when loading a scene.
+ *
+ * <p>By default the corpus is generated: chunks with random palettes drawn
+ * from a fixed set of blocks. To benchmark real chunks, give the region
+ * directory of a Minecraft 1.13+ world:
+ * {@code gradlew :chunky:jmh -PjmhArgs="ChunkDecoderBenchmark -p regionDir=/path/to/world/region"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkDecoderBenchmark {
+  /** Maximum number of chunks in the corpus. */
+  private static final int MAX_CHUNKS = 1024;
+
+  private static final int CHUNK_BLOCKS = Chunk.X_MAX * Chunk.Y_MAX * Chunk.Z_MAX;
+
+  /** Region directory to load chunks from. Empty to generate chunks. */
+  @Param({""})
+  public String regionDir;
+
+  private final List<byte[]> chunks = new ArrayList<>();
+  private final int[] blocks = new int[CHUNK_BLOCKS];
+  private final byte[] biomes = new byte[Chunk.X_MAX * Chunk.Z_MAX];
+  private final List<CompoundTag> entities = new ArrayList<>();
+  private final List<CompoundTag> tileEntities = new ArrayList<>();
+  private final Set<String> request = new HashSet<>();
+
+  private BlockPalette palette;
+  private ChunkDecoder decoder;
+
+  @Setup public void setup() throws IOException {
+    if (regionDir.isEmpty()) {
+      generateChunks();
+    } else {
+      loadChunks(new File(regionDir));
+    }
+    if (chunks.isEmpty()) {
+      throw new IOException("No chunks found in " + regionDir);
+    }
+    palette = new BlockPalette();
+    decoder = new ChunkDecoder(palette);
+    request.add(Chunk.LEVEL_SECTIONS);
+    request.add(Chunk.LEVEL_BIOMES);
+    request.add(".Level.Entities");
+    request.add(".Level.TileEntities");
+  }
+
+  /** Parse the chunks into tag objects, then decode the sections. */
+  @Benchmark public void tagTree(Blackhole blackhole) throws IOException {
+    for (byte[] chunk : chunks) {
+      Map<String, Tag> data =
+          NamedTag.quickParse(new DataInputStream(new ByteArrayInputStream(chunk)), request);
+      Chunk.loadBlockData(data, blocks, palette);
+      blackhole.consume(data);
+      blackhole.consume(blocks);
+    }
+  }
+
+  @Benchmark public void streaming(Blackhole blackhole) throws IOException {
+    for (byte[] chunk : chunks) {
+      entities.clear();
+      tileEntities.clear();
+      decoder.decode(new ByteArrayInputStream(chunk), blocks, biomes, tileEntities, entities);
+      blackhole.consume(blocks);
+    }
+  }
+
+  /** Read and inflate the chunks of the region files in a directory. */
+  private void loadChunks(File dir) throws IOException {
+    File[] files = dir.listFiles((file, name) -> name.endsWith(".mca"));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      RegionFile region = RegionFile.open(file);
+      if (region == null) {
+        continue;
+      }
+      for (int i = 0; i < Region.CHUNKS_X * Region.CHUNKS_Z; ++i) {
+        if (chunks.size() >= MAX_CHUNKS) {
+          return;
+        }
+        ByteBuffer data = region.getChunkData(i);
+        if (data == null) {
+          continue;
+        }
+        byte type = data.get();
+        InputStream in = new ByteBufferInputStream(data);
+        if (type == 1) {
+          in = new GZIPInputStream(in);
+        } else if (type == 2) {
+          in = new InflaterInputStream(in);
+        } else {
+          continue;
+        }
+        chunks.add(readAll(in));
+      }
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, len);
+    }
+    in.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Generate chunks with sixteen sections each. Each section has a random
+   * palette taken from a set of block states, so many palette entries are
+   * shared between chunks as in a real world.
+   */
+  private void generateChunks() throws IOException {
+    Random random = new Random(0);
+    String[] names = {
+        "minecraft:stone", "minecraft:dirt", "minecraft:grass_block", "minecraft:gravel",
+        "minecraft:coal_ore", "minecraft:iron_ore", "minecraft:water", "minecraft:lava",
+        "minecraft:oak_log", "minecraft:oak_leaves", "minecraft:sand", "minecraft:granite",
+    };
+    for (int n = 0; n < 256; ++n) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(10);
+      out.writeUTF("");
+      tag(out, 3, "DataVersion");
+      out.writeInt(1631);
+      tag(out, 10, "Level");
+      tag(out, 4, "LastUpdate");
+      out.writeLong(random.nextLong());
+      tag(out, 11, "Biomes");
+      out.writeInt(256);
+      for (int i = 0; i < 256; ++i) {
+        out.writeInt(1);
+      }
+      tag(out, 9, "Sections");
+      out.writeByte(10);
+      out.writeInt(16);
+      for (int y = 0; y < 16; ++y) {
+        tag(out, 1, "Y");
+        out.writeByte(y);
+        tag(out, 7, "BlockLight");
+        out.writeInt(2048);
+        out.write(new byte[2048]);
+        tag(out, 7, "SkyLight");
+        out.writeInt(2048);
+        out.write(new byte[2048]);
+        int paletteSize = 2 + random.nextInt(30);
+        tag(out, 9, "Palette");
+        out.writeByte(10);
+        out.writeInt(paletteSize);
+        for (int i = 0; i < paletteSize; ++i) {
+          tag(out, 8, "Name");
+          out.writeUTF(names[random.nextInt(names.length)]);
+          tag(out, 10, "Properties");
+          tag(out, 8, "level");
+          out.writeUTF(String.valueOf(random.nextInt(16)));
+          out.writeByte(0);
+          out.writeByte(0);
+        }
+        int bpb = Math.max(4, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+        tag(out, 12, "BlockStates");
+        out.writeInt(4096 * bpb / 64);
+        for (int i = 0; i < 4096 * bpb / 64; ++i) {
+          out.writeLong(random.nextLong());
+        }
+        out.writeByte(0);
+      }
+      tag(out, 9, "Entities");
+      out.writeByte(0);
+      out.writeInt(0);
+      tag(out, 9, "TileEntities");
+      out.writeByte(0);
+      out.writeInt(0);
+      out.writeByte(0);
+      out.writeByte(0);
+      out.close();
+      chunks.add(bytes.toByteArray());
+    }
+  }
+
+  private static void tag(DataOutputStream out, int type, String name) throws IOException {
+    out.writeByte(type);
+    out.writeUTF(name);
+  }
+}
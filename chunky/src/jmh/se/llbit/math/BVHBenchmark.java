@@ -0,0 +1,121 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.math;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import se.llbit.chunky.resources.Texture;
+import se.llbit.math.primitive.Box;
+import se.llbit.math.primitive.Primitive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares BVH construction time and ray traversal throughput for the
+ * different BVH construction methods.
+ *
+ * <p>The primitives are the triangles of randomly placed boxes, similar to
+ * the geometry of a scene with many entities.
+ *
+ * <p>Run with {@code gradlew :chunky:jmh -PjmhArgs="BVHBenchmark"}.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BVHBenchmark {
+  /** Number of recorded rays traced per benchmark invocation. */
+  private static final int RAYS = 4096;
+
+  @Param({"MIDPOINT", "SAH", "SAH_MA", "BINNED_SAH"})
+  public BVH.Method method;
+
+  /** Number of boxes. Each box has twelve triangles. */
+  @Param({"1000", "10000"})
+  public int boxes;
+
+  private final List<Primitive> primitives = new ArrayList<>();
+  private BVH bvh;
+  private final double[] origin = new double[RAYS * 3];
+  private final double[] direction = new double[RAYS * 3];
+  private final Ray ray = new Ray();
+
+  @Setup public void setup() {
+    Random random = new Random(0);
+    Vector4 uv = new Vector4(0, 1, 0, 1);
+    for (int i = 0; i < boxes; ++i) {
+      double x = random.nextDouble() * 200;
+      double y = random.nextDouble() * 20;
+      double z = random.nextDouble() * 200;
+      double width = 0.2 + random.nextDouble();
+      double height = 0.2 + random.nextDouble() * 2;
+      Box box = new Box(x, x + width, y, y + height, z, z + width);
+      box.addFrontFaces(primitives, Texture.stone, uv);
+      box.addBackFaces(primitives, Texture.stone, uv);
+      box.addLeftFaces(primitives, Texture.stone, uv);
+      box.addRightFaces(primitives, Texture.stone, uv);
+      box.addTopFaces(primitives, Texture.stone, uv);
+      box.addBottomFaces(primitives, Texture.stone, uv);
+    }
+    bvh = new BVH(primitives, method);
+
+    // Camera rays from above the scene, looking down at the boxes.
+    Vector3 d = new Vector3();
+    for (int i = 0; i < RAYS; ++i) {
+      d.set(random.nextDouble() - 0.5, -0.2 - random.nextDouble(), random.nextDouble() - 0.5);
+      d.normalize();
+      origin[i * 3 + 0] = 100 + random.nextDouble();
+      origin[i * 3 + 1] = 40;
+      origin[i * 3 + 2] = 100 + random.nextDouble();
+      direction[i * 3 + 0] = d.x;
+      direction[i * 3 + 1] = d.y;
+      direction[i * 3 + 2] = d.z;
+    }
+  }
+
+  @Benchmark @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public BVH build() {
+    return new BVH(primitives, method);
+  }
+
+  @Benchmark @BenchmarkMode(Mode.Throughput) @OutputTimeUnit(TimeUnit.SECONDS)
+  @OperationsPerInvocation(RAYS)
+  public void closestIntersection(Blackhole blackhole) {
+    for (int i = 0; i < RAYS; ++i) {
+      ray.setDefault();
+      ray.t = Double.POSITIVE_INFINITY;
+      ray.o.set(origin[i * 3], origin[i * 3 + 1], origin[i * 3 + 2]);
+      ray.d.set(direction[i * 3], direction[i * 3 + 1], direction[i * 3 + 2]);
+      blackhole.consume(bvh.closestIntersection(ray));
+      blackhole.consume(ray.t);
+    }
+  }
+}
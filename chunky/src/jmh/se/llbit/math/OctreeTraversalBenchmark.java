@@ -0,0 +1,150 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.math;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import se.llbit.chunky.block.Air;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.resources.OctreeFileFormat;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Measures rays per second for the octree traversal.
+ *
+ * <p>Each invocation traces the same recorded set of camera rays: a pinhole
+ * camera above the middle of the octree looking at the horizon, with a
+ * fixed random seed. The octree is loaded from a saved {@code .octree2}
+ * scene file, or a generated terrain is used if no file is given.
+ *
+ * <p>Run with {@code gradlew :chunky:jmh -PjmhArgs="OctreeTraversalBenchmark
+ * -p octreeFile=/path/to/scene.octree2 -p cameraY=90"} to use a saved scene.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OctreeTraversalBenchmark {
+  /** Number of recorded rays traced per benchmark invocation. */
+  private static final int RAYS = 4096;
+
+  /** Path to a saved {@code .octree2} file. Empty to use a generated terrain. */
+  @Param({""})
+  public String octreeFile;
+
+  /** Use the node based octree instead of the packed octree. */
+  @Param({"false", "true"})
+  public boolean nodeBased;
+
+  /** Camera height in octree coordinates. */
+  @Param({"90"})
+  public double cameraY;
+
+  private Scene scene;
+  private Octree octree;
+  private BlockPalette palette;
+  private final double[] origin = new double[RAYS * 3];
+  private final double[] direction = new double[RAYS * 3];
+  private final Ray ray = new Ray();
+
+  @Setup public void setup() throws IOException {
+    scene = new Scene();
+    if (octreeFile.isEmpty()) {
+      palette = new BlockPalette();
+      octree = generateTerrain(8, palette, nodeBased);
+    } else {
+      try (DataInputStream in = new DataInputStream(
+          new GZIPInputStream(new FileInputStream(octreeFile)))) {
+        OctreeFileFormat.OctreeData data = OctreeFileFormat.load(in, nodeBased);
+        octree = data.worldTree;
+        palette = data.palette;
+        palette.applyMaterials();
+      }
+    }
+    recordRays(1 << octree.getDepth());
+  }
+
+  /**
+   * Record the camera rays. The rays are spread over a 90 degree field of
+   * view, looking diagonally across the octree and slightly downwards.
+   */
+  private void recordRays(int size) {
+    Random random = new Random(0);
+    Vector3 d = new Vector3();
+    for (int i = 0; i < RAYS; ++i) {
+      double yaw = QuickMath.HALF_PI / 2 + (random.nextDouble() - 0.5) * QuickMath.HALF_PI;
+      double pitch = -0.1 - random.nextDouble() * QuickMath.HALF_PI / 2;
+      d.set(Math.cos(yaw) * Math.cos(pitch), Math.sin(pitch), Math.sin(yaw) * Math.cos(pitch));
+      d.normalize();
+      origin[i * 3 + 0] = size / 2.0 + random.nextDouble();
+      origin[i * 3 + 1] = cameraY;
+      origin[i * 3 + 2] = size / 2.0 + random.nextDouble();
+      direction[i * 3 + 0] = d.x;
+      direction[i * 3 + 1] = d.y;
+      direction[i * 3 + 2] = d.z;
+    }
+  }
+
+  /** Rolling hills of stone, leaving the upper half of the octree empty. */
+  private static Octree generateTerrain(int depth, BlockPalette palette, boolean nodeBased) {
+    int size = 1 << depth;
+    Octree octree = nodeBased ? new Octree(depth, new Octree.Node(palette.airId)) : new Octree(depth);
+    for (int x = 0; x < size; ++x) {
+      for (int z = 0; z < size; ++z) {
+        int height = (int) (size / 4 + 12 * Math.sin(x / 9.0) + 8 * Math.cos(z / 13.0)
+            + 4 * Math.sin((x + z) / 5.0));
+        for (int y = 0; y < height; ++y) {
+          octree.set(palette.stoneId, x, y, z);
+        }
+      }
+    }
+    return octree;
+  }
+
+  @Benchmark @OperationsPerInvocation(RAYS)
+  public void enterBlock(Blackhole blackhole) {
+    for (int i = 0; i < RAYS; ++i) {
+      ray.setDefault();
+      ray.o.set(origin[i * 3], origin[i * 3 + 1], origin[i * 3 + 2]);
+      ray.d.set(direction[i * 3], direction[i * 3 + 1], direction[i * 3 + 2]);
+      ray.distance = 0;
+      ray.setCurrentMaterial(Air.INSTANCE, 0);
+      blackhole.consume(octree.enterBlock(scene, ray, palette));
+      blackhole.consume(ray.distance);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.png;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.llbit.util.TaskTracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures PNG encoding of 4K and 8K frames.
+ *
+ * <p>The {@code rawMegabytes} counter gives the encoding speed in MB/s of
+ * uncompressed pixel data. The {@code outputMegabytes} counter gives the
+ * output rate in the same unit, so the ratio of the two counters is the
+ * compression ratio. The output is counted but not stored, so disk speed
+ * does not affect the result.
+ *
+ * <p>The frame is a smooth gradient with per-pixel noise, similar to a
+ * render with a low sample count.
+ *
+ * <p>Run with {@code gradlew :chunky:jmh -PjmhArgs="PngFileWriterBenchmark"}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PngFileWriterBenchmark {
+  /** Frame size: 4K UHD or 8K UHD. */
+  @Param({"3840x2160", "7680x4320"})
+  public String size;
+
+  /** Number of encoder threads. Zero means one per available processor. */
+  @Param({"1", "0"})
+  public int threads;
+
+  private int width;
+  private int height;
+  private int[] frame;
+  private byte[] alpha;
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public double rawMegabytes;
+    public double outputMegabytes;
+
+    @Setup(Level.Iteration) public void reset() {
+      rawMegabytes = 0;
+      outputMegabytes = 0;
+    }
+  }
+
+  /** Counts the bytes written. */
+  private static class CountingOutputStream extends OutputStream {
+    long count = 0;
+
+    @Override public void write(int b) {
+      count += 1;
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  @Setup public void setup() {
+    String[] dimensions = size.split("x");
+    width = Integer.parseInt(dimensions[0]);
+    height = Integer.parseInt(dimensions[1]);
+    if (threads == 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    Random random = new Random(0);
+    frame = new int[width * height];
+    alpha = new byte[width * height];
+    Arrays.fill(alpha, (byte) 0xFF);
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        double v = 0.5 + 0.5 * Math.sin(x * 8.0 / width) * Math.cos(y * 6.0 / height);
+        int r = clamp(30 + 180 * v + 4 * random.nextGaussian());
+        int g = clamp(60 + 120 * v + 4 * random.nextGaussian());
+        int b = clamp(220 - 200 * v + 4 * random.nextGaussian());
+        frame[y * width + x] = (r << 16) | (g << 8) | b;
+      }
+    }
+  }
+
+  private static int clamp(double value) {
+    return Math.max(0, Math.min(255, (int) value));
+  }
+
+  @Benchmark public long rgb(Counters counters) throws IOException {
+    CountingOutputStream out = new CountingOutputStream();
+    try (PngFileWriter writer = new PngFileWriter(out, threads)) {
+      writer.write(frame, width, height, TaskTracker.Task.NONE);
+    }
+    counters.rawMegabytes += width * height * 3 / 1e6;
+    counters.outputMegabytes += out.count / 1e6;
+    return out.count;
+  }
+
+  @Benchmark public long rgba(Counters counters) throws IOException {
+    CountingOutputStream out = new CountingOutputStream();
+    try (PngFileWriter writer = new PngFileWriter(out, threads)) {
+      writer.write(frame, alpha, width, height, TaskTracker.Task.NONE);
+    }
+    counters.rawMegabytes += width * height * 4 / 1e6;
+    counters.outputMegabytes += out.count / 1e6;
+    return out.count;
+  }
+}
@@ -0,0 +1,165 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+import org.junit.Test;
+import se.llbit.util.ProgressListener;
+import se.llbit.util.TaskTracker;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that render dumps are read back with the same samples as were written.
+ */
+public class TestRenderDump {
+  /** Canvas size that is not a multiple of the dump tile size. */
+  private static final int WIDTH = 150;
+  private static final int HEIGHT = 70;
+
+  private static SampleBuffer randomSamples() {
+    SampleBuffer samples = new DoubleSampleBuffer(WIDTH, HEIGHT);
+    Random random = new Random(0);
+    for (int i = 0; i < WIDTH * HEIGHT * 3; ++i) {
+      samples.set(i, random.nextDouble() * 10);
+    }
+    return samples;
+  }
+
+  private static void checkSamples(SampleBuffer expected, RenderDump dump) throws IOException {
+    SampleBuffer actual = new DoubleSampleBuffer(WIDTH, HEIGHT);
+    int[] count = new int[WIDTH * HEIGHT];
+    TaskTracker.Task task = new TaskTracker(ProgressListener.NONE).task("Loading");
+    dump.read(4, task, (x, y, r, g, b) -> {
+      int offset = (y * WIDTH + x) * 3;
+      actual.set(offset + 0, r);
+      actual.set(offset + 1, g);
+      actual.set(offset + 2, b);
+      count[y * WIDTH + x] += 1;
+    });
+    for (int i = 0; i < WIDTH * HEIGHT; ++i) {
+      assertEquals(1, count[i]);
+    }
+    for (int i = 0; i < WIDTH * HEIGHT * 3; ++i) {
+      assertEquals(expected.get(i), actual.get(i), 0);
+    }
+  }
+
+  @Test public void testTiledDump() throws IOException {
+    File file = File.createTempFile("chunky", ".dump");
+    try {
+      SampleBuffer samples = randomSamples();
+      TaskTracker.Task task = new TaskTracker(ProgressListener.NONE).task("Saving");
+      RenderDump.write(file, samples, 123, 4567, 4, task);
+      RenderDump dump = RenderDump.open(file);
+      assertEquals(2, dump.version);
+      assertEquals(WIDTH, dump.width);
+      assertEquals(HEIGHT, dump.height);
+      assertEquals(123, dump.spp);
+      assertEquals(4567, dump.renderTime);
+      checkSamples(samples, dump);
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Only tiles with changed sample counts should be appended to the
+   * checkpoint log, and the log should be applied when the dump is read.
+   */
+  @Test public void testCheckpointLog() throws IOException {
+    File file = File.createTempFile("chunky", ".dump");
+    File log = CheckpointLog.logFile(file);
+    try {
+      SampleBuffer samples = randomSamples();
+      int[] sampleCounts = new int[WIDTH * HEIGHT];
+      Arrays.fill(sampleCounts, 10);
+      TaskTracker.Task task = new TaskTracker(ProgressListener.NONE).task("Saving");
+      CheckpointLog checkpoint = new CheckpointLog();
+      assertTrue(checkpoint.needsCompaction(file, WIDTH, HEIGHT, sampleCounts, 10));
+      checkpoint.writeDump(file, samples, sampleCounts, 10, 100, 4, task);
+      assertFalse(checkpoint.needsCompaction(file, WIDTH, HEIGHT, sampleCounts, 10));
+
+      // Change one pixel in the first tile and one pixel in the last tile.
+      int last = WIDTH * HEIGHT - 1;
+      samples.set(0, 123);
+      samples.set(last * 3 + 2, 456);
+      sampleCounts[0] += 1;
+      sampleCounts[last] += 1;
+      assertFalse(checkpoint.needsCompaction(file, WIDTH, HEIGHT, sampleCounts, 11));
+      assertEquals(2, checkpoint.append(file, samples, sampleCounts, 11, 200, 4, task));
+
+      // Nothing changed.
+      assertEquals(0, checkpoint.append(file, samples, sampleCounts, 12, 300, 4, task));
+
+      RenderDump dump = RenderDump.open(file);
+      assertEquals(12, dump.spp);
+      assertEquals(300, dump.renderTime);
+      checkSamples(samples, dump);
+
+      // A reset checkpoint writes the whole dump and removes the log.
+      checkpoint.reset();
+      assertTrue(checkpoint.needsCompaction(file, WIDTH, HEIGHT, sampleCounts, 12));
+      checkpoint.writeDump(file, samples, sampleCounts, 12, 300, 4, task);
+      assertFalse(log.exists());
+
+      // When every tile changed, a complete dump is written instead of a log record.
+      assertTrue(checkpoint.needsCompaction(file, WIDTH, HEIGHT, null, 13));
+    } finally {
+      file.delete();
+      log.delete();
+    }
+  }
+
+  /** Version 1 render dumps should still be loaded. */
+  @Test public void testVersion1Dump() throws IOException {
+    File file = File.createTempFile("chunky", ".dump");
+    try {
+      SampleBuffer samples = randomSamples();
+      try (DataOutputStream out = new DataOutputStream(
+          new GZIPOutputStream(new FileOutputStream(file)))) {
+        out.writeInt(WIDTH);
+        out.writeInt(HEIGHT);
+        out.writeInt(12);
+        out.writeLong(345);
+        for (int x = 0; x < WIDTH; ++x) {
+          for (int y = 0; y < HEIGHT; ++y) {
+            out.writeDouble(samples.get((y * WIDTH + x) * 3 + 0));
+            out.writeDouble(samples.get((y * WIDTH + x) * 3 + 1));
+            out.writeDouble(samples.get((y * WIDTH + x) * 3 + 2));
+          }
+        }
+      }
+      RenderDump dump = RenderDump.open(file);
+      assertEquals(1, dump.version);
+      assertEquals(12, dump.spp);
+      assertEquals(345, dump.renderTime);
+      checkSamples(samples, dump);
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that the float sample buffer stays close to the double sample buffer,
+ * and that memory-mapped sample buffers can be reopened safely.
+ */
+public class TestSampleBuffer {
+  private static final int WIDTH = 16;
+  private static final int HEIGHT = 16;
+
+  /**
+   * Accumulate the same samples in a double and a float sample buffer, and
+   * compare the final pixel values. The samples are mostly small, with
+   * occasional very bright samples like the fireflies in a path traced image.
+   */
+  @Test public void testFloatAccumulationError() {
+    SampleBuffer expected = SamplePrecision.DOUBLE.newBuffer(WIDTH, HEIGHT);
+    SampleBuffer actual = SamplePrecision.FLOAT.newBuffer(WIDTH, HEIGHT);
+    Random random = new Random(0);
+    int spp = 0;
+    while (spp < 5000) {
+      for (int pixel = 0; pixel < WIDTH * HEIGHT; ++pixel) {
+        double[] sum = new double[3];
+        for (int i = 0; i < RenderConstants.SPP_PER_PASS; ++i) {
+          double scale = random.nextDouble() < 0.01 ? 100 : 1;
+          for (int cc = 0; cc < 3; ++cc) {
+            sum[cc] += random.nextDouble() * scale;
+          }
+        }
+        expected.addSamples(pixel * 3, spp, RenderConstants.SPP_PER_PASS, sum[0], sum[1], sum[2]);
+        actual.addSamples(pixel * 3, spp, RenderConstants.SPP_PER_PASS, sum[0], sum[1], sum[2]);
+      }
+      spp += RenderConstants.SPP_PER_PASS;
+    }
+    for (int i = 0; i < WIDTH * HEIGHT * 3; ++i) {
+      // The relative error should be well below one 8-bit color step.
+      assertEquals(expected.get(i), actual.get(i), expected.get(i) * 1e-5);
+    }
+  }
+
+  @Test public void testToDoubleArray() {
+    SampleBuffer samples = SamplePrecision.FLOAT.newBuffer(WIDTH, HEIGHT);
+    samples.set(5, 0.25);
+    double[] array = samples.toDoubleArray();
+    assertEquals(WIDTH * HEIGHT * 3, array.length);
+    assertEquals(0.25, array[5], 0);
+  }
+
+  @Test public void testMappedToDoubleArray() throws IOException {
+    File file = File.createTempFile("chunky", ".samples");
+    try {
+      MappedSampleBuffer samples = MappedSampleBuffer.open(file, WIDTH, HEIGHT);
+      samples.set(5, 0.25);
+      double[] array = samples.toDoubleArray();
+      assertEquals(WIDTH * HEIGHT * 3, array.length);
+      assertEquals(0.25, array[5], 0);
+      samples.close();
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /**
+   * Opening the sample buffer file with a new canvas size must not truncate
+   * the file under the old mapping, which is still used until the render
+   * switches to the new buffer.
+   */
+  @Test public void testMappedResize() throws IOException {
+    File file = File.createTempFile("chunky", ".samples");
+    try {
+      MappedSampleBuffer old = MappedSampleBuffer.open(file, WIDTH, HEIGHT);
+      old.set(WIDTH * HEIGHT * 3 - 1, 0.5);
+      old.checkpoint(16, 1000);
+
+      MappedSampleBuffer resized = MappedSampleBuffer.open(file, WIDTH / 2, HEIGHT / 2);
+      assertFalse(resized.hasRenderState());
+      assertEquals(0, resized.get(0), 0);
+      // The old mapping is still readable.
+      assertEquals(0.5, old.get(WIDTH * HEIGHT * 3 - 1), 0);
+      old.close();
+
+      resized.set(3, 0.75);
+      resized.checkpoint(32, 2000);
+      resized.close();
+
+      MappedSampleBuffer reopened = MappedSampleBuffer.open(file, WIDTH / 2, HEIGHT / 2);
+      assertEquals(32, reopened.getSpp());
+      assertEquals(0.75, reopened.get(3), 0);
+      reopened.close();
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+}
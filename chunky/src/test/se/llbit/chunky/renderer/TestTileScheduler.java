@@ -0,0 +1,181 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the tile scheduler renders each pixel the expected number of times.
+ */
+public class TestTileScheduler {
+  private static final int WIDTH = 100;
+  private static final int HEIGHT = 70;
+  private static final int TILE_WIDTH = 32;
+
+  /**
+   * Render tiles until the pass is finished, checking that each tile has the
+   * expected start sample count.
+   *
+   * @param stopAfter stop the pass after this many tiles
+   */
+  private static void render(TileScheduler scheduler, TileScheduler.Pass pass, int[] spp,
+      int stopAfter) throws InterruptedException {
+    int tiles = 0;
+    while (!pass.isDone()) {
+      RenderTile tile = scheduler.nextTile(tiles % 4);
+      for (int y = tile.y0; y < tile.y1; ++y) {
+        for (int x = tile.x0; x < tile.x1; ++x) {
+          assertEquals(spp[y * WIDTH + x], tile.spp);
+          spp[y * WIDTH + x] += RenderConstants.SPP_PER_PASS;
+        }
+      }
+      scheduler.tileDone(tile);
+      tiles += 1;
+      if (tiles == stopAfter) {
+        pass.stop();
+      }
+    }
+  }
+
+  /**
+   * Render the next tile, checking that it has the expected start sample count.
+   *
+   * @return the start sample count of the tile
+   */
+  private static int renderTile(TileScheduler scheduler, int[] spp)
+      throws InterruptedException {
+    RenderTile tile = scheduler.nextTile(0);
+    for (int y = tile.y0; y < tile.y1; ++y) {
+      for (int x = tile.x0; x < tile.x1; ++x) {
+        assertEquals(spp[y * WIDTH + x], tile.spp);
+        spp[y * WIDTH + x] += RenderConstants.SPP_PER_PASS;
+      }
+    }
+    scheduler.tileDone(tile);
+    return tile.spp;
+  }
+
+  @Test public void testSinglePass() throws InterruptedException {
+    TileScheduler scheduler = new TileScheduler(4);
+    scheduler.setCanvasSize(WIDTH, HEIGHT, TILE_WIDTH);
+    int[] spp = new int[WIDTH * HEIGHT];
+    render(scheduler, scheduler.startPass(0), spp, -1);
+    render(scheduler, scheduler.startPass(RenderConstants.SPP_PER_PASS), spp, -1);
+    for (int i = 0; i < spp.length; ++i) {
+      assertEquals(2 * RenderConstants.SPP_PER_PASS, spp[i]);
+    }
+  }
+
+  @Test public void testProgressivePass() throws InterruptedException {
+    TileScheduler scheduler = new TileScheduler(4);
+    scheduler.setCanvasSize(WIDTH, HEIGHT, TILE_WIDTH);
+    int[] spp = new int[WIDTH * HEIGHT];
+    TileScheduler.Pass pass = scheduler.startPass(0, 10 * RenderConstants.SPP_PER_PASS);
+    render(scheduler, pass, spp, -1);
+    assertEquals(10 * RenderConstants.SPP_PER_PASS, pass.limit());
+    for (int i = 0; i < spp.length; ++i) {
+      assertEquals(10 * RenderConstants.SPP_PER_PASS, spp[i]);
+    }
+  }
+
+  /** A stopped pass should still finish with the same sample count for all pixels. */
+  @Test public void testStopProgressivePass() throws InterruptedException {
+    TileScheduler scheduler = new TileScheduler(4);
+    scheduler.setCanvasSize(WIDTH, HEIGHT, TILE_WIDTH);
+    int[] spp = new int[WIDTH * HEIGHT];
+    TileScheduler.Pass pass = scheduler.startPass(0, 1000 * RenderConstants.SPP_PER_PASS);
+    render(scheduler, pass, spp, 50);
+    int limit = pass.limit();
+    assertEquals(limit, pass.completedSpp());
+    for (int i = 0; i < spp.length; ++i) {
+      assertEquals(limit, spp[i]);
+    }
+  }
+
+  /** Tiles of a released pass are handed out before the current pass is finished. */
+  @Test public void testReleasedPass() throws InterruptedException {
+    TileScheduler scheduler = new TileScheduler(4);
+    scheduler.setCanvasSize(WIDTH, HEIGHT, TILE_WIDTH);
+    int[] spp = new int[WIDTH * HEIGHT];
+    TileScheduler.Pass pass = scheduler.startPass(0);
+    renderTile(scheduler, spp);
+    scheduler.releaseNextPass(RenderConstants.SPP_PER_PASS);
+    assertTrue(scheduler.isReleased(RenderConstants.SPP_PER_PASS));
+    int early = 0;
+    while (!pass.isDone()) {
+      if (renderTile(scheduler, spp) == RenderConstants.SPP_PER_PASS) {
+        early += 1;
+      }
+    }
+    assertTrue(early > 0);
+    TileScheduler.Pass next = scheduler.startPass(RenderConstants.SPP_PER_PASS);
+    assertFalse(next.isDone());
+    render(scheduler, next, spp, -1);
+    assertEquals(0, scheduler.queuedTiles());
+    for (int i = 0; i < spp.length; ++i) {
+      assertEquals(2 * RenderConstants.SPP_PER_PASS, spp[i]);
+    }
+  }
+
+  /**
+   * A released pass can be drained after the current pass is finished, without
+   * queueing its tiles again.
+   */
+  @Test public void testDrainReleasedPass() throws InterruptedException {
+    TileScheduler scheduler = new TileScheduler(4);
+    scheduler.setCanvasSize(WIDTH, HEIGHT, TILE_WIDTH);
+    int[] spp = new int[WIDTH * HEIGHT];
+    TileScheduler.Pass pass = scheduler.startPass(0);
+    scheduler.releaseNextPass(RenderConstants.SPP_PER_PASS);
+    render(scheduler, pass, spp, -1);
+    // Releasing again has no effect.
+    scheduler.releaseNextPass(RenderConstants.SPP_PER_PASS);
+    TileScheduler.Pass next = scheduler.startPass(RenderConstants.SPP_PER_PASS);
+    render(scheduler, next, spp, -1);
+    assertTrue(next.isDone());
+    assertEquals(2 * RenderConstants.SPP_PER_PASS, next.completedSpp());
+    assertEquals(0, scheduler.queuedTiles());
+    for (int i = 0; i < spp.length; ++i) {
+      assertEquals(2 * RenderConstants.SPP_PER_PASS, spp[i]);
+    }
+  }
+
+  /** Queued tiles of a released pass are discarded when the render is reset. */
+  @Test public void testCancelReleasedPass() throws InterruptedException {
+    TileScheduler scheduler = new TileScheduler(4);
+    scheduler.setCanvasSize(WIDTH, HEIGHT, TILE_WIDTH);
+    int[] spp = new int[WIDTH * HEIGHT];
+    TileScheduler.Pass pass = scheduler.startPass(0);
+    scheduler.releaseNextPass(RenderConstants.SPP_PER_PASS);
+    render(scheduler, pass, spp, -1);
+    assertTrue(scheduler.queuedTiles() > 0);
+
+    scheduler.setCanvasSize(WIDTH, HEIGHT, TILE_WIDTH);
+    assertEquals(0, scheduler.queuedTiles());
+    assertFalse(scheduler.isReleased(RenderConstants.SPP_PER_PASS));
+    spp = new int[WIDTH * HEIGHT];
+    render(scheduler, scheduler.startPass(0), spp, -1);
+    assertEquals(0, scheduler.queuedTiles());
+    for (int i = 0; i < spp.length; ++i) {
+      assertEquals(RenderConstants.SPP_PER_PASS, spp[i]);
+    }
+  }
+}
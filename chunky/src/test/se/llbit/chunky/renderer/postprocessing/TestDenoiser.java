@@ -0,0 +1,135 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+import org.junit.Test;
+import se.llbit.chunky.renderer.SampleBuffer;
+import se.llbit.chunky.renderer.SamplePrecision;
+import se.llbit.util.TaskTracker;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Denoises a synthetic noisy image of two surfaces with different colors
+ * and normals.
+ */
+public class TestDenoiser {
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+  private static final int SPP = 4;
+
+  private static final double[] LEFT = { 0.8, 0.3, 0.2 };
+  private static final double[] RIGHT = { 0.1, 0.3, 0.9 };
+
+  private final float[] albedo = new float[WIDTH * HEIGHT * 3];
+  private final float[] normal = new float[WIDTH * HEIGHT * 3];
+  private final double[] truth = new double[WIDTH * HEIGHT * 3];
+
+  public TestDenoiser() {
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int x = 0; x < WIDTH; ++x) {
+        int offset = (y * WIDTH + x) * 3;
+        boolean left = x < WIDTH / 2;
+        double[] color = left ? LEFT : RIGHT;
+        double shading = 0.5 + y / (double) HEIGHT;
+        for (int c = 0; c < 3; ++c) {
+          albedo[offset + c] = (float) color[c];
+          truth[offset + c] = color[c] * shading;
+        }
+        normal[offset + (left ? 0 : 1)] = 1;
+      }
+    }
+  }
+
+  /** Each pixel is the true color scaled by the average of exponential random values. */
+  private SampleBuffer noisy() {
+    Random random = new Random(0);
+    SampleBuffer samples = SamplePrecision.DOUBLE.newBuffer(WIDTH, HEIGHT);
+    for (int i = 0; i < truth.length; ++i) {
+      double sum = 0;
+      for (int j = 0; j < SPP; ++j) {
+        sum -= Math.log(1 - random.nextDouble());
+      }
+      samples.set(i, truth[i] * sum / SPP);
+    }
+    return samples;
+  }
+
+  private double squaredError(SampleBuffer samples, int x0, int x1) {
+    double sum = 0;
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int x = x0; x < x1; ++x) {
+        for (int c = 0; c < 3; ++c) {
+          int i = (y * WIDTH + x) * 3 + c;
+          double error = samples.get(i) - truth[i];
+          sum += error * error;
+        }
+      }
+    }
+    return sum;
+  }
+
+  @Test public void reducesNoise() throws InterruptedException {
+    SampleBuffer noisy = noisy();
+    SampleBuffer denoised = new Denoiser().denoise(noisy, albedo, normal, SPP, 2,
+        TaskTracker.Task.NONE);
+    double before = squaredError(noisy, 0, WIDTH);
+    double after = squaredError(denoised, 0, WIDTH);
+    assertTrue("Squared error " + after + " should be below " + before / 10, after < before / 10);
+  }
+
+  /** The surfaces do not bleed into each other at the edge. */
+  @Test public void preservesEdges() throws InterruptedException {
+    SampleBuffer denoised = new Denoiser().denoise(noisy(), albedo, normal, SPP, 2,
+        TaskTracker.Task.NONE);
+    for (int x = WIDTH / 2 - 1; x <= WIDTH / 2; ++x) {
+      for (int c = 0; c < 3; ++c) {
+        double sum = 0;
+        double expected = 0;
+        for (int y = 0; y < HEIGHT; ++y) {
+          int i = (y * WIDTH + x) * 3 + c;
+          sum += denoised.get(i);
+          expected += truth[i];
+        }
+        assertEquals(expected / HEIGHT, sum / HEIGHT, 0.05 * expected / HEIGHT + 0.01);
+      }
+    }
+  }
+
+  /** Without albedo and normals the filter only uses the color differences. */
+  @Test public void noGuides() throws InterruptedException {
+    SampleBuffer noisy = noisy();
+    SampleBuffer denoised = new Denoiser().denoise(noisy, null, null, SPP, 2,
+        TaskTracker.Task.NONE);
+    assertTrue(squaredError(denoised, 0, WIDTH) < squaredError(noisy, 0, WIDTH));
+  }
+
+  @Test public void constantImage() throws InterruptedException {
+    SampleBuffer samples = SamplePrecision.DOUBLE.newBuffer(7, 5);
+    for (int i = 0; i < 7 * 5 * 3; ++i) {
+      samples.set(i, 0.25 * (i % 3 + 1));
+    }
+    SampleBuffer denoised = new Denoiser().denoise(samples, null, null, 1, 2,
+        TaskTracker.Task.NONE);
+    for (int i = 0; i < 7 * 5 * 3; ++i) {
+      assertEquals(samples.get(i), denoised.get(i), 1e-6);
+    }
+  }
+}
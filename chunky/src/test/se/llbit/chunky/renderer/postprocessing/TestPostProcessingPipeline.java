@@ -0,0 +1,177 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.postprocessing;
+
+import org.junit.Test;
+import se.llbit.chunky.renderer.Postprocess;
+import se.llbit.chunky.renderer.SampleBuffer;
+import se.llbit.chunky.renderer.SamplePrecision;
+import se.llbit.math.ColorUtil;
+import se.llbit.math.QuickMath;
+import se.llbit.util.TaskTracker;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestPostProcessingPipeline {
+  private static final int WIDTH = 23;
+  private static final int HEIGHT = 41;
+
+  private static SampleBuffer samples() {
+    Random random = new Random(0);
+    SampleBuffer samples = SamplePrecision.DOUBLE.newBuffer(WIDTH, HEIGHT);
+    for (int i = 0; i < WIDTH * HEIGHT * 3; ++i) {
+      samples.set(i, random.nextDouble() * 2);
+    }
+    return samples;
+  }
+
+  private static int[] apply(SampleBuffer samples, PostProcessingStage... stages)
+      throws InterruptedException {
+    int[] pixels = new int[samples.width * samples.height];
+    new PostProcessingPipeline(Arrays.asList(stages)).apply(samples, pixels, 2,
+        TaskTracker.Task.NONE);
+    return pixels;
+  }
+
+  private static int rgb(double r, double g, double b) {
+    return ColorUtil.getRGB(QuickMath.min(1, r), QuickMath.min(1, g), QuickMath.min(1, b));
+  }
+
+  /** The tone mapping kernels give the same result as the per-pixel operators. */
+  @Test public void toneMapping() throws InterruptedException {
+    SampleBuffer samples = samples();
+    for (Postprocess operator : Postprocess.values()) {
+      int[] pixels = apply(samples, new ExposureStage(1.3), new ToneMappingStage(operator));
+      for (int i = 0; i < pixels.length; ++i) {
+        assertEquals(rgb(ToneMappingStage.map(operator, samples.get(i * 3) * 1.3),
+            ToneMappingStage.map(operator, samples.get(i * 3 + 1) * 1.3),
+            ToneMappingStage.map(operator, samples.get(i * 3 + 2) * 1.3)), pixels[i]);
+      }
+    }
+  }
+
+  /** Bloom gives the same result as a brute force box filter with clamped edges. */
+  @Test public void bloom() throws InterruptedException {
+    SampleBuffer samples = samples();
+    double threshold = 1.2;
+    int radius = 3;
+    double strength = 0.5;
+    int[] pixels = apply(samples, new BloomStage(threshold, radius, strength),
+        new ExposureStage(0.4));
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int x = 0; x < WIDTH; ++x) {
+        double[] color = new double[3];
+        for (int c = 0; c < 3; ++c) {
+          double sum = 0;
+          int count = 0;
+          for (int dy = -radius; dy <= radius; ++dy) {
+            for (int dx = -radius; dx <= radius; ++dx) {
+              if (x + dx >= 0 && x + dx < WIDTH) {
+                int sy = Math.max(0, Math.min(y + dy, HEIGHT - 1));
+                sum += Math.max(0, samples.get((sy * WIDTH + x + dx) * 3 + c) - threshold);
+                count += 1;
+              }
+            }
+          }
+          color[c] = (samples.get((y * WIDTH + x) * 3 + c) + strength * sum / count) * 0.4;
+        }
+        int expected = rgb(color[0], color[1], color[2]);
+        int actual = pixels[y * WIDTH + x];
+        for (int shift = 0; shift < 24; shift += 8) {
+          assertEquals(expected >> shift & 0xFF, actual >> shift & 0xFF, 1);
+        }
+      }
+    }
+  }
+
+  /** Sharpening does not change constant images, and several neighbourhood stages can be combined. */
+  @Test public void sharpenConstant() throws InterruptedException {
+    SampleBuffer samples = SamplePrecision.DOUBLE.newBuffer(WIDTH, HEIGHT);
+    for (int i = 0; i < WIDTH * HEIGHT * 3; ++i) {
+      samples.set(i, (i % 3) * 0.25);
+    }
+    int[] pixels = apply(samples, new SharpenStage(0.8), new BloomStage(2, 5, 1),
+        new SharpenStage(0.5));
+    int[] expected = new int[WIDTH * HEIGHT];
+    Arrays.fill(expected, rgb(0, 0.25, 0.5));
+    assertArrayEquals(expected, pixels);
+  }
+
+  @Test public void identityLut() throws IOException, InterruptedException {
+    ColorGradingStage lut = ColorGradingStage.fromCube(new StringReader(
+        "# Identity\nTITLE \"identity\"\nLUT_3D_SIZE 2\n"
+            + "0 0 0\n1 0 0\n0 1 0\n1 1 0\n0 0 1\n1 0 1\n0 1 1\n1 1 1\n"));
+    SampleBuffer samples = samples();
+    int[] graded = apply(samples, new ToneMappingStage(Postprocess.TONEMAP2), lut);
+    int[] expected = apply(samples, new ToneMappingStage(Postprocess.TONEMAP2));
+    assertArrayEquals(expected, graded);
+  }
+
+  /** A table that swaps the red and blue components. */
+  @Test public void swapLut() throws InterruptedException {
+    double[] table = new double[3 * 3 * 3 * 3];
+    for (int b = 0; b < 3; ++b) {
+      for (int g = 0; g < 3; ++g) {
+        for (int r = 0; r < 3; ++r) {
+          int i = ((b * 3 + g) * 3 + r) * 3;
+          table[i] = b / 2.0;
+          table[i + 1] = g / 2.0;
+          table[i + 2] = r / 2.0;
+        }
+      }
+    }
+    SampleBuffer samples = SamplePrecision.DOUBLE.newBuffer(1, 1);
+    samples.set(0, 0.2);
+    samples.set(1, 0.6);
+    samples.set(2, 0.9);
+    int[] pixels = apply(samples, new ColorGradingStage(3, table));
+    assertEquals(rgb(0.9, 0.6, 0.2), pixels[0]);
+  }
+
+  @Test public void emptyPipeline() throws InterruptedException {
+    SampleBuffer samples = SamplePrecision.DOUBLE.newBuffer(2, 1);
+    samples.set(3, 0.5);
+    int[] pixels = new int[2];
+    new PostProcessingPipeline(Collections.emptyList()).apply(samples, pixels, 2,
+        TaskTracker.Task.NONE);
+    assertEquals(rgb(0, 0, 0), pixels[0]);
+    assertEquals(rgb(0.5, 0, 0), pixels[1]);
+  }
+
+  /** Processing a range of rows gives the same colors as processing the whole image. */
+  @Test public void processRows() throws InterruptedException {
+    SampleBuffer samples = samples();
+    PostProcessingPipeline pipeline = new PostProcessingPipeline(Arrays.asList(
+        new ExposureStage(2), new BloomStage(1.2, 2, 0.5), new SharpenStage(0.3)));
+    int[] pixels = new int[WIDTH * HEIGHT];
+    pipeline.apply(samples, pixels, 2, TaskTracker.Task.NONE);
+    int y0 = 3;
+    int y1 = 37;
+    double[] rows = new double[(y1 - y0) * WIDTH * 3];
+    pipeline.process(samples, y0, y1, rows);
+    for (int i = 0; i < (y1 - y0) * WIDTH; ++i) {
+      assertEquals(rgb(rows[i * 3], rows[i * 3 + 1], rows[i * 3 + 2]), pixels[y0 * WIDTH + i]);
+    }
+  }
+}
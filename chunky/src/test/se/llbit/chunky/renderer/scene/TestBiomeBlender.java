@@ -0,0 +1,118 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.scene;
+
+import org.junit.Test;
+import se.llbit.chunky.world.Biomes;
+import se.llbit.chunky.world.ChunkPosition;
+import se.llbit.chunky.world.Heightmap;
+import se.llbit.chunky.world.WorldTexture;
+import se.llbit.math.Vector3i;
+import se.llbit.util.TaskTracker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the separable biome blur with a direct box average.
+ */
+public class TestBiomeBlender {
+  private static final Vector3i ORIGIN = new Vector3i(-37, 0, 21);
+
+  /**
+   * A ragged set of chunks: an L-shape wider than one segment, plus a
+   * lone chunk.
+   */
+  private static Collection<ChunkPosition> chunks() {
+    Collection<ChunkPosition> chunks = new ArrayList<>();
+    for (int x = -3; x < 17; ++x) {
+      chunks.add(ChunkPosition.get(x, -1));
+    }
+    for (int z = 0; z < 3; ++z) {
+      chunks.add(ChunkPosition.get(-3, z));
+      chunks.add(ChunkPosition.get(-2, z));
+    }
+    chunks.add(ChunkPosition.get(5, 5));
+    return chunks;
+  }
+
+  private static Heightmap biomes(Collection<ChunkPosition> chunks) {
+    Random random = new Random(0);
+    Heightmap biomes = Heightmap.forChunks(chunks);
+    for (ChunkPosition cp : chunks) {
+      for (int z = 0; z < 16; ++z) {
+        for (int x = 0; x < 16; ++x) {
+          biomes.set(random.nextInt(40), cp.x * 16 + x, cp.z * 16 + z);
+        }
+      }
+    }
+    return biomes;
+  }
+
+  private static void check(int radius, int threads) throws InterruptedException {
+    Collection<ChunkPosition> chunks = chunks();
+    Heightmap biomes = biomes(chunks);
+    WorldTexture grass = WorldTexture.forChunks(chunks, ORIGIN.x, ORIGIN.z);
+    WorldTexture foliage = new WorldTexture();
+    BiomeBlender.blend(chunks, biomes, radius, ORIGIN, grass, foliage, threads,
+        TaskTracker.Task.NONE);
+    float[] color = new float[3];
+    for (ChunkPosition cp : chunks) {
+      for (int z = cp.z * 16; z < cp.z * 16 + 16; ++z) {
+        for (int x = cp.x * 16; x < cp.x * 16 + 16; ++x) {
+          double[] expected = new double[6];
+          int n = 0;
+          for (int sz = z - radius; sz <= z + radius; ++sz) {
+            for (int sx = x - radius; sx <= x + radius; ++sx) {
+              if (chunks.contains(ChunkPosition.get(sx >> 4, sz >> 4))) {
+                n += 1;
+                int biome = biomes.get(sx, sz);
+                for (int i = 0; i < 3; ++i) {
+                  expected[i] += Biomes.getGrassColorLinear(biome)[i];
+                  expected[i + 3] += Biomes.getFoliageColorLinear(biome)[i];
+                }
+              }
+            }
+          }
+          grass.get(x - ORIGIN.x, z - ORIGIN.z, color);
+          for (int i = 0; i < 3; ++i) {
+            assertEquals(expected[i] / n, color[i], 1e-5);
+          }
+          foliage.get(x - ORIGIN.x, z - ORIGIN.z, color);
+          for (int i = 0; i < 3; ++i) {
+            assertEquals(expected[i + 3] / n, color[i], 1e-5);
+          }
+        }
+      }
+    }
+  }
+
+  @Test public void noBlending() throws InterruptedException {
+    check(0, 1);
+  }
+
+  @Test public void radius1() throws InterruptedException {
+    check(1, 3);
+  }
+
+  @Test public void maxRadius() throws InterruptedException {
+    check(BiomeBlender.MAX_RADIUS, 4);
+  }
+}
@@ -0,0 +1,109 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.renderer.scene;
+
+import org.junit.Test;
+import se.llbit.chunky.renderer.RenderMode;
+import se.llbit.chunky.renderer.WorkerState;
+import se.llbit.math.QuickMath;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the alternative path tracers against the default path tracer.
+ *
+ * <p>The test scene has an ocean plane, fog, and the sun, so that paths
+ * have specular, refracted, and diffuse bounces.
+ */
+public class TestPathTracers {
+  private static final int WIDTH = 32;
+  private static final int HEIGHT = 8;
+
+  private static Scene testScene() {
+    Scene scene = new Scene();
+    scene.setCanvasSize(WIDTH, HEIGHT);
+    scene.setRenderMode(RenderMode.RENDERING);
+    scene.setWaterHeight(63);
+    scene.setFogDensity(0.1);
+    scene.sky().setSkyMode(Sky.SkyMode.SIMULATED);
+    scene.camera().setPosition(new Vector3(0, 80, 0));
+    scene.camera().setView(-QuickMath.HALF_PI / 2, 0, 0);
+    return scene;
+  }
+
+  /** Renders the scene and returns the per-pixel average of all samples. */
+  private static double[] render(Scene scene, RayTracer tracer, int spp) {
+    WorkerState state = new WorkerState();
+    state.ray = new Ray();
+    state.random = new Random(0);
+    Ray ray = state.ray;
+    double halfWidth = WIDTH / (2.0 * HEIGHT);
+    double invHeight = 1.0 / HEIGHT;
+    double[] samples = new double[WIDTH * HEIGHT * 3];
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int x = 0; x < WIDTH; ++x) {
+        int offset = (y * WIDTH + x) * 3;
+        for (int i = 0; i < spp; ++i) {
+          scene.camera().calcViewRay(ray, state.random,
+              -halfWidth + (x + state.random.nextDouble()) * invHeight,
+              -.5 + (y + state.random.nextDouble()) * invHeight);
+          scene.rayTrace(tracer, state);
+          samples[offset + 0] += ray.color.x / spp;
+          samples[offset + 1] += ray.color.y / spp;
+          samples[offset + 2] += ray.color.z / spp;
+        }
+      }
+    }
+    return samples;
+  }
+
+  private static double[] mean(double[] samples) {
+    double[] mean = new double[3];
+    for (int i = 0; i < samples.length; ++i) {
+      mean[i % 3] += samples[i] * 3 / samples.length;
+    }
+    return mean;
+  }
+
+  /**
+   * The stack path tracer should give exactly the same samples as the
+   * default path tracer when using the same random seed.
+   */
+  @Test public void testStackPathTracer() {
+    Scene scene = testScene();
+    assertArrayEquals(render(scene, new PathTracer(), 4),
+        render(scene, new StackPathTracer(), 4), 0);
+  }
+
+  /**
+   * The iterative path tracer consumes random numbers in a different order
+   * than the default path tracer, so only the image mean is compared.
+   */
+  @Test public void testIterativePathTracer() {
+    Scene scene = testScene();
+    double[] expected = mean(render(scene, new PathTracer(), 64));
+    double[] actual = mean(render(scene, new IterativePathTracer(), 64));
+    assertEquals(expected[0], actual[0], 0.02);
+    assertEquals(expected[1], actual[1], 0.02);
+    assertEquals(expected[2], actual[2], 0.02);
+  }
+}
@@ -0,0 +1,226 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.world;
+
+import org.junit.Test;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.StringTag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decodes hand-written chunk NBT data with the streaming chunk decoder.
+ */
+public class TestChunkDecoder {
+  private static final int SECTION_BLOCKS = 16 * 16 * 16;
+  private static final int CHUNK_BLOCKS = Chunk.X_MAX * Chunk.Y_MAX * Chunk.Z_MAX;
+
+  /** Writes chunk NBT data for testing. */
+  private static class ChunkWriter {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+
+    void tag(int type, String name) throws IOException {
+      out.writeByte(type);
+      out.writeUTF(name);
+    }
+
+    void string(String name, String value) throws IOException {
+      tag(8, name);
+      out.writeUTF(value);
+    }
+
+    void end() throws IOException {
+      out.writeByte(0);
+    }
+
+    /** Write a palette entry: a block name and a level property. */
+    void paletteEntry(String name, int level) throws IOException {
+      string("Name", name);
+      tag(10, "Properties");
+      string("level", String.valueOf(level));
+      end();
+      end();
+    }
+
+    /**
+     * Write a section where block i has palette index i % paletteSize.
+     * Palette entry j is the block "test:block" with level j.
+     */
+    void section(int y, int paletteSize, boolean aligned) throws IOException {
+      tag(1, "Y");
+      out.writeByte(y);
+      tag(7, "SkyLight");
+      out.writeInt(SECTION_BLOCKS / 2);
+      out.write(new byte[SECTION_BLOCKS / 2]);
+      tag(9, "Palette");
+      out.writeByte(10);
+      out.writeInt(paletteSize);
+      for (int i = 0; i < paletteSize; ++i) {
+        paletteEntry("test:block", i);
+      }
+      int bpb = Math.max(4, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+      long[] states;
+      if (aligned) {
+        int perLong = 64 / bpb;
+        states = new long[(SECTION_BLOCKS + perLong - 1) / perLong];
+        for (int i = 0; i < SECTION_BLOCKS; ++i) {
+          states[i / perLong] |= (long) (i % paletteSize) << (bpb * (i % perLong));
+        }
+      } else {
+        states = new long[SECTION_BLOCKS * bpb / 64];
+        for (int i = 0; i < SECTION_BLOCKS; ++i) {
+          long value = i % paletteSize;
+          int bit = i * bpb;
+          states[bit / 64] |= value << (bit % 64);
+          if (bit % 64 + bpb > 64) {
+            states[bit / 64 + 1] |= value >>> (64 - bit % 64);
+          }
+        }
+      }
+      tag(12, "BlockStates");
+      out.writeInt(states.length);
+      for (long value : states) {
+        out.writeLong(value);
+      }
+      end();
+    }
+
+    /**
+     * Write a chunk with one section per palette size, starting at section 0.
+     */
+    byte[] chunk(boolean entities, boolean aligned, int... paletteSizes) throws IOException {
+      tag(10, "");
+      tag(3, "DataVersion");
+      out.writeInt(2230);
+      tag(10, "Level");
+      tag(10, "Heightmaps");
+      tag(12, "MOTION_BLOCKING");
+      out.writeInt(2);
+      out.writeLong(1);
+      out.writeLong(2);
+      end();
+      tag(11, "Biomes");
+      out.writeInt(256);
+      for (int i = 0; i < 256; ++i) {
+        out.writeInt(i % 7);
+      }
+      tag(9, "Sections");
+      out.writeByte(10);
+      out.writeInt(paletteSizes.length);
+      for (int i = 0; i < paletteSizes.length; ++i) {
+        section(i, paletteSizes[i], aligned);
+      }
+      if (entities) {
+        tag(9, "Entities");
+        out.writeByte(10);
+        out.writeInt(1);
+        string("id", "minecraft:pig");
+        end();
+        tag(9, "TileEntities");
+        out.writeByte(0);
+        out.writeInt(0);
+      }
+      end();
+      end();
+      return bytes.toByteArray();
+    }
+  }
+
+  private static CompoundTag blockTag(int level) {
+    CompoundTag properties = new CompoundTag();
+    properties.add("level", new StringTag(String.valueOf(level)));
+    CompoundTag tag = new CompoundTag();
+    tag.add("Name", new StringTag("test:block"));
+    tag.add("Properties", properties);
+    return tag;
+  }
+
+  private static void decode(BlockPalette palette, byte[] data, int[] blocks, byte[] biomes,
+      List<CompoundTag> entities) throws IOException {
+    new ChunkDecoder(palette).decode(new ByteArrayInputStream(data), blocks, biomes,
+        new ArrayList<>(), entities);
+  }
+
+  private static void checkChunk(boolean aligned, int... paletteSizes) throws IOException {
+    BlockPalette palette = new BlockPalette();
+    byte[] data = new ChunkWriter().chunk(true, aligned, paletteSizes);
+    int[] blocks = new int[CHUNK_BLOCKS];
+    byte[] biomes = new byte[Chunk.X_MAX * Chunk.Z_MAX];
+    List<CompoundTag> entities = new ArrayList<>();
+    decode(palette, data, blocks, biomes, entities);
+
+    int[] expected = new int[CHUNK_BLOCKS];
+    for (int i = 0; i < CHUNK_BLOCKS; ++i) {
+      expected[i] = palette.airId;
+    }
+    for (int y = 0; y < paletteSizes.length; ++y) {
+      for (int i = 0; i < SECTION_BLOCKS; ++i) {
+        expected[y * SECTION_BLOCKS + i] = palette.put(blockTag(i % paletteSizes[y]));
+      }
+    }
+    assertArrayEquals(expected, blocks);
+    for (int i = 0; i < biomes.length; ++i) {
+      assertEquals(i % 7, biomes[i]);
+    }
+    assertEquals(1, entities.size());
+    assertEquals("minecraft:pig", entities.get(0).get("id").stringValue(""));
+  }
+
+  @Test public void decodeSections() throws IOException {
+    checkChunk(false, 3, 16, 20, 200);
+  }
+
+  @Test public void decodeAlignedSections() throws IOException {
+    checkChunk(true, 3, 16, 20, 200);
+  }
+
+  /** Palette entries are cached by their raw data across chunks. */
+  @Test public void sharedPalette() throws IOException {
+    BlockPalette palette = new BlockPalette();
+    int[] first = new int[CHUNK_BLOCKS];
+    int[] second = new int[CHUNK_BLOCKS];
+    byte[] biomes = new byte[Chunk.X_MAX * Chunk.Z_MAX];
+    decode(palette, new ChunkWriter().chunk(true, false, 20), first, biomes, new ArrayList<>());
+    decode(palette, new ChunkWriter().chunk(true, false, 20), second, biomes, new ArrayList<>());
+    assertArrayEquals(first, second);
+    assertEquals(palette.put(blockTag(19)), first[19]);
+  }
+
+  /** Blocks are not loaded when the entity lists are missing. */
+  @Test public void missingEntities() throws IOException {
+    BlockPalette palette = new BlockPalette();
+    int[] blocks = new int[CHUNK_BLOCKS];
+    byte[] biomes = new byte[Chunk.X_MAX * Chunk.Z_MAX];
+    List<CompoundTag> entities = new ArrayList<>();
+    decode(palette, new ChunkWriter().chunk(false, false, 20), blocks, biomes, entities);
+    for (int block : blocks) {
+      assertEquals(palette.airId, block);
+    }
+    assertEquals(255 % 7, biomes[255]);
+    assertEquals(0, entities.size());
+  }
+}
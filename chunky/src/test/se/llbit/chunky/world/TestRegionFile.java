@@ -0,0 +1,152 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.world;
+
+import org.junit.Test;
+import se.llbit.util.ByteBufferInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestRegionFile {
+  private static final int SECTOR_SIZE = RegionFile.SECTOR_SIZE;
+
+  /** Number of sectors in the test region files. */
+  private static final int NUM_SECTORS = 8;
+
+  /**
+   * Write a region file with zlib compressed chunks. The chunk at index i
+   * is stored in sector i + 2.
+   *
+   * <p>All test region files have the same length, so an existing file is
+   * overwritten in place. A file can not be truncated on Windows while it
+   * is mapped.
+   */
+  private static void writeRegion(File file, String... chunks) throws IOException {
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      if (out.length() != (long) NUM_SECTORS * SECTOR_SIZE) {
+        out.setLength((long) NUM_SECTORS * SECTOR_SIZE);
+      }
+      out.seek(0);
+      out.write(new byte[2 * SECTOR_SIZE]);
+      for (int i = 0; i < chunks.length; ++i) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(bytes)) {
+          deflater.write(chunks[i].getBytes(StandardCharsets.UTF_8));
+        }
+        out.seek(4 * i);
+        out.writeInt((i + 2) << 8 | 1);
+        out.seek(SECTOR_SIZE + 4 * i);
+        out.writeInt(1000 + i);
+        out.seek((long) (i + 2) * SECTOR_SIZE);
+        out.writeInt(bytes.size() + 1);
+        out.writeByte(2);
+        out.write(bytes.toByteArray());
+      }
+    }
+  }
+
+  private static String readChunk(RegionFile region, int index) throws IOException {
+    ByteBuffer data = region.getChunkData(index);
+    assertEquals(2, data.get());
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream in = new InflaterInputStream(new ByteBufferInputStream(data))) {
+      byte[] buffer = new byte[64];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, len);
+      }
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test public void readChunks() throws IOException {
+    File file = File.createTempFile("chunky", ".mca");
+    file.deleteOnExit();
+    writeRegion(file, "first chunk", "second chunk");
+    RegionFile region = RegionFile.open(file);
+    assertTrue(region.hasChunk(0));
+    assertTrue(region.hasChunk(1));
+    assertFalse(region.hasChunk(2));
+    assertEquals(1000, region.getTimestamp(0));
+    assertEquals(1001, region.getTimestamp(1));
+    assertEquals("second chunk", readChunk(region, 1));
+    assertEquals("first chunk", readChunk(region, 0));
+    // Reading a chunk does not change the mapping.
+    assertEquals("first chunk", readChunk(region, 0));
+    assertNull(region.getChunkData(2));
+  }
+
+  @Test public void cache() throws IOException {
+    File file = File.createTempFile("chunky", ".mca");
+    file.deleteOnExit();
+    writeRegion(file, "chunk");
+    RegionFile region = RegionFile.open(file);
+    assertSame(region, RegionFile.open(file));
+
+    // The file is mapped again when it changes.
+    writeRegion(file, "chunk", "new chunk");
+    assertTrue(file.setLastModified(file.lastModified() + 2000));
+    RegionFile updated = RegionFile.open(file);
+    assertNotSame(region, updated);
+    assertEquals("new chunk", readChunk(updated, 1));
+
+    RegionFile.invalidate(file);
+    assertNotSame(updated, RegionFile.open(file));
+  }
+
+  /**
+   * The header is read from the mapping, so a cached region file sees a new
+   * header even if the modification time and length did not change.
+   */
+  @Test public void headerUpdate() throws IOException {
+    File file = File.createTempFile("chunky", ".mca");
+    file.deleteOnExit();
+    writeRegion(file, "chunk");
+    long lastModified = file.lastModified();
+    RegionFile region = RegionFile.open(file);
+    assertFalse(region.hasChunk(1));
+
+    writeRegion(file, "chunk", "new chunk");
+    assertTrue(file.setLastModified(lastModified));
+    assertSame(region, RegionFile.open(file));
+    assertTrue(region.hasChunk(1));
+    assertEquals(1001, region.getTimestamp(1));
+    assertEquals("new chunk", readChunk(region, 1));
+  }
+
+  @Test public void missingHeader() throws IOException {
+    File file = File.createTempFile("chunky", ".mca");
+    file.deleteOnExit();
+    assertNull(RegionFile.open(file));
+    assertNull(RegionFile.open(new File(file.getParentFile(), file.getName() + ".missing")));
+  }
+}
@@ -0,0 +1,115 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.chunky.world;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that dense and sparse world textures store the same colors.
+ */
+public class TestWorldTexture {
+  /** A 3x2 block of chunks, and one distant chunk. */
+  private static Collection<ChunkPosition> chunks() {
+    Collection<ChunkPosition> chunks = new ArrayList<>();
+    for (int x = -2; x <= 0; ++x) {
+      for (int z = 3; z <= 4; ++z) {
+        chunks.add(ChunkPosition.get(x, z));
+      }
+    }
+    chunks.add(ChunkPosition.get(40, -7));
+    return chunks;
+  }
+
+  private static float color(int x, int z, int component) {
+    return x * 0.5f + z * 0.25f + component;
+  }
+
+  /** Set the colors of the chunks, with block coordinates offset by (-5, -9). */
+  private static void fill(WorldTexture texture, Collection<ChunkPosition> chunks) {
+    for (ChunkPosition cp : chunks) {
+      for (int z = cp.z * 16 - 9; z < cp.z * 16 + 7; ++z) {
+        for (int x = cp.x * 16 - 5; x < cp.x * 16 + 11; ++x) {
+          texture.set(x, z, new float[] { color(x, z, 0), color(x, z, 1), color(x, z, 2) });
+        }
+      }
+    }
+  }
+
+  private static void check(WorldTexture texture, Collection<ChunkPosition> chunks) {
+    float[] frgb = new float[3];
+    for (ChunkPosition cp : chunks) {
+      for (int z = cp.z * 16 - 9; z < cp.z * 16 + 7; ++z) {
+        for (int x = cp.x * 16 - 5; x < cp.x * 16 + 11; ++x) {
+          texture.get(x, z, frgb);
+          assertEquals(color(x, z, 0), frgb[0], 0);
+          assertEquals(color(x, z, 1), frgb[1], 0);
+          assertEquals(color(x, z, 2), frgb[2], 0);
+        }
+      }
+    }
+    // Colors that were not set are black.
+    texture.get(10000, 10000, frgb);
+    assertEquals(0, frgb[0], 0);
+  }
+
+  private static WorldTexture storeAndLoad(WorldTexture texture) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      texture.store(out);
+    }
+    return WorldTexture.load(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  @Test public void denseWithSparseFallback() throws IOException {
+    Collection<ChunkPosition> chunks = chunks();
+    // The dense area covers the 3x2 chunk block, the distant chunk is sparse.
+    WorldTexture texture = new WorldTexture(-3, 2, 4, 3);
+    fill(texture, chunks);
+    check(texture, chunks);
+    check(storeAndLoad(texture), chunks);
+  }
+
+  @Test public void forChunks() throws IOException {
+    Collection<ChunkPosition> chunks = chunks();
+    WorldTexture texture = WorldTexture.forChunks(chunks, 5, 9);
+    fill(texture, chunks);
+    check(texture, chunks);
+    chunks.remove(ChunkPosition.get(40, -7));
+    texture = WorldTexture.forChunks(chunks, 5, 9);
+    fill(texture, chunks);
+    check(texture, chunks);
+    check(storeAndLoad(texture), chunks);
+  }
+
+  @Test public void sparse() throws IOException {
+    Collection<ChunkPosition> chunks = chunks();
+    WorldTexture texture = new WorldTexture();
+    fill(texture, chunks);
+    check(texture, chunks);
+    check(storeAndLoad(texture), chunks);
+  }
+}
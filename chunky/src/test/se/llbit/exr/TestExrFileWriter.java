@@ -0,0 +1,241 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.exr;
+
+import org.junit.Test;
+import se.llbit.chunky.renderer.SampleBuffer;
+import se.llbit.chunky.renderer.SamplePrecision;
+import se.llbit.util.TaskTracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes OpenEXR images and decodes them with a minimal tiled image reader.
+ */
+public class TestExrFileWriter {
+  private static final double EXPOSURE = 1.5;
+
+  private static SampleBuffer samples(int width, int height) {
+    Random random = new Random(width);
+    SampleBuffer samples = SamplePrecision.DOUBLE.newBuffer(width, height);
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int offset = (y * width + x) * 3;
+        samples.set(offset, x / (double) width);
+        samples.set(offset + 1, y * 10.0);
+        samples.set(offset + 2, random.nextDouble() * 3);
+      }
+    }
+    return samples;
+  }
+
+  private static byte[] alpha(int width, int height) {
+    byte[] alpha = new byte[width * height];
+    new Random(height).nextBytes(alpha);
+    return alpha;
+  }
+
+  /** Decode an image and compare it with the expected pixel values. */
+  private static void check(byte[] file, SampleBuffer samples, byte[] alpha,
+      ExrFileWriter.PixelType type) throws DataFormatException {
+    ByteBuffer in = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(20000630, in.getInt());
+    assertEquals(2 | 0x200, in.getInt());
+    int width = 0, height = 0, compression = -1, tileWidth = 0, tileHeight = 0;
+    int channels = 0;
+    while (true) {
+      String name = readString(in);
+      if (name.isEmpty()) {
+        break;
+      }
+      String attributeType = readString(in);
+      int size = in.getInt();
+      int end = in.position() + size;
+      switch (name) {
+        case "channels":
+          while (!readString(in).isEmpty()) {
+            assertEquals(type.id, in.getInt());
+            in.position(in.position() + 12);
+            channels += 1;
+          }
+          break;
+        case "compression":
+          compression = in.get();
+          break;
+        case "dataWindow":
+          assertEquals("box2i", attributeType);
+          assertEquals(0, in.getInt());
+          assertEquals(0, in.getInt());
+          width = in.getInt() + 1;
+          height = in.getInt() + 1;
+          break;
+        case "tiles":
+          tileWidth = in.getInt();
+          tileHeight = in.getInt();
+          assertEquals(0, in.get());
+          break;
+      }
+      in.position(end);
+    }
+    assertEquals(samples.width, width);
+    assertEquals(samples.height, height);
+    assertEquals(alpha != null ? 4 : 3, channels);
+
+    int tilesX = (width + tileWidth - 1) / tileWidth;
+    int tilesY = (height + tileHeight - 1) / tileHeight;
+    long[] offsets = new long[tilesX * tilesY];
+    for (int i = 0; i < offsets.length; ++i) {
+      offsets[i] = in.getLong();
+    }
+    for (int i = 0; i < offsets.length; ++i) {
+      in.position((int) offsets[i]);
+      int tileX = in.getInt();
+      int tileY = in.getInt();
+      assertEquals(i % tilesX, tileX);
+      assertEquals(i / tilesX, tileY);
+      assertEquals(0, in.getInt());
+      assertEquals(0, in.getInt());
+      int dataSize = in.getInt();
+      int x0 = tileX * tileWidth;
+      int y0 = tileY * tileHeight;
+      int w = Math.min(tileWidth, width - x0);
+      int h = Math.min(tileHeight, height - y0);
+      int rawSize = w * h * channels * type.size;
+      byte[] data = new byte[dataSize];
+      in.get(data);
+      if (compression == ExrFileWriter.Compression.ZIP.id && dataSize < rawSize) {
+        data = unzip(data, rawSize);
+      }
+      assertEquals(rawSize, data.length);
+      ByteBuffer tile = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+      for (int y = y0; y < y0 + h; ++y) {
+        if (alpha != null) {
+          for (int x = x0; x < x0 + w; ++x) {
+            checkValue(tile, type, (alpha[y * width + x] & 0xFF) / 255f);
+          }
+        }
+        for (int channel = 2; channel >= 0; --channel) {
+          for (int x = x0; x < x0 + w; ++x) {
+            float expected = (float) (samples.get((y * width + x) * 3 + channel) * EXPOSURE);
+            checkValue(tile, type, expected);
+          }
+        }
+      }
+    }
+  }
+
+  private static void checkValue(ByteBuffer tile, ExrFileWriter.PixelType type, float expected) {
+    if (type == ExrFileWriter.PixelType.HALF) {
+      assertEquals(ExrFileWriter.toHalf(expected), tile.getShort());
+    } else {
+      assertEquals(expected, tile.getFloat(), 0);
+    }
+  }
+
+  private static String readString(ByteBuffer in) {
+    StringBuilder string = new StringBuilder();
+    byte b;
+    while ((b = in.get()) != 0) {
+      string.append((char) b);
+    }
+    return string.toString();
+  }
+
+  /** Undo the zlib compression, delta predictor, and byte reordering. */
+  private static byte[] unzip(byte[] data, int rawSize) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    inflater.setInput(data);
+    byte[] predicted = new byte[rawSize];
+    assertEquals(rawSize, inflater.inflate(predicted));
+    inflater.end();
+    for (int i = 1; i < rawSize; ++i) {
+      predicted[i] = (byte) (predicted[i - 1] + predicted[i] - 128);
+    }
+    byte[] raw = new byte[rawSize];
+    int half = (rawSize + 1) / 2;
+    for (int i = 0; i < rawSize; ++i) {
+      raw[i] = (i & 1) == 0 ? predicted[i / 2] : predicted[half + i / 2];
+    }
+    return raw;
+  }
+
+  private static void checkStream(int width, int height, boolean hasAlpha,
+      ExrFileWriter.PixelType type, ExrFileWriter.Compression compression)
+      throws IOException, DataFormatException {
+    SampleBuffer samples = samples(width, height);
+    byte[] alpha = hasAlpha ? alpha(width, height) : null;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ExrFileWriter writer = new ExrFileWriter(bytes, 3)) {
+      writer.write(samples, EXPOSURE, alpha, type, compression, TaskTracker.Task.NONE);
+    }
+    check(bytes.toByteArray(), samples, alpha, type);
+  }
+
+  @Test public void halfZip() throws IOException, DataFormatException {
+    checkStream(150, 70, false, ExrFileWriter.PixelType.HALF, ExrFileWriter.Compression.ZIP);
+  }
+
+  @Test public void floatAlphaZip() throws IOException, DataFormatException {
+    checkStream(64, 129, true, ExrFileWriter.PixelType.FLOAT, ExrFileWriter.Compression.ZIP);
+  }
+
+  @Test public void halfAlphaUncompressed() throws IOException, DataFormatException {
+    checkStream(3, 5, true, ExrFileWriter.PixelType.HALF, ExrFileWriter.Compression.NONE);
+  }
+
+  /** Files get the offset table after the tiles are written. */
+  @Test public void file() throws IOException, DataFormatException {
+    SampleBuffer samples = samples(200, 90);
+    File file = File.createTempFile("chunky", ".exr");
+    try {
+      try (ExrFileWriter writer = new ExrFileWriter(new FileOutputStream(file), 2)) {
+        writer.write(samples, EXPOSURE, null, ExrFileWriter.PixelType.FLOAT,
+            ExrFileWriter.Compression.ZIP, TaskTracker.Task.NONE);
+      }
+      check(Files.readAllBytes(file.toPath()), samples, null, ExrFileWriter.PixelType.FLOAT);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test public void toHalf() {
+    assertEquals(0x0000, ExrFileWriter.toHalf(0));
+    assertEquals((short) 0x8000, ExrFileWriter.toHalf(-0f));
+    assertEquals(0x3C00, ExrFileWriter.toHalf(1));
+    assertEquals((short) 0xC000, ExrFileWriter.toHalf(-2));
+    assertEquals(0x3555, ExrFileWriter.toHalf(1 / 3f));
+    assertEquals(0x7BFF, ExrFileWriter.toHalf(65504));
+    assertEquals(0x7C00, ExrFileWriter.toHalf(65520));
+    assertEquals(0x7C00, ExrFileWriter.toHalf(Float.POSITIVE_INFINITY));
+    assertEquals(0x0400, ExrFileWriter.toHalf(6.103515625e-5f)); // Smallest normal.
+    assertEquals(0x0001, ExrFileWriter.toHalf(5.9604645e-8f)); // Smallest subnormal.
+    assertEquals(0x0000, ExrFileWriter.toHalf(2.9802322e-8f)); // Half of it, rounds to even.
+    assertEquals(0x3C00, ExrFileWriter.toHalf(1 + 1 / 2048f)); // Rounds to even.
+    assertEquals(0x3C02, ExrFileWriter.toHalf(1 + 3 / 2048f)); // Rounds to even.
+  }
+}
@@ -0,0 +1,152 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.math;
+
+import org.junit.Test;
+import se.llbit.chunky.world.Material;
+import se.llbit.math.primitive.Primitive;
+import se.llbit.math.primitive.TexturedTriangle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that all BVH construction methods give the same intersections.
+ */
+public class TestBVH {
+  /** Axis-aligned box primitive that records the closest hit distance. */
+  private static class BoxPrimitive implements Primitive {
+    private final AABB bounds;
+
+    BoxPrimitive(AABB bounds) {
+      this.bounds = bounds;
+    }
+
+    @Override public boolean intersect(Ray ray) {
+      if (bounds.quickIntersect(ray)) {
+        ray.t = ray.tNext;
+        return true;
+      }
+      return false;
+    }
+
+    @Override public AABB bounds() {
+      return bounds;
+    }
+  }
+
+  private static List<Primitive> randomBoxes(Random random, int count) {
+    List<Primitive> primitives = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      double x = random.nextDouble() * 100;
+      double y = random.nextDouble() * 20;
+      double z = random.nextDouble() * 100;
+      double size = 0.1 + random.nextDouble();
+      primitives.add(new BoxPrimitive(new AABB(x, x + size, y, y + size, z, z + size)));
+    }
+    return primitives;
+  }
+
+  private static Ray randomRay(Random random) {
+    Ray ray = new Ray();
+    ray.o.set(random.nextDouble() * 120 - 10, random.nextDouble() * 30 - 5,
+        random.nextDouble() * 120 - 10);
+    ray.d.set(random.nextDouble() - 0.5, random.nextDouble() - 0.5, random.nextDouble() - 0.5);
+    ray.d.normalize();
+    ray.t = Double.POSITIVE_INFINITY;
+    return ray;
+  }
+
+  @Test public void testBinnedSah() {
+    Random random = new Random(0);
+    List<Primitive> primitives = randomBoxes(random, 5000);
+    BVH expected = new BVH(primitives, BVH.Method.MIDPOINT);
+    BVH actual = new BVH(primitives, BVH.Method.BINNED_SAH);
+    for (int i = 0; i < 2000; ++i) {
+      Ray ray1 = randomRay(random);
+      Ray ray2 = new Ray(ray1);
+      ray2.t = Double.POSITIVE_INFINITY;
+      boolean hit1 = expected.closestIntersection(ray1);
+      boolean hit2 = actual.closestIntersection(ray2);
+      assertEquals(hit1, hit2);
+      assertEquals(ray1.t, ray2.t, 0);
+      assertEquals(expected.anyIntersection(randomRay(new Random(i))),
+          actual.anyIntersection(randomRay(new Random(i))));
+    }
+  }
+
+  /**
+   * Packed triangles should give the same intersections as the triangle
+   * objects, including for transparent parts of the texture.
+   */
+  @Test public void testPackedTriangles() {
+    Material material = new Material("test", null) {
+      @Override public float[] getColor(double u, double v) {
+        // Transparent for one half of the texture.
+        return new float[] { (float) u, (float) v, 1, u < 0.5 ? 0 : 1 };
+      }
+    };
+    Random random = new Random(0);
+    List<Primitive> primitives = new ArrayList<>();
+    for (int i = 0; i < 5000; ++i) {
+      Vector3 c1 = new Vector3(random.nextDouble() * 100, random.nextDouble() * 20,
+          random.nextDouble() * 100);
+      Vector3 c2 = new Vector3(c1.x + random.nextDouble() * 2 - 1,
+          c1.y + random.nextDouble() * 2 - 1, c1.z + random.nextDouble() * 2 - 1);
+      Vector3 c3 = new Vector3(c1.x + random.nextDouble() * 2 - 1,
+          c1.y + random.nextDouble() * 2 - 1, c1.z + random.nextDouble() * 2 - 1);
+      primitives.add(new TexturedTriangle(c1, c2, c3, new Vector2(0, 0), new Vector2(1, 0),
+          new Vector2(0, 1), material));
+    }
+    BVH expected = new BVH(primitives, BVH.Method.MIDPOINT);
+    BVH actual = new BVH(primitives, BVH.Method.BINNED_SAH);
+    int hits = 0;
+    for (int i = 0; i < 5000; ++i) {
+      Ray ray1 = randomRay(random);
+      Ray ray2 = new Ray(ray1);
+      ray2.t = Double.POSITIVE_INFINITY;
+      boolean hit1 = expected.closestIntersection(ray1);
+      boolean hit2 = actual.closestIntersection(ray2);
+      assertEquals(hit1, hit2);
+      if (hit1) {
+        hits += 1;
+        assertEquals(ray1.t, ray2.t, 0);
+        assertEquals(ray1.color.x, ray2.color.x, 0);
+        assertEquals(ray1.color.y, ray2.color.y, 0);
+        assertEquals(ray1.n.x, ray2.n.x, 0);
+        assertEquals(ray1.n.y, ray2.n.y, 0);
+        assertEquals(ray1.n.z, ray2.n.z, 0);
+      }
+      assertEquals(expected.anyIntersection(randomRay(new Random(i))),
+          actual.anyIntersection(randomRay(new Random(i))));
+    }
+    assertTrue(hits > 0);
+  }
+
+  @Test public void testEmpty() {
+    BVH bvh = new BVH(Collections.emptyList(), BVH.Method.BINNED_SAH);
+    Ray ray = randomRay(new Random(0));
+    assertFalse(bvh.closestIntersection(ray));
+    assertFalse(bvh.anyIntersection(ray));
+  }
+}
@@ -0,0 +1,371 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.math;
+
+import org.junit.Test;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.chunky.world.Chunk;
+import se.llbit.chunky.world.ChunkDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that inserting subtrees gives the same octree as setting each voxel.
+ */
+public class TestOctreeSubtree {
+  private static final int SIZE = 32;
+  private static final int HEIGHT = 64;
+  private static final int DEPTH = 7;
+
+  /** Octree depth for the decoded chunks, which are as tall as the world. */
+  private static final int CHUNK_DEPTH = 8;
+
+  /** Block names and water levels of the decoded chunks. */
+  private static final String[] CHUNK_BLOCKS = {
+      "minecraft:air", "minecraft:bedrock", "minecraft:stone", "minecraft:coal_ore",
+      "minecraft:iron_ore", "minecraft:dirt", "minecraft:grass_block", "minecraft:poppy",
+      "minecraft:water", "minecraft:water", "minecraft:water"
+  };
+  private static final int AIR = 0, BEDROCK = 1, STONE = 2, COAL = 3, IRON = 4, DIRT = 5,
+      GRASS = 6, POPPY = 7, WATER = 8;
+
+  private final int[] types = new int[SIZE * SIZE * HEIGHT];
+  private final int[] data = new int[SIZE * SIZE * HEIGHT];
+
+  public TestOctreeSubtree() {
+    // Terrain with ores, a lake with surface water data, and some lava.
+    Random random = new Random(1);
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int z = 0; z < SIZE; ++z) {
+        for (int x = 0; x < SIZE; ++x) {
+          int index = index(x, y, z);
+          int height = 20 + (x * 3 + z * 5) % 13;
+          if (y < height - 3) {
+            types[index] = random.nextInt(50) == 0 ? 2 : 1;
+          } else if (y < height) {
+            types[index] = 3;
+          } else if (y < 30) {
+            types[index] = 4;
+            data[index] = y == 29 ? 3 : 1 << 16;
+          }
+          if (y < 8 && x >= 20 && z < 10) {
+            types[index] = 5;
+            data[index] = 7;
+          }
+        }
+      }
+    }
+  }
+
+  private static int index(int x, int y, int z) {
+    return x + z * SIZE + y * SIZE * SIZE;
+  }
+
+  @Test public void packedLevel3() throws IOException {
+    compare(new Octree(DEPTH), new Octree(DEPTH), 3, 8);
+  }
+
+  @Test public void packedLevel4() throws IOException {
+    compare(new Octree(DEPTH), new Octree(DEPTH), 4, 16);
+  }
+
+  @Test public void nodeBasedLevel3() throws IOException {
+    compare(new Octree(DEPTH, new Octree.Node(0)), new Octree(DEPTH, new Octree.Node(0)), 3, 8);
+  }
+
+  @Test public void nodeBasedLevel4() throws IOException {
+    compare(new Octree(DEPTH, new Octree.Node(0)), new Octree(DEPTH, new Octree.Node(0)), 4, 48);
+  }
+
+  @Test public void packedReplaceSubtrees() throws IOException {
+    replace(new Octree(DEPTH), new Octree(DEPTH));
+  }
+
+  @Test public void nodeBasedReplaceSubtrees() throws IOException {
+    replace(new Octree(DEPTH, new Octree.Node(0)), new Octree(DEPTH, new Octree.Node(0)));
+  }
+
+  @Test public void packedGetVoxels() {
+    getVoxels(new Octree(DEPTH));
+  }
+
+  @Test public void nodeBasedGetVoxels() {
+    getVoxels(new Octree(DEPTH, new Octree.Node(0)));
+  }
+
+  @Test public void leafSubtree() {
+    int[] stone = new int[8 * 8 * 8];
+    Arrays.fill(stone, 1);
+    OctreeSubtree subtree = OctreeSubtree.build(3, stone, new int[stone.length], 0, 8, 64);
+    assertTrue(subtree.isLeaf());
+    assertEquals(1, subtree.rootType());
+  }
+
+  /**
+   * Build the fixture voxel by voxel and by subtrees, at the given offset
+   * in x and z, and compare the serialized octrees.
+   */
+  private void compare(Octree sequential, Octree subtrees, int level, int shift)
+      throws IOException {
+    setVoxels(sequential, shift);
+    insertSubtrees(subtrees, level, shift);
+    assertArrayEquals(serialize(sequential), serialize(subtrees));
+  }
+
+  private void setVoxels(Octree octree, int shift) {
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int z = 0; z < SIZE; ++z) {
+        for (int x = 0; x < SIZE; ++x) {
+          int index = index(x, y, z);
+          Octree.Node node = data[index] == 0
+              ? new Octree.Node(types[index])
+              : new Octree.DataNode(types[index], data[index]);
+          octree.set(node, x + shift, y, z + shift);
+        }
+      }
+    }
+  }
+
+  private void insertSubtrees(Octree octree, int level, int shift) {
+    int size = 1 << level;
+    for (int y = 0; y < HEIGHT; y += size) {
+      for (int z = 0; z < SIZE; z += size) {
+        for (int x = 0; x < SIZE; x += size) {
+          int offset = index(x, y, z);
+          OctreeSubtree subtree =
+              OctreeSubtree.build(level, types, data, offset, SIZE, SIZE * SIZE);
+          if (subtree.isLeaf() && types[offset] == 0 && data[offset] == 0) {
+            continue;
+          }
+          octree.setSubtree(subtree, x + shift, y, z + shift);
+        }
+      }
+    }
+  }
+
+  /**
+   * Insert subtrees over cubes that were already modified, and compare with
+   * an octree where only the new voxels were set.
+   */
+  private void replace(Octree expected, Octree octree) throws IOException {
+    insertSubtrees(octree, 3, 8);
+    // Fill the lake with stone.
+    for (int i = 0; i < types.length; ++i) {
+      if (types[i] == 4) {
+        types[i] = 1;
+        data[i] = 0;
+      }
+    }
+    insertSubtrees(octree, 3, 8);
+    setVoxels(expected, 8);
+    assertArrayEquals(serialize(expected), serialize(octree));
+  }
+
+  /** Read boxes that are partly outside the octree or the fixture. */
+  private void getVoxels(Octree octree) {
+    setVoxels(octree, 8);
+    int xSize = 18;
+    int ySize = 66;
+    int zSize = 18;
+    int[] boxTypes = new int[xSize * ySize * zSize];
+    int[] boxData = new int[xSize * ySize * zSize];
+    for (int x0 = -1; x0 < 40; x0 += 15) {
+      for (int z0 = -1; z0 < 40; z0 += 15) {
+        octree.getVoxels(x0, -1, z0, xSize, ySize, zSize, boxTypes, boxData);
+        for (int y = 0; y < ySize; ++y) {
+          for (int z = 0; z < zSize; ++z) {
+            for (int x = 0; x < xSize; ++x) {
+              int index = x + z * xSize + y * xSize * zSize;
+              // Fixture coordinates.
+              int fx = x0 + x - 8;
+              int fy = y - 1;
+              int fz = z0 + z - 8;
+              boolean inside = fx >= 0 && fx < SIZE && fy >= 0 && fy < HEIGHT
+                  && fz >= 0 && fz < SIZE;
+              assertEquals(inside ? types[index(fx, fy, fz)] : 0, boxTypes[index]);
+              assertEquals(inside ? data[index(fx, fy, fz)] : 0, boxData[index]);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test public void packedDecodedChunks() throws IOException {
+    compareChunks(() -> new Octree(CHUNK_DEPTH), 3);
+    compareChunks(() -> new Octree(CHUNK_DEPTH), 4);
+  }
+
+  @Test public void nodeBasedDecodedChunks() throws IOException {
+    compareChunks(() -> new Octree(CHUNK_DEPTH, new Octree.Node(0)), 3);
+    compareChunks(() -> new Octree(CHUNK_DEPTH, new Octree.Node(0)), 4);
+  }
+
+  private interface OctreeFactory {
+    Octree create();
+  }
+
+  /**
+   * Decode chunk NBT data with the chunk decoder, and insert the chunks
+   * voxel by voxel and by subtrees, like the chunk loader, next to each
+   * other. Compare the serialized octrees.
+   */
+  private static void compareChunks(OctreeFactory factory, int level) throws IOException {
+    BlockPalette palette = new BlockPalette();
+    Octree sequential = factory.create();
+    Octree subtrees = factory.create();
+    int size = 1 << level;
+    int[] data = new int[Chunk.X_MAX * Chunk.Y_MAX * Chunk.Z_MAX];
+    for (int chunk = 0; chunk < 3; ++chunk) {
+      int[] blocks = new int[data.length];
+      new ChunkDecoder(palette).decode(new ByteArrayInputStream(chunkNbt(chunk)), blocks,
+          new byte[Chunk.X_MAX * Chunk.Z_MAX], new ArrayList<>(), new ArrayList<>());
+      int x0 = (chunk % 2) * Chunk.X_MAX;
+      int z0 = (chunk / 2) * Chunk.Z_MAX;
+      for (int y = 0; y < Chunk.Y_MAX; ++y) {
+        for (int z = 0; z < Chunk.Z_MAX; ++z) {
+          for (int x = 0; x < Chunk.X_MAX; ++x) {
+            sequential.set(blocks[Chunk.chunkIndex(x, y, z)], x0 + x, y, z0 + z);
+          }
+        }
+      }
+      for (int y = 0; y < Chunk.Y_MAX; y += size) {
+        for (int z = 0; z < Chunk.Z_MAX; z += size) {
+          for (int x = 0; x < Chunk.X_MAX; x += size) {
+            int offset = Chunk.chunkIndex(x, y, z);
+            OctreeSubtree subtree = OctreeSubtree.build(level, blocks, data, offset,
+                Chunk.X_MAX, Chunk.X_MAX * Chunk.Z_MAX);
+            if (subtree.isLeaf() && blocks[offset] == 0) {
+              continue;
+            }
+            subtrees.setSubtree(subtree, x0 + x, y, z0 + z);
+          }
+        }
+      }
+    }
+    assertArrayEquals(serialize(sequential), serialize(subtrees));
+  }
+
+  /**
+   * Write the NBT data of a chunk with bedrock, stone with ores and caves,
+   * dirt, grass and flowers, and a lake. Like in a real chunk, only the
+   * sections below the surface are stored.
+   */
+  private static byte[] chunkNbt(int seed) throws IOException {
+    Random random = new Random(seed);
+    int[] blocks = new int[Chunk.X_MAX * Chunk.Y_MAX * Chunk.Z_MAX];
+    for (int z = 0; z < Chunk.Z_MAX; ++z) {
+      for (int x = 0; x < Chunk.X_MAX; ++x) {
+        int height = 58 + (int) (6 * Math.sin((x + seed * 16) * 0.3) + 4 * Math.cos(z * 0.4));
+        for (int y = 0; y <= Math.max(63, height + 1); ++y) {
+          int block;
+          if (y < 1 + random.nextInt(4)) {
+            block = BEDROCK;
+          } else if (y < height - 4) {
+            boolean cave = Math.abs(y - 30 - 4 * Math.sin(x * 0.5 + z * 0.2)) < 3 && z > 4;
+            int ore = random.nextInt(40);
+            block = cave ? AIR : ore == 0 ? COAL : ore == 1 ? IRON : STONE;
+          } else if (y < height) {
+            block = DIRT;
+          } else if (y == height) {
+            block = height < 63 ? DIRT : GRASS;
+          } else if (y < 64) {
+            block = WATER + Math.min(2, 63 - y);
+          } else {
+            block = random.nextInt(10) == 0 ? POPPY : AIR;
+          }
+          blocks[Chunk.chunkIndex(x, y, z)] = block;
+        }
+      }
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(10);
+    out.writeUTF("");
+    out.writeByte(10);
+    out.writeUTF("Level");
+    int sections = 5;
+    out.writeByte(9);
+    out.writeUTF("Sections");
+    out.writeByte(10);
+    out.writeInt(sections);
+    for (int section = 0; section < sections; ++section) {
+      out.writeByte(1);
+      out.writeUTF("Y");
+      out.writeByte(section);
+      out.writeByte(9);
+      out.writeUTF("Palette");
+      out.writeByte(10);
+      out.writeInt(CHUNK_BLOCKS.length);
+      for (int i = 0; i < CHUNK_BLOCKS.length; ++i) {
+        out.writeByte(8);
+        out.writeUTF("Name");
+        out.writeUTF(CHUNK_BLOCKS[i]);
+        if (i >= WATER) {
+          out.writeByte(10);
+          out.writeUTF("Properties");
+          out.writeByte(8);
+          out.writeUTF("level");
+          out.writeUTF(String.valueOf(i - WATER));
+          out.writeByte(0);
+        }
+        out.writeByte(0);
+      }
+      // Four bits per block.
+      long[] states = new long[16 * 16 * 16 / 16];
+      for (int i = 0; i < 16 * 16 * 16; ++i) {
+        states[i / 16] |= (long) blocks[section * 16 * 16 * 16 + i] << (4 * (i % 16));
+      }
+      out.writeByte(12);
+      out.writeUTF("BlockStates");
+      out.writeInt(states.length);
+      for (long value : states) {
+        out.writeLong(value);
+      }
+      out.writeByte(0);
+    }
+    for (String list : new String[] { "Entities", "TileEntities" }) {
+      out.writeByte(9);
+      out.writeUTF(list);
+      out.writeByte(10);
+      out.writeInt(0);
+    }
+    out.writeByte(0);
+    out.writeByte(0);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static byte[] serialize(Octree octree) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      octree.store(out);
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,110 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.png;
+
+import org.junit.Test;
+import se.llbit.util.TaskTracker;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes PNG images and reads them back with ImageIO.
+ */
+public class TestPngFileWriter {
+  /** An image with smooth gradients and some noise, so that all filter types are used. */
+  private static int[] image(int width, int height) {
+    Random random = new Random(width * 31 + height);
+    int[] data = new int[width * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int r = (x * 255 / width + random.nextInt(3)) & 0xFF;
+        int g = (y * 255 / height) & 0xFF;
+        int b = (x < width / 2) ? random.nextInt(256) : (x ^ y) & 0xFF;
+        data[y * width + x] = (r << 16) | (g << 8) | b;
+      }
+    }
+    return data;
+  }
+
+  private static byte[] alpha(int width, int height) {
+    byte[] alpha = new byte[width * height];
+    for (int i = 0; i < alpha.length; ++i) {
+      alpha[i] = (byte) (i * 7);
+    }
+    return alpha;
+  }
+
+  private static void check(int width, int height, boolean transparent, int threads)
+      throws IOException {
+    int[] data = image(width, height);
+    byte[] alpha = transparent ? alpha(width, height) : null;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (PngFileWriter writer = new PngFileWriter(bytes, threads)) {
+      if (transparent) {
+        writer.write(data, alpha, width, height, TaskTracker.Task.NONE);
+      } else {
+        writer.write(data, width, height, TaskTracker.Task.NONE);
+      }
+    }
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals(width, image.getWidth());
+    assertEquals(height, image.getHeight());
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int i = y * width + x;
+        int argb = image.getRGB(x, y);
+        assertEquals(data[i], argb & 0xFFFFFF);
+        assertEquals(transparent ? alpha[i] & 0xFF : 0xFF, argb >>> 24);
+      }
+    }
+  }
+
+  @Test public void rgb() throws IOException {
+    check(37, 11, false, 1);
+  }
+
+  @Test public void rgba() throws IOException {
+    check(37, 11, true, 2);
+  }
+
+  /** Images with many strips, and a last strip with fewer rows. */
+  @Test public void manyStrips() throws IOException {
+    check(1001, 397, false, 3);
+    check(1001, 397, true, 4);
+  }
+
+  @Test public void adler32Combine() {
+    byte[] data = new byte[100000];
+    new Random(1).nextBytes(data);
+    Adler32 whole = new Adler32();
+    whole.update(data);
+    Adler32 first = new Adler32();
+    first.update(data, 0, 12345);
+    Adler32 second = new Adler32();
+    second.update(data, 12345, data.length - 12345);
+    assertEquals((int) whole.getValue(), IDATEncoder.adler32Combine((int) first.getValue(),
+        (int) second.getValue(), data.length - 12345));
+  }
+}
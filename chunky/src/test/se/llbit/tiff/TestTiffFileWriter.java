@@ -0,0 +1,162 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.tiff;
+
+import org.junit.Test;
+import se.llbit.util.TaskTracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes 32-bit TIFF images and checks the header, the image file directory
+ * and the pixel values.
+ */
+public class TestTiffFileWriter {
+  /** The colors of the test images. */
+  private static double color(int x, int y, int channel) {
+    return channel == 0 ? x * 0.01 : channel == 1 ? y * 1.5 - 3 : Math.sin(x + y * 7) * 100;
+  }
+
+  private static final TiffFileWriter.RowSource ROWS = (y0, y1, dest) -> {
+    int width = dest.length / ((y1 - y0) * 3);
+    for (int y = y0; y < y1; ++y) {
+      for (int x = 0; x < width; ++x) {
+        for (int c = 0; c < 3; ++c) {
+          dest[((y - y0) * width + x) * 3 + c] = color(x, y, c);
+        }
+      }
+    }
+  };
+
+  private static byte[] write(int width, int height, int threadCount) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (TiffFileWriter writer = new TiffFileWriter(bytes, threadCount)) {
+      writer.write32(width, height, ROWS, TaskTracker.Task.NONE);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * The image data written one pixel at a time, like the TIFF writer did
+   * before the image data was converted in parallel batches.
+   */
+  private static byte[] pixelData(int width, int height) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      for (int y = 0; y < height; ++y) {
+        for (int x = 0; x < width; ++x) {
+          out.writeFloat((float) color(x, y, 0));
+          out.writeFloat((float) color(x, y, 1));
+          out.writeFloat((float) color(x, y, 2));
+        }
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Check the header, the image file directory, and the image data. */
+  private static void check(byte[] file, int width, int height) throws IOException {
+    ByteBuffer in = ByteBuffer.wrap(file);
+    assertEquals(0x4D4D002A, in.getInt());
+    int dataSize = width * height * 12;
+    int ifdOffset = in.getInt();
+    assertEquals(8 + dataSize, ifdOffset);
+    assertArrayEquals(pixelData(width, height), Arrays.copyOfRange(file, 8, 8 + dataSize));
+
+    in.position(ifdOffset);
+    int numEntries = in.getShort();
+    assertEquals(15, numEntries);
+    int[] tags = new int[numEntries];
+    int[] values = new int[numEntries];
+    for (int i = 0; i < numEntries; ++i) {
+      tags[i] = in.getShort() & 0xFFFF;
+      int type = in.getShort();
+      int count = in.getInt();
+      if (type == 3 && count == 1) {
+        values[i] = in.getShort() & 0xFFFF;
+        in.getShort();
+      } else {
+        values[i] = in.getInt();
+      }
+    }
+    assertEquals(0, in.getShort());
+    assertArrayEquals(new int[] {
+        0x0100, 0x0101, 0x0102, 0x0103, 0x0106, 0x0111, 0x0112, 0x0115, 0x0116,
+        0x0117, 0x011A, 0x011B, 0x0128, 0x0153, 0x0131
+    }, tags);
+    assertEquals(width, values[0]);
+    assertEquals(height, values[1]);
+    assertEquals(1, values[3]); // No compression.
+    assertEquals(2, values[4]); // RGB.
+    assertEquals(8, values[5]); // Strip offset.
+    assertEquals(3, values[7]); // Samples per pixel.
+    assertEquals(height, values[8]); // Rows per strip.
+
+    in.position(values[2]);
+    assertEquals(32, in.getShort());
+    assertEquals(32, in.getShort());
+    assertEquals(32, in.getShort());
+    in.position(values[9]);
+    assertEquals(dataSize, in.getInt());
+    in.position(values[13]);
+    assertEquals(3, in.getShort()); // Floating point samples.
+    assertEquals(3, in.getShort());
+    assertEquals(3, in.getShort());
+    byte[] software = new byte[6];
+    in.position(values[14]);
+    in.get(software);
+    assertEquals("Chunky", new String(software, "ASCII"));
+    assertEquals(0, in.get());
+    assertEquals(file.length, in.position());
+  }
+
+  @Test public void smallImage() throws IOException {
+    check(write(3, 2, 4), 3, 2);
+  }
+
+  /** The image data is converted in several batches. */
+  @Test public void largeImage() throws IOException {
+    check(write(1000, 400, 3), 1000, 400);
+  }
+
+  @Test public void singleThread() throws IOException {
+    check(write(17, 33, 1), 17, 33);
+  }
+
+  @Test public void file() throws IOException {
+    File file = File.createTempFile("chunky", ".tiff");
+    file.deleteOnExit();
+    try {
+      try (TiffFileWriter writer = new TiffFileWriter(new FileOutputStream(file), 2)) {
+        writer.write32(40, 30, ROWS, TaskTracker.Task.NONE);
+      }
+      check(Files.readAllBytes(file.toPath()), 40, 30);
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/* Copyright (c) 2019 Jesper Öqvist <jesper@llbit.se>
+ *
+ * This file is part of Chunky.
+ *
+ * Chunky is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Chunky is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Chunky.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.llbit.util;
+
+import org.junit.Test;
+import se.llbit.chunky.world.ChunkPosition;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestLongHashMap {
+  @Test public void putAndGet() {
+    LongHashMap<String> map = new LongHashMap<>();
+    assertTrue(map.isEmpty());
+    assertNull(map.put(ChunkPosition.asLong(-1, 2), "a"));
+    assertNull(map.put(ChunkPosition.asLong(2, -1), "b"));
+    assertEquals("a", map.put(ChunkPosition.asLong(-1, 2), "c"));
+    assertEquals(2, map.size());
+    assertEquals("c", map.get(ChunkPosition.asLong(-1, 2)));
+    assertEquals("b", map.get(ChunkPosition.asLong(2, -1)));
+    assertFalse(map.containsKey(ChunkPosition.asLong(0, 0)));
+    assertEquals("d", map.computeIfAbsent(0, key -> "d"));
+    assertEquals("d", map.computeIfAbsent(0, key -> "e"));
+    assertEquals(3, map.size());
+  }
+
+  /** Random operations on a dense block of positions, compared with a HashMap. */
+  @Test public void randomOperations() {
+    Random random = new Random(0);
+    LongHashMap<Integer> map = new LongHashMap<>();
+    Map<Long, Integer> expected = new HashMap<>();
+    for (int i = 0; i < 100000; ++i) {
+      long key = ChunkPosition.asLong(random.nextInt(64) - 32, random.nextInt(64) - 32);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), map.remove(key));
+      } else {
+        assertEquals(expected.put(key, i), map.put(key, i));
+      }
+      assertEquals(expected.size(), map.size());
+    }
+    for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+    assertEquals(expected.size(), map.keys().length);
+    for (long key : map.keys()) {
+      assertTrue(expected.containsKey(key));
+    }
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertNull(map.get(ChunkPosition.asLong(0, 0)));
+  }
+}